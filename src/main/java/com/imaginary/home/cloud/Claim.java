@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+
+/**
+ * A row whose only purpose is to exist at most once. Work that must happen once across every API node, such as
+ * moving a command out of a given state or running a sweep, writes a claim naming that work in the same transaction
+ * as the work itself. The claim name is the primary key, so the database turns away the second transaction to
+ * write the same claim whichever node it comes from, and that transaction commits none of its work.
+ */
+public class Claim implements CachedItem {
+    static private EntityStore<Claim> cache;
+
+    static private EntityStore<Claim> getCache() throws PersistenceException {
+        if( cache == null ) {
+            cache = Storage.getInstance().getStore(Claim.class);
+        }
+        return cache;
+    }
+
+    /**
+     * Adds a claim to an ongoing transaction. The transaction fails if the claim already exists.
+     * @param xaction the transaction doing the claimed work
+     * @param claimId the unique name of the work being claimed
+     * @param subjectId the ID of the thing the work is about, used to clean claims up along with it
+     * @throws PersistenceException an error occurred writing the claim
+     */
+    static public void add(@Nonnull StorageTransaction xaction, @Nonnull String claimId, @Nonnull String subjectId) throws PersistenceException {
+        HashMap<String,Object> state = new HashMap<String, Object>();
+
+        state.put("claimId", claimId);
+        state.put("subjectId", subjectId);
+        state.put("claimedTimestamp", System.currentTimeMillis());
+        getCache().create(xaction, state);
+    }
+
+    /**
+     * Claims a piece of work on its own, for work that is not itself written to the database.
+     * @param claimId the unique name of the work being claimed
+     * @param subjectId the ID of the thing the work is about
+     * @return true if this caller now owns the work, false if someone else claimed it first
+     * @throws PersistenceException an error other than losing the claim occurred
+     */
+    static boolean claim(@Nonnull String claimId, @Nonnull String subjectId) throws PersistenceException {
+        if( exists(claimId) ) {
+            return false;
+        }
+        StorageTransaction xaction = Storage.getInstance().begin();
+
+        try {
+            add(xaction, claimId, subjectId);
+            xaction.commit();
+            return true;
+        }
+        catch( PersistenceException e ) {
+            if( exists(claimId) ) {
+                return false;
+            }
+            throw e;
+        }
+        finally {
+            xaction.rollback();
+        }
+    }
+
+    static public boolean exists(@Nonnull String claimId) throws PersistenceException {
+        return (getCache().get(claimId) != null);
+    }
+
+    /**
+     * Removes every claim for the specified subject as part of an ongoing transaction, typically the one removing
+     * the subject itself.
+     * @param xaction the transaction removing the subject
+     * @param subjectId the ID of the subject
+     * @throws PersistenceException an error occurred removing the claims
+     */
+    static void removeAll(@Nonnull StorageTransaction xaction, @Nonnull String subjectId) throws PersistenceException {
+        for( Claim claim : getCache().find(new Criterion("subjectId", subjectId)) ) {
+            getCache().remove(xaction, claim);
+        }
+    }
+
+    /**
+     * Removes every claim for the specified subject but one in a transaction of its own, typically to clear out
+     * claims on work that is long done.
+     * @param subjectId the ID of the subject
+     * @param except the claim to keep
+     * @throws PersistenceException an error occurred removing the claims
+     */
+    static void removeAll(@Nonnull String subjectId, @Nonnull String except) throws PersistenceException {
+        StorageTransaction xaction = Storage.getInstance().begin();
+
+        try {
+            for( Claim claim : getCache().find(new Criterion("subjectId", subjectId)) ) {
+                if( !claim.claimId.equals(except) ) {
+                    getCache().remove(xaction, claim);
+                }
+            }
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+    }
+
+    @Index(type=IndexType.PRIMARY)
+    private String claimId;
+    private long   claimedTimestamp;
+    @Index(type=IndexType.SECONDARY)
+    private String subjectId;
+
+    public Claim() { }
+
+    public @Nonnull String getClaimId() {
+        return claimId;
+    }
+
+    public @Nonnegative long getClaimedTimestamp() {
+        return claimedTimestamp;
+    }
+
+    public @Nonnull String getSubjectId() {
+        return subjectId;
+    }
+
+    @Override
+    public boolean isValidForCache() {
+        return false;
+    }
+}
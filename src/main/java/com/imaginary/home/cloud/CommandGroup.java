@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A set of {@link PendingCommand} objects queued together in a single call. Every command in the group shares the
+ * group ID and issued timestamp, and the group was written atomically.
+ */
+public class CommandGroup {
+    private PendingCommand[] commands;
+    private String           groupId;
+    private long             issuedTimestamp;
+
+    public CommandGroup(@Nonnull String groupId, @Nonnegative long issuedTimestamp, @Nonnull PendingCommand[] commands) {
+        this.groupId = groupId;
+        this.issuedTimestamp = issuedTimestamp;
+        this.commands = commands;
+    }
+
+    public @Nonnull PendingCommand[] getCommands() {
+        return commands;
+    }
+
+    public @Nonnull String getGroupId() {
+        return groupId;
+    }
+
+    public @Nonnegative long getIssuedTimestamp() {
+        return issuedTimestamp;
+    }
+
+    public @Nonnegative int size() {
+        return commands.length;
+    }
+}
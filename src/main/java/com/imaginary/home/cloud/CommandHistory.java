@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Archived record of a {@link PendingCommand} that finished (executed or timed out) long enough ago to be moved
+ * out of the pending command table. History is append-only: records are written once when a command is archived
+ * and never updated, and only the fields needed to answer "what happened to this command" are kept.
+ */
+public class CommandHistory implements CachedItem {
+    static private EntityStore<CommandHistory> cache;
+
+    static private EntityStore<CommandHistory> getCache() throws PersistenceException {
+        if( cache == null ) {
+            cache = Storage.getInstance().getStore(CommandHistory.class);
+        }
+        return cache;
+    }
+
+    /**
+     * Appends the archived form of a completed command as part of an ongoing transaction.
+     * @param xaction the transaction moving the command out of the pending table
+     * @param cmd the completed command
+     * @throws PersistenceException an error occurred writing the history record
+     */
+    static void append(@Nonnull StorageTransaction xaction, @Nonnull PendingCommand cmd) throws PersistenceException {
+        HashMap<String,Object> state = new HashMap<String, Object>();
+
+        state.put("command", cmd.getCommand());
+        state.put("completionTimestamp", cmd.getCompletionTimestamp() == null ? 0L : cmd.getCompletionTimestamp());
+        state.put("deviceIds", cmd.getDeviceIds());
+        state.put("errorMessage", cmd.getErrorMessage());
+        state.put("groupId", cmd.getGroupId());
+        state.put("issuedBy", cmd.getIssuedBy());
+        state.put("issuedTimestamp", cmd.getIssuedTimestamp());
+        state.put("pendingCommandId", cmd.getPendingCommandId());
+        state.put("relayId", cmd.getRelayId());
+        state.put("result", Boolean.TRUE.equals(cmd.getResult()));
+        state.put("sentTimestamp", cmd.getSentTimestamp());
+        state.put("state", cmd.getState());
+        getCache().create(xaction, state);
+    }
+
+    static public @Nonnull Collection<CommandHistory> findHistoryForGroup(@Nonnull String groupId) throws PersistenceException {
+        return getCache().find(new Criterion("groupId", groupId));
+    }
+
+    static public @Nonnull Collection<CommandHistory> findHistoryForRelay(@Nonnull ControllerRelay relay) throws PersistenceException {
+        return getCache().find(new Criterion("relayId", relay.getControllerRelayId()));
+    }
+
+    static public @Nullable CommandHistory getHistory(@Nonnull String pendingCommandId) throws PersistenceException {
+        return getCache().get(pendingCommandId);
+    }
+
+    private String              command;
+    private long                completionTimestamp;
+    private String[]            deviceIds;
+    private String              errorMessage;
+    @Index(type=IndexType.SECONDARY)
+    private String              groupId;
+    private String              issuedBy;
+    private long                issuedTimestamp;
+    @Index(type=IndexType.PRIMARY)
+    private String              pendingCommandId;
+    @Index(type=IndexType.SECONDARY)
+    private String              relayId;
+    private boolean             result;
+    private Long                sentTimestamp;
+    private PendingCommandState state;
+
+    public CommandHistory() { }
+
+    public @Nonnull String getCommand() {
+        return command;
+    }
+
+    public @Nonnegative long getCompletionTimestamp() {
+        return completionTimestamp;
+    }
+
+    public @Nonnull String[] getDeviceIds() {
+        return deviceIds;
+    }
+
+    public @Nullable String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public @Nonnull String getGroupId() {
+        return groupId;
+    }
+
+    public @Nonnull String getIssuedBy() {
+        return issuedBy;
+    }
+
+    public @Nonnegative long getIssuedTimestamp() {
+        return issuedTimestamp;
+    }
+
+    public @Nonnull String getPendingCommandId() {
+        return pendingCommandId;
+    }
+
+    public @Nonnull String getRelayId() {
+        return relayId;
+    }
+
+    public boolean getResult() {
+        return result;
+    }
+
+    public @Nullable Long getSentTimestamp() {
+        return sentTimestamp;
+    }
+
+    public @Nonnull PendingCommandState getState() {
+        return state;
+    }
+
+    @Override
+    public boolean isValidForCache() {
+        return false;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import org.apache.log4j.Logger;
+import org.dasein.persist.PersistenceException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background sweeper that keeps the pending command table down to commands that are still in flight. On every pass
+ * it times out commands their relay never acted on and then archives commands that finished more than the
+ * retention window ago into {@link CommandHistory}, removing them from the pending table in fixed size batches.
+ * Every API node runs a sweeper, but each sweep interval is claimed through a {@link Claim}, so only one node sweeps
+ * per interval and the others just refresh their waiting counts.
+ */
+public class CommandLifecycleService {
+    static private final Logger logger = Logger.getLogger(CommandLifecycleService.class);
+
+    /**
+     * Names the claims on sweep intervals, which are also the subject of those claims
+     */
+    static private final String SWEEP_CLAIM = "command-sweep";
+
+    /**
+     * The maximum number of batches read per command state in a single sweep
+     */
+    static private final int MAX_BATCHES = 10;
+
+    private final int                batchSize;
+    private ScheduledExecutorService executor;
+    private final long               interval;
+    private final long               retention;
+
+    /**
+     * Constructs a sweeper with the specified schedule.
+     * @param interval the number of milliseconds between sweeps
+     * @param retention how long, in milliseconds, completed commands stay in the pending table before being archived
+     * @param batchSize the maximum number of commands changed in a single transaction
+     */
+    public CommandLifecycleService(@Nonnegative long interval, @Nonnegative long retention, @Nonnegative int batchSize) {
+        this.interval = Math.max(1L, interval);
+        this.retention = retention;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public synchronized void start() {
+        if( executor != null ) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "command-lifecycle");
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                }
+                catch( Throwable t ) {
+                    logger.error("Command sweep failed: " + t.getMessage(), t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if( executor != null ) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Runs a single pass, timing out overdue commands before archiving so that commands expired in this pass become
+     * eligible for archival once they have aged past the retention window. Only the first node to claim the current
+     * interval sweeps, reading at most {@link #MAX_BATCHES} batches per command state. Each pass, swept or not, ends
+     * by rebuilding this node's waiting command counts behind {@link PendingCommand#hasCommands(ControllerRelay)}.
+     * @throws PersistenceException an error occurred talking to the database
+     */
+    public void sweep() throws PersistenceException {
+        String claimId = SWEEP_CLAIM + ":" + (System.currentTimeMillis() / interval);
+        int expired = 0, archived = 0;
+
+        if( Claim.claim(claimId, SWEEP_CLAIM) ) {
+            Claim.removeAll(SWEEP_CLAIM, claimId);
+            expired = PendingCommand.expireOverdue(batchSize, MAX_BATCHES);
+            archived = PendingCommand.archiveCompleted(System.currentTimeMillis() - retention, batchSize, MAX_BATCHES);
+        }
+        PendingCommand.loadWaitingCounts();
+
+        if( logger.isInfoEnabled() && (expired > 0 || archived > 0) ) {
+            logger.info("Command sweep timed out " + expired + " and archived " + archived + " commands");
+        }
+    }
+}
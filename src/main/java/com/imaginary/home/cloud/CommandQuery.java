@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nullable;
+
+/**
+ * Filter and paging criteria for listing {@link PendingCommand} history. Commands are listed newest first, ordered
+ * by issued timestamp and then by command ID. Any criterion left null is not applied.
+ */
+public class CommandQuery {
+    static public final int DEFAULT_LIMIT = 100;
+    static public final int MAXIMUM_LIMIT = 1000;
+
+    private String              cursor;
+    private String              deviceId;
+    private String              groupId;
+    private String              issuedBy;
+    private int                 limit = DEFAULT_LIMIT;
+    private Long                since;
+    private PendingCommandState state;
+    private Long                until;
+
+    public CommandQuery() { }
+
+    public @Nullable String getCursor() {
+        return cursor;
+    }
+
+    public @Nullable String getDeviceId() {
+        return deviceId;
+    }
+
+    public @Nullable String getGroupId() {
+        return groupId;
+    }
+
+    public @Nullable String getIssuedBy() {
+        return issuedBy;
+    }
+
+    public @Nonnegative int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the earliest issued timestamp (inclusive) to list
+     */
+    public @Nullable Long getSince() {
+        return since;
+    }
+
+    public @Nullable PendingCommandState getState() {
+        return state;
+    }
+
+    /**
+     * @return the latest issued timestamp (exclusive) to list
+     */
+    public @Nullable Long getUntil() {
+        return until;
+    }
+
+    public void setCursor(@Nullable String cursor) {
+        this.cursor = cursor;
+    }
+
+    public void setDeviceId(@Nullable String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public void setGroupId(@Nullable String groupId) {
+        this.groupId = groupId;
+    }
+
+    public void setIssuedBy(@Nullable String issuedBy) {
+        this.issuedBy = issuedBy;
+    }
+
+    public void setLimit(@Nonnegative int limit) {
+        this.limit = Math.max(1, Math.min(limit, MAXIMUM_LIMIT));
+    }
+
+    public void setSince(@Nullable Long since) {
+        this.since = since;
+    }
+
+    public void setState(@Nullable PendingCommandState state) {
+        this.state = state;
+    }
+
+    public void setUntil(@Nullable Long until) {
+        this.until = until;
+    }
+}
@@ -16,21 +16,22 @@
 
 package com.imaginary.home.cloud;
 
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.util.CachedItem;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
-import java.util.Random;
 
 /**
  * Represents the configuration of the cloud service. The rest of the system can fetch configuration data and
@@ -41,7 +42,16 @@ import java.util.Random;
 public class Configuration implements CachedItem {
     static private final Logger logger = Logger.getLogger(Configuration.class);
 
-    static private PersistentCache<Configuration> cache;
+    static private EntityStore<Configuration> cache;
+
+    static private final EntityCache<Configuration> entities = new EntityCache<Configuration>("configuration", 1, 600000L);
+
+    static private final EntityCache.Loader<Configuration> loader = new EntityCache.Loader<Configuration>() {
+        @Override
+        public @Nullable Configuration load(@Nonnull String key) throws PersistenceException {
+            return getCache().get(key);
+        }
+    };
 
     static public @Nonnull String decrypt(@Nonnull String keySalt, @Nonnull String value) {
         try {
@@ -79,16 +89,15 @@ public class Configuration implements CachedItem {
         }
     }
 
-    static private @Nonnull PersistentCache<Configuration> getCache() throws PersistenceException {
+    static private @Nonnull EntityStore<Configuration> getCache() throws PersistenceException {
         if( cache == null ) {
-            //noinspection unchecked
-            cache = (PersistentCache<Configuration>)PersistentCache.getCache(Configuration.class);
+            cache = Storage.getInstance().getStore(Configuration.class);
         }
         return cache;
     }
 
     static public @Nonnull Configuration getConfiguration() throws PersistenceException {
-        Configuration c = getCache().get("configuration");
+        Configuration c = entities.get("configuration", loader);
 
         if( c == null ) {
             HashMap<String,Object> state = new HashMap<String, Object>();
@@ -96,7 +105,7 @@ public class Configuration implements CachedItem {
             state.put("key", "configuration");
             state.put("salt", generateToken(16, 16));
 
-            Transaction xaction = Transaction.getInstance();
+            StorageTransaction xaction = Storage.getInstance().begin();
 
             try {
                 c = getCache().create(xaction, state);
@@ -109,26 +118,14 @@ public class Configuration implements CachedItem {
         return c;
     }
 
-    static private final Random random = new Random();
-
+    /**
+     * Generates a random token of letters and digits. See {@link IdGenerator#generateToken(int, int)}.
+     * @param minLen the minimum length of the token
+     * @param maxLen the maximum length of the token
+     * @return a new random token
+     */
     static public @Nonnull String generateToken(int minLen, int maxLen) {
-        int len = (maxLen > minLen ? minLen + random.nextInt(maxLen-minLen) : minLen);
-        StringBuilder str = new StringBuilder();
-
-        while( str.length() < len ) {
-            char c = (char)random.nextInt(255);
-
-            if( c >= 'a' && c <= 'z' && c != 'l' && c != 'o' && c != 'i' ) {
-                str.append(c);
-            }
-            else if( c >= 'A' && c <= 'Z' && c != 'I' && c != 'O' ) {
-                str.append(c);
-            }
-            else if( c >= '2' && c <= '9' ) {
-                str.append(c);
-            }
-        }
-        return str.toString();
+        return IdGenerator.generateToken(minLen, maxLen);
     }
 
     @Index(type=IndexType.PRIMARY)
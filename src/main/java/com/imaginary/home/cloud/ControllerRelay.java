@@ -16,22 +16,24 @@
 
 package com.imaginary.home.cloud;
 
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import org.dasein.persist.DataIntegrityException;
 import org.dasein.persist.Memento;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.SearchTerm;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.util.CachedItem;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 
 /**
  * Cloud service reference to a home controller relay. Each location must have one, but may (for whatever reason)
@@ -40,23 +42,57 @@ import java.util.UUID;
  * @author George Reese
  */
 public class ControllerRelay implements CachedItem {
-    static private PersistentCache<ControllerRelay> cache;
+    static private EntityStore<ControllerRelay> cache;
 
-    static private PersistentCache<ControllerRelay> getCache() throws PersistenceException {
+    static private final EntityCache<ControllerRelay> entities = new EntityCache<ControllerRelay>("relay", 10000, 60000L);
+
+    static private final EntityCache<Collection<ControllerRelay>> relaysByLocation = new EntityCache<Collection<ControllerRelay>>("relaysByLocation", 10000, 60000L);
+
+    static private final EntityCache.Loader<ControllerRelay> loader = new EntityCache.Loader<ControllerRelay>() {
+        @Override
+        public @Nullable ControllerRelay load(@Nonnull String id) throws PersistenceException {
+            return getCache().get(id);
+        }
+    };
+
+    static private final EntityCache.BatchLoader<Collection<ControllerRelay>> locationLoader = new EntityCache.BatchLoader<Collection<ControllerRelay>>() {
+        @Override
+        public @Nullable Collection<ControllerRelay> load(@Nonnull String locationId) throws PersistenceException {
+            return Collections.unmodifiableList(new ArrayList<ControllerRelay>(getCache().find(new Criterion("locationId", locationId))));
+        }
+
+        @Override
+        public @Nonnull Map<String,Collection<ControllerRelay>> loadAll(@Nonnull Collection<String> locationIds) throws PersistenceException {
+            HashMap<String,ArrayList<ControllerRelay>> byLocation = new HashMap<String, ArrayList<ControllerRelay>>();
+            HashMap<String,Collection<ControllerRelay>> found = new HashMap<String, Collection<ControllerRelay>>();
+
+            for( String locationId : locationIds ) {
+                byLocation.put(locationId, new ArrayList<ControllerRelay>());
+            }
+            for( ControllerRelay relay : getCache().findAny("locationId", locationIds) ) {
+                ArrayList<ControllerRelay> list = byLocation.get(relay.getLocationId());
+
+                if( list != null ) {
+                    list.add(relay);
+                }
+            }
+            // locations without relays are cached as empty too, just as single loads cache them
+            for( Map.Entry<String,ArrayList<ControllerRelay>> entry : byLocation.entrySet() ) {
+                found.put(entry.getKey(), Collections.<ControllerRelay>unmodifiableList(entry.getValue()));
+            }
+            return found;
+        }
+    };
+
+    static private EntityStore<ControllerRelay> getCache() throws PersistenceException {
         if( cache == null) {
-            //noinspection unchecked
-            cache = (PersistentCache<ControllerRelay>)PersistentCache.getCache(ControllerRelay.class);
+            cache = Storage.getInstance().getStore(ControllerRelay.class);
         }
         return cache;
     }
 
     static public @Nonnull ControllerRelay create(@Nonnull Location location, @Nonnull String name) throws PersistenceException {
-        String id;
-
-        do {
-            id = UUID.randomUUID().toString();
-        } while( getRelay(id) != null );
-
+        String id = IdGenerator.nextId();
         String key = Configuration.encrypt(location.getLocationId(), Configuration.generateToken(32, 32).toUpperCase());
         HashMap<String,Object> state = new HashMap<String, Object>();
 
@@ -66,12 +102,13 @@ public class ControllerRelay implements CachedItem {
         state.put("name", name);
         state.put("token", Configuration.encrypt(location.getLocationId(), Configuration.generateToken(40, 60)));
 
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             ControllerRelay relay = getCache().create(xaction, state);
 
             xaction.commit();
+            relaysByLocation.invalidate(location.getLocationId());
             return relay;
         }
         finally {
@@ -80,10 +117,50 @@ public class ControllerRelay implements CachedItem {
     }
 
     static public @Nonnull Collection<ControllerRelay> findRelaysInLocation(@Nonnull Location location) throws PersistenceException {
-        return getCache().find(new SearchTerm("locationId", location.getLocationId()));
+        Collection<ControllerRelay> relays = relaysByLocation.get(location.getLocationId(), locationLoader);
+
+        return (relays == null ? Collections.<ControllerRelay>emptyList() : relays);
+    }
+
+    /**
+     * Lists the relays in all of the specified locations, querying only for locations not already loaded and
+     * fetching the relays for all of those in one batch.
+     * @param locations the locations whose relays are being listed
+     * @return the relays in those locations
+     * @throws PersistenceException an error occurred loading the relays
+     */
+    static public @Nonnull Collection<ControllerRelay> findRelaysInLocations(@Nonnull Collection<Location> locations) throws PersistenceException {
+        ArrayList<String> locationIds = new ArrayList<String>();
+        ArrayList<ControllerRelay> relays = new ArrayList<ControllerRelay>();
+
+        for( Location l : locations ) {
+            locationIds.add(l.getLocationId());
+        }
+        for( Collection<ControllerRelay> list : relaysByLocation.getAll(locationIds, locationLoader).values() ) {
+            relays.addAll(list);
+        }
+        return relays;
     }
 
+    /**
+     * Fetches a relay through this node's shared cache. The copy may be stale by up to the cache's time to live, so
+     * its token and API key secret must never be used to authenticate; use {@link #loadRelay(String)} for that.
+     * @param id the unique ID of the relay
+     * @return the relay, or null if there is no such relay
+     * @throws PersistenceException an error occurred loading the relay
+     */
     static public @Nullable ControllerRelay getRelay(@Nonnull String id) throws PersistenceException {
+        return entities.get(id, loader);
+    }
+
+    /**
+     * Reads a relay straight from the database, bypassing the shared cache. The relay token rotates whenever the
+     * relay asks any API node for a new one, so credentials are checked against a fresh copy every time.
+     * @param id the unique ID of the relay
+     * @return the relay as it currently stands, or null if there is no such relay
+     * @throws PersistenceException an error occurred loading the relay
+     */
+    static public @Nullable ControllerRelay loadRelay(@Nonnull String id) throws PersistenceException {
         return getCache().get(id);
     }
 
@@ -138,7 +215,7 @@ public class ControllerRelay implements CachedItem {
         state = memento.getState();
         token = Configuration.encrypt(locationId, token);
         state.put("name", name);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -148,6 +225,8 @@ public class ControllerRelay implements CachedItem {
             xaction.rollback();
         }
         this.name = name;
+        entities.invalidate(controllerRelayId);
+        relaysByLocation.invalidate(locationId);
     }
 
     public void setToken(@Nonnull String token) throws PersistenceException {
@@ -158,7 +237,7 @@ public class ControllerRelay implements CachedItem {
         state = memento.getState();
         token = Configuration.encrypt(locationId, token);
         state.put("token", token);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -168,5 +247,7 @@ public class ControllerRelay implements CachedItem {
             xaction.rollback();
         }
         this.token = token;
+        entities.invalidate(controllerRelayId);
+        relaysByLocation.invalidate(locationId);
     }
 }
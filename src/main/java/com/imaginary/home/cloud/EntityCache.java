@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import org.dasein.persist.PersistenceException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared read-through cache for entities that are read far more often than they are written. Lookups check the
+ * current {@link RequestScope} first, then the shared cache, and only then load from the database. Writers must
+ * call {@link #invalidate(String)} after committing. A load that races an invalidation is returned to its caller
+ * but never cached, so an invalidated entry cannot be brought back by a read that started before the write.
+ * <p>
+ * Each cache holds at most a fixed number of entries, evicting the least recently used, and entries expire after a
+ * time to live so that writes made by other API nodes are picked up eventually. Both limits and an on/off switch
+ * can be set per cache with the system properties <code>imaginary.cache.<i>name</i>.maxSize</code>,
+ * <code>imaginary.cache.<i>name</i>.ttl</code> (milliseconds) and <code>imaginary.cache.<i>name</i>.enabled</code>.
+ * </p>
+ */
+public class EntityCache<T> {
+    /**
+     * Loads a single entity from the database.
+     * @param <T> the type of entity being loaded
+     */
+    static public interface Loader<T> {
+        public @Nullable T load(@Nonnull String key) throws PersistenceException;
+    }
+
+    /**
+     * Loads any number of entities from the database at once, for {@link #getAll(Collection, BatchLoader)}.
+     * @param <T> the type of entity being loaded
+     */
+    static public interface BatchLoader<T> extends Loader<T> {
+        /**
+         * Loads the entities with the specified keys.
+         * @param keys the keys to load, none of them repeated
+         * @return the loaded entities by key, without entries for keys that match nothing
+         * @throws PersistenceException an error occurred loading the entities
+         */
+        public @Nonnull Map<String,T> loadAll(@Nonnull Collection<String> keys) throws PersistenceException;
+    }
+
+    static private class Entry<T> {
+        final long expiration;
+        final T    item;
+
+        Entry(@Nonnull T item, long expiration) {
+            this.item = item;
+            this.expiration = expiration;
+        }
+    }
+
+    static private final ConcurrentHashMap<String,EntityCache<?>> caches = new ConcurrentHashMap<String, EntityCache<?>>();
+
+    static public @Nonnull Collection<EntityCache<?>> list() {
+        return new ArrayList<EntityCache<?>>(caches.values());
+    }
+
+    static private long getLongProperty(@Nonnull String name, long defaultValue) {
+        String value = System.getProperty(name);
+
+        if( value == null || value.trim().equals("") ) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            return defaultValue;
+        }
+    }
+
+    private volatile boolean                     enabled;
+    private final LinkedHashMap<String,Entry<T>> entries;
+    private final AtomicLong                     evictions     = new AtomicLong(0L);
+    private final AtomicLong                     expirations   = new AtomicLong(0L);
+    private final AtomicLong                     generation    = new AtomicLong(0L);
+    private final AtomicLong                     hits          = new AtomicLong(0L);
+    private final AtomicLong                     invalidations = new AtomicLong(0L);
+    private final int                            maxSize;
+    private final AtomicLong                     misses        = new AtomicLong(0L);
+    private final String                         name;
+    private final long                           ttl;
+
+    /**
+     * Constructs a cache with the specified defaults, which may be overridden through system properties.
+     * @param name the name of the cache, unique within the service
+     * @param maxSize the default maximum number of entries
+     * @param ttl the default number of milliseconds an entry may be served before it is reloaded
+     */
+    public EntityCache(@Nonnull String name, @Nonnegative int maxSize, @Nonnegative long ttl) {
+        this.name = name;
+        this.maxSize = (int)Math.max(1L, getLongProperty("imaginary.cache." + name + ".maxSize", maxSize));
+        this.ttl = getLongProperty("imaginary.cache." + name + ".ttl", ttl);
+        this.enabled = !"false".equalsIgnoreCase(System.getProperty("imaginary.cache." + name + ".enabled"));
+        entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry<T>> eldest) {
+                if( size() > EntityCache.this.maxSize ) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        caches.put(name, this);
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the share of shared cache lookups served without a database load, 0 if there have been none
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+
+        return (total == 0L ? 0d : ((double)h)/total);
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public @Nonnegative int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public @Nonnull String getName() {
+        return name;
+    }
+
+    public @Nonnegative long getTtl() {
+        return ttl;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the shared cache on or off. Turning it off drops every entry; the request scope keeps working either way.
+     * @param enabled true to cache entities across requests
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if( !enabled ) {
+            clear();
+        }
+    }
+
+    public int size() {
+        synchronized( entries ) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Looks up a single entity.
+     * @param key the key of the entity
+     * @param loader loads the entity on a cache miss
+     * @return the matching entity, or null if none exists
+     * @throws PersistenceException an error occurred loading the entity
+     */
+    public @Nullable T get(@Nonnull String key, @Nonnull Loader<T> loader) throws PersistenceException {
+        String scoped = name + ":" + key;
+
+        if( RequestScope.contains(scoped) ) {
+            //noinspection unchecked
+            return (T)RequestScope.get(scoped);
+        }
+        T item = (enabled ? lookup(key) : null);
+
+        if( item == null ) {
+            long g = generation.get();
+
+            item = loader.load(key);
+            if( item != null && enabled ) {
+                store(key, item, g);
+            }
+        }
+        RequestScope.put(scoped, item);
+        return item;
+    }
+
+    /**
+     * Looks up many entities at once. Duplicate keys are looked up once, keys already seen in the current request
+     * or held in the shared cache cost nothing, and everything else is loaded with a single
+     * {@link BatchLoader#loadAll(Collection)} call.
+     * @param keys the keys of the entities
+     * @param loader loads the entities missing from the cache
+     * @return the matching entities in the order of their keys, without entries for keys that match nothing
+     * @throws PersistenceException an error occurred loading the entities
+     */
+    public @Nonnull Map<String,T> getAll(@Nonnull Collection<String> keys, @Nonnull BatchLoader<T> loader) throws PersistenceException {
+        LinkedHashMap<String,T> found = new LinkedHashMap<String, T>();
+        LinkedHashSet<String> missing = new LinkedHashSet<String>();
+
+        for( String key : keys ) {
+            String scoped = name + ":" + key;
+
+            if( found.containsKey(key) || missing.contains(key) ) {
+                continue;
+            }
+            if( RequestScope.contains(scoped) ) {
+                //noinspection unchecked
+                found.put(key, (T)RequestScope.get(scoped));
+                continue;
+            }
+            T item = (enabled ? lookup(key) : null);
+
+            if( item == null ) {
+                missing.add(key);
+            }
+            else {
+                found.put(key, item);
+                RequestScope.put(scoped, item);
+            }
+        }
+        if( !missing.isEmpty() ) {
+            long g = generation.get();
+            Map<String,T> loaded = loader.loadAll(missing);
+
+            for( String key : missing ) {
+                T item = loaded.get(key);
+
+                if( item != null && enabled ) {
+                    store(key, item, g);
+                }
+                found.put(key, item);
+                RequestScope.put(name + ":" + key, item);
+            }
+        }
+        LinkedHashMap<String,T> results = new LinkedHashMap<String, T>();
+
+        for( String key : keys ) {
+            T item = found.get(key);
+
+            if( item != null ) {
+                results.put(key, item);
+            }
+        }
+        return results;
+    }
+
+    public void invalidate(@Nonnull String key) {
+        synchronized( entries ) {
+            generation.incrementAndGet();
+            entries.remove(key);
+        }
+        invalidations.incrementAndGet();
+        RequestScope.remove(name + ":" + key);
+    }
+
+    public void clear() {
+        synchronized( entries ) {
+            generation.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    private @Nullable T lookup(@Nonnull String key) {
+        synchronized( entries ) {
+            Entry<T> entry = entries.get(key);
+
+            if( entry == null ) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if( entry.expiration < System.currentTimeMillis() ) {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.item;
+        }
+    }
+
+    /**
+     * Caches a freshly loaded entity unless the cache was invalidated since the load began.
+     * @param key the key of the entity
+     * @param item the loaded entity
+     * @param loadGeneration the generation observed before the load started
+     */
+    private void store(@Nonnull String key, @Nonnull T item, long loadGeneration) {
+        synchronized( entries ) {
+            if( generation.get() == loadGeneration ) {
+                entries.put(key, new Entry<T>(item, System.currentTimeMillis() + ttl));
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.security.SecureRandom;
+
+/**
+ * Generates the IDs and tokens used throughout the cloud service. IDs are time ordered and unique without a round
+ * trip to the database to check them, so they can be assigned on insert and cluster well in the primary key index.
+ * IDs that double as key material get random IDs instead. Tokens are drawn from {@link SecureRandom}. All state is
+ * held per thread, so concurrent callers never contend.
+ */
+public class IdGenerator {
+    /**
+     * The token alphabet: letters and digits less the ones easily mistaken for each other
+     */
+    static private final char[] ALPHABET = "abcdefghjkmnpqrstuvwxyzABCDEFGHJKLMNPQRSTUVWXYZ23456789".toCharArray();
+
+    /**
+     * Random bytes at or above this value are discarded so that every character in the alphabet is equally likely
+     */
+    static private final int    LIMIT = 256 - (256 % ALPHABET.length);
+
+    static private final char[] HEX          = "0123456789abcdef".toCharArray();
+    static private final int    MAX_SEQUENCE = 0xFFF;
+
+    static private class State {
+        long               lastMillis;
+        final SecureRandom random = new SecureRandom();
+        int                sequence;
+        long               tail;
+
+        State() {
+            tail = random.nextLong();
+        }
+    }
+
+    static private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * Generates a new unique ID in the standard 36 character UUID format, laid out like a version 7 UUID. The
+     * first 48 bits are the current time in milliseconds followed by a 12 bit sequence that orders IDs issued by
+     * the same thread within one millisecond, so IDs sort (as strings) in roughly the order they were created.
+     * The remaining 62 bits start at a random value for each thread and are incremented with every ID, so a thread
+     * never repeats itself and two threads collide only if their random starting points do.
+     * @return a new unique ID
+     */
+    static public @Nonnull String nextId() {
+        State s = state.get();
+        long now = System.currentTimeMillis();
+
+        if( now > s.lastMillis ) {
+            s.lastMillis = now;
+            s.sequence = 0;
+        }
+        else if( ++s.sequence > MAX_SEQUENCE ) {
+            // too many IDs this millisecond (or the clock went backwards), borrow from the next one
+            s.lastMillis++;
+            s.sequence = 0;
+        }
+        s.tail++;
+
+        long high = (s.lastMillis << 16) | 0x7000L | s.sequence;
+        long low = (s.tail & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+
+        return format(high, low);
+    }
+
+    /**
+     * Generates a new random ID in the standard 36 character UUID format, a version 4 UUID drawn from
+     * {@link SecureRandom}. Use this instead of {@link #nextId()} for anything whose ID feeds an encryption key, such
+     * as users and locations (see {@link Configuration#encrypt(String, String)}), since most of a time ordered ID can
+     * be guessed from when the row was created.
+     * @return a new random ID
+     */
+    static public @Nonnull String randomId() {
+        SecureRandom random = state.get().random;
+        long high = (random.nextLong() & 0xFFFFFFFFFFFF0FFFL) | 0x4000L;
+        long low = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+
+        return format(high, low);
+    }
+
+    static private @Nonnull String format(long high, long low) {
+        char[] id = new char[36];
+
+        hex(id, 0, high >>> 32, 8);
+        id[8] = '-';
+        hex(id, 9, high >>> 16, 4);
+        id[13] = '-';
+        hex(id, 14, high, 4);
+        id[18] = '-';
+        hex(id, 19, low >>> 48, 4);
+        id[23] = '-';
+        hex(id, 24, low, 12);
+        return new String(id);
+    }
+
+    /**
+     * Generates a random token of letters and digits with a length between the specified bounds.
+     * @param minLen the minimum length of the token
+     * @param maxLen the maximum length of the token (exclusive unless it matches the minimum)
+     * @return a new random token
+     */
+    static public @Nonnull String generateToken(@Nonnegative int minLen, @Nonnegative int maxLen) {
+        SecureRandom random = state.get().random;
+        int len = (maxLen > minLen ? minLen + random.nextInt(maxLen-minLen) : minLen);
+        byte[] bytes = new byte[len + (len/4) + 4];
+        char[] token = new char[len];
+        int i = 0;
+
+        while( i < len ) {
+            random.nextBytes(bytes);
+            for( int j=0; j<bytes.length && i<len; j++ ) {
+                int b = bytes[j] & 0xFF;
+
+                if( b < LIMIT ) {
+                    token[i++] = ALPHABET[b % ALPHABET.length];
+                }
+            }
+        }
+        return new String(token);
+    }
+
+    static private void hex(@Nonnull char[] target, int offset, long value, int digits) {
+        for( int i=digits-1; i>=0; i-- ) {
+            target[offset + i] = HEX[(int)(value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    private IdGenerator() { }
+}
@@ -16,12 +16,13 @@
 
 package com.imaginary.home.cloud;
 
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import com.imaginary.home.cloud.user.User;
 import org.dasein.persist.Memento;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.SearchTerm;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.util.CachedItem;
@@ -29,11 +30,11 @@ import org.dasein.util.CalendarWrapper;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.UUID;
 
 /**
  * A location such as your home or a cabin or apartment or 30,000 sq ft villa.
@@ -41,15 +42,30 @@ import java.util.UUID;
  * @author George Reese
  */
 public class Location implements CachedItem {
-    static private PersistentCache<Location> locations;
+    static private EntityStore<Location> locations;
 
-    static public Location create(@Nonnull String ownerId, @Nonnull String name, @Nonnull String description, @Nonnull TimeZone timeZone) throws PersistenceException {
-        String locationId;
+    static private final EntityCache<Location> entities = new EntityCache<Location>("location", 10000, 60000L);
 
-        do {
-            locationId = UUID.randomUUID().toString();
-        } while( getLocation(locationId) != null );
+    static private final EntityCache.BatchLoader<Location> loader = new EntityCache.BatchLoader<Location>() {
+        @Override
+        public @Nullable Location load(@Nonnull String locationId) throws PersistenceException {
+            return getCache().get(locationId);
+        }
+
+        @Override
+        public @Nonnull Map<String,Location> loadAll(@Nonnull Collection<String> locationIds) throws PersistenceException {
+            HashMap<String,Location> found = new HashMap<String, Location>();
+
+            for( Location l : getCache().findAny("locationId", locationIds) ) {
+                found.put(l.getLocationId(), l);
+            }
+            return found;
+        }
+    };
 
+    static public Location create(@Nonnull String ownerId, @Nonnull String name, @Nonnull String description, @Nonnull TimeZone timeZone) throws PersistenceException {
+        // the ID is part of the key that encrypts this location's secrets, so it must not be guessable
+        String locationId = IdGenerator.randomId();
         HashMap<String,Object> state = new HashMap<String, Object>();
 
         state.put("name", name);
@@ -61,7 +77,7 @@ public class Location implements CachedItem {
         state.put("pairingExpiration", 0L);
         state.put("timeZone", timeZone);
 
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             Location l = getCache().create(xaction, state);
@@ -75,7 +91,7 @@ public class Location implements CachedItem {
     }
 
     static public  @Nullable Location findForPairing(@Nonnull String pairingCode) throws PersistenceException {
-        Iterator<Location> it = getCache().find(new SearchTerm("pairingCode", pairingCode)).iterator();
+        Iterator<Location> it = getCache().find(new Criterion("pairingCode", pairingCode)).iterator();
 
         if( it.hasNext() ) {
             return it.next();
@@ -83,16 +99,26 @@ public class Location implements CachedItem {
         return null;
     }
 
-    static private @Nonnull PersistentCache<Location> getCache() throws PersistenceException {
+    static private @Nonnull EntityStore<Location> getCache() throws PersistenceException {
         if( locations == null ) {
-            //noinspection unchecked
-            locations = (PersistentCache<Location>)PersistentCache.getCache(Location.class);
+            locations = Storage.getInstance().getStore(Location.class);
         }
         return locations;
     }
 
     static public @Nullable Location getLocation(@Nonnull String locationId) throws PersistenceException {
-        return getCache().get(locationId);
+        return entities.get(locationId, loader);
+    }
+
+    /**
+     * Loads many locations at once, going to the database only for those not already loaded and fetching all of
+     * those in one batch.
+     * @param locationIds the IDs of the locations to load
+     * @return the matching locations in the order of their IDs, skipping IDs that match no location
+     * @throws PersistenceException an error occurred loading the locations
+     */
+    static public @Nonnull Collection<Location> getLocations(@Nonnull Collection<String> locationIds) throws PersistenceException {
+        return entities.getAll(locationIds, loader).values();
     }
 
     private String   description;
@@ -145,7 +171,7 @@ public class Location implements CachedItem {
         state.put("description", description);
         state.put("timeZone", tz);
 
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -157,6 +183,8 @@ public class Location implements CachedItem {
         this.name = name;
         this.description = description;
         this.timeZone = tz;
+        entities.invalidate(locationId);
+        ResourceVersions.locationChanged(locationId);
     }
 
     public @Nullable ControllerRelay pair(@Nonnull String code, @Nonnull String relayName) throws PersistenceException {
@@ -175,7 +203,7 @@ public class Location implements CachedItem {
         state.put("pairingCode", null);
         state.put("pairingExpiration", 0);
 
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -187,7 +215,8 @@ public class Location implements CachedItem {
 
         pairingCode = null;
         pairingExpiration = 0L;
-
+        entities.invalidate(locationId);
+        ResourceVersions.locationChanged(locationId);
         return relay;
     }
 
@@ -206,7 +235,7 @@ public class Location implements CachedItem {
         state = memento.getState();
         state.put("pairingCode", pairingCode);
         state.put("pairingExpiration", timeout);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -217,6 +246,8 @@ public class Location implements CachedItem {
         }
         this.pairingCode = pairingCode;
         this.pairingExpiration = timeout;
+        entities.invalidate(locationId);
+        ResourceVersions.locationChanged(locationId);
         return pairingCode;
     }
 
@@ -227,7 +258,7 @@ public class Location implements CachedItem {
         memento.save(state);
         state = memento.getState();
         state.put("description", description);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -237,6 +268,8 @@ public class Location implements CachedItem {
             xaction.rollback();
         }
         this.description = description;
+        entities.invalidate(locationId);
+        ResourceVersions.locationChanged(locationId);
     }
 
     public void setName(String name) throws PersistenceException {
@@ -246,7 +279,7 @@ public class Location implements CachedItem {
         memento.save(state);
         state = memento.getState();
         state.put("name", name);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -256,6 +289,8 @@ public class Location implements CachedItem {
             xaction.rollback();
         }
         this.name = name;
+        entities.invalidate(locationId);
+        ResourceVersions.locationChanged(locationId);
     }
 
     public void setTimeZone(TimeZone tz) throws PersistenceException {
@@ -265,7 +300,7 @@ public class Location implements CachedItem {
         memento.save(state);
         state = memento.getState();
         state.put("timeZone", tz);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -275,6 +310,8 @@ public class Location implements CachedItem {
             xaction.rollback();
         }
         this.timeZone = tz;
+        entities.invalidate(locationId);
+        ResourceVersions.locationChanged(locationId);
     }
 }
 
@@ -17,11 +17,12 @@
 package com.imaginary.home.cloud;
 
 import com.imaginary.home.cloud.device.Device;
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import org.dasein.persist.Memento;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.SearchTerm;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.util.CachedItem;
@@ -32,11 +33,17 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A command pending against devices owned by a specific relay. Commands are issued by users remotely using their
@@ -48,129 +55,722 @@ import java.util.UUID;
  * @author George Reese
  */
 public class PendingCommand implements CachedItem {
-    static private PersistentCache<PendingCommand> cache;
+    static private EntityStore<PendingCommand> cache;
+
+    /**
+     * Number of times a fetch re-reads the waiting commands after losing them to a fetch on another node
+     */
+    static private final int CLAIM_ATTEMPTS = 3;
+
+    /**
+     * The last command each sweep read per state, so successive sweeps work through every command a page at a time
+     */
+    static private final ConcurrentHashMap<PendingCommandState,String> sweepCursors = new ConcurrentHashMap<PendingCommandState, String>();
+
+    static private final ConcurrentHashMap<String,Object> claimLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * A command entering or leaving {@link PendingCommandState#WAITING} through this node while the counts are rebuilt
+     */
+    static private class CountChange {
+        final String  relayId;
+        final boolean waiting;
+
+        CountChange(@Nonnull String relayId, boolean waiting) {
+            this.relayId = relayId;
+            this.waiting = waiting;
+        }
+    }
 
-    static private PersistentCache<PendingCommand> getCache() throws PersistenceException {
+    /**
+     * Number of waiting commands per relay as seen by this node, loaded lazily and rebuilt by the lifecycle sweep
+     */
+    static private volatile ConcurrentHashMap<String,AtomicInteger> waitingCounts;
+
+    /**
+     * When the waiting counts were last rebuilt from the database
+     */
+    static private volatile long countsLoaded;
+
+    /**
+     * How old the waiting counts may get before a relay with no counted commands is checked against the database
+     */
+    static private volatile long countMaxAge = 120000L;
+
+    /**
+     * Held shared while adjusting the waiting counts and exclusively while a rebuild starts or finishes
+     */
+    static private final ReentrantReadWriteLock countLock = new ReentrantReadWriteLock();
+
+    /**
+     * Held for the whole of a rebuild so that only one runs at a time
+     */
+    static private final Object rebuildLock = new Object();
+
+    /**
+     * Commands that entered or left the waiting state while the counts are being rebuilt, by command ID, null when no
+     * rebuild is running
+     */
+    static private ConcurrentHashMap<String,CountChange> countChanges;
+
+    static private EntityStore<PendingCommand> getCache() throws PersistenceException {
         if( cache == null ) {
-            //noinspection unchecked
-            cache = (PersistentCache<PendingCommand>)PersistentCache.getCache(PendingCommand.class);
+            cache = Storage.getInstance().getStore(PendingCommand.class);
         }
         return cache;
     }
 
+    /**
+     * Orders commands newest first by the time they were issued and then by ID, which keeps commands issued
+     * together in a stable order.
+     */
+    static private final Comparator<PendingCommand> NEWEST_FIRST = new Comparator<PendingCommand>() {
+        @Override
+        public int compare(PendingCommand a, PendingCommand b) {
+            if( a.issuedTimestamp != b.issuedTimestamp ) {
+                return (b.issuedTimestamp < a.issuedTimestamp ? -1 : 1);
+            }
+            return b.pendingCommandId.compareTo(a.pendingCommandId);
+        }
+    };
+
+    /**
+     * Lists the command history for the specified relays one page at a time. Every criterion, including the relay,
+     * is pushed down to the secondary indexes and each relay's commands are read newest first by issued timestamp
+     * and command ID starting from the cursor, so no more than one page plus one command is read per relay whatever
+     * the size of the history.
+     * @param relays the relays whose commands may be listed
+     * @param query the filter and paging criteria
+     * @return the matching page of commands, newest first
+     * @throws PersistenceException an error occurred querying the commands
+     */
+    static public @Nonnull ResultPage<PendingCommand> findCommands(@Nonnull Collection<ControllerRelay> relays, @Nonnull CommandQuery query) throws PersistenceException {
+        TreeSet<String> relayIds = new TreeSet<String>();
+
+        for( ControllerRelay relay : relays ) {
+            relayIds.add(relay.getControllerRelayId());
+        }
+        ArrayList<Criterion> terms = new ArrayList<Criterion>();
+
+        // the most selective indexes go first
+        if( query.getGroupId() != null ) {
+            terms.add(new Criterion("groupId", query.getGroupId()));
+        }
+        if( query.getDeviceId() != null ) {
+            terms.add(new Criterion("deviceIds", query.getDeviceId()));
+        }
+        if( query.getIssuedBy() != null ) {
+            terms.add(new Criterion("issuedBy", query.getIssuedBy()));
+        }
+        if( query.getState() != null ) {
+            terms.add(new Criterion("state", query.getState()));
+        }
+        String[] cursor = (query.getCursor() == null ? null : ResultPage.decodeCursor(query.getCursor(), 2));
+        Long afterTimestamp = null;
+        String afterId = null;
+
+        if( cursor != null ) {
+            try {
+                afterTimestamp = Long.parseLong(cursor[0]);
+                afterId = cursor[1];
+            }
+            catch( NumberFormatException ignore ) {
+                // like any other cursor that cannot be decoded, this one starts over from the first page
+            }
+        }
+        if( query.getUntil() != null && (afterTimestamp == null || query.getUntil() <= afterTimestamp) ) {
+            // nothing issued at or after the end of the range, wherever the cursor is
+            afterTimestamp = query.getUntil();
+            afterId = null;
+        }
+        Long since = query.getSince();
+        TreeSet<PendingCommand> page = new TreeSet<PendingCommand>(NEWEST_FIRST);
+        int limit = query.getLimit();
+
+        for( String relayId : relayIds ) {
+            ArrayList<Criterion> criteria = new ArrayList<Criterion>(terms);
+
+            criteria.add(new Criterion("relayId", relayId));
+            for( PendingCommand cmd : getCache().page("issuedTimestamp", "pendingCommandId", true, afterTimestamp, afterId, limit + 1, criteria.toArray(new Criterion[criteria.size()])) ) {
+                if( since != null && cmd.issuedTimestamp < since ) {
+                    break;
+                }
+                page.add(cmd);
+                if( page.size() > limit + 1 ) {
+                    page.pollLast();
+                }
+            }
+        }
+        String next = null;
+
+        if( page.size() > limit ) {
+            page.pollLast();
+            PendingCommand last = page.last();
+
+            next = ResultPage.encodeCursor(String.valueOf(last.issuedTimestamp), last.pendingCommandId);
+        }
+        return new ResultPage<PendingCommand>(new ArrayList<PendingCommand>(page), next);
+    }
+
     static public @Nullable PendingCommand getCommand(@Nonnull String id) throws PersistenceException {
         return getCache().get(id);
     }
 
     static public @Nonnull Collection<PendingCommand> getCommands(@Nonnull ControllerRelay forRelay) throws PersistenceException {
-        return getCache().find(new SearchTerm("relayId", forRelay.getControllerRelayId()));
+        return getCache().find(new Criterion("relayId", forRelay.getControllerRelayId()));
     }
 
     static public @Nonnull Collection<PendingCommand> getCommandsToSend(@Nonnull ControllerRelay forRelay, boolean markSent) throws PersistenceException {
-        Collection<PendingCommand> list = getCache().find(new SearchTerm("state", PendingCommandState.WAITING), new SearchTerm("relayId", forRelay.getControllerRelayId()));
-
         if( markSent ) {
-            ArrayList<PendingCommand> marked = new ArrayList<PendingCommand>();
+            return claimCommandsToSend(forRelay);
+        }
+        return getCache().find(new Criterion("state", PendingCommandState.WAITING), new Criterion("relayId", forRelay.getControllerRelayId()));
+    }
+
+    static private Object getClaimLock(@Nonnull String relayId) {
+        Object lock = claimLocks.get(relayId);
+
+        if( lock == null ) {
+            Object l = new Object();
+
+            lock = claimLocks.putIfAbsent(relayId, l);
+            if( lock == null ) {
+                lock = l;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Names the claim that moves a command out of the specified state. Only one transaction can ever write it, so
+     * only one of any number of racing transitions out of the same state, on any node, commits.
+     * @param pendingCommandId the command being moved
+     * @param from the state the command is being moved out of
+     * @return the claim ID
+     */
+    static private @Nonnull String getTransitionClaim(@Nonnull String pendingCommandId, @Nonnull PendingCommandState from) {
+        return pendingCommandId + ":" + from.name();
+    }
+
+    /**
+     * Checks whether a failed transaction failed because another transaction already moved one of the specified
+     * commands out of the state it had when it was read.
+     * @param commands the commands as they were read
+     * @return true if another transaction moved at least one of the commands first
+     * @throws PersistenceException an error occurred checking the claims
+     */
+    static private boolean isTransitionTaken(@Nonnull Collection<PendingCommand> commands) throws PersistenceException {
+        for( PendingCommand cmd : commands ) {
+            if( Claim.exists(getTransitionClaim(cmd.pendingCommandId, cmd.state)) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Claims every waiting command for the specified relay, moving them all to {@link PendingCommandState#SENT} with
+     * a single sent timestamp in one transaction. Each command moves under a {@link Claim} on leaving
+     * {@link PendingCommandState#WAITING}, so when fetches on different API nodes race, the database accepts only one
+     * of them and no command is ever handed out twice. The loser reads what is still waiting and tries again. Claims
+     * for the same relay on the same node are also serialized in memory so they do not waste attempts on each other.
+     * @param relay the relay fetching its commands
+     * @return the commands claimed for sending, empty if there were none waiting or other fetches kept taking them first
+     * @throws PersistenceException an error occurred claiming the commands, in which case none were claimed
+     */
+    static public @Nonnull Collection<PendingCommand> claimCommandsToSend(@Nonnull ControllerRelay relay) throws PersistenceException {
+        String relayId = relay.getControllerRelayId();
+
+        synchronized( getClaimLock(relayId) ) {
+            return claimWaiting(relayId);
+        }
+    }
+
+    /**
+     * Claims every waiting command for the specified relay without any coordination inside this JVM, so that
+     * concurrent callers behave exactly like fetches on separate API nodes and only the claims keep them apart.
+     * @param relayId the relay fetching its commands
+     * @return the commands claimed for sending, empty if there were none waiting or other fetches kept taking them first
+     * @throws PersistenceException an error occurred claiming the commands, in which case none were claimed
+     */
+    static @Nonnull Collection<PendingCommand> claimWaiting(@Nonnull String relayId) throws PersistenceException {
+        for( int attempt=1; attempt<=CLAIM_ATTEMPTS; attempt++ ) {
+            Collection<PendingCommand> waiting = getCache().find(new Criterion("state", PendingCommandState.WAITING), new Criterion("relayId", relayId));
+
+            if( !waiting.iterator().hasNext() ) {
+                return Collections.emptyList();
+            }
+            ArrayList<PendingCommand> claimed = new ArrayList<PendingCommand>();
+            Long sentTimestamp = System.currentTimeMillis();
+            StorageTransaction xaction = Storage.getInstance().begin();
 
             try {
-                for( PendingCommand cmd : list ) {
-                    Memento<PendingCommand> memento = new Memento<PendingCommand>(cmd);
+                for( PendingCommand cmd : waiting ) {
                     Map<String,Object> state = new HashMap<String, Object>();
 
-                    memento.save(state);
                     state.put("state", PendingCommandState.SENT);
-                    state.put("sentTimestamp", System.currentTimeMillis());
-                    state = memento.getState();
+                    state.put("sentTimestamp", sentTimestamp);
+                    Claim.add(xaction, getTransitionClaim(cmd.pendingCommandId, cmd.state), cmd.pendingCommandId);
+                    getCache().update(xaction, cmd, state);
+                    claimed.add(cmd);
+                }
+                xaction.commit();
+            }
+            catch( PersistenceException e ) {
+                if( !isTransitionTaken(waiting) ) {
+                    throw e;
+                }
+                // a fetch on another node claimed some of these first
+                continue;
+            }
+            finally {
+                xaction.rollback();
+            }
+            for( PendingCommand cmd : claimed ) {
+                cmd.state = PendingCommandState.SENT;
+                cmd.sentTimestamp = sentTimestamp;
+                adjustWaiting(cmd.pendingCommandId, relayId, false);
+            }
+            ResourceVersions.commandChanged(relayId);
+            return claimed;
+        }
+        return Collections.emptyList();
+    }
 
-                    Transaction xaction = Transaction.getInstance();
+    /**
+     * Reads the next page of commands in the specified state for a sweep, oldest first, picking up where the last
+     * sweep through that state stopped and starting over from the oldest once it reaches the newest.
+     * @param state the state to sweep
+     * @param limit the maximum number of commands to read
+     * @return the next page of commands
+     * @throws PersistenceException an error occurred reading the commands
+     */
+    static private @Nonnull List<PendingCommand> sweepPage(@Nonnull PendingCommandState state, @Nonnegative int limit) throws PersistenceException {
+        List<PendingCommand> page = getCache().page("pendingCommandId", false, sweepCursors.get(state), limit, new Criterion("state", state));
+
+        if( page.size() < limit ) {
+            sweepCursors.remove(state);
+        }
+        else {
+            sweepCursors.put(state, page.get(page.size()-1).pendingCommandId);
+        }
+        return page;
+    }
+
+    /**
+     * Moves commands the relay failed to act on in time to {@link PendingCommandState#TIMED_OUT}. A waiting command
+     * is overdue once its timeout has elapsed since it was issued, a sent command once its timeout has elapsed since
+     * the relay fetched it. Commands are read a batch at a time and no more than the specified number of batches are
+     * read per state, with the next call carrying on where this one stopped. Each command is timed out under a
+     * {@link Claim}, so a command claimed or completed while the sweep runs, on this node or any other, is left alone.
+     * @param batchSize the maximum number of commands to read and change in a single transaction
+     * @param maxBatches the maximum number of batches to read per state
+     * @return the number of commands that timed out
+     * @throws PersistenceException an error occurred expiring commands; batches committed before the error stay committed
+     */
+    static public int expireOverdue(@Nonnegative int batchSize, @Nonnegative int maxBatches) throws PersistenceException {
+        TreeSet<String> relays = new TreeSet<String>();
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        for( PendingCommandState state : new PendingCommandState[] { PendingCommandState.WAITING, PendingCommandState.SENT } ) {
+            for( int i=0; i<maxBatches; i++ ) {
+                List<PendingCommand> page = sweepPage(state, batchSize);
+                ArrayList<PendingCommand> overdue = new ArrayList<PendingCommand>();
+
+                for( PendingCommand cmd : page ) {
+                    if( cmd.isOverdue(now) ) {
+                        overdue.add(cmd);
+                    }
+                }
+                if( !overdue.isEmpty() ) {
+                    for( PendingCommand cmd : expire(overdue, now) ) {
+                        relays.add(cmd.relayId);
+                        count++;
+                    }
+                }
+                if( page.size() < batchSize ) {
+                    break;
+                }
+            }
+        }
+        for( String relayId : relays ) {
+            ResourceVersions.commandChanged(relayId);
+        }
+        return count;
+    }
+
+    /**
+     * Times out the specified commands that are still overdue in a single transaction, each under a {@link Claim} on
+     * the state it leaves. If a fetch or completion moves one of them first, the commands are re-read and the
+     * transaction is tried again with whatever is still overdue.
+     * @param overdue the commands to time out as they were last read
+     * @param now the time of the sweep
+     * @return the commands that timed out
+     * @throws PersistenceException an error occurred timing out the commands, in which case none of them timed out
+     */
+    static private @Nonnull List<PendingCommand> expire(@Nonnull List<PendingCommand> overdue, long now) throws PersistenceException {
+        for( int attempt=1; attempt<=CLAIM_ATTEMPTS; attempt++ ) {
+            ArrayList<PendingCommand> changed = new ArrayList<PendingCommand>();
+            StorageTransaction xaction = Storage.getInstance().begin();
+
+            try {
+                for( PendingCommand cmd : overdue ) {
+                    if( !cmd.isOverdue(now) ) {
+                        continue;
+                    }
+                    Map<String,Object> state = new HashMap<String, Object>();
+
+                    state.put("state", PendingCommandState.TIMED_OUT);
+                    state.put("completionTimestamp", now);
+                    state.put("errorMessage", "Timed out");
+                    Claim.add(xaction, getTransitionClaim(cmd.pendingCommandId, cmd.state), cmd.pendingCommandId);
+                    getCache().update(xaction, cmd, state);
+                    changed.add(cmd);
+                }
+                xaction.commit();
+            }
+            catch( PersistenceException e ) {
+                if( !isTransitionTaken(overdue) ) {
+                    throw e;
+                }
+                ArrayList<PendingCommand> current = new ArrayList<PendingCommand>();
+
+                for( PendingCommand cmd : overdue ) {
+                    PendingCommand c = getCache().get(cmd.pendingCommandId);
+
+                    if( c != null ) {
+                        current.add(c);
+                    }
+                }
+                overdue = current;
+                continue;
+            }
+            finally {
+                xaction.rollback();
+            }
+            for( PendingCommand cmd : changed ) {
+                if( cmd.state.equals(PendingCommandState.WAITING) ) {
+                    adjustWaiting(cmd.pendingCommandId, cmd.relayId, false);
+                }
+                cmd.state = PendingCommandState.TIMED_OUT;
+                cmd.completionTimestamp = now;
+                cmd.errorMessage = "Timed out";
+            }
+            return changed;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Moves commands that reached a terminal state before the specified time into {@link CommandHistory} and
+     * removes them and their claims from the pending command table. Commands are read a batch at a time and no more
+     * than the specified number of batches are read per state, with the next call carrying on where this one
+     * stopped. Each batch is written to history and removed in the same transaction, so a command is never lost or
+     * archived twice.
+     * @param completedBefore commands completed before this timestamp are archived
+     * @param batchSize the maximum number of commands to read and archive in a single transaction
+     * @param maxBatches the maximum number of batches to read per state
+     * @return the number of commands archived
+     * @throws PersistenceException an error occurred archiving commands; batches committed before the error stay committed
+     */
+    static public int archiveCompleted(long completedBefore, @Nonnegative int batchSize, @Nonnegative int maxBatches) throws PersistenceException {
+        TreeSet<String> relays = new TreeSet<String>();
+        int count = 0;
+
+        for( PendingCommandState state : new PendingCommandState[] { PendingCommandState.EXECUTED, PendingCommandState.TIMED_OUT } ) {
+            for( int i=0; i<maxBatches; i++ ) {
+                List<PendingCommand> page = sweepPage(state, batchSize);
+                ArrayList<PendingCommand> batch = new ArrayList<PendingCommand>();
+
+                for( PendingCommand cmd : page ) {
+                    Long ts = cmd.getCompletionTimestamp();
+
+                    if( ts != null && ts < completedBefore ) {
+                        batch.add(cmd);
+                    }
+                }
+                if( !batch.isEmpty() ) {
+                    StorageTransaction xaction = Storage.getInstance().begin();
 
                     try {
-                        getCache().update(xaction, cmd, state);
+                        for( PendingCommand cmd : batch ) {
+                            CommandHistory.append(xaction, cmd);
+                            Claim.removeAll(xaction, cmd.pendingCommandId);
+                            getCache().remove(xaction, cmd);
+                        }
                         xaction.commit();
-                        marked.add(cmd);
                     }
                     finally {
                         xaction.rollback();
                     }
+                    for( PendingCommand cmd : batch ) {
+                        relays.add(cmd.getRelayId());
+                    }
+                    count += batch.size();
+                }
+                if( page.size() < batchSize ) {
+                    break;
                 }
             }
-            catch( Throwable t ) {
-                t.printStackTrace();
-            }
-            list = marked;
         }
-        return list;
+        for( String relayId : relays ) {
+            ResourceVersions.commandChanged(relayId);
+        }
+        return count;
     }
 
+    /**
+     * Checks for waiting commands from the in-memory counts instead of the database. Counts reflect commands queued
+     * and claimed through this node immediately and everything else as of the last {@link #loadWaitingCounts()}.
+     * When a relay has no counted commands and the counts are older than the maximum age, the database is checked
+     * for that relay instead, so commands queued through other nodes are never missed for longer than that.
+     * @param relay the relay to check
+     * @return true if the relay has commands waiting to be fetched
+     * @throws PersistenceException an error occurred loading the counts for the first time or checking the database
+     */
     static public boolean hasCommands(@Nonnull ControllerRelay relay) throws PersistenceException {
-        return getCache().find(new SearchTerm("state", PendingCommandState.WAITING), new SearchTerm("relayId", relay.getControllerRelayId())).iterator().hasNext();
+        String relayId = relay.getControllerRelayId();
+        AtomicInteger count = getWaitingCounts().get(relayId);
+
+        if( count != null && count.get() > 0 ) {
+            return true;
+        }
+        if( System.currentTimeMillis() - countsLoaded <= countMaxAge ) {
+            return false;
+        }
+        return !getCache().page("pendingCommandId", false, null, 1, new Criterion("state", PendingCommandState.WAITING), new Criterion("relayId", relayId)).isEmpty();
     }
 
-    static public @Nonnull PendingCommand[] queue(@Nonnull String userId, @Nonnull TimePeriod<?> timeout, @Nonnull String[] commandsAsJSON, @Nonnull Device ... devices) throws PersistenceException {
-        if( devices.length < 1 ) {
-            throw new PersistenceException("No devices specified");
+    /**
+     * Sets how old the waiting counts may get before {@link #hasCommands(ControllerRelay)} falls back to the database
+     * for relays with no counted commands. Nodes that rebuild the counts on a schedule should allow a little more
+     * than the schedule's interval; nodes that never rebuild them should use 0.
+     * @param maxAge the maximum age in milliseconds
+     */
+    static public void setWaitingCountMaxAge(@Nonnegative long maxAge) {
+        countMaxAge = maxAge;
+    }
+
+    static private @Nonnull ConcurrentHashMap<String,AtomicInteger> getWaitingCounts() throws PersistenceException {
+        ConcurrentHashMap<String,AtomicInteger> counts = waitingCounts;
+
+        if( counts == null ) {
+            synchronized( PendingCommand.class ) {
+                counts = waitingCounts;
+                if( counts == null ) {
+                    counts = loadWaitingCounts();
+                }
+            }
         }
-        long timeoutMillis = timeout.convertTo(TimePeriod.MILLISECOND).longValue();
-        HashMap<String,TreeSet<String>> relays = new HashMap<String, TreeSet<String>>();
+        return counts;
+    }
 
-        for( Device d : devices ) {
-            TreeSet<String> deviceIds;
+    /**
+     * Rebuilds the per-relay waiting counts from the database, correcting any drift and picking up commands queued
+     * or claimed through other nodes. The counts are rebuilt in place and only one rebuild runs at a time. Commands
+     * that enter or leave the waiting state through this node while the database is being read are collected on
+     * the side, and only the changes the read could not have seen are applied to the rebuilt counts: a command that
+     * is now waiting counts only if the read missed it, and one that left only comes off if the read found it.
+     * @return the rebuilt counts
+     * @throws PersistenceException an error occurred reading the waiting commands
+     */
+    static public @Nonnull ConcurrentHashMap<String,AtomicInteger> loadWaitingCounts() throws PersistenceException {
+        synchronized( rebuildLock ) {
+            HashMap<String,Integer> scanned = new HashMap<String, Integer>();
+            HashSet<String> seen = new HashSet<String>();
+            long started = System.currentTimeMillis();
+            boolean loaded = false;
+
+            countLock.writeLock().lock();
+            try {
+                countChanges = new ConcurrentHashMap<String, CountChange>();
+            }
+            finally {
+                countLock.writeLock().unlock();
+            }
+            try {
+                for( PendingCommand cmd : getCache().find(new Criterion("state", PendingCommandState.WAITING)) ) {
+                    Integer count = scanned.get(cmd.getRelayId());
 
-            if( relays.containsKey(d.getRelayId()) ) {
-                deviceIds = relays.get(d.getRelayId());
+                    scanned.put(cmd.getRelayId(), count == null ? 1 : count + 1);
+                    seen.add(cmd.pendingCommandId);
+                }
+                loaded = true;
             }
-            else {
-                deviceIds = new TreeSet<String>();
-                relays.put(d.getRelayId(), deviceIds);
+            finally {
+                countLock.writeLock().lock();
+                try {
+                    if( loaded ) {
+                        for( Map.Entry<String,CountChange> entry : countChanges.entrySet() ) {
+                            CountChange change = entry.getValue();
+                            boolean found = seen.contains(entry.getKey());
+                            int delta = (change.waiting ? (found ? 0 : 1) : (found ? -1 : 0));
+
+                            if( delta != 0 ) {
+                                Integer count = scanned.get(change.relayId);
+
+                                scanned.put(change.relayId, Math.max(0, (count == null ? 0 : count) + delta));
+                            }
+                        }
+                        ConcurrentHashMap<String,AtomicInteger> counts = waitingCounts;
+
+                        if( counts == null ) {
+                            counts = new ConcurrentHashMap<String, AtomicInteger>();
+                        }
+                        for( String relayId : counts.keySet() ) {
+                            if( !scanned.containsKey(relayId) ) {
+                                counts.get(relayId).set(0);
+                            }
+                        }
+                        for( Map.Entry<String,Integer> entry : scanned.entrySet() ) {
+                            getCount(counts, entry.getKey()).set(entry.getValue());
+                        }
+                        waitingCounts = counts;
+                        countsLoaded = started;
+                    }
+                    countChanges = null;
+                }
+                finally {
+                    countLock.writeLock().unlock();
+                }
             }
-            deviceIds.add(d.getDeviceId());
+            return waitingCounts;
         }
-        String groupId;
+    }
 
-        do {
-            groupId = UUID.randomUUID().toString();
-        } while( getCache().find(new SearchTerm("groupId", groupId)).iterator().hasNext() );
+    /**
+     * Records a command entering or leaving the waiting state through this node.
+     * @param pendingCommandId the command that changed
+     * @param relayId the relay the command is for
+     * @param waiting true if the command was just queued, false if it just left the waiting state
+     */
+    static private void adjustWaiting(@Nonnull String pendingCommandId, @Nonnull String relayId, boolean waiting) {
+        countLock.readLock().lock();
+        try {
+            ConcurrentHashMap<String,AtomicInteger> counts = waitingCounts;
+            ConcurrentHashMap<String,CountChange> changes = countChanges;
 
-        Set<Map.Entry<String,TreeSet<String>>> relaySet= relays.entrySet();
-        PendingCommand[] results = new PendingCommand[relaySet.size() * commandsAsJSON.length];
-        int i = 0;
+            if( changes != null ) {
+                // commands never go back to waiting, so leaving wins over a late report of the same command's queuing
+                if( waiting ) {
+                    changes.putIfAbsent(pendingCommandId, new CountChange(relayId, true));
+                }
+                else {
+                    changes.put(pendingCommandId, new CountChange(relayId, false));
+                }
+            }
+            if( counts != null ) {
+                AtomicInteger count = getCount(counts, relayId);
+                int delta = (waiting ? 1 : -1);
+
+                while( true ) {
+                    int current = count.get();
 
-        for( Map.Entry<String,TreeSet<String>> entry : relaySet ) {
-            TreeSet<String> set = entry.getValue();
-            String[] deviceIds = entry.getValue().toArray(new String[set.size()]);
-            String relayId = entry.getKey();
+                    if( count.compareAndSet(current, Math.max(0, current + delta)) ) {
+                        return;
+                    }
+                }
+            }
+        }
+        finally {
+            countLock.readLock().unlock();
+        }
+    }
 
-            for( String cmd : commandsAsJSON ) {
-                String id;
+    static private @Nonnull AtomicInteger getCount(@Nonnull ConcurrentHashMap<String,AtomicInteger> counts, @Nonnull String relayId) {
+        AtomicInteger count = counts.get(relayId);
 
-                do {
-                    id = UUID.randomUUID().toString();
-                } while( getCommand(id) != null );
+        if( count == null ) {
+            AtomicInteger c = new AtomicInteger(0);
 
-                HashMap<String,Object> state = new HashMap<String, Object>();
+            count = counts.putIfAbsent(relayId, c);
+            if( count == null ) {
+                count = c;
+            }
+        }
+        return count;
+    }
 
-                state.put("command", cmd);
-                state.put("deviceIds", deviceIds);
-                state.put("groupId", groupId);
-                state.put("pendingCommandId", id);
-                state.put("relayId", relayId);
-                state.put("state", PendingCommandState.WAITING);
-                state.put("timeout", timeoutMillis);
-                state.put("issuedTimestamp", System.currentTimeMillis());
-                state.put("issuedBy", userId);
+    /**
+     * Queues the specified commands against the specified devices as a single group. Devices are grouped by relay
+     * and each command is queued once per relay. IDs come from {@link IdGenerator}, so no round trips are spent checking them
+     * for uniqueness, and all commands are written in a single transaction: either the whole group is queued or
+     * none of it is.
+     * @param userId the user issuing the commands
+     * @param timeout how long the commands have to execute
+     * @param commandsAsJSON the commands to queue
+     * @param devices the devices the commands target
+     * @return the queued group
+     * @throws PersistenceException an error occurred queuing the group, in which case nothing was queued
+     */
+    static public @Nonnull CommandGroup enqueue(@Nonnull String userId, @Nonnull TimePeriod<?> timeout, @Nonnull String[] commandsAsJSON, @Nonnull Device ... devices) throws PersistenceException {
+        if( devices.length < 1 ) {
+            throw new PersistenceException("No devices specified");
+        }
+        long timeoutMillis = timeout.convertTo(TimePeriod.MILLISECOND).longValue();
+        TreeMap<String,TreeSet<String>> relays = new TreeMap<String, TreeSet<String>>();
 
-                Transaction xaction = Transaction.getInstance();
+        for( Device d : devices ) {
+            TreeSet<String> deviceIds = relays.get(d.getRelayId());
 
-                try {
+            if( deviceIds == null ) {
+                deviceIds = new TreeSet<String>();
+                relays.put(d.getRelayId(), deviceIds);
+            }
+            deviceIds.add(d.getDeviceId());
+        }
+        String groupId = IdGenerator.nextId();
+        PendingCommand[] results = new PendingCommand[relays.size() * commandsAsJSON.length];
+        long issuedTimestamp = System.currentTimeMillis();
+        StorageTransaction xaction = Storage.getInstance().begin();
+        int i = 0;
+
+        try {
+            for( Map.Entry<String,TreeSet<String>> entry : relays.entrySet() ) {
+                TreeSet<String> set = entry.getValue();
+                String[] deviceIds = set.toArray(new String[set.size()]);
+
+                for( String cmd : commandsAsJSON ) {
+                    HashMap<String,Object> state = new HashMap<String, Object>();
+
+                    state.put("command", cmd);
+                    state.put("deviceIds", deviceIds);
+                    state.put("groupId", groupId);
+                    state.put("pendingCommandId", IdGenerator.nextId());
+                    state.put("relayId", entry.getKey());
+                    state.put("state", PendingCommandState.WAITING);
+                    state.put("timeout", timeoutMillis);
+                    state.put("issuedTimestamp", issuedTimestamp);
+                    state.put("issuedBy", userId);
                     results[i++] = getCache().create(xaction, state);
-                    xaction.commit();
-                }
-                finally {
-                    xaction.rollback();
                 }
             }
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
         }
-        return results;
+        for( PendingCommand cmd : results ) {
+            adjustWaiting(cmd.pendingCommandId, cmd.relayId, true);
+        }
+        for( String relayId : relays.keySet() ) {
+            ResourceVersions.commandChanged(relayId);
+        }
+        return new CommandGroup(groupId, issuedTimestamp, results);
+    }
+
+    /**
+     * Queues commands as with {@link #enqueue(String, TimePeriod, String[], Device...)}.
+     * @param userId the user issuing the commands
+     * @param timeout how long the commands have to execute
+     * @param commandsAsJSON the commands to queue
+     * @param devices the devices the commands target
+     * @return the queued commands
+     * @throws PersistenceException an error occurred queuing the commands
+     */
+    static public @Nonnull PendingCommand[] queue(@Nonnull String userId, @Nonnull TimePeriod<?> timeout, @Nonnull String[] commandsAsJSON, @Nonnull Device ... devices) throws PersistenceException {
+        return enqueue(userId, timeout, commandsAsJSON, devices).getCommands();
     }
 
     private String              command;
@@ -250,35 +850,98 @@ public class PendingCommand implements CachedItem {
         return timeout;
     }
 
+    /**
+     * @return true if the command executed or timed out, after which it never changes state again
+     */
+    public boolean isFinished() {
+        return (state.equals(PendingCommandState.EXECUTED) || state.equals(PendingCommandState.TIMED_OUT));
+    }
+
+    private boolean isOverdue(long now) {
+        if( state.equals(PendingCommandState.WAITING) ) {
+            return issuedTimestamp + timeout < now;
+        }
+        if( state.equals(PendingCommandState.SENT) ) {
+            return (sentTimestamp == null ? issuedTimestamp : sentTimestamp) + timeout < now;
+        }
+        return false;
+    }
+
     public boolean isValidForCache() {
         return false;
     }
 
-    public void update(@Nonnull PendingCommandState state, Boolean result, @Nullable String errorMessage) throws PersistenceException {
-        Map<String,Object> data = new HashMap<String, Object>();
-        Memento<PendingCommand> memento = new Memento<PendingCommand>(this);
+    /**
+     * Moves this command to a new state. Commands that executed or timed out are finished and never move again, so
+     * a completion arriving after the sweep timed the command out is turned away instead of overwriting it. Only the
+     * changed columns are written, under a {@link Claim} on the state being left, so a stale copy of the command
+     * cannot undo a claim, sweep or completion that got there first.
+     * @param state the new state
+     * @param result the result of executing the command, if any
+     * @param errorMessage the error reported executing the command, if any
+     * @return true if the command moved, false if it had already finished
+     * @throws PersistenceException an error occurred updating the command
+     */
+    public boolean update(@Nonnull PendingCommandState state, Boolean result, @Nullable String errorMessage) throws PersistenceException {
+        PendingCommand current = this;
+
+        for( int attempt=1; attempt<=CLAIM_ATTEMPTS; attempt++ ) {
+            if( current.isFinished() ) {
+                return false;
+            }
+            Map<String,Object> data = new HashMap<String, Object>();
+            Long completionTimestamp = null;
 
-        memento.save(data);
-        data = memento.getState();
-        data.put("state", state);
-        if( result != null ) {
-            data.put("result", result);
-        }
-        if( !this.state.equals(state) && state.equals(PendingCommandState.EXECUTED) ) {
-            data.put("completionTimestamp", System.currentTimeMillis());
-        }
-        if( errorMessage != null ) {
-            data.put("errorMessage", errorMessage);
-        }
-        Transaction xaction = Transaction.getInstance();
+            data.put("state", state);
+            if( result != null ) {
+                data.put("result", result);
+            }
+            if( !current.state.equals(state) && (state.equals(PendingCommandState.EXECUTED) || state.equals(PendingCommandState.TIMED_OUT)) ) {
+                completionTimestamp = System.currentTimeMillis();
+                data.put("completionTimestamp", completionTimestamp);
+            }
+            if( errorMessage != null ) {
+                data.put("errorMessage", errorMessage);
+            }
+            StorageTransaction xaction = Storage.getInstance().begin();
 
-        try {
-            getCache().update(xaction, this, data);
-            xaction.commit();
-            memento.load(data);
-        }
-        finally {
-            xaction.rollback();
+            try {
+                if( !current.state.equals(state) ) {
+                    Claim.add(xaction, getTransitionClaim(pendingCommandId, current.state), pendingCommandId);
+                }
+                getCache().update(xaction, current, data);
+                xaction.commit();
+            }
+            catch( PersistenceException e ) {
+                if( !isTransitionTaken(Collections.singletonList(current)) ) {
+                    throw e;
+                }
+                // something else moved the command first; see where it went
+                current = getCache().get(pendingCommandId);
+                if( current == null ) {
+                    return false;
+                }
+                continue;
+            }
+            finally {
+                xaction.rollback();
+            }
+            if( current.state.equals(PendingCommandState.WAITING) && !state.equals(PendingCommandState.WAITING) ) {
+                adjustWaiting(pendingCommandId, relayId, false);
+            }
+            this.state = state;
+            if( result != null ) {
+                this.result = result;
+            }
+            if( completionTimestamp != null ) {
+                this.completionTimestamp = completionTimestamp;
+            }
+            if( errorMessage != null ) {
+                this.errorMessage = errorMessage;
+            }
+            ResourceVersions.commandChanged(relayId);
+            return true;
         }
+        return false;
     }
 }
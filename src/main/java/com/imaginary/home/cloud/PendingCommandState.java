@@ -22,5 +22,9 @@ package com.imaginary.home.cloud;
  * @author George Reese
  */
 public enum PendingCommandState {
-    WAITING, SENT, EXECUTED
+    WAITING, SENT, EXECUTED,
+    /**
+     * Terminal state for commands the relay did not execute within their timeout
+     */
+    TIMED_OUT
 }
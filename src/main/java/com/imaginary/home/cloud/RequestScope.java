@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+
+/**
+ * Identity map for the lifetime of a single API call. Within a scope each entity is loaded at most once, and every
+ * lookup of it returns the same instance, including lookups that found nothing. Scopes are bound to the thread
+ * processing the call, so there is no sharing and no locking; outside a scope every lookup goes straight to the
+ * {@link EntityCache}.
+ */
+public class RequestScope {
+    static private final ThreadLocal<HashMap<String,Object>> scope = new ThreadLocal<HashMap<String, Object>>();
+
+    static public void begin() {
+        scope.set(new HashMap<String, Object>());
+    }
+
+    static public void end() {
+        scope.remove();
+    }
+
+    static public boolean isActive() {
+        return (scope.get() != null);
+    }
+
+    static boolean contains(@Nonnull String key) {
+        HashMap<String,Object> map = scope.get();
+
+        return (map != null && map.containsKey(key));
+    }
+
+    static @Nullable Object get(@Nonnull String key) {
+        HashMap<String,Object> map = scope.get();
+
+        return (map == null ? null : map.get(key));
+    }
+
+    static void put(@Nonnull String key, @Nullable Object value) {
+        HashMap<String,Object> map = scope.get();
+
+        if( map != null ) {
+            map.put(key, value);
+        }
+    }
+
+    static void remove(@Nonnull String key) {
+        HashMap<String,Object> map = scope.get();
+
+        if( map != null ) {
+            map.remove(key);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import org.apache.log4j.Logger;
+import org.dasein.persist.PersistenceException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version counters for the resources clients poll. Every write that changes what a listing would return bumps the
+ * counters for the scopes it touches (the relay, its location and the global scope for the resource kind), so an
+ * ETag built from counter values can be checked without reading anything from persistence.
+ * <p>The counters live in memory and start from a random per-process epoch that is part of every ETag. A restart or
+ * another node behind the same load balancer therefore never matches an old ETag; it just serves one full response
+ * and hands out a new tag. Writes made through another node do not bump the counters here, so every tag also
+ * carries the current time window, set in milliseconds by the <code>imaginary.etag.window</code> system property
+ * (10 seconds by default). A tag stops matching when its window ends, which bounds how long a client can be told
+ * nothing changed after a write through another node. A single API node can set the window to 0 to turn this
+ * off.</p>
+ */
+public class ResourceVersions {
+    static private final Logger logger = Logger.getLogger(ResourceVersions.class);
+
+    static public final String COMMAND  = "command";
+    static public final String DEVICE   = "device";
+    static public final String LOCATION = "location";
+    static public final String USER     = "user";
+
+    /**
+     * The scope covering every instance of a resource kind
+     */
+    static public final String ALL = "*";
+
+    static public final String WINDOW_PROPERTY = "imaginary.etag.window";
+
+    static private final String                               epoch          = Long.toHexString(new SecureRandom().nextLong());
+    static private final long                                 window         = Long.getLong(WINDOW_PROPERTY, 10000L);
+    static private final ConcurrentHashMap<String,String>     relayLocations = new ConcurrentHashMap<String, String>();
+    static private final ConcurrentHashMap<String,AtomicLong> versions       = new ConcurrentHashMap<String, AtomicLong>();
+
+    static private void bump(@Nonnull String kind, @Nonnull String scope) {
+        String key = kind + ":" + scope;
+        AtomicLong v = versions.get(key);
+
+        if( v == null ) {
+            AtomicLong n = new AtomicLong(0L);
+
+            v = versions.putIfAbsent(key, n);
+            if( v == null ) {
+                v = n;
+            }
+        }
+        v.incrementAndGet();
+    }
+
+    static private void relayChanged(@Nonnull String kind, @Nonnull String relayId) {
+        String locationId = relayLocations.get(relayId);
+
+        if( locationId == null ) {
+            try {
+                ControllerRelay relay = ControllerRelay.getRelay(relayId);
+
+                // relays never move between locations, so this only needs to be looked up once
+                if( relay != null ) {
+                    locationId = relay.getLocationId();
+                    relayLocations.put(relayId, locationId);
+                }
+            }
+            catch( PersistenceException e ) {
+                logger.warn("Unable to find the location for relay " + relayId + ": " + e.getMessage());
+            }
+        }
+        bump(kind, relayId);
+        if( locationId != null ) {
+            bump(kind, locationId);
+        }
+        bump(kind, ALL);
+    }
+
+    static public void commandChanged(@Nonnull String relayId) {
+        relayChanged(COMMAND, relayId);
+    }
+
+    static public void deviceChanged(@Nonnull String relayId) {
+        relayChanged(DEVICE, relayId);
+    }
+
+    static public void locationChanged(@Nonnull String locationId) {
+        bump(LOCATION, locationId);
+        bump(LOCATION, ALL);
+    }
+
+    static public void userChanged(@Nonnull String userId) {
+        bump(USER, userId);
+    }
+
+    static public long getVersion(@Nonnull String kind, @Nonnull String scope) {
+        AtomicLong v = versions.get(kind + ":" + scope);
+
+        return (v == null ? 0L : v.get());
+    }
+
+    /**
+     * Builds a strong ETag from the values that determine a representation: who is asking, what they asked for and
+     * the current versions of everything the response depends on. The current time window is mixed in as well, so
+     * the tag changes at least once per window even if the change was made through another node.
+     * @param parts the components of the tag
+     * @return a quoted entity tag
+     */
+    static public @Nonnull String toETag(@Nullable Object ... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            if( window > 0L ) {
+                digest.update(String.valueOf(System.currentTimeMillis()/window).getBytes("utf-8"));
+                digest.update((byte)0);
+            }
+            for( Object part : parts ) {
+                digest.update(String.valueOf(part).getBytes("utf-8"));
+                digest.update((byte)0);
+            }
+            StringBuilder tag = new StringBuilder();
+
+            tag.append('"').append(epoch).append('-');
+            for( byte b : digest.digest() ) {
+                tag.append(Character.forDigit((b >> 4) & 0xF, 16));
+                tag.append(Character.forDigit(b & 0xF, 16));
+            }
+            tag.append('"');
+            return tag.toString();
+        }
+        catch( Exception e ) {
+            throw new RuntimeException(e);
+        }
+    }
+}
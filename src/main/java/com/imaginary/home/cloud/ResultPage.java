@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import org.apache.commons.codec.binary.Base64;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * One page of a larger, stably ordered result set. The cursor is opaque to clients: it encodes the sort key of the
+ * last item in the page so the next page picks up after it even when new items are added in the meantime.
+ * @param <T> the type of item in the page
+ */
+public class ResultPage<T> {
+    static private final String SEPARATOR = "\n";
+
+    /**
+     * Encodes the sort key of the last item in a page as an opaque cursor.
+     * @param keys the components of the sort key
+     * @return the cursor
+     */
+    static public @Nonnull String encodeCursor(@Nonnull String ... keys) {
+        StringBuilder str = new StringBuilder();
+
+        for( int i=0; i<keys.length; i++ ) {
+            if( i > 0 ) {
+                str.append(SEPARATOR);
+            }
+            str.append(keys[i]);
+        }
+        try {
+            return Base64.encodeBase64URLSafeString(str.toString().getBytes("utf-8"));
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decodes a cursor created by {@link #encodeCursor(String...)}.
+     * @param cursor the cursor from the client
+     * @param parts the number of sort key components the cursor must have
+     * @return the sort key components, or null if the cursor is not valid
+     */
+    static public @Nullable String[] decodeCursor(@Nonnull String cursor, int parts) {
+        try {
+            String[] keys = new String(Base64.decodeBase64(cursor), "utf-8").split(SEPARATOR, -1);
+
+            return (keys.length == parts ? keys : null);
+        }
+        catch( Exception e ) {
+            return null;
+        }
+    }
+
+    private Collection<T> items;
+    private String        nextCursor;
+
+    public ResultPage(@Nonnull Collection<T> items, @Nullable String nextCursor) {
+        this.items = Collections.unmodifiableCollection(items);
+        this.nextCursor = nextCursor;
+    }
+
+    public @Nonnull Collection<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the cursor for the page after this one, or null if this is the last page
+     */
+    public @Nullable String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -18,11 +18,16 @@ package com.imaginary.home.cloud.api;
 
 import sun.awt.image.PixelConverter;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -36,10 +41,80 @@ public class APICall {
         throw new RestException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, RestException.INVALID_OPERATION, "DELETE is not allowed");
     }
 
+    /**
+     * Sets the ETag for the response and checks it against the client's If-None-Match header. When they match, the
+     * response is finished as a 304 and the caller should return without loading anything.
+     * @param req the conditional request
+     * @param resp the response
+     * @param etag the strong entity tag for the current representation
+     * @return true if the client's copy is current and a 304 was sent
+     */
+    protected boolean isNotModified(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull String etag) {
+        String match = req.getHeader("If-None-Match");
+
+        resp.setHeader("ETag", etag);
+        if( match != null ) {
+            for( String candidate : match.split(",") ) {
+                candidate = candidate.trim();
+                if( candidate.startsWith("W/") ) {
+                    candidate = candidate.substring(2);
+                }
+                if( candidate.equals(etag) || candidate.equals("*") ) {
+                    resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void get(@Nonnull String requestId, @Nullable String userId, @Nonnull String[] path, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull Map<String,Object> headers, @Nonnull Map<String,Object> parameters) throws RestException, IOException {
         throw new RestException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, RestException.INVALID_OPERATION, "GEt is not allowed");
     }
 
+    /**
+     * Reads an optional integer query parameter.
+     * @param req the request
+     * @param name the name of the parameter
+     * @param defaultValue the value to use when the parameter is absent
+     * @return the parameter value
+     * @throws RestException the parameter is present but not an integer
+     */
+    protected int getIntParameter(@Nonnull HttpServletRequest req, @Nonnull String name, int defaultValue) throws RestException {
+        String value = req.getParameter(name);
+
+        if( value == null ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch( NumberFormatException e ) {
+            throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_PARAMETER, "Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Reads an optional long query parameter such as a timestamp.
+     * @param req the request
+     * @param name the name of the parameter
+     * @return the parameter value or null if it is absent
+     * @throws RestException the parameter is present but not a number
+     */
+    protected @Nullable Long getLongParameter(@Nonnull HttpServletRequest req, @Nonnull String name) throws RestException {
+        String value = req.getParameter(name);
+
+        if( value == null ) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        }
+        catch( NumberFormatException e ) {
+            throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_PARAMETER, "Invalid value for " + name + ": " + value);
+        }
+    }
+
     public void head(@Nonnull String requestId, @Nullable String userId, @Nonnull String[] path, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull Map<String,Object> headers, @Nonnull Map<String,Object> parameters) throws RestException, IOException {
         throw new RestException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, RestException.INVALID_OPERATION, "HEAD is not allowed");
     }
@@ -51,4 +126,43 @@ public class APICall {
     public void put(@Nonnull String requestId, @Nullable String userId, @Nonnull String[] path, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull Map<String,Object> headers, @Nonnull Map<String,Object> parameters) throws RestException, IOException {
         throw new RestException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, RestException.INVALID_OPERATION, "PUT is not allowed");
     }
+
+    /**
+     * Writes a JSON object as the response body, recording the time spent rendering it against the request.
+     * @param req the request being answered
+     * @param resp the response to write to
+     * @param status the HTTP status for the response
+     * @param json the object to render
+     * @throws IOException an error occurred writing the response
+     */
+    protected void writeJSON(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnegative int status, @Nonnull Map<String,?> json) throws IOException {
+        long start = System.nanoTime();
+
+        write(req, resp, status, (new JSONObject(json)).toString(), start);
+    }
+
+    /**
+     * Writes a JSON array as the response body, recording the time spent rendering it against the request.
+     * @param req the request being answered
+     * @param resp the response to write to
+     * @param status the HTTP status for the response
+     * @param json the list to render
+     * @throws IOException an error occurred writing the response
+     */
+    protected void writeJSON(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnegative int status, @Nonnull Collection<?> json) throws IOException {
+        long start = System.nanoTime();
+
+        write(req, resp, status, (new JSONArray(json)).toString(), start);
+    }
+
+    private void write(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnegative int status, @Nonnull String body, long start) throws IOException {
+        RequestMetrics metrics = RequestMetrics.getInstance(req);
+
+        resp.setStatus(status);
+        resp.getWriter().println(body);
+        resp.getWriter().flush();
+        if( metrics != null ) {
+            metrics.addSerialization(System.nanoTime() - start);
+        }
+    }
 }
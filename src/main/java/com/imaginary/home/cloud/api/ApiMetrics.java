@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.imaginary.home.cloud.api;
+
+import com.imaginary.home.cloud.EntityCache;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory accounting for the cloud API. Every request is recorded against its route and method with a latency
+ * histogram, per-status counters, payload sizes and separate histograms for the authentication, persistence and
+ * serialization phases. Persistence is whatever handler time is not spent authenticating or rendering JSON, which
+ * in this API is almost entirely dasein calls. Everything is kept in atomics so recording never blocks request
+ * threads, and the whole registry renders in the Prometheus text exposition format for the admin metrics endpoint.
+ */
+public class ApiMetrics {
+    /**
+     * Upper bounds of the latency buckets, in milliseconds
+     */
+    static private final long[] BUCKETS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+    static public final String PHASE_AUTH          = "auth";
+    static public final String PHASE_PERSISTENCE   = "persistence";
+    static public final String PHASE_SERIALIZATION = "serialization";
+
+    static private final String PREFIX = "imaginary_api_";
+
+    static public class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong      count  = new AtomicLong(0L);
+        private final AtomicLong      sum    = new AtomicLong(0L);
+
+        public void record(@Nonnegative long nanos) {
+            long millis = nanos/1000000L;
+            int i = 0;
+
+            while( i < BUCKETS.length && millis > BUCKETS[i] ) {
+                i++;
+            }
+            counts.incrementAndGet(i);
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSumNanos() {
+            return sum.get();
+        }
+
+        private void render(@Nonnull StringBuilder out, @Nonnull String name, @Nonnull String labels) {
+            long cumulative = 0L;
+
+            for( int i=0; i<BUCKETS.length; i++ ) {
+                cumulative += counts.get(i);
+                out.append(name).append("_bucket{").append(labels).append(",le=\"").append(seconds(BUCKETS[i] * 1000000L)).append("\"} ").append(cumulative).append("\n");
+            }
+            cumulative += counts.get(BUCKETS.length);
+            out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append("\n");
+            out.append(name).append("_sum{").append(labels).append("} ").append(seconds(sum.get())).append("\n");
+            out.append(name).append("_count{").append(labels).append("} ").append(count.get()).append("\n");
+        }
+    }
+
+    static public class RouteMetrics {
+        private final Histogram                                latency       = new Histogram();
+        private final ConcurrentHashMap<String,Histogram>      phases        = new ConcurrentHashMap<String, Histogram>();
+        private final AtomicLong                               requestBytes  = new AtomicLong(0L);
+        private final AtomicLong                               responseBytes = new AtomicLong(0L);
+        private final ConcurrentHashMap<Integer,AtomicLong>    statuses      = new ConcurrentHashMap<Integer, AtomicLong>();
+
+        public @Nonnull Histogram getLatency() {
+            return latency;
+        }
+
+        public @Nonnull Histogram getPhase(@Nonnull String phase) {
+            Histogram h = phases.get(phase);
+
+            if( h == null ) {
+                Histogram n = new Histogram();
+
+                h = phases.putIfAbsent(phase, n);
+                if( h == null ) {
+                    h = n;
+                }
+            }
+            return h;
+        }
+
+        public long getStatusCount(int status) {
+            AtomicLong l = statuses.get(status);
+
+            return (l == null ? 0L : l.get());
+        }
+
+        private void status(int status) {
+            AtomicLong l = statuses.get(status);
+
+            if( l == null ) {
+                AtomicLong n = new AtomicLong(0L);
+
+                l = statuses.putIfAbsent(status, n);
+                if( l == null ) {
+                    l = n;
+                }
+            }
+            l.incrementAndGet();
+        }
+    }
+
+    static private @Nonnull String seconds(long nanos) {
+        return String.valueOf(((double)nanos)/1000000000d);
+    }
+
+    private final ConcurrentHashMap<String,RouteMetrics> routes = new ConcurrentHashMap<String, RouteMetrics>();
+
+    public @Nonnull RouteMetrics getRoute(@Nonnull String route, @Nonnull String method) {
+        String key = route + " " + method;
+        RouteMetrics m = routes.get(key);
+
+        if( m == null ) {
+            RouteMetrics n = new RouteMetrics();
+
+            m = routes.putIfAbsent(key, n);
+            if( m == null ) {
+                m = n;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Records a completed request.
+     * @param request the per-request timings
+     * @param status the HTTP status that was sent
+     * @param requestBytes the size of the request body
+     * @param responseBytes the size of the response body
+     */
+    public void record(@Nonnull RequestMetrics request, int status, @Nonnegative long requestBytes, @Nonnegative long responseBytes) {
+        RouteMetrics m = getRoute(request.getRoute(), request.getMethod());
+        long total = System.nanoTime() - request.getStartNanos();
+        long auth = request.getAuthNanos();
+        long serialization = request.getSerializationNanos();
+        long handler = request.getHandlerNanos();
+
+        m.latency.record(total);
+        m.status(status);
+        m.requestBytes.addAndGet(requestBytes);
+        m.responseBytes.addAndGet(responseBytes);
+        if( auth > 0L ) {
+            m.getPhase(PHASE_AUTH).record(auth);
+        }
+        if( handler > 0L ) {
+            m.getPhase(PHASE_PERSISTENCE).record(Math.max(0L, handler - auth - serialization));
+        }
+        if( serialization > 0L ) {
+            m.getPhase(PHASE_SERIALIZATION).record(serialization);
+        }
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format (version 0.0.4).
+     * @param dispatcher the asynchronous dispatcher, if one is running, for its queue gauges
+     * @return the rendered metrics
+     */
+    public @Nonnull String toPrometheus(@Nullable AsyncDispatcher dispatcher) {
+        TreeMap<String,RouteMetrics> sorted = new TreeMap<String, RouteMetrics>(routes);
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP ").append(PREFIX).append("request_duration_seconds Total time spent handling API requests\n");
+        out.append("# TYPE ").append(PREFIX).append("request_duration_seconds histogram\n");
+        for( Map.Entry<String,RouteMetrics> entry : sorted.entrySet() ) {
+            entry.getValue().latency.render(out, PREFIX + "request_duration_seconds", labels(entry.getKey()));
+        }
+        out.append("# HELP ").append(PREFIX).append("phase_duration_seconds Time spent in each phase of handling API requests\n");
+        out.append("# TYPE ").append(PREFIX).append("phase_duration_seconds histogram\n");
+        for( Map.Entry<String,RouteMetrics> entry : sorted.entrySet() ) {
+            ArrayList<String> phases = new ArrayList<String>(entry.getValue().phases.keySet());
+
+            Collections.sort(phases);
+            for( String phase : phases ) {
+                entry.getValue().phases.get(phase).render(out, PREFIX + "phase_duration_seconds", labels(entry.getKey()) + ",phase=\"" + phase + "\"");
+            }
+        }
+        out.append("# HELP ").append(PREFIX).append("responses_total API responses by status code\n");
+        out.append("# TYPE ").append(PREFIX).append("responses_total counter\n");
+        for( Map.Entry<String,RouteMetrics> entry : sorted.entrySet() ) {
+            TreeMap<Integer,AtomicLong> statuses = new TreeMap<Integer, AtomicLong>(entry.getValue().statuses);
+
+            for( Map.Entry<Integer,AtomicLong> s : statuses.entrySet() ) {
+                out.append(PREFIX).append("responses_total{").append(labels(entry.getKey())).append(",status=\"").append(s.getKey()).append("\"} ").append(s.getValue().get()).append("\n");
+            }
+        }
+        out.append("# HELP ").append(PREFIX).append("request_bytes_total Bytes received in API request bodies\n");
+        out.append("# TYPE ").append(PREFIX).append("request_bytes_total counter\n");
+        for( Map.Entry<String,RouteMetrics> entry : sorted.entrySet() ) {
+            out.append(PREFIX).append("request_bytes_total{").append(labels(entry.getKey())).append("} ").append(entry.getValue().requestBytes.get()).append("\n");
+        }
+        out.append("# HELP ").append(PREFIX).append("response_bytes_total Bytes sent in API response bodies\n");
+        out.append("# TYPE ").append(PREFIX).append("response_bytes_total counter\n");
+        for( Map.Entry<String,RouteMetrics> entry : sorted.entrySet() ) {
+            out.append(PREFIX).append("response_bytes_total{").append(labels(entry.getKey())).append("} ").append(entry.getValue().responseBytes.get()).append("\n");
+        }
+        if( dispatcher != null ) {
+            gauge(out, "async_active", "Requests currently running on the asynchronous worker pool", dispatcher.getActiveCount());
+            gauge(out, "async_queued", "Requests waiting for an asynchronous worker", dispatcher.getQueueDepth());
+            gauge(out, "async_parked", "Relay requests parked waiting for new commands", dispatcher.getParkedCount());
+        }
+        TreeMap<String,EntityCache<?>> caches = new TreeMap<String, EntityCache<?>>();
+
+        for( EntityCache<?> c : EntityCache.list() ) {
+            caches.put(c.getName(), c);
+        }
+        out.append("# HELP imaginary_cache_lookups_total Shared entity cache lookups by result\n");
+        out.append("# TYPE imaginary_cache_lookups_total counter\n");
+        for( EntityCache<?> c : caches.values() ) {
+            out.append("imaginary_cache_lookups_total{cache=\"").append(c.getName()).append("\",result=\"hit\"} ").append(c.getHits()).append("\n");
+            out.append("imaginary_cache_lookups_total{cache=\"").append(c.getName()).append("\",result=\"miss\"} ").append(c.getMisses()).append("\n");
+        }
+        out.append("# HELP imaginary_cache_removals_total Shared entity cache entries dropped by cause\n");
+        out.append("# TYPE imaginary_cache_removals_total counter\n");
+        for( EntityCache<?> c : caches.values() ) {
+            out.append("imaginary_cache_removals_total{cache=\"").append(c.getName()).append("\",cause=\"eviction\"} ").append(c.getEvictions()).append("\n");
+            out.append("imaginary_cache_removals_total{cache=\"").append(c.getName()).append("\",cause=\"expiration\"} ").append(c.getExpirations()).append("\n");
+            out.append("imaginary_cache_removals_total{cache=\"").append(c.getName()).append("\",cause=\"invalidation\"} ").append(c.getInvalidations()).append("\n");
+        }
+        out.append("# HELP imaginary_cache_size Entries held in each shared entity cache\n");
+        out.append("# TYPE imaginary_cache_size gauge\n");
+        for( EntityCache<?> c : caches.values() ) {
+            out.append("imaginary_cache_size{cache=\"").append(c.getName()).append("\"} ").append(c.size()).append("\n");
+        }
+        return out.toString();
+    }
+
+    private void gauge(@Nonnull StringBuilder out, @Nonnull String name, @Nonnull String help, long value) {
+        out.append("# HELP ").append(PREFIX).append(name).append(" ").append(help).append("\n");
+        out.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+        out.append(PREFIX).append(name).append(" ").append(value).append("\n");
+    }
+
+    private @Nonnull String labels(@Nonnull String key) {
+        int idx = key.indexOf(' ');
+
+        return "route=\"" + key.substring(0, idx) + "\",method=\"" + key.substring(idx+1) + "\"";
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.imaginary.home.cloud.api;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs API calls off the container threads for {@link RestApi} when it is configured for asynchronous processing.
+ * Work goes to a bounded pool so that a backlog of slow persistence calls turns into fast 503 responses instead of
+ * an ever growing queue, every request carries a deadline enforced from a single timer thread, and relay requests
+ * with nothing to do may be parked against a key without holding any thread until they are woken or their wait
+ * expires. The deadline only fails requests that are waiting for a worker or parked; once a worker has picked up a
+ * request it is the only thread allowed to write the response.
+ * <p>Wake-ups are local to this node. A command queued through another API node cannot wake a relay parked here, so
+ * parked requests are also re-run every recheck interval to look at the database themselves, and a relay never waits
+ * on work queued elsewhere for longer than that interval.</p>
+ */
+public class AsyncDispatcher {
+    static private final Logger logger = Logger.getLogger(AsyncDispatcher.class);
+
+    /**
+     * How often cancelled deadline and wake-up timers are cleared out of the timer queue
+     */
+    static private final long PURGE_INTERVAL = 60000L;
+
+    static private class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(0);
+        private final String        prefix;
+
+        NamedThreadFactory(@Nonnull String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private final ThreadPoolExecutor                                           executor;
+    private final ConcurrentHashMap<String,ConcurrentLinkedQueue<AsyncRequest>> parked = new ConcurrentHashMap<String, ConcurrentLinkedQueue<AsyncRequest>>();
+    private final AtomicInteger                                                parkedCount = new AtomicInteger(0);
+    private final RestApi                                                      api;
+    private final long                                                         recheckInterval;
+    private final long                                                         requestTimeout;
+    private final ScheduledThreadPoolExecutor                                  timer;
+
+    /**
+     * @param api the API whose calls are being dispatched
+     * @param threads the number of worker threads
+     * @param queueSize the number of requests that may wait for a worker before new ones are turned away
+     * @param requestTimeout how long a request may wait for a worker before it fails
+     * @param recheckInterval how often a parked request is re-run to check for work queued on other nodes, 0 for never
+     */
+    public AsyncDispatcher(@Nonnull RestApi api, @Nonnegative int threads, @Nonnegative int queueSize, @Nonnegative long requestTimeout, @Nonnegative long recheckInterval) {
+        this.api = api;
+        this.requestTimeout = requestTimeout;
+        this.recheckInterval = recheckInterval;
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new NamedThreadFactory("rest-api"));
+        executor.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("rest-api-timer"));
+        // cancelled timers otherwise sit in the queue until they would have fired
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                timer.purge();
+            }
+        }, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getParkedCount() {
+        return parkedCount.get();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public @Nonnegative long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Hands a freshly started asynchronous request over to the worker pool.
+     * @param request the request to process
+     */
+    public void dispatch(@Nonnull AsyncRequest request) {
+        request.setDeadline(System.currentTimeMillis() + requestTimeout);
+        schedule(request);
+    }
+
+    /**
+     * Parks a running request under the specified key. The request holds no thread while parked. It is re-run from
+     * the top for the last time when {@link #wake(String)} is called for the key or when the wait expires, whichever
+     * comes first. Until then it is also re-run every recheck interval so it can look for work queued through other
+     * nodes and park again for whatever is left of the original wait.
+     * @param request the currently running request
+     * @param key the key (typically a relay ID) on which the request waits
+     * @param waitMillis the maximum time to wait, counted from the first time the request parked
+     * @return true if the request was parked, false if it was no longer in a state where it can be parked
+     */
+    public boolean park(@Nonnull final AsyncRequest request, @Nonnull String key, @Nonnegative long waitMillis) {
+        long now = System.currentTimeMillis();
+
+        if( request.getWaitUntil() == 0L ) {
+            request.setWaitUntil(now + waitMillis);
+        }
+        long remaining = request.getWaitUntil() - now;
+
+        if( remaining < 1L || !request.park(key) ) {
+            return false;
+        }
+        ConcurrentLinkedQueue<AsyncRequest> queue = parked.get(key);
+
+        if( queue == null ) {
+            ConcurrentLinkedQueue<AsyncRequest> q = new ConcurrentLinkedQueue<AsyncRequest>();
+
+            queue = parked.putIfAbsent(key, q);
+            if( queue == null ) {
+                queue = q;
+            }
+        }
+        queue.add(request);
+        parkedCount.incrementAndGet();
+
+        final boolean last = (recheckInterval < 1L || remaining <= recheckInterval);
+
+        request.setTimer(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                resume(request, last);
+            }
+        }, last ? remaining : recheckInterval, TimeUnit.MILLISECONDS));
+        return true;
+    }
+
+    /**
+     * Wakes up every request parked on the specified key.
+     * @param key the key on which requests may be parked
+     */
+    public void wake(@Nonnull String key) {
+        ConcurrentLinkedQueue<AsyncRequest> queue = parked.get(key);
+
+        if( queue == null ) {
+            return;
+        }
+        AsyncRequest request;
+
+        while( (request = queue.poll()) != null ) {
+            resume(request, true);
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdown();
+        try {
+            if( !executor.awaitTermination(requestTimeout, TimeUnit.MILLISECONDS) ) {
+                executor.shutdownNow();
+            }
+        }
+        catch( InterruptedException e ) {
+            executor.shutdownNow();
+        }
+        for( ConcurrentLinkedQueue<AsyncRequest> queue : parked.values() ) {
+            AsyncRequest request;
+
+            while( (request = queue.poll()) != null ) {
+                if( request.expire() ) {
+                    fail(request, new RestException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, RestException.SERVER_BUSY, "The server is shutting down"));
+                }
+            }
+        }
+    }
+
+    private void expire(@Nonnull AsyncRequest request) {
+        int state = request.getState();
+
+        if( state == AsyncRequest.PARKED || System.currentTimeMillis() < request.getDeadline() ) {
+            return;
+        }
+        if( state == AsyncRequest.RUNNING ) {
+            // the worker owns the response and will complete the request when it returns
+            if( logger.isInfoEnabled() ) {
+                logger.info("Request " + request.getMethod() + " " + request.getRequest().getPathInfo() + " is still running past its deadline");
+            }
+            return;
+        }
+        if( request.expire() ) {
+            request.cancelTask();
+            if( logger.isInfoEnabled() ) {
+                logger.info("Request " + request.getMethod() + " " + request.getRequest().getPathInfo() + " exceeded its deadline");
+            }
+            fail(request, new RestException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, RestException.REQUEST_TIMEOUT, "The request could not be completed within " + requestTimeout + "ms"));
+        }
+    }
+
+    private void fail(@Nonnull AsyncRequest request, @Nonnull RestException e) {
+        try {
+            if( !request.getResponse().isCommitted() ) {
+                api.sendError(request.getResponse(), e);
+            }
+            api.record(request.getRequest(), request.getResponse());
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to send error response: " + t.getMessage());
+        }
+        finally {
+            request.complete();
+        }
+    }
+
+    private void resume(@Nonnull AsyncRequest request, boolean last) {
+        String key = request.getParkedOn();
+
+        if( !request.unpark(last) ) {
+            return;
+        }
+        parkedCount.decrementAndGet();
+        if( key != null ) {
+            ConcurrentLinkedQueue<AsyncRequest> queue = parked.get(key);
+
+            if( queue != null ) {
+                queue.remove(request);
+            }
+        }
+        request.setDeadline(System.currentTimeMillis() + requestTimeout);
+        schedule(request);
+    }
+
+    private void run(@Nonnull AsyncRequest request) {
+        if( !request.begin() ) {
+            return;
+        }
+        if( System.currentTimeMillis() >= request.getDeadline() ) {
+            if( request.finish() ) {
+                fail(request, new RestException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, RestException.REQUEST_TIMEOUT, "The request waited too long to be processed"));
+            }
+            return;
+        }
+        try {
+            api.process(request.getMethod(), request.getRequest(), request.getResponse());
+        }
+        catch( Throwable t ) {
+            logger.error("Unhandled error processing " + request.getMethod() + " " + request.getRequest().getPathInfo() + ": " + t.getMessage(), t);
+        }
+        finally {
+            // a parked request is left open for whoever resumes it
+            if( request.finish() ) {
+                request.complete();
+            }
+        }
+    }
+
+    private void schedule(@Nonnull final AsyncRequest request) {
+        try {
+            Future<?> task = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    AsyncDispatcher.this.run(request);
+                }
+            });
+
+            request.setTask(task);
+            request.setTimer(timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(request);
+                }
+            }, Math.max(0L, request.getDeadline() - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+        }
+        catch( RejectedExecutionException e ) {
+            if( request.expire() ) {
+                fail(request, new RestException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, RestException.SERVER_BUSY, "The server is too busy to accept this request"));
+            }
+        }
+    }
+}
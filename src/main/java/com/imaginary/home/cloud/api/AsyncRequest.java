@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.imaginary.home.cloud.api;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single API call being processed in asynchronous mode. The request moves through a small state machine
+ * (queued, running, parked, done) and whichever party wins the transition into the done state owns writing the
+ * final response and completing the {@link AsyncContext}. A running request can only be finished by the worker
+ * running it, so the worker is the only thread ever writing to a response it is processing. That keeps deadline
+ * expiry, worker completion and relay wake-ups from stepping on each other.
+ */
+public class AsyncRequest {
+    static public final String ATTRIBUTE = "com.imaginary.home.cloud.api.AsyncRequest";
+
+    static final int QUEUED  = 0;
+    static final int RUNNING = 1;
+    static final int PARKED  = 2;
+    static final int DONE    = 3;
+
+    private AsyncContext        context;
+    private long                deadline;
+    private String              method;
+    private String              parkedOn;
+    private boolean             resumed;
+    private HttpServletRequest  request;
+    private HttpServletResponse response;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+    private Future<?>           task;
+    private Future<?>           timer;
+    private long                waitUntil;
+
+    AsyncRequest(@Nonnull String method, @Nonnull AsyncContext context, @Nonnull HttpServletRequest request, @Nonnull HttpServletResponse response, @Nonnegative long deadline) {
+        this.method = method;
+        this.context = context;
+        this.request = request;
+        this.response = response;
+        this.deadline = deadline;
+    }
+
+    boolean begin() {
+        return state.compareAndSet(QUEUED, RUNNING);
+    }
+
+    boolean finish() {
+        return state.compareAndSet(RUNNING, DONE);
+    }
+
+    /**
+     * Moves a request that no worker is holding into the done state. Running requests cannot be expired; their worker
+     * finishes them.
+     * @return true if the caller now owns the response
+     */
+    boolean expire() {
+        return state.compareAndSet(QUEUED, DONE) || state.compareAndSet(PARKED, DONE);
+    }
+
+    boolean park(@Nonnull String key) {
+        parkedOn = key;
+        return state.compareAndSet(RUNNING, PARKED);
+    }
+
+    /**
+     * Moves a parked request back into the queue.
+     * @param last true if the request is done waiting, false if it is only being re-run to check for new work
+     * @return true if the caller now owns re-running the request
+     */
+    boolean unpark(boolean last) {
+        if( state.compareAndSet(PARKED, QUEUED) ) {
+            resumed = last;
+            return true;
+        }
+        return false;
+    }
+
+    void complete() {
+        setTimer(null);
+        try {
+            context.complete();
+        }
+        catch( IllegalStateException ignore ) {
+            // the container already gave up on this request
+        }
+    }
+
+    public @Nonnull AsyncContext getContext() {
+        return context;
+    }
+
+    public @Nonnegative long getDeadline() {
+        return deadline;
+    }
+
+    public @Nonnull String getMethod() {
+        return method;
+    }
+
+    public @Nullable String getParkedOn() {
+        return parkedOn;
+    }
+
+    public @Nonnull HttpServletRequest getRequest() {
+        return request;
+    }
+
+    public @Nonnull HttpServletResponse getResponse() {
+        return response;
+    }
+
+    int getState() {
+        return state.get();
+    }
+
+    /**
+     * @return when the client's wait for new work runs out, or 0 if the request has never been parked
+     */
+    long getWaitUntil() {
+        return waitUntil;
+    }
+
+    /**
+     * @return true if this request was parked already and has been woken back up for its final pass
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    void setDeadline(@Nonnegative long deadline) {
+        this.deadline = deadline;
+    }
+
+    void setTask(@Nullable Future<?> task) {
+        this.task = task;
+    }
+
+    /**
+     * Replaces the pending deadline or wake-up timer for this request, cancelling the one it replaces.
+     * @param timer the new timer or null to just cancel the current one
+     */
+    synchronized void setTimer(@Nullable Future<?> timer) {
+        Future<?> f = this.timer;
+
+        this.timer = timer;
+        if( f != null && f != timer ) {
+            f.cancel(false);
+        }
+    }
+
+    void setWaitUntil(@Nonnegative long waitUntil) {
+        this.waitUntil = waitUntil;
+    }
+
+    void cancelTask() {
+        Future<?> f = task;
+
+        // the request never started, so there is no worker to interrupt
+        if( f != null ) {
+            f.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.imaginary.home.cloud.api;
+
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Response wrapper that counts the UTF-8 size of everything written through {@link #getWriter()}. The API only
+ * ever writes JSON through the writer, so this is the response payload size.
+ */
+public class MeteredResponse extends HttpServletResponseWrapper {
+    private class CountingWriter extends Writer {
+        private final Writer target;
+
+        CountingWriter(@Nonnull Writer target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(@Nonnull char[] chars, int off, int len) throws IOException {
+            target.write(chars, off, len);
+            for( int i=off; i<off+len; i++ ) {
+                char c = chars[i];
+
+                if( c < 0x80 ) {
+                    bytes++;
+                }
+                else if( c < 0x800 || (c >= 0xD800 && c <= 0xDFFF) ) {
+                    bytes += 2;
+                }
+                else {
+                    bytes += 3;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+
+    private long        bytes;
+    private PrintWriter writer;
+
+    public MeteredResponse(@Nonnull HttpServletResponse response) {
+        super(response);
+    }
+
+    public long getBytesWritten() {
+        return bytes;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if( writer == null ) {
+            writer = new PrintWriter(new CountingWriter(super.getWriter()));
+        }
+        return writer;
+    }
+}
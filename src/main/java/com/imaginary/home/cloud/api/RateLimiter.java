@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.imaginary.home.cloud.api;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter keyed by an arbitrary string (API key plus route class in practice). Each bucket is a
+ * single {@link AtomicLong} holding the time at which the bucket will next be full, which makes the bucket
+ * equivalent to a classic token bucket with a refill rate and a burst size, but updatable with one compare-and-set
+ * and no locks.
+ * <p>The number of buckets is capped. Idle buckets are swept out whenever the count doubles since the last sweep,
+ * and if that does not bring it under the cap, arbitrary buckets go too. A dropped bucket just starts over full, so
+ * the worst a flood of new keys can do is hand some existing keys a fresh burst.</p>
+ */
+public class RateLimiter {
+    /**
+     * The fewest buckets at which a sweep is ever run
+     */
+    static private final int MIN_SWEEP = 10000;
+
+    /**
+     * The most buckets kept at once
+     */
+    static private final int MAX_BUCKETS = 100000;
+
+    private final ConcurrentHashMap<String,AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+    private final long                                 burstNanos;
+    private final long                                 intervalNanos;
+    private volatile int                               sweepAt = MIN_SWEEP;
+
+    /**
+     * Creates a limiter allowing the specified sustained rate with bursts up to the specified size.
+     * @param perSecond the number of requests per second each key may sustain
+     * @param burst the number of requests each key may make back to back
+     */
+    public RateLimiter(@Nonnegative double perSecond, @Nonnegative int burst) {
+        intervalNanos = (long)(1000000000d/Math.max(perSecond, 0.001d));
+        burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /**
+     * Takes a token from the bucket for the specified key.
+     * @param key the key being limited
+     * @return 0 if a token was available, otherwise the number of nanoseconds until one will be
+     */
+    public long acquire(@Nonnull String key) {
+        AtomicLong bucket = getBucket(key);
+
+        while( true ) {
+            long now = System.nanoTime();
+            long full = bucket.get();
+            long start = (full - now < 0 ? now : full);
+            long next = start + intervalNanos;
+            long wait = next - now - burstNanos;
+
+            if( wait > 0 ) {
+                return wait;
+            }
+            if( bucket.compareAndSet(full, next) ) {
+                return 0L;
+            }
+        }
+    }
+
+    private @Nonnull AtomicLong getBucket(@Nonnull String key) {
+        AtomicLong bucket = buckets.get(key);
+
+        if( bucket == null ) {
+            if( buckets.size() >= sweepAt ) {
+                sweep();
+            }
+            AtomicLong b = new AtomicLong(System.nanoTime());
+
+            bucket = buckets.putIfAbsent(key, b);
+            if( bucket == null ) {
+                bucket = b;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops buckets that have refilled completely. Dropping a full bucket is invisible to its key since a new
+     * bucket starts out full as well. If that leaves too many, arbitrary buckets are dropped until a quarter of the
+     * cap is free. The next sweep waits until the count doubles (or reaches the cap), so sweeping stays cheap per
+     * new bucket however many keys show up.
+     */
+    private synchronized void sweep() {
+        if( buckets.size() < sweepAt ) {
+            // another thread just swept
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String,AtomicLong>> it = buckets.entrySet().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().getValue().get() - now < 0 ) {
+                it.remove();
+            }
+        }
+        if( buckets.size() >= MAX_BUCKETS ) {
+            int target = MAX_BUCKETS - (MAX_BUCKETS/4);
+
+            it = buckets.entrySet().iterator();
+            while( it.hasNext() && buckets.size() > target ) {
+                it.next();
+                it.remove();
+            }
+        }
+        sweepAt = Math.max(MIN_SWEEP, Math.min(MAX_BUCKETS, buckets.size() * 2));
+    }
+}
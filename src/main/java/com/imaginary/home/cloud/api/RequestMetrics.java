@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.imaginary.home.cloud.api;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Timings for a single API request, carried as a request attribute so the servlet and the individual
+ * {@link APICall} implementations can each record the phase they own.
+ */
+public class RequestMetrics {
+    static public final String ATTRIBUTE = "com.imaginary.home.cloud.api.RequestMetrics";
+
+    static public @Nullable RequestMetrics getInstance(@Nonnull HttpServletRequest req) {
+        return (RequestMetrics)req.getAttribute(ATTRIBUTE);
+    }
+
+    private volatile long          authNanos;
+    private volatile long          handlerNanos;
+    private String                 method;
+    private volatile boolean       parked;
+    private final AtomicBoolean    recorded = new AtomicBoolean(false);
+    private String                 requestId;
+    private volatile String        route;
+    private volatile long          serializationNanos;
+    private long                   startNanos;
+
+    RequestMetrics(@Nonnull String requestId, @Nonnull String method) {
+        this.requestId = requestId;
+        this.method = method;
+        this.route = "other";
+        this.startNanos = System.nanoTime();
+    }
+
+    public void addAuth(@Nonnegative long nanos) {
+        authNanos += nanos;
+    }
+
+    public void addHandler(@Nonnegative long nanos) {
+        handlerNanos += nanos;
+    }
+
+    public void addSerialization(@Nonnegative long nanos) {
+        serializationNanos += nanos;
+    }
+
+    public long getAuthNanos() {
+        return authNanos;
+    }
+
+    public long getHandlerNanos() {
+        return handlerNanos;
+    }
+
+    public @Nonnull String getMethod() {
+        return method;
+    }
+
+    public @Nonnull String getRequestId() {
+        return requestId;
+    }
+
+    public @Nonnull String getRoute() {
+        return route;
+    }
+
+    public long getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return true if the current pass through the API ended with the request parked rather than answered
+     */
+    public boolean isParked() {
+        return parked;
+    }
+
+    /**
+     * Marks this request as recorded.
+     * @return true if this is the first call, false if the request was already recorded
+     */
+    boolean markRecorded() {
+        return recorded.compareAndSet(false, true);
+    }
+
+    void setParked(boolean parked) {
+        this.parked = parked;
+    }
+
+    void setRoute(@Nonnull String route) {
+        this.route = route;
+    }
+}
@@ -16,8 +16,12 @@
 
 package com.imaginary.home.cloud.api;
 
+import com.imaginary.home.cloud.CommandLifecycleService;
 import com.imaginary.home.cloud.Configuration;
 import com.imaginary.home.cloud.ControllerRelay;
+import com.imaginary.home.cloud.IdGenerator;
+import com.imaginary.home.cloud.PendingCommand;
+import com.imaginary.home.cloud.RequestScope;
 import com.imaginary.home.cloud.api.call.CommandCall;
 import com.imaginary.home.cloud.api.call.DeviceCall;
 import com.imaginary.home.cloud.api.call.LocationCall;
@@ -25,11 +29,15 @@ import com.imaginary.home.cloud.api.call.RelayCall;
 import com.imaginary.home.cloud.user.ApiKey;
 import com.imaginary.home.cloud.user.User;
 import com.imaginary.home.controller.CloudService;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 import org.dasein.persist.PersistenceException;
 import org.json.JSONObject;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -40,7 +48,8 @@ import java.io.InputStreamReader;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
 
 /**
  * Primary servlet dispatcher for incoming REST API calls. This class handles the incoming calls for both
@@ -49,15 +58,67 @@ import java.util.UUID;
  * @author George Reese
  */
 public class RestApi extends HttpServlet {
+    static private final Logger logger = Logger.getLogger(RestApi.class);
+
     static public final String[] VERSIONS = { "2013-01" };
 
-    static public final String API_KEY    = "x-imaginary-api-key";
-    static public final String SIGNATURE  = "x-imaginary-signature";
-    static public final String TIMESTAMP  = "x-imaginary-timestamp";
-    static public final String VERSION    = "x-imaginary-version";
+    static public final String API_KEY            = "x-imaginary-api-key";
+    static public final String METRICS_KEY_HEADER = "x-imaginary-metrics-key";
+    static public final String NEXT_CURSOR        = "x-imaginary-next-cursor";
+    static public final String REQUEST_ID         = "x-imaginary-request-id";
+    static public final String SIGNATURE          = "x-imaginary-signature";
+    static public final String TIMESTAMP          = "x-imaginary-timestamp";
+    static public final String VERSION            = "x-imaginary-version";
+    static public final String WAIT               = "x-imaginary-wait";
+
+    /**
+     * Servlet init parameter that turns on asynchronous processing (the servlet must be declared async-supported)
+     */
+    static public final String ASYNC_ENABLED   = "asyncEnabled";
+    static public final String ASYNC_THREADS   = "asyncThreads";
+    static public final String ASYNC_QUEUE     = "asyncQueueSize";
+    static public final String MAX_CONCURRENT  = "maxConcurrentRequests";
+    static public final String MAX_WAIT        = "maxWait";
+    static public final String METRICS_ENABLED = "metricsEnabled";
+    static public final String METRICS_KEY     = "metricsKey";
+    static public final String PARK_RECHECK    = "parkRecheckInterval";
+    static public final String REQUEST_TIMEOUT = "requestTimeout";
+
+    /**
+     * Servlet init parameters for the per-key token buckets; a rate of 0 turns limiting off for that class of traffic
+     */
+    static public final String ANONYMOUS_BURST = "anonymousBurst";
+    static public final String ANONYMOUS_RATE  = "anonymousRequestsPerSecond";
+    static public final String RELAY_BURST     = "relayBurst";
+    static public final String RELAY_RATE      = "relayRequestsPerSecond";
+    static public final String USER_BURST      = "userBurst";
+    static public final String USER_RATE       = "userRequestsPerSecond";
+
+    /**
+     * Servlet init parameters for the command sweeper; an interval of 0 turns the sweeper off
+     */
+    static public final String COMMAND_BATCH_SIZE = "commandBatchSize";
+    static public final String COMMAND_RETENTION  = "commandRetentionHours";
+    static public final String COMMAND_SWEEP      = "commandSweepInterval";
+
+    static private final int SC_TOO_MANY_REQUESTS = 429;
 
     static private final HashMap<String,APICall> apiCalls = new HashMap<String,APICall>();
 
+    static private final ApiMetrics         metrics          = new ApiMetrics();
+    static private final Pattern            requestIdPattern = Pattern.compile("[A-Za-z0-9._:-]{1,64}");
+
+    static private volatile RateLimiter             anonymousLimiter;
+    static private volatile CommandLifecycleService commandSweeper;
+    static private volatile Semaphore               concurrency;
+    static private volatile AsyncDispatcher         dispatcher;
+    static private volatile RateLimiter             keyLimiter;
+    static private volatile long                    maxWait = 55000L;
+    static private volatile boolean                 metricsEnabled;
+    static private volatile String                  metricsKey;
+    static private volatile RateLimiter             relayLimiter;
+    static private volatile RateLimiter             userLimiter;
+
     static {
         apiCalls.put("location", new LocationCall());
         apiCalls.put("relay", new RelayCall());
@@ -65,6 +126,10 @@ public class RestApi extends HttpServlet {
         apiCalls.put("device", new DeviceCall());
     }
 
+    static public @Nonnull ApiMetrics getMetrics() {
+        return metrics;
+    }
+
     @SuppressWarnings("UnusedDeclaration") // this is going to be unused until a new API version comes out
     static public boolean supports(@Nonnull String requiredVersion, @Nonnull String clientVersion) {
         if( clientVersion.equals(requiredVersion) ) {
@@ -81,7 +146,88 @@ public class RestApi extends HttpServlet {
         return false;
     }
 
+    /**
+     * Parks the current request until {@link #wake(String)} is called for the specified key or the requested wait
+     * time passes, at which point the request is processed again from the start with
+     * {@link AsyncRequest#isResumed()} returning true. Wake-ups only reach requests parked on the same node, so the
+     * request is also processed again every parkRecheckInterval milliseconds to check the database for work queued
+     * through other nodes; those passes may park again for the rest of the wait. Calls that park must write nothing
+     * to the response.
+     * @param req the request being processed
+     * @param key the key to wait on, typically a relay ID
+     * @param waitMillis how long the client is willing to wait, capped by the maxWait init parameter
+     * @return true if the request was parked, false if the caller should respond immediately
+     */
+    static public boolean park(@Nonnull HttpServletRequest req, @Nonnull String key, @Nonnegative long waitMillis) {
+        AsyncDispatcher d = dispatcher;
+        AsyncRequest current = (AsyncRequest)req.getAttribute(AsyncRequest.ATTRIBUTE);
+
+        if( d == null || current == null || current.isResumed() || waitMillis < 1 ) {
+            return false;
+        }
+        if( d.park(current, key, Math.min(waitMillis, maxWait)) ) {
+            RequestMetrics m = RequestMetrics.getInstance(req);
+
+            if( m != null ) {
+                m.setParked(true);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Wakes up any requests parked on the specified key. This is a no-op when the API is running synchronously.
+     * @param key the key on which requests may be parked
+     */
+    static public void wake(@Nonnull String key) {
+        AsyncDispatcher d = dispatcher;
+
+        if( d != null ) {
+            d.wake(key);
+        }
+    }
+
     public @Nullable String authenticate(@Nonnull String method, @Nonnull HttpServletRequest request, Map<String,Object> headers) throws RestException {
+        RequestMetrics m = RequestMetrics.getInstance(request);
+        long start = System.nanoTime();
+
+        // verifying reads the database, so callers are limited before anyone knows whether the key is even real;
+        // the key header is unverified and costs nothing to vary, so this goes by address instead
+        limit(keyLimiter, "key:" + request.getRemoteAddr());
+        String userId;
+
+        try {
+            userId = verify(method, request, headers);
+        }
+        finally {
+            if( m != null ) {
+                m.addAuth(System.nanoTime() - start);
+            }
+        }
+        if( userId == null ) {
+            limit(relayLimiter, "relay:" + headers.get(API_KEY));
+        }
+        else {
+            limit(userLimiter, "user:" + headers.get(API_KEY));
+        }
+        return userId;
+    }
+
+    private void limit(@Nullable RateLimiter limiter, @Nonnull String key) throws RestException {
+        if( limiter == null ) {
+            return;
+        }
+        long wait = limiter.acquire(key);
+
+        if( wait > 0L ) {
+            long seconds = Math.max(1L, (wait + 999999999L)/1000000000L);
+
+            throw new RestException(SC_TOO_MANY_REQUESTS, RestException.RATE_LIMITED, "Too many requests, retry in " + seconds + " seconds", seconds);
+        }
+    }
+
+    private @Nullable String verify(@Nonnull String method, @Nonnull HttpServletRequest request, Map<String,Object> headers) throws RestException {
         Number timestamp = (Number)headers.get(TIMESTAMP);
         String apiKey = (String)headers.get(API_KEY);
         String signature = (String)headers.get(SIGNATURE);
@@ -94,7 +240,8 @@ public class RestApi extends HttpServlet {
             throw new RestException(HttpServletResponse.SC_FORBIDDEN, RestException.NO_SIGNATURE, "No signature was provided for authentication");
         }
         try {
-            ControllerRelay relay = ControllerRelay.getRelay(apiKey);
+            // credentials come from the database, never from the shared cache, which other nodes cannot invalidate
+            ControllerRelay relay = ControllerRelay.loadRelay(apiKey);
             String userId = null;
             String customSalt;
             String secret;
@@ -141,8 +288,194 @@ public class RestApi extends HttpServlet {
         }
     }
 
+    @Override
+    public void destroy() {
+        AsyncDispatcher d = dispatcher;
+
+        dispatcher = null;
+        if( d != null ) {
+            d.shutdown();
+        }
+        CommandLifecycleService sweeper = commandSweeper;
+
+        commandSweeper = null;
+        if( sweeper != null ) {
+            sweeper.stop();
+        }
+        super.destroy();
+    }
+
+    private void dispatch(@Nonnull String method, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse response) throws IOException {
+        MeteredResponse resp = new MeteredResponse(response);
+        RequestMetrics m = new RequestMetrics(request(req), method);
+        AsyncDispatcher d = dispatcher;
+
+        req.setAttribute(RequestMetrics.ATTRIBUTE, m);
+        resp.setHeader(REQUEST_ID, m.getRequestId());
+        if( d == null || !req.isAsyncSupported() ) {
+            process(method, req, resp);
+            return;
+        }
+        AsyncContext context = req.startAsync(req, resp);
+
+        // deadlines are enforced by the dispatcher so parked requests are not killed by the container
+        context.setTimeout(0L);
+        AsyncRequest request = new AsyncRequest(method, context, req, resp, System.currentTimeMillis() + d.getRequestTimeout());
+
+        req.setAttribute(AsyncRequest.ATTRIBUTE, request);
+        d.dispatch(request);
+    }
+
     @Override
     public void doDelete(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException, ServletException {
+        dispatch("DELETE", req, resp);
+    }
+
+    @Override
+    public void doGet(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException, ServletException {
+        dispatch("GET", req, resp);
+    }
+
+    @Override
+    public void doHead(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException, ServletException {
+        dispatch("HEAD", req, resp);
+    }
+
+    @Override
+    public void doPost(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
+        dispatch("POST", req, resp);
+    }
+
+    @Override
+    public void doPut(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException, ServletException {
+        dispatch("PUT", req, resp);
+    }
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        if( "true".equalsIgnoreCase(getInitParameter(ASYNC_ENABLED)) ) {
+            int threads = getIntParameter(ASYNC_THREADS, 32);
+            int queueSize = getIntParameter(ASYNC_QUEUE, 256);
+            long timeout = getIntParameter(REQUEST_TIMEOUT, 30000);
+
+            maxWait = getIntParameter(MAX_WAIT, 55000);
+            dispatcher = new AsyncDispatcher(this, threads, queueSize, timeout, getIntParameter(PARK_RECHECK, 5000));
+        }
+        metricsEnabled = "true".equalsIgnoreCase(getInitParameter(METRICS_ENABLED));
+        metricsKey = getInitParameter(METRICS_KEY);
+        relayLimiter = createLimiter(RELAY_RATE, 2d, RELAY_BURST, 20);
+        userLimiter = createLimiter(USER_RATE, 10d, USER_BURST, 50);
+        anonymousLimiter = createLimiter(ANONYMOUS_RATE, 1d, ANONYMOUS_BURST, 10);
+        if( relayLimiter == null || userLimiter == null ) {
+            keyLimiter = null;
+        }
+        else {
+            // an address gets the allowance of the more generous class until its key is verified
+            keyLimiter = new RateLimiter(Math.max(getRate(RELAY_RATE, 2d), getRate(USER_RATE, 10d)), Math.max(getIntParameter(RELAY_BURST, 20), getIntParameter(USER_BURST, 50)));
+        }
+
+        int max = getIntParameter(MAX_CONCURRENT, 128);
+
+        concurrency = (max > 0 ? new Semaphore(max) : null);
+
+        int sweep = getIntParameter(COMMAND_SWEEP, 60000);
+
+        if( sweep > 0 ) {
+            long retention = getIntParameter(COMMAND_RETENTION, 168) * 3600000L;
+
+            commandSweeper = new CommandLifecycleService(sweep, retention, getIntParameter(COMMAND_BATCH_SIZE, 100));
+            commandSweeper.start();
+        }
+        // without the sweeper the waiting counts are never rebuilt, so relays they show as idle are checked directly
+        PendingCommand.setWaitingCountMaxAge(sweep > 0 ? 2L * sweep : 0L);
+        try {
+            PendingCommand.loadWaitingCounts();
+        }
+        catch( PersistenceException e ) {
+            // the counts load on first use instead
+            logger.warn("Unable to load waiting command counts: " + e.getMessage());
+        }
+    }
+
+    private @Nullable RateLimiter createLimiter(@Nonnull String rateParameter, double defaultRate, @Nonnull String burstParameter, int defaultBurst) throws ServletException {
+        double rate = getRate(rateParameter, defaultRate);
+
+        if( rate <= 0d ) {
+            return null;
+        }
+        return new RateLimiter(rate, getIntParameter(burstParameter, defaultBurst));
+    }
+
+    private double getRate(@Nonnull String rateParameter, double defaultRate) throws ServletException {
+        String value = getInitParameter(rateParameter);
+
+        try {
+            return (value == null || value.trim().equals("") ? defaultRate : Double.parseDouble(value.trim()));
+        }
+        catch( NumberFormatException e ) {
+            throw new ServletException("Invalid value for " + rateParameter + ": " + value);
+        }
+    }
+
+    void process(@Nonnull String method, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
+        RequestMetrics m = RequestMetrics.getInstance(req);
+        Semaphore permits = concurrency;
+        long start = System.nanoTime();
+
+        if( m != null ) {
+            MDC.put("requestId", m.getRequestId());
+            m.setParked(false);
+            m.setRoute(getRoute(req));
+        }
+        // shed load up front rather than let every request queue up behind a slow database
+        if( permits != null && !permits.tryAcquire() ) {
+            try {
+                sendError(resp, new RestException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, RestException.SERVER_BUSY, "The server is too busy to accept this request", 1L));
+            }
+            finally {
+                record(req, resp);
+                MDC.remove("requestId");
+            }
+            return;
+        }
+        RequestScope.begin();
+        try {
+            if( method.equals("GET") ) {
+                processGet(req, resp);
+            }
+            else if( method.equals("PUT") ) {
+                processPut(req, resp);
+            }
+            else if( method.equals("POST") ) {
+                processPost(req, resp);
+            }
+            else if( method.equals("DELETE") ) {
+                processDelete(req, resp);
+            }
+            else if( method.equals("HEAD") ) {
+                processHead(req, resp);
+            }
+            else {
+                sendError(resp, new RestException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, RestException.INVALID_OPERATION, method + " is not supported"));
+            }
+        }
+        finally {
+            RequestScope.end();
+            if( permits != null ) {
+                permits.release();
+            }
+            if( m != null ) {
+                m.addHandler(System.nanoTime() - start);
+                if( !m.isParked() ) {
+                    record(req, resp);
+                }
+            }
+            MDC.remove("requestId");
+        }
+    }
+
+    private void processDelete(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
         String requestId = request(req);
 
         try {
@@ -165,30 +498,15 @@ public class RestApi extends HttpServlet {
             }
         }
         catch( RestException e ) {
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", e.getStatus());
-            error.put("message", e.getMessage());
-            error.put("description", e.getDescription());
-            resp.setStatus(e.getStatus());
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, e);
         }
         catch( Throwable t ) {
             t.printStackTrace();
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            error.put("message", RestException.INTERNAL_ERROR);
-            error.put("description", t.getMessage());
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, new RestException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, RestException.INTERNAL_ERROR, String.valueOf(t.getMessage())));
         }
     }
 
-    @Override
-    public void doGet(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException, ServletException {
+    private void processGet(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
         String requestId = request(req);
 
         try {
@@ -199,6 +517,17 @@ public class RestApi extends HttpServlet {
                 // TODO: documentation
                 throw new RestException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, RestException.INVALID_OPERATION, "No GET is allowed against /");
             }
+            else if( path[0].equals("metrics") && metricsEnabled ) {
+                String key = metricsKey;
+
+                if( key != null && !key.equals(req.getHeader(METRICS_KEY_HEADER)) ) {
+                    throw new RestException(HttpServletResponse.SC_FORBIDDEN, RestException.INVALID_KEY, "Invalid metrics key");
+                }
+                resp.setStatus(HttpServletResponse.SC_OK);
+                resp.setContentType("text/plain; version=0.0.4");
+                resp.getWriter().print(metrics.toPrometheus(dispatcher));
+                resp.getWriter().flush();
+            }
             else if( apiCalls.containsKey(path[0]) ) {
                 Map<String,Object> parameters = parseParameters(req);
                 APICall call = apiCalls.get(path[0]);
@@ -212,30 +541,15 @@ public class RestApi extends HttpServlet {
             }
         }
         catch( RestException e ) {
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", e.getStatus());
-            error.put("message", e.getMessage());
-            error.put("description", e.getDescription());
-            resp.setStatus(e.getStatus());
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, e);
         }
         catch( Throwable t ) {
             t.printStackTrace();
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            error.put("message", RestException.INTERNAL_ERROR);
-            error.put("description", t.getMessage());
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, new RestException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, RestException.INTERNAL_ERROR, String.valueOf(t.getMessage())));
         }
     }
 
-    @Override
-    public void doHead(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException, ServletException {
+    private void processHead(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
         String requestId = request(req);
 
         try {
@@ -259,30 +573,15 @@ public class RestApi extends HttpServlet {
             }
         }
         catch( RestException e ) {
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", e.getStatus());
-            error.put("message", e.getMessage());
-            error.put("description", e.getDescription());
-            resp.setStatus(e.getStatus());
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, e);
         }
         catch( Throwable t ) {
             t.printStackTrace();
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            error.put("message", RestException.INTERNAL_ERROR);
-            error.put("description", t.getMessage());
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, new RestException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, RestException.INTERNAL_ERROR, String.valueOf(t.getMessage())));
         }
     }
 
-    @Override
-    public void doPost(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
+    private void processPost(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
         String requestId = request(req);
 
         try {
@@ -292,7 +591,15 @@ public class RestApi extends HttpServlet {
             if( path.length < 1 ) {
                 throw new RestException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, RestException.INVALID_OPERATION, "No POST is allowed against /");
             }
-            else if( path[0].equals("token") ) {
+            if( path[0].equals("token") && headers.get(API_KEY) != null ) {
+                // token refreshes are signed relay traffic, and relays behind one address must not share a bucket
+                limit(relayLimiter, "relay:" + headers.get(API_KEY));
+            }
+            else if( path[0].equals("token") || path[0].equals("relay") || path[0].equals("user") ) {
+                // these calls are not signed with an API key, so the best we can do is limit by address
+                limit(anonymousLimiter, "anonymous:" + req.getRemoteAddr());
+            }
+            if( path[0].equals("token") ) {
                 String token = generateToken("POST", req, headers);
                 HashMap<String,Object> json = new HashMap<String, Object>();
 
@@ -369,30 +676,15 @@ public class RestApi extends HttpServlet {
             }
         }
         catch( RestException e ) {
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", e.getStatus());
-            error.put("message", e.getMessage());
-            error.put("description", e.getDescription());
-            resp.setStatus(e.getStatus());
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, e);
         }
         catch( Throwable t ) {
             t.printStackTrace();
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            error.put("message", RestException.INTERNAL_ERROR);
-            error.put("description", t.getMessage());
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, new RestException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, RestException.INTERNAL_ERROR, String.valueOf(t.getMessage())));
         }
     }
 
-    @Override
-    public void doPut(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException, ServletException {
+    private void processPut(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) throws IOException {
         String requestId = request(req);
 
         try {
@@ -415,25 +707,11 @@ public class RestApi extends HttpServlet {
             }
         }
         catch( RestException e ) {
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", e.getStatus());
-            error.put("message", e.getMessage());
-            error.put("description", e.getDescription());
-            resp.setStatus(e.getStatus());
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, e);
         }
         catch( Throwable t ) {
             t.printStackTrace();
-            HashMap<String,Object> error = new HashMap<String, Object>();
-
-            error.put("code", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            error.put("message", RestException.INTERNAL_ERROR);
-            error.put("description", t.getMessage());
-            resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            resp.getWriter().println((new JSONObject(error)).toString());
-            resp.getWriter().flush();
+            sendError(resp, new RestException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, RestException.INTERNAL_ERROR, String.valueOf(t.getMessage())));
         }
     }
 
@@ -450,7 +728,7 @@ public class RestApi extends HttpServlet {
             throw new RestException(HttpServletResponse.SC_FORBIDDEN, "No signature was provided for authentication");
         }
         try {
-            ControllerRelay relay = ControllerRelay.getRelay(apiKey);
+            ControllerRelay relay = ControllerRelay.loadRelay(apiKey);
             String secret, customSalt;
 
             if( relay == null ) {
@@ -498,9 +776,47 @@ public class RestApi extends HttpServlet {
                 throw new RestException(HttpServletResponse.SC_BAD_REQUEST, "Timestamps are the UNIX timestamp as the number of seconds since the Unix epoch.");
             }
         }
+        if( key.equalsIgnoreCase(WAIT) ) {
+            try {
+                return Long.parseLong(values.nextElement());
+            }
+            catch( NumberFormatException e ) {
+                throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_PARAMETER, "The wait header is the number of seconds the client will wait for new work.");
+            }
+        }
         return values;
     }
 
+    private int getIntParameter(@Nonnull String name, int defaultValue) throws ServletException {
+        String value = getInitParameter(name);
+
+        if( value == null || value.trim().equals("") ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            throw new ServletException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    private @Nonnull String getRoute(@Nonnull HttpServletRequest req) {
+        if( req.getPathInfo() == null ) {
+            return "other";
+        }
+        String[] path = getPath(req);
+
+        if( path.length < 1 ) {
+            return "root";
+        }
+        // keep the label set bounded no matter what clients send us
+        if( apiCalls.containsKey(path[0]) || path[0].equals("token") || path[0].equals("user") || path[0].equals("metrics") ) {
+            return path[0];
+        }
+        return "other";
+    }
+
     private String[] getPath(@Nonnull HttpServletRequest req) {
         String p = req.getPathInfo().toLowerCase();
 
@@ -541,9 +857,49 @@ public class RestApi extends HttpServlet {
         return new HashMap<String, Object>();
     }
 
-    private String request(HttpServletRequest req) {
-        // TODO: implement request tracking
-        return UUID.randomUUID().toString();
+    /**
+     * Records the completed request in the API metrics. Safe to call more than once for a request, only the first
+     * call counts.
+     * @param req the request that completed
+     * @param resp the response that was sent
+     */
+    void record(@Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp) {
+        RequestMetrics m = RequestMetrics.getInstance(req);
+
+        if( m == null || !m.markRecorded() ) {
+            return;
+        }
+        long responseBytes = (resp instanceof MeteredResponse ? ((MeteredResponse)resp).getBytesWritten() : 0L);
+
+        metrics.record(m, resp.getStatus(), Math.max(0, req.getContentLength()), responseBytes);
+    }
+
+    private @Nonnull String request(@Nonnull HttpServletRequest req) {
+        RequestMetrics m = RequestMetrics.getInstance(req);
+
+        if( m != null ) {
+            return m.getRequestId();
+        }
+        String id = req.getHeader(REQUEST_ID);
+
+        if( id != null && requestIdPattern.matcher(id).matches() ) {
+            return id;
+        }
+        return IdGenerator.nextId();
+    }
+
+    void sendError(@Nonnull HttpServletResponse resp, @Nonnull RestException e) throws IOException {
+        HashMap<String,Object> error = new HashMap<String, Object>();
+
+        error.put("code", e.getStatus());
+        error.put("message", e.getMessage());
+        error.put("description", e.getDescription());
+        if( e.getRetryAfter() > 0L ) {
+            resp.setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+        }
+        resp.setStatus(e.getStatus());
+        resp.getWriter().println((new JSONObject(error)).toString());
+        resp.getWriter().flush();
     }
 
 }
@@ -28,6 +28,7 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class RestException extends Exception {
     static public final String BAD_TOKEN            = "BadToken";
+    static public final String COMMAND_FINISHED     = "CommandFinished";
     static public final String INCOMPLETE_HEADERS   = "IncompleteHeaders";
     static public final String INTERNAL_ERROR       = "InternalError";
     static public final String INVALID_ACTION       = "InvalidAction";
@@ -47,10 +48,14 @@ public class RestException extends Exception {
     static public final String NO_SUCH_USER         = "NoSuchUser";
     static public final String NOT_PAIRED           = "NotPaired";
     static public final String PAIRING_FAILURE      = "PairingFailure";
+    static public final String RATE_LIMITED         = "RateLimited";
     static public final String RELAY_NOT_ALLOWED    = "RelayNotAllowed";
+    static public final String REQUEST_TIMEOUT      = "RequestTimeout";
+    static public final String SERVER_BUSY          = "ServerBusy";
     static public final String USER_NOT_ALLOWED     = "UserNotAllowed";
 
     private String    description;
+    private long      retryAfter;
     private int       status;
 
     public RestException(@Nonnull Throwable t ) {
@@ -70,10 +75,31 @@ public class RestException extends Exception {
         this.description = description;
     }
 
+    /**
+     * Constructs an exception for a request the client should retry later.
+     * @param status the HTTP status (429 or 503)
+     * @param message the error code
+     * @param description a human readable description
+     * @param retryAfter the number of seconds the client should wait before retrying
+     */
+    public RestException(@Nonnegative int status, @Nonnull String message, @Nonnull String description, @Nonnegative long retryAfter) {
+        super(message);
+        this.status = status;
+        this.description = description;
+        this.retryAfter = retryAfter;
+    }
+
     public @Nonnull String getDescription() {
         return description;
     }
 
+    /**
+     * @return the number of seconds the client should wait before retrying, 0 if the request should not be retried as is
+     */
+    public @Nonnegative long getRetryAfter() {
+        return retryAfter;
+    }
+
     public @Nonnegative int getStatus() {
         return status;
     }
@@ -16,17 +16,19 @@
 
 package com.imaginary.home.cloud.api.call;
 
+import com.imaginary.home.cloud.CommandQuery;
 import com.imaginary.home.cloud.ControllerRelay;
 import com.imaginary.home.cloud.Location;
 import com.imaginary.home.cloud.PendingCommand;
 import com.imaginary.home.cloud.PendingCommandState;
+import com.imaginary.home.cloud.ResourceVersions;
+import com.imaginary.home.cloud.ResultPage;
 import com.imaginary.home.cloud.api.APICall;
 import com.imaginary.home.cloud.api.RestApi;
 import com.imaginary.home.cloud.api.RestException;
 import com.imaginary.home.cloud.device.Device;
 import com.imaginary.home.cloud.user.User;
 import org.dasein.persist.PersistenceException;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -113,24 +115,27 @@ public class CommandCall extends APICall {
                 for( PendingCommand cmd : PendingCommand.getCommandsToSend(relay, true) ) {
                     list.add(toJSON(cmd));
                 }
+                Number wait = (Number)headers.get(RestApi.WAIT);
+
+                if( list.isEmpty() && wait != null && RestApi.park(req, relay.getControllerRelayId(), wait.longValue() * 1000L) ) {
+                    // catch anything queued between the claim above and parking
+                    if( PendingCommand.hasCommands(relay) ) {
+                        RestApi.wake(relay.getControllerRelayId());
+                    }
+                    return;
+                }
                 hasCommands = PendingCommand.hasCommands(relay);
             }
             else {
+                String locationId = req.getParameter("locationId");
                 User user = User.getUserByUserId(userId);
 
                 if( user == null ) {
                     throw new RestException(HttpServletResponse.SC_FORBIDDEN, RestException.NO_SUCH_USER, "Invalid user access to location");
                 }
-                String locationId = req.getParameter("locationId");
-                Collection<ControllerRelay> relays;
+                Location location = null;
 
-                if( locationId == null ) {
-                    relays = new ArrayList<ControllerRelay>();
-                    for( Location location : user.getLocations() ) {
-                        relays.addAll(ControllerRelay.findRelaysInLocation(location));
-                    }
-                }
-                else {
+                if( locationId != null ) {
                     boolean mine = false;
 
                     for( String lid : user.getLocationIds() ) {
@@ -139,31 +144,84 @@ public class CommandCall extends APICall {
                             break;
                         }
                     }
-                    Location location = Location.getLocation(locationId);
-
+                    location = Location.getLocation(locationId);
                     if( location == null || (!mine && !userId.equals(location.getOwnerId())) ) {
                         throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_PARAMETER, "No such location: " + locationId);
                     }
+                }
+                // access is settled before the ETag so a lost user or location never gets a 304
+                String scope = (locationId == null ? ResourceVersions.ALL : locationId);
+                String etag = ResourceVersions.toETag(userId, req.getQueryString(), ResourceVersions.getVersion(ResourceVersions.USER, userId), ResourceVersions.getVersion(ResourceVersions.COMMAND, scope));
+
+                if( isNotModified(req, resp, etag) ) {
+                    return;
+                }
+                Collection<ControllerRelay> relays;
+
+                if( location == null ) {
+                    relays = ControllerRelay.findRelaysInLocations(user.getLocations());
+                }
+                else {
                     relays = ControllerRelay.findRelaysInLocation(location);
                 }
-                for( ControllerRelay relay : relays ) {
-                    for( PendingCommand cmd : PendingCommand.getCommands(relay) ) {
-                        list.add(toJSON(cmd));
-                    }
+                ResultPage<PendingCommand> page = PendingCommand.findCommands(relays, toQuery(req));
+
+                for( PendingCommand cmd : page.getItems() ) {
+                    list.add(toJSON(cmd));
+                }
+                if( page.getNextCursor() != null ) {
+                    resp.setHeader(RestApi.NEXT_CURSOR, page.getNextCursor());
                 }
             }
             if( hasCommands != null ) {
                 resp.setHeader("x-imaginary-has-commands", String.valueOf(hasCommands));
             }
-            resp.setStatus(HttpServletResponse.SC_OK);
-            resp.getWriter().println((new JSONArray(list)).toString());
-            resp.getWriter().flush();
+            writeJSON(req, resp, HttpServletResponse.SC_OK, list);
         }
         catch( PersistenceException e ) {
             throw new RestException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, RestException.INTERNAL_ERROR, e.getMessage());
         }
     }
 
+    private @Nonnull CommandQuery toQuery(@Nonnull HttpServletRequest req) throws RestException {
+        CommandQuery query = new CommandQuery();
+        String cursor = req.getParameter("cursor");
+        String state = req.getParameter("state");
+
+        if( cursor != null ) {
+            String[] keys = ResultPage.decodeCursor(cursor, 2);
+            boolean valid = (keys != null);
+
+            if( valid ) {
+                try {
+                    Long.parseLong(keys[0]);
+                }
+                catch( NumberFormatException e ) {
+                    valid = false;
+                }
+            }
+            if( !valid ) {
+                throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_PARAMETER, "Invalid cursor: " + cursor);
+            }
+            query.setCursor(cursor);
+        }
+        if( state != null ) {
+            try {
+                query.setState(PendingCommandState.valueOf(state.toUpperCase()));
+            }
+            catch( IllegalArgumentException e ) {
+                throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_PARAMETER, "Invalid state: " + state);
+            }
+        }
+        query.setLimit(getIntParameter(req, "limit", CommandQuery.DEFAULT_LIMIT));
+        query.setSince(getLongParameter(req, "since"));
+        query.setUntil(getLongParameter(req, "until"));
+        query.setIssuedBy(req.getParameter("issuedBy"));
+        query.setGroupId(req.getParameter("groupId"));
+        query.setDeviceId(req.getParameter("deviceId"));
+        return query;
+    }
+
     @Override
     public void put(@Nonnull String requestId, @Nullable String userId, @Nonnull String[] path, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull Map<String,Object> headers, @Nonnull Map<String,Object> parameters) throws RestException, IOException {
         if( userId != null ) {
@@ -203,7 +261,9 @@ public class CommandCall extends APICall {
                 String errorMessage = (object.has("errorMessage") ? object.getString("errorMessage") : null);
                 ControllerRelay relay = ControllerRelay.getRelay(cmd.getRelayId());
 
-                cmd.update(PendingCommandState.EXECUTED, result, errorMessage);
+                if( !cmd.update(PendingCommandState.EXECUTED, result, errorMessage) ) {
+                    throw new RestException(HttpServletResponse.SC_CONFLICT, RestException.COMMAND_FINISHED, "The command " + commandId + " has already finished");
+                }
 
                 if( relay != null ) {
                     resp.setHeader("x-imaginary-has-commands", String.valueOf(PendingCommand.hasCommands(relay)));
@@ -19,10 +19,13 @@ package com.imaginary.home.cloud.api.call;
 import com.imaginary.home.cloud.ControllerRelay;
 import com.imaginary.home.cloud.Location;
 import com.imaginary.home.cloud.PendingCommand;
+import com.imaginary.home.cloud.ResourceVersions;
+import com.imaginary.home.cloud.ResultPage;
 import com.imaginary.home.cloud.api.APICall;
 import com.imaginary.home.cloud.api.RestApi;
 import com.imaginary.home.cloud.api.RestException;
 import com.imaginary.home.cloud.device.Device;
+import com.imaginary.home.cloud.device.DeviceType;
 import com.imaginary.home.cloud.device.Light;
 import com.imaginary.home.cloud.device.PoweredDevice;
 import com.imaginary.home.cloud.user.User;
@@ -31,7 +34,6 @@ import org.apache.log4j.Logger;
 import org.dasein.persist.PersistenceException;
 import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -47,6 +49,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * [Class Documentation]
@@ -57,6 +60,9 @@ import java.util.Map;
 public class DeviceCall extends APICall {
     static private final Logger logger = Logger.getLogger(DeviceCall.class);
 
+    static private final int DEFAULT_LIMIT = 100;
+    static private final int MAXIMUM_LIMIT = 1000;
+
     @Override
     public void get(@Nonnull String requestId, @Nullable String userId, @Nonnull String[] path, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull Map<String,Object> headers, @Nonnull Map<String,Object> parameters) throws RestException, IOException {
         if( logger.isDebugEnabled() ) {
@@ -68,15 +74,20 @@ public class DeviceCall extends APICall {
             if( logger.isDebugEnabled() ) {
                 logger.debug("deviceId=" + deviceId);
             }
+            String principal = (userId != null ? userId : (String)headers.get(RestApi.API_KEY));
+
             if( deviceId != null ) {
+                String etag = ResourceVersions.toETag(principal, deviceId, ResourceVersions.getVersion(ResourceVersions.DEVICE, ResourceVersions.ALL));
+
+                if( isNotModified(req, resp, etag) ) {
+                    return;
+                }
                 Device device = Device.getDevice(deviceId);
 
                 if( device == null ) {
                     throw new RestException(HttpServletResponse.SC_NOT_FOUND, RestException.NO_SUCH_OBJECT, "The device " + deviceId + " does not exist.");
                 }
-                resp.setStatus(HttpServletResponse.SC_OK);
-                resp.getWriter().println((new JSONObject(toJSON(device))).toString());
-                resp.getWriter().flush();
+                writeJSON(req, resp, HttpServletResponse.SC_OK, toJSON(device));
             }
             else {
                 String locationId = req.getParameter("locationId");
@@ -102,6 +113,33 @@ public class DeviceCall extends APICall {
                         throw new RestException(HttpServletResponse.SC_FORBIDDEN, RestException.INVALID_ACTION, "You do not have access to those resources");
                     }
                 }
+                if( user != null && location != null && !location.getOwnerId().equals(user.getUserId()) ) {
+                    boolean allowed = false;
+
+                    for( String id : user.getLocationIds() ) {
+                        if( id.equals(location.getLocationId()) ) {
+                            allowed = true;
+                            break;
+                        }
+                    }
+                    if( !allowed ) {
+                        throw new RestException(HttpServletResponse.SC_FORBIDDEN, RestException.INVALID_ACTION, "You do not have access to those resources");
+                    }
+                }
+                // access is settled before the ETag so a lost user or relay never gets a 304
+                String etag;
+
+                if( userId == null ) {
+                    etag = ResourceVersions.toETag(principal, req.getQueryString(), ResourceVersions.getVersion(ResourceVersions.DEVICE, principal));
+                }
+                else {
+                    String scope = (locationId == null ? ResourceVersions.ALL : locationId);
+
+                    etag = ResourceVersions.toETag(principal, req.getQueryString(), ResourceVersions.getVersion(ResourceVersions.USER, userId), ResourceVersions.getVersion(ResourceVersions.DEVICE, scope));
+                }
+                if( isNotModified(req, resp, etag) ) {
+                    return;
+                }
                 Collection<ControllerRelay> relays;
 
                 if( relay != null ) {
@@ -109,64 +147,52 @@ public class DeviceCall extends APICall {
                 }
                 else {
                     if( location != null ) {
-                        boolean allowed = location.getOwnerId().equals(user.getUserId());
-
-                        if( !allowed ) {
-                            for( String id : user.getLocationIds() ) {
-                                if( id.equals(location.getLocationId()) ) {
-                                    allowed = true;
-                                    break;
-                                }
-                            }
-                            if( !allowed ) {
-                                throw new RestException(HttpServletResponse.SC_FORBIDDEN, RestException.INVALID_ACTION, "You do not have access to those resources");
-                            }
-                        }
                         relays = ControllerRelay.findRelaysInLocation(location);
                     }
                     else {
-                        relays = new ArrayList<ControllerRelay>();
-                        for( Location l : user.getLocations() ) {
-                            relays.addAll(ControllerRelay.findRelaysInLocation(l));
-                        }
+                        relays = ControllerRelay.findRelaysInLocations(user.getLocations());
                     }
 
                 }
                 if( logger.isDebugEnabled() ) {
                     logger.debug("relays=" + relays);
                 }
-                ArrayList<Device> devices = new ArrayList<Device>();
+                Collection<DeviceType> types = DeviceType.list();
 
-                for( ControllerRelay r : relays ) {
-                    if( deviceType == null ) {
-                        devices.addAll(Device.findDevicesForRelay(r));
-                    }
-                    else if( deviceType.equals("powered") ) {
-                        if( includeChildren ) {
-                            PoweredDevice.findPoweredDevicesForRelayWithChildren(r, devices);
-                        }
-                        else {
-                            devices.addAll(PoweredDevice.findPoweredDevicesForRelay(r));
-                        }
-                    }
-                    else if( deviceType.equals("light") ) {
-                        devices.addAll(Light.findPoweredDevicesForRelay(r));
-                    }
-                    else {
+                if( deviceType != null ) {
+                    DeviceType type = DeviceType.getType(deviceType);
+
+                    if( type == null ) {
                         throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_DEVICE_TYPE, "Invalid device type: " + deviceType);
                     }
+                    types = (includeChildren ? DeviceType.listWithChildren(type) : Collections.singletonList(type));
+                }
+                ArrayList<Device> devices = new ArrayList<Device>();
+
+                for( ControllerRelay r : relays ) {
+                    devices.addAll(Device.findDevicesForRelay(r, types));
                 }
                 if( logger.isDebugEnabled() ) {
                     logger.debug("devices=" + devices);
                 }
+                String cursor = req.getParameter("cursor");
+                Collection<Device> results = devices;
+
+                // paging is opt-in so relays and existing clients still get their complete device list
+                if( cursor != null || req.getParameter("limit") != null ) {
+                    ResultPage<Device> page = page(devices, cursor, getIntParameter(req, "limit", DEFAULT_LIMIT));
+
+                    results = page.getItems();
+                    if( page.getNextCursor() != null ) {
+                        resp.setHeader(RestApi.NEXT_CURSOR, page.getNextCursor());
+                    }
+                }
                 ArrayList<Map<String,Object>> list = new ArrayList<Map<String, Object>>();
 
-                for( Device d : devices ) {
+                for( Device d : results ) {
                     list.add(toJSON(d));
                 }
-                resp.setStatus(HttpServletResponse.SC_OK);
-                resp.getWriter().println((new JSONArray(list)).toString());
-                resp.getWriter().flush();
+                writeJSON(req, resp, HttpServletResponse.SC_OK, list);
             }
         }
         catch( PersistenceException e ) {
@@ -174,6 +200,37 @@ public class DeviceCall extends APICall {
         }
     }
 
+    private @Nonnull ResultPage<Device> page(@Nonnull Collection<Device> devices, @Nullable String cursor, int limit) throws RestException {
+        String after = null;
+
+        if( cursor != null ) {
+            String[] keys = ResultPage.decodeCursor(cursor, 1);
+
+            if( keys == null ) {
+                throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_PARAMETER, "Invalid cursor: " + cursor);
+            }
+            after = keys[0];
+        }
+        limit = Math.max(1, Math.min(limit, MAXIMUM_LIMIT));
+        TreeMap<String,Device> page = new TreeMap<String, Device>();
+
+        for( Device d : devices ) {
+            if( after == null || d.getDeviceId().compareTo(after) > 0 ) {
+                page.put(d.getDeviceId(), d);
+                if( page.size() > limit + 1 ) {
+                    page.pollLastEntry();
+                }
+            }
+        }
+        String next = null;
+
+        if( page.size() > limit ) {
+            page.pollLastEntry();
+            next = ResultPage.encodeCursor(page.lastKey());
+        }
+        return new ResultPage<Device>(new ArrayList<Device>(page.values()), next);
+    }
+
     @Override
     public void put(@Nonnull String requestId, @Nullable String userId, @Nonnull String[] path, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull Map<String,Object> headers, @Nonnull Map<String,Object> parameters) throws RestException, IOException {
         try {
@@ -225,14 +282,14 @@ public class DeviceCall extends APICall {
                 json.put("arguments", new HashMap<String,Object>());
                 PendingCommand[] cmds = PendingCommand.queue(userId, p, new String[] { (new JSONObject(json)).toString() }, device);
 
+                RestApi.wake(device.getRelayId());
+
                 ArrayList<Map<String,Object>> list = new ArrayList<Map<String, Object>>();
 
                 for( PendingCommand cmd : cmds ) {
                     list.add(CommandCall.toJSON(cmd));
                 }
-                resp.setStatus(HttpServletResponse.SC_ACCEPTED);
-                resp.getWriter().println((new JSONArray(list)).toString());
-                resp.getWriter().flush();
+                writeJSON(req, resp, HttpServletResponse.SC_ACCEPTED, list);
             }
             /*
             else if( action.equalsIgnoreCase("modify") ) {
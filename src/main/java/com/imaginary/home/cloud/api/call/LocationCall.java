@@ -18,6 +18,7 @@ package com.imaginary.home.cloud.api.call;
 
 import com.imaginary.home.cloud.ControllerRelay;
 import com.imaginary.home.cloud.Location;
+import com.imaginary.home.cloud.ResourceVersions;
 import com.imaginary.home.cloud.api.APICall;
 import com.imaginary.home.cloud.api.RestApi;
 import com.imaginary.home.cloud.api.RestException;
@@ -38,7 +39,6 @@ import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.dasein.persist.PersistenceException;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -66,18 +66,28 @@ public class LocationCall extends APICall {
     public void get(@Nonnull String requestId, @Nullable String userId, @Nonnull String[] path, @Nonnull HttpServletRequest req, @Nonnull HttpServletResponse resp, @Nonnull Map<String,Object> headers, @Nonnull Map<String,Object> parameters) throws RestException, IOException {
         try {
             String locationId = (path.length > 1 ? path[1] : null);
+            String principal = (userId != null ? userId : (String)headers.get(RestApi.API_KEY));
 
             if( locationId != null ) {
+                String etag = ResourceVersions.toETag(principal, locationId, ResourceVersions.getVersion(ResourceVersions.LOCATION, locationId));
+
+                if( isNotModified(req, resp, etag) ) {
+                    return;
+                }
                 Location location = Location.getLocation(locationId);
 
                 if( location == null ) {
                     throw new RestException(HttpServletResponse.SC_NOT_FOUND, RestException.NO_SUCH_OBJECT, "The location " + locationId + " does not exist.");
                 }
-                resp.setStatus(HttpServletResponse.SC_OK);
-                resp.getWriter().println((new JSONObject(toJSON(location))).toString());
-                resp.getWriter().flush();
+                writeJSON(req, resp, HttpServletResponse.SC_OK, toJSON(location));
             }
             else {
+                long membership = (userId == null ? 0L : ResourceVersions.getVersion(ResourceVersions.USER, userId));
+                String etag = ResourceVersions.toETag(principal, membership, ResourceVersions.getVersion(ResourceVersions.LOCATION, ResourceVersions.ALL));
+
+                if( isNotModified(req, resp, etag) ) {
+                    return;
+                }
                 Collection<Location> locations;
 
                 if( userId == null ) {
@@ -113,9 +123,7 @@ public class LocationCall extends APICall {
                 for( Location l : locations ) {
                     list.add(toJSON(l));
                 }
-                resp.setStatus(HttpServletResponse.SC_OK);
-                resp.getWriter().println((new JSONArray(list)).toString());
-                resp.getWriter().flush();
+                writeJSON(req, resp, HttpServletResponse.SC_OK, list);
             }
         }
         catch( PersistenceException e ) {
@@ -164,9 +172,7 @@ public class LocationCall extends APICall {
 
             user.grant(location);
 
-            resp.setStatus(HttpServletResponse.SC_CREATED);
-            resp.getWriter().println((new JSONObject(toJSON(location))).toString());
-            resp.getWriter().flush();
+            writeJSON(req, resp, HttpServletResponse.SC_CREATED, toJSON(location));
         }
         catch( JSONException e ) {
             throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_JSON, "Invalid JSON in request");
@@ -216,9 +222,7 @@ public class LocationCall extends APICall {
                 String pairingCode = location.readyForPairing();
 
                 json.put("pairingCode", pairingCode);
-                resp.setStatus(HttpServletResponse.SC_OK);
-                resp.getWriter().println((new JSONObject(json)).toString());
-                resp.getWriter().flush();
+                writeJSON(req, resp, HttpServletResponse.SC_OK, json);
             }
             else if( action.equalsIgnoreCase("modify") ) {
                 if( object == null ) {
@@ -19,7 +19,8 @@ package com.imaginary.home.cloud.api.call;
 import com.imaginary.home.cloud.Configuration;
 import com.imaginary.home.cloud.ControllerRelay;
 import com.imaginary.home.cloud.PendingCommand;
-import com.imaginary.home.cloud.device.Device;
+import com.imaginary.home.cloud.ResourceVersions;
+import com.imaginary.home.cloud.device.DeviceReconciler;
 import com.imaginary.home.cloud.Location;
 import com.imaginary.home.cloud.api.APICall;
 import com.imaginary.home.cloud.api.RestException;
@@ -36,6 +37,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 
 /**
@@ -88,9 +90,7 @@ public class RelayCall extends APICall {
 
             json.put("apiKeyId", relay.getControllerRelayId());
             json.put("apiKeySecret", Configuration.decrypt(location.getLocationId(), relay.getApiKeySecret()));
-            resp.setStatus(HttpServletResponse.SC_CREATED);
-            resp.getWriter().println((new JSONObject(json)).toString());
-            resp.getWriter().flush();
+            writeJSON(req, resp, HttpServletResponse.SC_CREATED, json);
         }
         catch( JSONException e ) {
             throw new RestException(HttpServletResponse.SC_BAD_REQUEST, RestException.INVALID_JSON, "Invalid JSON in body");
@@ -175,32 +175,22 @@ public class RelayCall extends APICall {
                 JSONObject r = state.getJSONObject("relay");
 
                 if( r.has("devices") ) {
-                    HashMap<String,Device> found = new HashMap<String, Device>();
-                    JSONArray devices = r.getJSONArray("devices");
+                    HashSet<String> incomplete = new HashSet<String>();
 
-                    for( int i=0; i<devices.length(); i++ ) {
-                        JSONObject device = devices.getJSONObject(i);
+                    // a system that did not answer the relay in time is reported with a status other than ok
+                    if( r.has("systems") ) {
+                        JSONArray systems = r.getJSONArray("systems");
 
-                        if( !device.has("deviceId") || device.isNull("deviceId") || !device.has("deviceType") || device.isNull("deviceType") || !device.has("systemId") || device.isNull("systemId") ) {
-                            continue;
-                        }
-                        String id = device.getString("deviceId");
-                        String t = device.getString("deviceType");
-                        String systemId = device.getString("systemId");
-                        Device d = Device.getDevice(t, relay, systemId, id);
+                        for( int i=0; i<systems.length(); i++ ) {
+                            JSONObject s = systems.getJSONObject(i);
 
-                        if( d == null ) {
-                            d = Device.create(relay, t, device);
-                        }
-                        else {
-                            d.update(device);
+                            if( s.has("systemId") && !"ok".equals(s.optString("status", "ok")) ) {
+                                incomplete.add(s.getString("systemId"));
+                            }
                         }
-                        found.put(d.getDeviceId(), d);
                     }
-                    for( Device d : Device.findDevicesForRelay(relay) ) {
-                        if( !found.containsKey(d.getDeviceId()) ) {
-                            d.remove();
-                        }
+                    if( new DeviceReconciler(relay).reconcile(r.getJSONArray("devices"), incomplete) ) {
+                        ResourceVersions.deviceChanged(relay.getControllerRelayId());
                     }
                 }
             }
@@ -17,6 +17,8 @@
 package com.imaginary.home.cloud.device;
 
 import com.imaginary.home.cloud.ControllerRelay;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import org.dasein.persist.DataIntegrityException;
 import org.dasein.persist.PersistenceException;
 import org.dasein.persist.annotations.Index;
@@ -30,6 +32,7 @@ import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.UUID;
 
@@ -40,40 +43,94 @@ import java.util.UUID;
  */
 public abstract class Device implements CachedItem {
     static public @Nonnull Device create(@Nonnull ControllerRelay relay, @Nonnull String deviceType, @Nonnull JSONObject json) throws JSONException, PersistenceException {
-        if( deviceType.equals("powered") ) {
-            return PoweredDevice.createPoweredDevice(relay, json);
+        StorageTransaction xaction = Storage.getInstance().begin();
+
+        try {
+            Device d = create(xaction, relay, deviceType, json);
+
+            xaction.commit();
+            return d;
+        }
+        finally {
+            xaction.rollback();
         }
-        else if( deviceType.equals("light") ) {
-            return Light.createLight(relay, json);
+    }
+
+    static @Nonnull Device create(@Nonnull StorageTransaction xaction, @Nonnull ControllerRelay relay, @Nonnull String deviceType, @Nonnull JSONObject json) throws JSONException, PersistenceException {
+        DeviceType type = DeviceType.getType(deviceType);
+
+        if( type == null ) {
+            throw new PersistenceException("No such device type: " + deviceType);
         }
-        throw new PersistenceException("No such device type: " + deviceType);
+        Device d = type.create(xaction, relay, json);
+
+        DeviceIndex.index(xaction, d);
+        return d;
     }
 
     static public @Nonnull Collection<Device> findDevicesForRelay(@Nonnull ControllerRelay relay) throws PersistenceException {
-        System.out.println("Finding all devices for " + relay.getControllerRelayId());
+        return findDevicesForRelay(relay, DeviceType.list());
+    }
+
+    /**
+     * Lists the devices of the specified types belonging to a relay. The device index is consulted first so only
+     * the tables of types the relay actually has are queried. A type the index knows nothing about for the relay is
+     * searched and backfilled once, so devices stored before the index existed are never left out.
+     * @param relay the relay whose devices are being listed
+     * @param types the device types to include
+     * @return the matching devices
+     * @throws PersistenceException an error occurred loading the devices
+     */
+    static public @Nonnull Collection<Device> findDevicesForRelay(@Nonnull ControllerRelay relay, @Nonnull Collection<DeviceType> types) throws PersistenceException {
         ArrayList<Device> devices = new ArrayList<Device>();
+        HashSet<String> present = new HashSet<String>();
 
-        PoweredDevice.findPoweredDevicesForRelayWithChildren(relay, devices);
+        for( DeviceIndex idx : DeviceIndex.findForRelay(relay) ) {
+            present.add(idx.getDeviceType());
+        }
+        for( DeviceType type : types ) {
+            if( present.contains(type.getName()) ) {
+                devices.addAll(type.findForRelay(relay));
+            }
+            else if( !DeviceIndex.isBackfilled(relay, type) ) {
+                // devices from before the index are only found in the type's own table until they are indexed
+                devices.addAll(DeviceIndex.backfill(relay, type));
+            }
+        }
         return devices;
     }
 
     static public @Nullable Device getDevice(@Nonnull String deviceType, @Nonnull ControllerRelay forRelay, @Nonnull String systemId, @Nonnull String vendorDeviceId) throws PersistenceException {
-        if( deviceType.equals("powered") ) {
-            return PoweredDevice.getPoweredDevice(forRelay, systemId, vendorDeviceId);
+        DeviceType type = DeviceType.getType(deviceType);
+
+        if( type == null ) {
+            return null;
         }
-        else if( deviceType.equals("light") ) {
-            return Light.getLight(forRelay, systemId, vendorDeviceId);
+        for( Device d : type.findForRelay(forRelay) ) {
+            if( d.getHomeAutomationSystemId().equals(systemId) && d.getVendorDeviceId().equals(vendorDeviceId) ) {
+                return d;
+            }
         }
         return null;
     }
 
     static public @Nullable Device getDevice(@Nonnull String deviceId) throws PersistenceException {
-        Device d = Light.getLight(deviceId);
+        DeviceIndex idx = DeviceIndex.getIndex(deviceId);
+
+        if( idx != null ) {
+            DeviceType type = DeviceType.getType(idx.getDeviceType());
 
-        if( d == null ) {
-            d = PoweredDevice.getPoweredDevice(deviceId);
+            return (type == null ? null : type.get(deviceId));
         }
-        return d;
+        for( DeviceType type : DeviceType.list() ) {
+            Device d = type.get(deviceId);
+
+            if( d != null ) {
+                DeviceIndex.backfill(d);
+                return d;
+            }
+        }
+        return null;
     }
 
     static void mapDevice(@Nonnull ControllerRelay relay, @Nonnull JSONObject json, @Nonnull Map<String,Object> state) throws JSONException {
@@ -161,10 +218,23 @@ public abstract class Device implements CachedItem {
         return false;
     }
 
+    /**
+     * Maps the JSON a relay reports for this kind of device onto the persistent state of the device.
+     * @param relay the relay reporting the device
+     * @param json the reported device
+     * @param state the state to populate
+     * @throws JSONException the JSON is not valid for this kind of device
+     */
+    abstract void map(@Nonnull ControllerRelay relay, @Nonnull JSONObject json, @Nonnull Map<String,Object> state) throws JSONException;
+
     public abstract void remove() throws PersistenceException;
 
+    abstract void remove(@Nonnull StorageTransaction xaction) throws PersistenceException;
+
     public abstract void update(@Nonnull JSONObject json) throws PersistenceException;
 
+    abstract void update(@Nonnull StorageTransaction xaction, @Nonnull Map<String,Object> state) throws PersistenceException;
+
     @Override
     public @Nonnull String toString() {
         return (name + " [" + deviceType + "#" + deviceId + "] [" + homeAutomationSystemId + "#" + vendorDeviceId + "]");
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.device;
+
+import com.imaginary.home.cloud.Claim;
+import com.imaginary.home.cloud.ControllerRelay;
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Maps every device ID to its {@link DeviceType} and relay so any device can be loaded with one index lookup
+ * followed by one read from the right table, and a relay's devices can be listed without querying tables for
+ * device types the relay does not have. Index rows are written in the same transaction as the device rows they
+ * describe. Devices stored before the index existed are indexed the first time they are found, relay by relay and
+ * type by type.
+ */
+public class DeviceIndex implements CachedItem {
+    static private EntityStore<DeviceIndex> cache;
+
+    static private @Nonnull EntityStore<DeviceIndex> getCache() throws PersistenceException {
+        if( cache == null ) {
+            cache = Storage.getInstance().getStore(DeviceIndex.class);
+        }
+        return cache;
+    }
+
+    static public @Nonnull Collection<DeviceIndex> findForRelay(@Nonnull ControllerRelay relay) throws PersistenceException {
+        return getCache().find(new Criterion("relayId", relay.getControllerRelayId()));
+    }
+
+    static public @Nullable DeviceIndex getIndex(@Nonnull String deviceId) throws PersistenceException {
+        return getCache().get(deviceId);
+    }
+
+    static void index(@Nonnull StorageTransaction xaction, @Nonnull Device device) throws PersistenceException {
+        HashMap<String,Object> state = new HashMap<String, Object>();
+
+        state.put("deviceId", device.getDeviceId());
+        state.put("deviceType", device.getDeviceType());
+        state.put("relayId", device.getRelayId());
+        getCache().create(xaction, state);
+    }
+
+    /**
+     * Indexes a device stored before the index existed.
+     * @param device the device to index
+     * @throws PersistenceException an error occurred writing the index row
+     */
+    static void backfill(@Nonnull Device device) throws PersistenceException {
+        StorageTransaction xaction = Storage.getInstance().begin();
+
+        try {
+            if( getCache().get(device.getDeviceId()) == null ) {
+                index(xaction, device);
+            }
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+    }
+
+    /**
+     * Indexes every device of the specified type a relay stored before the index existed. A {@link Claim} marking
+     * the relay and type as indexed is written in the same transaction, so once it commits the type's table is only
+     * searched for the relay when the index says the relay has devices of that type.
+     * @param relay the relay whose devices are being indexed
+     * @param type the type of device to index
+     * @return every device of the specified type belonging to the relay
+     * @throws PersistenceException an error occurred indexing the devices
+     */
+    static @Nonnull Collection<? extends Device> backfill(@Nonnull ControllerRelay relay, @Nonnull DeviceType type) throws PersistenceException {
+        Collection<? extends Device> devices = type.findForRelay(relay);
+        String claimId = getBackfillClaim(relay, type);
+        StorageTransaction xaction = Storage.getInstance().begin();
+
+        try {
+            for( Device d : devices ) {
+                if( getCache().get(d.getDeviceId()) == null ) {
+                    index(xaction, d);
+                }
+            }
+            Claim.add(xaction, claimId, relay.getControllerRelayId());
+            xaction.commit();
+        }
+        catch( PersistenceException e ) {
+            // the same backfill committing first on another node is as good as this one committing
+            if( !Claim.exists(claimId) ) {
+                throw e;
+            }
+        }
+        finally {
+            xaction.rollback();
+        }
+        return devices;
+    }
+
+    static private @Nonnull String getBackfillClaim(@Nonnull ControllerRelay relay, @Nonnull DeviceType type) {
+        return "device-index:" + relay.getControllerRelayId() + ":" + type.getName();
+    }
+
+    /**
+     * Checks whether the devices of the specified type a relay stored before the index existed have been indexed.
+     * @param relay the relay to check
+     * @param type the type of device to check
+     * @return true if every device of that type belonging to the relay is in the index
+     * @throws PersistenceException an error occurred checking the index
+     */
+    static boolean isBackfilled(@Nonnull ControllerRelay relay, @Nonnull DeviceType type) throws PersistenceException {
+        return Claim.exists(getBackfillClaim(relay, type));
+    }
+
+    static void unindex(@Nonnull StorageTransaction xaction, @Nonnull Device device) throws PersistenceException {
+        DeviceIndex idx = getCache().get(device.getDeviceId());
+
+        if( idx != null ) {
+            getCache().remove(xaction, idx);
+        }
+    }
+
+    @Index(type=IndexType.PRIMARY)
+    private String deviceId;
+    private String deviceType;
+    @Index(type=IndexType.FOREIGN, identifies=ControllerRelay.class)
+    private String relayId;
+
+    public DeviceIndex() { }
+
+    public @Nonnull String getDeviceId() {
+        return deviceId;
+    }
+
+    public @Nonnull String getDeviceType() {
+        return deviceType;
+    }
+
+    public @Nonnull String getRelayId() {
+        return relayId;
+    }
+
+    @Override
+    public boolean isValidForCache() {
+        return false;
+    }
+}
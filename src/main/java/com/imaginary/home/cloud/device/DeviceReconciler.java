@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.device;
+
+import com.imaginary.home.cloud.ControllerRelay;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
+import org.apache.log4j.Logger;
+import org.dasein.persist.Memento;
+import org.dasein.persist.PersistenceException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings the devices stored for a relay in line with the full device list the relay reports. The stored devices
+ * are loaded once and indexed by home automation system and vendor device ID, each reported device is diffed field
+ * by field against its stored counterpart, and only the devices that were added, changed or removed are written,
+ * all in a single transaction. A relay reporting an unchanged device list costs two queries and no writes.
+ */
+public class DeviceReconciler {
+    static private final Logger logger = Logger.getLogger(DeviceReconciler.class);
+
+    /**
+     * Fields that identify a device rather than describe it and therefore never change on update
+     */
+    static private final String[] IDENTITY = { "deviceId", "homeAutomationSystemId", "relayId", "vendorDeviceId" };
+
+    static private class Change {
+        Device             device;
+        Memento<Device>    memento;
+        Map<String,Object> state;
+
+        Change(@Nonnull Device device, @Nonnull Memento<Device> memento, @Nonnull Map<String,Object> state) {
+            this.device = device;
+            this.memento = memento;
+            this.state = state;
+        }
+    }
+
+    static private @Nonnull String key(@Nonnull String systemId, @Nonnull String vendorDeviceId) {
+        return systemId + "\n" + vendorDeviceId;
+    }
+
+    static private boolean same(Object a, Object b) {
+        return Arrays.deepEquals(new Object[] { a }, new Object[] { b });
+    }
+
+    private int                   created;
+    private int                   removed;
+    private final ControllerRelay relay;
+    private int                   unchanged;
+    private int                   updated;
+
+    public DeviceReconciler(@Nonnull ControllerRelay relay) {
+        this.relay = relay;
+    }
+
+    public @Nonnegative int getCreated() {
+        return created;
+    }
+
+    public @Nonnegative int getRemoved() {
+        return removed;
+    }
+
+    public @Nonnegative int getUnchanged() {
+        return unchanged;
+    }
+
+    public @Nonnegative int getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return true if the last reconciliation wrote anything
+     */
+    public boolean isChanged() {
+        return (created + removed + updated) > 0;
+    }
+
+    /**
+     * Reconciles the stored devices with the specified device list. Entries missing a device ID, device type or
+     * system ID are ignored. A device reported with a different type than the one stored is replaced.
+     * @param devices the complete list of devices reported by the relay
+     * @return true if any device was added, changed or removed
+     * @throws JSONException a reported device could not be mapped
+     * @throws PersistenceException an error occurred writing the changes, in which case nothing was changed
+     */
+    public boolean reconcile(@Nonnull JSONArray devices) throws JSONException, PersistenceException {
+        return reconcile(devices, Collections.<String>emptySet());
+    }
+
+    /**
+     * Reconciles the stored devices with a device list that may be missing the devices of some home automation
+     * systems, such as a system that did not answer the relay in time. Stored devices of those systems are kept
+     * rather than removed, though any of their devices that were reported are still updated, and a reported device
+     * whose type changed still has its old row replaced.
+     * @param devices the devices reported by the relay
+     * @param incompleteSystems the IDs of the systems whose devices may be missing from the list
+     * @return true if any device was added, changed or removed
+     * @throws JSONException a reported device could not be mapped
+     * @throws PersistenceException an error occurred writing the changes, in which case nothing was changed
+     */
+    public boolean reconcile(@Nonnull JSONArray devices, @Nonnull Set<String> incompleteSystems) throws JSONException, PersistenceException {
+        HashMap<String,Device> existing = new HashMap<String, Device>();
+        HashMap<String,Device> remaining = new HashMap<String, Device>();
+
+        for( Device d : Device.findDevicesForRelay(relay) ) {
+            existing.put(key(d.getHomeAutomationSystemId(), d.getVendorDeviceId()), d);
+            if( !incompleteSystems.contains(d.getHomeAutomationSystemId()) ) {
+                remaining.put(d.getDeviceId(), d);
+            }
+        }
+        ArrayList<Map.Entry<String,JSONObject>> creates = new ArrayList<Map.Entry<String, JSONObject>>();
+        ArrayList<Change> updates = new ArrayList<Change>();
+        HashMap<String,JSONObject> reported = new HashMap<String, JSONObject>();
+
+        for( int i=0; i<devices.length(); i++ ) {
+            JSONObject device = devices.getJSONObject(i);
+
+            if( !device.has("deviceId") || device.isNull("deviceId") || !device.has("deviceType") || device.isNull("deviceType") || !device.has("systemId") || device.isNull("systemId") ) {
+                continue;
+            }
+            // the last report for a device wins, as it would have with one update per entry
+            reported.put(key(device.getString("systemId"), device.getString("deviceId")), device);
+        }
+        created = 0;
+        removed = 0;
+        unchanged = 0;
+        updated = 0;
+        for( Map.Entry<String,JSONObject> entry : reported.entrySet() ) {
+            JSONObject device = entry.getValue();
+            String deviceType = device.getString("deviceType");
+            Device d = existing.get(entry.getKey());
+
+            if( d == null || !deviceType.equals(d.getDeviceType()) ) {
+                creates.add(new AbstractMap.SimpleEntry<String, JSONObject>(deviceType, device));
+                if( d != null ) {
+                    // the replaced row goes even when its system is incomplete, or the device would be stored twice
+                    remaining.put(d.getDeviceId(), d);
+                }
+                continue;
+            }
+            remaining.remove(d.getDeviceId());
+
+            Map<String,Object> target = new HashMap<String, Object>();
+
+            d.map(relay, device, target);
+            for( String field : IDENTITY ) {
+                target.remove(field);
+            }
+            Memento<Device> memento = new Memento<Device>(d);
+            Map<String,Object> state = new HashMap<String, Object>();
+
+            memento.save(state);
+            state = memento.getState();
+
+            boolean changed = false;
+
+            for( Map.Entry<String,Object> field : target.entrySet() ) {
+                if( !same(state.get(field.getKey()), field.getValue()) ) {
+                    state.put(field.getKey(), field.getValue());
+                    changed = true;
+                }
+            }
+            if( changed ) {
+                updates.add(new Change(d, memento, state));
+            }
+            else {
+                unchanged++;
+            }
+        }
+        if( creates.isEmpty() && updates.isEmpty() && remaining.isEmpty() ) {
+            return false;
+        }
+        StorageTransaction xaction = Storage.getInstance().begin();
+
+        try {
+            for( Device d : remaining.values() ) {
+                d.remove(xaction);
+            }
+            for( Change change : updates ) {
+                change.device.update(xaction, change.state);
+            }
+            for( Map.Entry<String,JSONObject> entry : creates ) {
+                Device.create(xaction, relay, entry.getKey(), entry.getValue());
+            }
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        for( Change change : updates ) {
+            change.memento.load(change.state);
+        }
+        created = creates.size();
+        removed = remaining.size();
+        updated = updates.size();
+        if( logger.isInfoEnabled() ) {
+            logger.info("Reconciled devices for " + relay.getControllerRelayId() + ": " + created + " created, " + updated + " updated, " + removed + " removed, " + unchanged + " unchanged");
+        }
+        return true;
+    }
+}
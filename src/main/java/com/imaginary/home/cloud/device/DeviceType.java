@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.device;
+
+import com.imaginary.home.cloud.ControllerRelay;
+import com.imaginary.home.cloud.persist.StorageTransaction;
+import org.dasein.persist.PersistenceException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/**
+ * Registry of the kinds of devices the cloud service stores. Each type knows how to create, load and list its own
+ * devices, so code handling devices generically resolves the type once (usually from the {@link DeviceIndex}) and
+ * goes straight to the right table instead of trying each device class in turn. Types are listed in registration
+ * order, most specific first.
+ */
+public abstract class DeviceType {
+    static private final LinkedHashMap<String,DeviceType> types = new LinkedHashMap<String, DeviceType>();
+
+    static {
+        register(new DeviceType("light", Light.class) {
+            @Override
+            public @Nonnull Device create(@Nonnull StorageTransaction xaction, @Nonnull ControllerRelay relay, @Nonnull JSONObject json) throws JSONException, PersistenceException {
+                return Light.createLight(xaction, relay, json);
+            }
+
+            @Override
+            public @Nonnull Collection<? extends Device> findForRelay(@Nonnull ControllerRelay relay) throws PersistenceException {
+                return Light.findLightsForRelay(relay);
+            }
+
+            @Override
+            public @Nullable Device get(@Nonnull String deviceId) throws PersistenceException {
+                return Light.getLight(deviceId);
+            }
+        });
+        register(new DeviceType("powered", PoweredDevice.class) {
+            @Override
+            public @Nonnull Device create(@Nonnull StorageTransaction xaction, @Nonnull ControllerRelay relay, @Nonnull JSONObject json) throws JSONException, PersistenceException {
+                return PoweredDevice.createPoweredDevice(xaction, relay, json);
+            }
+
+            @Override
+            public @Nonnull Collection<? extends Device> findForRelay(@Nonnull ControllerRelay relay) throws PersistenceException {
+                return PoweredDevice.findPoweredDevicesForRelay(relay);
+            }
+
+            @Override
+            public @Nullable Device get(@Nonnull String deviceId) throws PersistenceException {
+                return PoweredDevice.getPoweredDevice(deviceId);
+            }
+        });
+    }
+
+    static public synchronized @Nullable DeviceType getType(@Nonnull String name) {
+        return types.get(name);
+    }
+
+    static public synchronized @Nonnull Collection<DeviceType> list() {
+        return new ArrayList<DeviceType>(types.values());
+    }
+
+    /**
+     * Lists the specified type along with every registered type whose devices are a subclass of its devices.
+     * @param type the parent type
+     * @return the type and its children
+     */
+    static public @Nonnull Collection<DeviceType> listWithChildren(@Nonnull DeviceType type) {
+        ArrayList<DeviceType> matches = new ArrayList<DeviceType>();
+
+        for( DeviceType t : list() ) {
+            if( type.getDeviceClass().isAssignableFrom(t.getDeviceClass()) ) {
+                matches.add(t);
+            }
+        }
+        return matches;
+    }
+
+    static public synchronized void register(@Nonnull DeviceType type) {
+        types.put(type.getName(), type);
+    }
+
+    private final Class<? extends Device> deviceClass;
+    private final String                  name;
+
+    protected DeviceType(@Nonnull String name, @Nonnull Class<? extends Device> deviceClass) {
+        this.name = name;
+        this.deviceClass = deviceClass;
+    }
+
+    /**
+     * Creates a device of this type from the JSON a relay reported for it.
+     * @param xaction the transaction in which the device is created
+     * @param relay the relay reporting the device
+     * @param json the reported device
+     * @return the new device
+     * @throws JSONException the JSON is not valid for this type
+     * @throws PersistenceException an error occurred creating the device
+     */
+    public abstract @Nonnull Device create(@Nonnull StorageTransaction xaction, @Nonnull ControllerRelay relay, @Nonnull JSONObject json) throws JSONException, PersistenceException;
+
+    public abstract @Nonnull Collection<? extends Device> findForRelay(@Nonnull ControllerRelay relay) throws PersistenceException;
+
+    public abstract @Nullable Device get(@Nonnull String deviceId) throws PersistenceException;
+
+    public @Nonnull Class<? extends Device> getDeviceClass() {
+        return deviceClass;
+    }
+
+    public @Nonnull String getName() {
+        return name;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return name;
+    }
+}
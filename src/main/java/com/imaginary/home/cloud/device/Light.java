@@ -17,14 +17,15 @@
 package com.imaginary.home.cloud.device;
 
 import com.imaginary.home.cloud.ControllerRelay;
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import com.imaginary.home.lighting.Color;
 import com.imaginary.home.lighting.ColorMode;
 import org.apache.log4j.Logger;
 import org.dasein.persist.Memento;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.SearchTerm;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.util.uom.time.TimePeriod;
@@ -49,17 +50,16 @@ import java.util.Map;
 public class Light extends PoweredDevice {
     static private final Logger logger = Logger.getLogger(Light.class);
 
-    static private PersistentCache<Light> cache;
+    static private EntityStore<Light> cache;
 
-    static private @Nonnull PersistentCache<Light> getCache() throws PersistenceException {
+    static private @Nonnull EntityStore<Light> getCache() throws PersistenceException {
         if( cache == null ) {
-            //noinspection unchecked
-            cache = (PersistentCache<Light>)PersistentCache.getCache(Light.class);
+            cache = Storage.getInstance().getStore(Light.class);
         }
         return cache;
     }
 
-    static @Nonnull Light createLight(@Nonnull ControllerRelay relay, @Nonnull JSONObject json) throws JSONException, PersistenceException {
+    static @Nonnull Light createLight(@Nonnull StorageTransaction xaction, @Nonnull ControllerRelay relay, @Nonnull JSONObject json) throws JSONException, PersistenceException {
         if( logger.isInfoEnabled() ) {
             logger.info("Creating light for " + relay.getControllerRelayId());
         }
@@ -69,25 +69,11 @@ public class Light extends PoweredDevice {
         HashMap<String,Object> state = new HashMap<String, Object>();
 
         mapLight(relay, json, state);
-
-        Transaction xaction = Transaction.getInstance();
-
-        try {
-            Light light = getCache().create(xaction, state);
-
-            xaction.commit();
-            if( logger.isDebugEnabled() ) {
-                logger.debug("newLight=" + light);
-            }
-            return light;
-        }
-        finally {
-            xaction.rollback();
-        }
+        return getCache().create(xaction, state);
     }
 
     static public @Nonnull Collection<Light> findLightsForRelay(@Nonnull ControllerRelay relay) throws PersistenceException {
-        return getCache().find(new SearchTerm("relayId", relay.getControllerRelayId()));
+        return getCache().find(new Criterion("relayId", relay.getControllerRelayId()));
     }
 
     static public void findLightssForRelayWithChildren(@Nonnull ControllerRelay relay, @Nonnull Collection<Device> devices) throws PersistenceException {
@@ -99,7 +85,7 @@ public class Light extends PoweredDevice {
     }
 
     static public @Nullable Light getLight(@Nonnull ControllerRelay relay, @Nonnull String vendorDeviceId) throws PersistenceException {
-        Iterator<Light> it = getCache().find(new SearchTerm("vendorDeviceId", vendorDeviceId), new SearchTerm("relayId", relay.getControllerRelayId())).iterator();
+        Iterator<Light> it = getCache().find(new Criterion("vendorDeviceId", vendorDeviceId), new Criterion("relayId", relay.getControllerRelayId())).iterator();
 
         if( it.hasNext() ) {
             return it.next();
@@ -219,16 +205,21 @@ public class Light extends PoweredDevice {
         return dimmable;
     }
 
+    @Override
+    void map(@Nonnull ControllerRelay relay, @Nonnull JSONObject json, @Nonnull Map<String,Object> state) throws JSONException {
+        mapLight(relay, json, state);
+    }
+
     @Override
     public void remove() throws PersistenceException {
         System.out.println("Remove light " + getDeviceId());
         if( logger.isInfoEnabled() ) {
             logger.info("Removing: " + getDeviceId());
         }
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
-            getCache().remove(xaction, this);
+            remove(xaction);
             xaction.commit();
             if( logger.isInfoEnabled() ) {
                 logger.info("Removed: " + getDeviceId());
@@ -239,6 +230,12 @@ public class Light extends PoweredDevice {
         }
     }
 
+    @Override
+    void remove(@Nonnull StorageTransaction xaction) throws PersistenceException {
+        DeviceIndex.unindex(xaction, this);
+        getCache().remove(xaction, this);
+    }
+
     public void strobe() {
         // TODO: implement me
     }
@@ -261,7 +258,7 @@ public class Light extends PoweredDevice {
             memento.save(state);
             state = memento.getState();
             System.out.println("State=" + state);
-            Transaction xaction = Transaction.getInstance();
+            StorageTransaction xaction = Storage.getInstance().begin();
 
             try {
                 getCache().update(xaction, this, state);
@@ -279,4 +276,9 @@ public class Light extends PoweredDevice {
             throw new PersistenceException(e);
         }
     }
+
+    @Override
+    void update(@Nonnull StorageTransaction xaction, @Nonnull Map<String,Object> state) throws PersistenceException {
+        getCache().update(xaction, this, state);
+    }
 }
@@ -17,12 +17,13 @@
 package com.imaginary.home.cloud.device;
 
 import com.imaginary.home.cloud.ControllerRelay;
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import com.sun.tools.internal.xjc.reader.xmlschema.bindinfo.BIConversion;
 import org.dasein.persist.Memento;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.SearchTerm;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.json.JSONException;
@@ -42,36 +43,24 @@ import java.util.Map;
  * @author George Reese
  */
 public class PoweredDevice extends Device {
-    static private PersistentCache<PoweredDevice> cache;
+    static private EntityStore<PoweredDevice> cache;
 
-    static private @Nonnull PersistentCache<PoweredDevice> getCache() throws PersistenceException {
+    static private @Nonnull EntityStore<PoweredDevice> getCache() throws PersistenceException {
         if( cache == null ) {
-            //noinspection unchecked
-            cache = (PersistentCache<PoweredDevice>)PersistentCache.getCache(PoweredDevice.class);
+            cache = Storage.getInstance().getStore(PoweredDevice.class);
         }
         return cache;
     }
 
-    static @Nonnull PoweredDevice createPoweredDevice(@Nonnull ControllerRelay relay, @Nonnull JSONObject json) throws JSONException, PersistenceException {
+    static @Nonnull PoweredDevice createPoweredDevice(@Nonnull StorageTransaction xaction, @Nonnull ControllerRelay relay, @Nonnull JSONObject json) throws JSONException, PersistenceException {
         HashMap<String,Object> state = new HashMap<String, Object>();
 
         mapPoweredDevice(relay, json, state);
-
-        Transaction xaction = Transaction.getInstance();
-
-        try {
-            PoweredDevice d = getCache().create(xaction, state);
-
-            xaction.commit();
-            return d;
-        }
-        finally {
-            xaction.rollback();
-        }
+        return getCache().create(xaction, state);
     }
 
     static public Collection<PoweredDevice> findPoweredDevicesForRelay(@Nonnull ControllerRelay relay) throws PersistenceException {
-        return getCache().find(new SearchTerm("relayId", relay.getControllerRelayId()));
+        return getCache().find(new Criterion("relayId", relay.getControllerRelayId()));
     }
 
     static public void findPoweredDevicesForRelayWithChildren(@Nonnull ControllerRelay relay, @Nonnull Collection<Device> devices) throws PersistenceException {
@@ -114,12 +103,17 @@ public class PoweredDevice extends Device {
         return on;
     }
 
+    @Override
+    void map(@Nonnull ControllerRelay relay, @Nonnull JSONObject json, @Nonnull Map<String,Object> state) throws JSONException {
+        mapPoweredDevice(relay, json, state);
+    }
+
     @Override
     public void remove() throws PersistenceException {
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
-            getCache().remove(xaction, this);
+            remove(xaction);
             xaction.commit();
         }
         finally {
@@ -127,6 +121,12 @@ public class PoweredDevice extends Device {
         }
     }
 
+    @Override
+    void remove(@Nonnull StorageTransaction xaction) throws PersistenceException {
+        DeviceIndex.unindex(xaction, this);
+        getCache().remove(xaction, this);
+    }
+
     @Override
     public void update(@Nonnull JSONObject json) throws PersistenceException {
         try {
@@ -139,7 +139,7 @@ public class PoweredDevice extends Device {
             memento.save(state);
             state = memento.getState();
 
-            Transaction xaction = Transaction.getInstance();
+            StorageTransaction xaction = Storage.getInstance().begin();
 
             try {
                 getCache().update(xaction, this, state);
@@ -154,4 +154,9 @@ public class PoweredDevice extends Device {
             throw new PersistenceException(e);
         }
     }
+
+    @Override
+    void update(@Nonnull StorageTransaction xaction, @Nonnull Map<String,Object> state) throws PersistenceException {
+        getCache().update(xaction, this, state);
+    }
 }
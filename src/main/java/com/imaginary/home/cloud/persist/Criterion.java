@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.persist;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An equality match on a single column used to search an {@link EntityStore}. A criterion against an array-valued
+ * column matches any row whose array contains the value.
+ */
+public class Criterion {
+    private final String column;
+    private final Object value;
+
+    public Criterion(@Nonnull String column, @Nullable Object value) {
+        this.column = column;
+        this.value = value;
+    }
+
+    public @Nonnull String getColumn() {
+        return column;
+    }
+
+    public @Nullable Object getValue() {
+        return value;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return (column + "=" + value);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.persist;
+
+import org.dasein.persist.Memento;
+import org.dasein.persist.Operator;
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.PersistentCache;
+import org.dasein.persist.SearchTerm;
+import org.dasein.persist.Transaction;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The database backend, a thin layer over dasein persistent caches and transactions.
+ */
+public class DaseinStorage extends Storage {
+    static private class DaseinTransaction implements StorageTransaction {
+        private final Transaction xaction = Transaction.getInstance();
+
+        @Override
+        public void commit() throws PersistenceException {
+            xaction.commit();
+        }
+
+        @Override
+        public void rollback() {
+            xaction.rollback();
+        }
+    }
+
+    static private class DaseinStore<T extends CachedItem> implements EntityStore<T> {
+        private final PersistentCache<T> cache;
+
+        DaseinStore(@Nonnull PersistentCache<T> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public @Nonnull T create(@Nonnull StorageTransaction xaction, @Nonnull Map<String,Object> state) throws PersistenceException {
+            return cache.create(unwrap(xaction), state);
+        }
+
+        @Override
+        public @Nonnull Collection<T> find(@Nonnull Criterion ... criteria) throws PersistenceException {
+            return cache.find(toTerms(criteria, 0));
+        }
+
+        @Override
+        public @Nonnull Collection<T> findAny(@Nonnull String column, @Nonnull Collection<?> values, @Nonnull Criterion ... criteria) throws PersistenceException {
+            // dasein combines search terms with AND and has no IN operator, so this backend still runs one search
+            // per distinct value; the in-memory backend answers the whole batch in a single pass
+            SearchTerm[] terms = toTerms(criteria, 1);
+            LinkedHashSet<T> matches = new LinkedHashSet<T>();
+
+            System.arraycopy(terms, 0, terms, 1, criteria.length);
+            for( Object value : new LinkedHashSet<Object>(values) ) {
+                terms[0] = new SearchTerm(column, value);
+                matches.addAll(cache.find(terms));
+            }
+            return matches;
+        }
+
+        @Override
+        public @Nullable T get(@Nonnull Object key) throws PersistenceException {
+            return cache.get(key);
+        }
+
+        @Override
+        public @Nonnull Collection<T> list() throws PersistenceException {
+            return cache.list();
+        }
+
+        @Override
+        public @Nonnull List<T> page(@Nonnull String orderBy, boolean descending, @Nullable Object after, @Nonnegative int limit, @Nonnull Criterion ... criteria) throws PersistenceException {
+            SearchTerm[] terms = toTerms(criteria, after == null ? 0 : 1);
+            ArrayList<T> page = new ArrayList<T>();
+
+            if( after != null ) {
+                terms[criteria.length] = new SearchTerm(orderBy, descending ? Operator.LESS_THAN : Operator.GREATER_THAN, after);
+            }
+            if( limit < 1 ) {
+                return page;
+            }
+            // the results stream in behind the iterator, so stopping early leaves the rest unread
+            for( T item : cache.find(terms, null, descending, orderBy) ) {
+                page.add(item);
+                if( page.size() >= limit ) {
+                    break;
+                }
+            }
+            return page;
+        }
+
+        @Override
+        public @Nonnull List<T> page(@Nonnull final String orderBy, @Nonnull final String thenBy, final boolean descending, @Nullable Object after, @Nullable Object afterThen, @Nonnegative int limit, @Nonnull Criterion ... criteria) throws PersistenceException {
+            Operator beyond = (descending ? Operator.LESS_THAN : Operator.GREATER_THAN);
+            ArrayList<T> page = new ArrayList<T>();
+
+            if( limit < 1 ) {
+                return page;
+            }
+            if( after != null && afterThen != null ) {
+                // the rest of the run the last page ended in comes first, ordered by the second column alone
+                SearchTerm[] terms = toTerms(criteria, 2);
+
+                terms[criteria.length] = new SearchTerm(orderBy, after);
+                terms[criteria.length + 1] = new SearchTerm(thenBy, beyond, afterThen);
+                for( T item : cache.find(terms, null, descending, thenBy) ) {
+                    page.add(item);
+                    if( page.size() >= limit ) {
+                        return page;
+                    }
+                }
+            }
+            SearchTerm[] terms = toTerms(criteria, after == null ? 0 : 1);
+            final HashMap<T,Map<String,Object>> values = new HashMap<T, Map<String, Object>>();
+            ArrayList<T> rest = new ArrayList<T>();
+            Object last = null;
+
+            if( after != null ) {
+                terms[criteria.length] = new SearchTerm(orderBy, beyond, after);
+            }
+            // the database orders by the first column only, so the run of equal values at the end of the page is
+            // read to its end and the rows are put in their final order here
+            for( T item : cache.find(terms, null, descending, orderBy) ) {
+                Map<String,Object> state = getState(item);
+                Object value = state.get(orderBy);
+
+                if( value == null || state.get(thenBy) == null ) {
+                    continue;
+                }
+                if( page.size() + rest.size() >= limit && !value.equals(last) ) {
+                    break;
+                }
+                values.put(item, state);
+                rest.add(item);
+                last = value;
+            }
+            Collections.sort(rest, new Comparator<T>() {
+                @Override
+                public int compare(T a, T b) {
+                    Map<String,Object> x = values.get(a);
+                    Map<String,Object> y = values.get(b);
+                    int c = compareValues(x.get(orderBy), y.get(orderBy));
+
+                    if( c == 0 ) {
+                        c = compareValues(x.get(thenBy), y.get(thenBy));
+                    }
+                    return (descending ? -c : c);
+                }
+            });
+            for( T item : rest ) {
+                if( page.size() >= limit ) {
+                    break;
+                }
+                page.add(item);
+            }
+            return page;
+        }
+
+        @Override
+        public void remove(@Nonnull StorageTransaction xaction, @Nonnull T item) throws PersistenceException {
+            cache.remove(unwrap(xaction), item);
+        }
+
+        @Override
+        public void update(@Nonnull StorageTransaction xaction, @Nonnull T item, @Nonnull Map<String,Object> state) throws PersistenceException {
+            // dasein writes every column, so columns the caller left out keep the values they have in the item
+            Memento<T> memento = new Memento<T>(item);
+            Map<String,Object> full = new HashMap<String, Object>();
+
+            memento.save(full);
+            full = memento.getState();
+            full.putAll(state);
+            cache.update(unwrap(xaction), item, full);
+        }
+
+        private @Nonnull Map<String,Object> getState(@Nonnull T item) throws PersistenceException {
+            Memento<T> memento = new Memento<T>(item);
+
+            memento.save(new HashMap<String, Object>());
+            return memento.getState();
+        }
+
+        private @Nonnull SearchTerm[] toTerms(@Nonnull Criterion[] criteria, int extra) {
+            SearchTerm[] terms = new SearchTerm[criteria.length + extra];
+
+            for( int i=0; i<criteria.length; i++ ) {
+                terms[i] = new SearchTerm(criteria[i].getColumn(), criteria[i].getValue());
+            }
+            return terms;
+        }
+
+        private @Nonnull Transaction unwrap(@Nonnull StorageTransaction xaction) throws PersistenceException {
+            if( !(xaction instanceof DaseinTransaction) ) {
+                throw new PersistenceException("Transaction does not belong to the dasein storage: " + xaction);
+            }
+            return ((DaseinTransaction)xaction).xaction;
+        }
+    }
+
+    static private int compareValues(@Nonnull Object a, @Nonnull Object b) {
+        if( a instanceof Number && b instanceof Number ) {
+            return Double.compare(((Number)a).doubleValue(), ((Number)b).doubleValue());
+        }
+        //noinspection unchecked
+        return ((Comparable<Object>)a).compareTo(b);
+    }
+
+    public DaseinStorage() { }
+
+    @Override
+    public @Nonnull StorageTransaction begin() {
+        return new DaseinTransaction();
+    }
+
+    @Override
+    public @Nonnull <T extends CachedItem> EntityStore<T> getStore(@Nonnull Class<T> type) throws PersistenceException {
+        //noinspection unchecked
+        return new DaseinStore<T>((PersistentCache<T>)PersistentCache.getCache(type));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.persist;
+
+import org.dasein.persist.PersistenceException;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage for a single entity class, keyed by the field annotated as its primary index. Entities are created and
+ * updated from the same field-name-to-value maps dasein mementos produce.
+ */
+public interface EntityStore<T extends CachedItem> {
+    public @Nonnull T create(@Nonnull StorageTransaction xaction, @Nonnull Map<String,Object> state) throws PersistenceException;
+
+    public @Nonnull Collection<T> find(@Nonnull Criterion ... criteria) throws PersistenceException;
+
+    /**
+     * Finds the rows whose column holds any of the specified values, such as a batch of primary keys, as one
+     * search rather than a search per value wherever the backend can express it.
+     * @param column the column to match against
+     * @param values the values to match, any of which is a hit
+     * @param criteria further equality criteria every row must match
+     * @return the matching rows, each only once
+     * @throws PersistenceException an error occurred reading the matches
+     */
+    public @Nonnull Collection<T> findAny(@Nonnull String column, @Nonnull Collection<?> values, @Nonnull Criterion ... criteria) throws PersistenceException;
+
+    public @Nullable T get(@Nonnull Object key) throws PersistenceException;
+
+    public @Nonnull Collection<T> list() throws PersistenceException;
+
+    /**
+     * Finds matches in order of a single column, one page at a time. Only rows whose order column sorts strictly
+     * after the specified value in the requested direction are considered and reading stops once the page is full,
+     * so the cost of a page follows the page size rather than the number of matches. Rows without a value in the
+     * order column are never returned.
+     * @param orderBy the column to order by, ideally one with unique values such as the primary key
+     * @param descending true to return the highest values first
+     * @param after the order column value of the last row of the previous page, or null for the first page
+     * @param limit the maximum number of rows to return
+     * @param criteria the equality criteria every row must match
+     * @return the page of matches in order
+     * @throws PersistenceException an error occurred reading the matches
+     */
+    public @Nonnull List<T> page(@Nonnull String orderBy, boolean descending, @Nullable Object after, @Nonnegative int limit, @Nonnull Criterion ... criteria) throws PersistenceException;
+
+    /**
+     * Finds matches in order of a column whose values repeat, one page at a time. Rows are ordered by the first
+     * column and then by the second, which should have unique values such as the primary key, so each row has its
+     * own position and a page can end in the middle of a run of equal values. Only rows positioned strictly after
+     * the specified position in the requested direction are considered. Rows without a value in either column are
+     * never returned.
+     * @param orderBy the column to order by
+     * @param thenBy the column that orders rows with the same value in the first column
+     * @param descending true to return the highest values first
+     * @param after the first column value of the last row of the previous page, or null for the first page
+     * @param afterThen the second column value of that row, or null to skip every row whose first column matches
+     * @param limit the maximum number of rows to return
+     * @param criteria the equality criteria every row must match
+     * @return the page of matches in order
+     * @throws PersistenceException an error occurred reading the matches
+     */
+    public @Nonnull List<T> page(@Nonnull String orderBy, @Nonnull String thenBy, boolean descending, @Nullable Object after, @Nullable Object afterThen, @Nonnegative int limit, @Nonnull Criterion ... criteria) throws PersistenceException;
+
+    public void remove(@Nonnull StorageTransaction xaction, @Nonnull T item) throws PersistenceException;
+
+    /**
+     * Updates an entity. The state needs only the columns that change; every other column keeps its value.
+     * @param xaction the transaction to update in
+     * @param item the entity as it was read
+     * @param state the new values of the changed columns
+     * @throws PersistenceException an error occurred updating the entity
+     */
+    public void update(@Nonnull StorageTransaction xaction, @Nonnull T item, @Nonnull Map<String,Object> state) throws PersistenceException;
+}
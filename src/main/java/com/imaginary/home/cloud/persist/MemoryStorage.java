@@ -0,0 +1,573 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.persist;
+
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps every entity in this JVM. Rows are stored as field maps rather than objects, so every read hands back a
+ * fresh instance exactly as a database would, and fields annotated as dasein secondary or foreign indexes are
+ * indexed for {@link EntityStore#find(Criterion...)}. Transactions buffer their writes and apply them all at once
+ * on commit; a commit that would create a duplicate primary key fails without applying anything. Reads take a
+ * shared lock and commits an exclusive one across all stores, so a reader never sees half a transaction.
+ */
+public class MemoryStorage extends Storage {
+    static private final int CREATE = 0;
+    static private final int UPDATE = 1;
+    static private final int REMOVE = 2;
+
+    static private class Operation {
+        final int                action;
+        final Object             key;
+        final Map<String,Object> state;
+        final MemoryStore<?>     store;
+
+        Operation(@Nonnull MemoryStore<?> store, int action, @Nonnull Object key, @Nullable Map<String,Object> state) {
+            this.store = store;
+            this.action = action;
+            this.key = key;
+            this.state = state;
+        }
+    }
+
+    private class MemoryTransaction implements StorageTransaction {
+        private ArrayList<Operation> operations = new ArrayList<Operation>();
+
+        void add(@Nonnull Operation operation) throws PersistenceException {
+            if( operations == null ) {
+                throw new PersistenceException("Transaction is already closed");
+            }
+            operations.add(operation);
+        }
+
+        @Override
+        public void commit() throws PersistenceException {
+            if( operations == null ) {
+                throw new PersistenceException("Transaction is already closed");
+            }
+            apply(operations);
+            operations = null;
+        }
+
+        @Override
+        public void rollback() {
+            operations = null;
+        }
+    }
+
+    private class MemoryStore<T extends CachedItem> implements EntityStore<T> {
+        private final ArrayList<Field>                                fields  = new ArrayList<Field>();
+        private final HashMap<String,HashMap<Object,HashSet<Object>>> indexes = new HashMap<String, HashMap<Object, HashSet<Object>>>();
+        private String                                                primaryKey;
+        private final LinkedHashMap<Object,Map<String,Object>>        rows    = new LinkedHashMap<Object, Map<String, Object>>();
+        private final Class<T>                                        type;
+
+        MemoryStore(@Nonnull Class<T> type) throws PersistenceException {
+            this.type = type;
+            for( Class<?> cls = type; cls != null && !cls.equals(Object.class); cls = cls.getSuperclass() ) {
+                for( Field f : cls.getDeclaredFields() ) {
+                    if( f.isSynthetic() || Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers()) ) {
+                        continue;
+                    }
+                    f.setAccessible(true);
+                    fields.add(f);
+
+                    Index idx = f.getAnnotation(Index.class);
+
+                    if( idx != null ) {
+                        if( idx.type().equals(IndexType.PRIMARY) ) {
+                            primaryKey = f.getName();
+                        }
+                        else {
+                            indexes.put(f.getName(), new HashMap<Object, HashSet<Object>>());
+                        }
+                    }
+                }
+            }
+            if( primaryKey == null ) {
+                throw new PersistenceException("No primary key is defined for " + type.getName());
+            }
+        }
+
+        @Override
+        public @Nonnull T create(@Nonnull StorageTransaction xaction, @Nonnull Map<String,Object> state) throws PersistenceException {
+            Map<String,Object> row = copy(state);
+            Object key = row.get(primaryKey);
+
+            if( key == null ) {
+                throw new PersistenceException("No value for " + type.getSimpleName() + "." + primaryKey);
+            }
+            transaction(xaction).add(new Operation(this, CREATE, key, row));
+            return toItem(row);
+        }
+
+        @Override
+        public @Nonnull Collection<T> find(@Nonnull Criterion ... criteria) throws PersistenceException {
+            ArrayList<T> matches = new ArrayList<T>();
+
+            lock.readLock().lock();
+            try {
+                for( Object key : getCandidates(criteria) ) {
+                    Map<String,Object> row = rows.get(key);
+
+                    if( row != null && matches(row, criteria) ) {
+                        matches.add(toItem(row));
+                    }
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            return matches;
+        }
+
+        @Override
+        public @Nonnull Collection<T> findAny(@Nonnull String column, @Nonnull Collection<?> values, @Nonnull Criterion ... criteria) throws PersistenceException {
+            LinkedHashMap<Object,T> matches = new LinkedHashMap<Object, T>();
+            Criterion[] terms = new Criterion[criteria.length + 1];
+
+            System.arraycopy(criteria, 0, terms, 1, criteria.length);
+            lock.readLock().lock();
+            try {
+                for( Object value : values ) {
+                    terms[0] = new Criterion(column, value);
+                    for( Object key : getCandidates(terms) ) {
+                        Map<String,Object> row = rows.get(key);
+
+                        if( row != null && !matches.containsKey(key) && matches(row, terms) ) {
+                            matches.put(key, toItem(row));
+                        }
+                    }
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            return matches.values();
+        }
+
+        @Override
+        public @Nullable T get(@Nonnull Object key) throws PersistenceException {
+            lock.readLock().lock();
+            try {
+                Map<String,Object> row = rows.get(key);
+
+                return (row == null ? null : toItem(row));
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public @Nonnull Collection<T> list() throws PersistenceException {
+            ArrayList<T> items = new ArrayList<T>();
+
+            lock.readLock().lock();
+            try {
+                for( Map<String,Object> row : rows.values() ) {
+                    items.add(toItem(row));
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            return items;
+        }
+
+        @Override
+        public @Nonnull List<T> page(@Nonnull String orderBy, boolean descending, @Nullable Object after, @Nonnegative int limit, @Nonnull Criterion ... criteria) throws PersistenceException {
+            return page(orderBy, primaryKey, descending, after, null, limit, criteria);
+        }
+
+        @Override
+        public @Nonnull List<T> page(@Nonnull final String orderBy, @Nonnull final String thenBy, boolean descending, @Nullable Object after, @Nullable Object afterThen, @Nonnegative int limit, @Nonnull Criterion ... criteria) throws PersistenceException {
+            final int direction = (descending ? -1 : 1);
+            TreeSet<Map<String,Object>> page = new TreeSet<Map<String, Object>>(new Comparator<Map<String, Object>>() {
+                @Override
+                public int compare(Map<String,Object> a, Map<String,Object> b) {
+                    int c = compareValues(a.get(orderBy), b.get(orderBy));
+
+                    if( c == 0 ) {
+                        c = compareValues(a.get(thenBy), b.get(thenBy));
+                    }
+                    if( c == 0 ) {
+                        c = compareValues(a.get(primaryKey), b.get(primaryKey));
+                    }
+                    return direction * c;
+                }
+            });
+            ArrayList<T> items = new ArrayList<T>();
+
+            if( limit < 1 ) {
+                return items;
+            }
+            lock.readLock().lock();
+            try {
+                // only the best limit rows are ever held, however many rows match
+                for( Object key : getCandidates(criteria) ) {
+                    Map<String,Object> row = rows.get(key);
+
+                    if( row == null || row.get(orderBy) == null || row.get(thenBy) == null || !matches(row, criteria) ) {
+                        continue;
+                    }
+                    if( after != null ) {
+                        int c = direction * compareValues(row.get(orderBy), after);
+
+                        if( c < 0 || (c == 0 && (afterThen == null || direction * compareValues(row.get(thenBy), afterThen) <= 0)) ) {
+                            continue;
+                        }
+                    }
+                    page.add(row);
+                    if( page.size() > limit ) {
+                        page.pollLast();
+                    }
+                }
+                for( Map<String,Object> row : page ) {
+                    items.add(toItem(row));
+                }
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            return items;
+        }
+
+        @Override
+        public void remove(@Nonnull StorageTransaction xaction, @Nonnull T item) throws PersistenceException {
+            transaction(xaction).add(new Operation(this, REMOVE, getKey(item), null));
+        }
+
+        @Override
+        public void update(@Nonnull StorageTransaction xaction, @Nonnull T item, @Nonnull Map<String,Object> state) throws PersistenceException {
+            transaction(xaction).add(new Operation(this, UPDATE, getKey(item), copy(state)));
+        }
+
+        void applyCreate(@Nonnull Object key, @Nonnull Map<String,Object> row) {
+            rows.put(key, row);
+            index(key, row, true);
+        }
+
+        void applyRemove(@Nonnull Object key) {
+            Map<String,Object> row = rows.remove(key);
+
+            if( row != null ) {
+                index(key, row, false);
+            }
+        }
+
+        void applyUpdate(@Nonnull Object key, @Nonnull Map<String,Object> state) {
+            Map<String,Object> row = rows.get(key);
+
+            if( row == null ) {
+                return;
+            }
+            HashMap<String,Object> updated = new HashMap<String, Object>(row);
+
+            updated.putAll(state);
+            updated.put(primaryKey, key);
+            index(key, row, false);
+            rows.put(key, updated);
+            index(key, updated, true);
+        }
+
+        boolean exists(@Nonnull Object key) {
+            return rows.containsKey(key);
+        }
+
+        /**
+         * Narrows a search to the keys listed under the first indexed criterion. Callers must hold the read lock.
+         * @param criteria the search criteria
+         * @return the keys of the rows that may match
+         */
+        private @Nonnull Collection<Object> getCandidates(@Nonnull Criterion[] criteria) {
+            for( Criterion c : criteria ) {
+                if( c.getColumn().equals(primaryKey) ) {
+                    return (rows.containsKey(c.getValue()) ? Collections.singletonList(c.getValue()) : Collections.emptyList());
+                }
+                HashMap<Object,HashSet<Object>> index = indexes.get(c.getColumn());
+
+                if( index != null ) {
+                    HashSet<Object> keys = index.get(c.getValue());
+
+                    return (keys == null ? Collections.emptyList() : new ArrayList<Object>(keys));
+                }
+            }
+            return new ArrayList<Object>(rows.keySet());
+        }
+
+        private @Nonnull Object getKey(@Nonnull T item) throws PersistenceException {
+            for( Field f : fields ) {
+                if( f.getName().equals(primaryKey) ) {
+                    try {
+                        Object key = f.get(item);
+
+                        if( key != null ) {
+                            return key;
+                        }
+                    }
+                    catch( IllegalAccessException e ) {
+                        throw new PersistenceException(e);
+                    }
+                }
+            }
+            throw new PersistenceException("No value for " + type.getSimpleName() + "." + primaryKey);
+        }
+
+        private void index(@Nonnull Object key, @Nonnull Map<String,Object> row, boolean add) {
+            for( Map.Entry<String,HashMap<Object,HashSet<Object>>> entry : indexes.entrySet() ) {
+                Object value = row.get(entry.getKey());
+
+                if( value instanceof Object[] ) {
+                    for( Object v : (Object[])value ) {
+                        index(entry.getValue(), v, key, add);
+                    }
+                }
+                else {
+                    index(entry.getValue(), value, key, add);
+                }
+            }
+        }
+
+        private void index(@Nonnull HashMap<Object,HashSet<Object>> index, @Nullable Object value, @Nonnull Object key, boolean add) {
+            HashSet<Object> keys = index.get(value);
+
+            if( add ) {
+                if( keys == null ) {
+                    keys = new HashSet<Object>();
+                    index.put(value, keys);
+                }
+                keys.add(key);
+            }
+            else if( keys != null ) {
+                keys.remove(key);
+                if( keys.isEmpty() ) {
+                    index.remove(value);
+                }
+            }
+        }
+
+        private boolean matches(@Nonnull Map<String,Object> row, @Nonnull Criterion[] criteria) {
+            for( Criterion c : criteria ) {
+                Object value = row.get(c.getColumn());
+
+                if( value instanceof Object[] ) {
+                    boolean found = false;
+
+                    for( Object v : (Object[])value ) {
+                        if( v == null ? c.getValue() == null : v.equals(c.getValue()) ) {
+                            found = true;
+                            break;
+                        }
+                    }
+                    if( !found ) {
+                        return false;
+                    }
+                }
+                else if( value == null ? c.getValue() != null : !value.equals(c.getValue()) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private @Nonnull T toItem(@Nonnull Map<String,Object> row) throws PersistenceException {
+            try {
+                T item = type.newInstance();
+
+                for( Field f : fields ) {
+                    if( row.containsKey(f.getName()) ) {
+                        f.set(item, copyValue(convert(f.getType(), row.get(f.getName()))));
+                    }
+                }
+                return item;
+            }
+            catch( InstantiationException e ) {
+                throw new PersistenceException(e);
+            }
+            catch( IllegalAccessException e ) {
+                throw new PersistenceException(e);
+            }
+        }
+    }
+
+    /**
+     * Copies a row on its way into the store. Array values are copied too, so an entity or caller changing an array
+     * it handed over, such as a list of IDs, cannot change the stored row behind the indexes' back.
+     * @param state the state to copy
+     * @return the copy
+     */
+    static private @Nonnull Map<String,Object> copy(@Nonnull Map<String,Object> state) {
+        HashMap<String,Object> row = new HashMap<String, Object>();
+
+        for( Map.Entry<String,Object> entry : state.entrySet() ) {
+            row.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return row;
+    }
+
+    /**
+     * Copies array values, which are the only mutable values stored, and passes everything else through.
+     * @param value the value to copy
+     * @return the copy
+     */
+    static private @Nullable Object copyValue(@Nullable Object value) {
+        if( value == null || !value.getClass().isArray() ) {
+            return value;
+        }
+        int length = Array.getLength(value);
+        Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+
+        System.arraycopy(value, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Orders stored values of the same column. Numbers compare by value whatever their width, anything else must be
+     * comparable to itself.
+     * @param a the first value
+     * @param b the second value
+     * @return the comparison, as with {@link Comparable#compareTo(Object)}
+     */
+    static private int compareValues(@Nonnull Object a, @Nonnull Object b) {
+        if( a instanceof Number && b instanceof Number ) {
+            return Double.compare(((Number)a).doubleValue(), ((Number)b).doubleValue());
+        }
+        //noinspection unchecked
+        return ((Comparable<Object>)a).compareTo(b);
+    }
+
+    /**
+     * Converts numbers to the width of the field they are loaded into, since callers are not always careful to put
+     * a long into a long column.
+     * @param type the field type
+     * @param value the stored value
+     * @return the value to set
+     */
+    static private @Nullable Object convert(@Nonnull Class<?> type, @Nullable Object value) {
+        if( value == null ) {
+            if( type.equals(long.class) || type.equals(int.class) ) {
+                return 0;
+            }
+            if( type.equals(float.class) || type.equals(double.class) ) {
+                return 0f;
+            }
+            if( type.equals(boolean.class) ) {
+                return false;
+            }
+            return null;
+        }
+        if( value instanceof Number ) {
+            Number n = (Number)value;
+
+            if( type.equals(long.class) || type.equals(Long.class) ) {
+                return n.longValue();
+            }
+            if( type.equals(int.class) || type.equals(Integer.class) ) {
+                return n.intValue();
+            }
+            if( type.equals(float.class) || type.equals(Float.class) ) {
+                return n.floatValue();
+            }
+            if( type.equals(double.class) || type.equals(Double.class) ) {
+                return n.doubleValue();
+            }
+        }
+        return value;
+    }
+
+    private final ReentrantReadWriteLock                     lock   = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<Class<?>,MemoryStore<?>> stores = new ConcurrentHashMap<Class<?>, MemoryStore<?>>();
+
+    public MemoryStorage() { }
+
+    @Override
+    public @Nonnull StorageTransaction begin() {
+        return new MemoryTransaction();
+    }
+
+    @Override
+    public @Nonnull <T extends CachedItem> EntityStore<T> getStore(@Nonnull Class<T> type) throws PersistenceException {
+        MemoryStore<?> store = stores.get(type);
+
+        if( store == null ) {
+            MemoryStore<T> s = new MemoryStore<T>(type);
+
+            store = stores.putIfAbsent(type, s);
+            if( store == null ) {
+                store = s;
+            }
+        }
+        //noinspection unchecked
+        return (EntityStore<T>)store;
+    }
+
+    private void apply(@Nonnull ArrayList<Operation> operations) throws PersistenceException {
+        lock.writeLock().lock();
+        try {
+            HashSet<String> created = new HashSet<String>();
+
+            for( Operation op : operations ) {
+                if( op.action == CREATE ) {
+                    String id = op.store.type.getName() + ":" + op.key;
+
+                    if( op.store.exists(op.key) || !created.add(id) ) {
+                        throw new PersistenceException("Duplicate " + op.store.type.getSimpleName() + ": " + op.key);
+                    }
+                }
+            }
+            for( Operation op : operations ) {
+                switch( op.action ) {
+                    case CREATE: op.store.applyCreate(op.key, op.state); break;
+                    case UPDATE: op.store.applyUpdate(op.key, op.state); break;
+                    case REMOVE: op.store.applyRemove(op.key); break;
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private @Nonnull MemoryTransaction transaction(@Nonnull StorageTransaction xaction) throws PersistenceException {
+        if( !(xaction instanceof MemoryTransaction) ) {
+            throw new PersistenceException("Transaction does not belong to the memory storage: " + xaction);
+        }
+        return (MemoryTransaction)xaction;
+    }
+}
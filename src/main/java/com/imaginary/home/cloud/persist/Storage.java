@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.persist;
+
+import org.dasein.persist.PersistenceException;
+import org.dasein.util.CachedItem;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Backend holding the cloud entities. The backend is chosen once per JVM with the <code>imaginary.storage</code>
+ * system property: <code>dasein</code> (the default) keeps entities in the database configured for dasein
+ * persistence, and <code>memory</code> keeps them in this JVM for tests, benchmarks and small single-node
+ * deployments.
+ */
+public abstract class Storage {
+    static public final String PROPERTY = "imaginary.storage";
+
+    static private volatile Storage instance;
+
+    static public @Nonnull Storage getInstance() {
+        Storage s = instance;
+
+        if( s == null ) {
+            synchronized( Storage.class ) {
+                s = instance;
+                if( s == null ) {
+                    if( "memory".equalsIgnoreCase(System.getProperty(PROPERTY)) ) {
+                        s = new MemoryStorage();
+                    }
+                    else {
+                        s = new DaseinStorage();
+                    }
+                    instance = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Replaces the backend. Entities hold on to their stores once loaded, so this must happen before any entity is
+     * touched.
+     * @param storage the new backend
+     */
+    static public synchronized void setInstance(@Nonnull Storage storage) {
+        instance = storage;
+    }
+
+    public abstract @Nonnull StorageTransaction begin();
+
+    public abstract @Nonnull <T extends CachedItem> EntityStore<T> getStore(@Nonnull Class<T> type) throws PersistenceException;
+}
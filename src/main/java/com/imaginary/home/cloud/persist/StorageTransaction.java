@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.persist;
+
+import org.dasein.persist.PersistenceException;
+
+/**
+ * A unit of work against a {@link Storage}. Writes made through an {@link EntityStore} with a transaction take effect
+ * together when it commits. As with dasein transactions, callers roll back in a finally block, which does nothing
+ * once the transaction has committed.
+ */
+public interface StorageTransaction {
+    public void commit() throws PersistenceException;
+
+    public void rollback();
+}
@@ -17,9 +17,10 @@
 package com.imaginary.home.cloud.user;
 
 import com.imaginary.home.cloud.Configuration;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.util.CachedItem;
@@ -35,14 +36,10 @@ import java.util.HashMap;
  * @author George Reese
  */
 public class ApiKey implements CachedItem {
-    static private PersistentCache<ApiKey> cache;
+    static private EntityStore<ApiKey> cache;
 
     static public @Nonnull ApiKey create(@Nonnull User forUser, @Nonnull String application) throws PersistenceException {
-        String keyId;
-
-        do {
-            keyId = Configuration.generateToken(20, 20).toUpperCase();
-        } while( getApiKey(keyId) != null );
+        String keyId = Configuration.generateToken(20, 20).toUpperCase();
         HashMap<String,Object> state = new HashMap<String, Object>();
 
         state.put("apiKeyId", keyId);
@@ -50,7 +47,7 @@ public class ApiKey implements CachedItem {
         state.put("userId", forUser.getUserId());
         state.put("application", application);
 
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             ApiKey k = getCache().create(xaction, state);
@@ -63,14 +60,21 @@ public class ApiKey implements CachedItem {
         }
     }
 
-    static private PersistentCache<ApiKey> getCache() throws PersistenceException {
+    static private EntityStore<ApiKey> getCache() throws PersistenceException {
         if( cache == null ) {
-            //noinspection unchecked
-            cache = (PersistentCache<ApiKey>)PersistentCache.getCache(ApiKey.class);
+            cache = Storage.getInstance().getStore(ApiKey.class);
         }
         return cache;
     }
 
+    /**
+     * Reads an API key straight from the database. Keys are only ever looked up to authenticate a request, so they
+     * are deliberately kept out of the per-node entity cache, where a revoked key would keep working on every node
+     * that had cached it.
+     * @param apiKeyId the API key
+     * @return the matching key, or null if there is no such key
+     * @throws PersistenceException an error occurred loading the key
+     */
     static public @Nullable ApiKey getApiKey(@Nonnull String apiKeyId) throws PersistenceException {
         return getCache().get(apiKeyId);
     }
@@ -17,12 +17,16 @@
 package com.imaginary.home.cloud.user;
 
 import com.imaginary.home.cloud.Configuration;
+import com.imaginary.home.cloud.EntityCache;
+import com.imaginary.home.cloud.IdGenerator;
 import com.imaginary.home.cloud.Location;
+import com.imaginary.home.cloud.ResourceVersions;
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
 import org.dasein.persist.Memento;
 import org.dasein.persist.PersistenceException;
-import org.dasein.persist.PersistentCache;
-import org.dasein.persist.SearchTerm;
-import org.dasein.persist.Transaction;
 import org.dasein.persist.annotations.Index;
 import org.dasein.persist.annotations.IndexType;
 import org.dasein.util.CachedItem;
@@ -37,7 +41,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeSet;
-import java.util.UUID;
 
 /**
  * An individual user with one or more locations that they can manage.
@@ -45,14 +48,25 @@ import java.util.UUID;
  * @author George Reese
  */
 public class User implements CachedItem {
-    static private PersistentCache<User> cache;
+    static private EntityStore<User> cache;
 
-    static public User create(String email, String firstName, String lastName, String password) throws PersistenceException {
-        String userId;
+    static private final EntityCache<User> entities = new EntityCache<User>("user", 10000, 60000L);
+
+    static private final EntityCache.Loader<User> loader = new EntityCache.Loader<User>() {
+        @Override
+        public @Nullable User load(@Nonnull String userId) throws PersistenceException {
+            Iterator<User> users = getCache().find(new Criterion("userId", userId)).iterator();
+
+            if( !users.hasNext() ) {
+                return null;
+            }
+            return users.next();
+        }
+    };
 
-        do {
-            userId = UUID.randomUUID().toString();
-        } while( getUserByUserId(userId) != null );
+    static public User create(String email, String firstName, String lastName, String password) throws PersistenceException {
+        // the ID is part of the key that encrypts this user's secrets, so it must not be guessable
+        String userId = IdGenerator.randomId();
         HashMap<String,Object> state = new HashMap<String, Object>();
 
         state.put("email", email);
@@ -63,7 +77,7 @@ public class User implements CachedItem {
         state.put("locationIds", new String[0]);
         state.put("userId", userId);
 
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             User u = getCache().create(xaction, state);
@@ -76,10 +90,9 @@ public class User implements CachedItem {
         }
     }
 
-    static private @Nonnull PersistentCache<User> getCache() throws PersistenceException {
+    static private @Nonnull EntityStore<User> getCache() throws PersistenceException {
         if( cache == null ) {
-            //noinspection unchecked
-            cache = (PersistentCache<User>)PersistentCache.getCache(User.class);
+            cache = Storage.getInstance().getStore(User.class);
         }
         return cache;
     }
@@ -89,16 +102,11 @@ public class User implements CachedItem {
     }
 
     static public @Nullable User getUserByUserId(@Nonnull String userId) throws PersistenceException {
-        Iterator<User> users = getCache().find(new SearchTerm("userId", userId)).iterator();
-
-        if( !users.hasNext() ) {
-            return null;
-        }
-        return users.next();
+        return entities.get(userId, loader);
     }
 
     static public Iterable<User> listUsersForLocation(@Nonnull Location location) throws PersistenceException {
-        return getCache().find(new SearchTerm("locationIds", location.getLocationId()));
+        return getCache().find(new Criterion("locationIds", location.getLocationId()));
     }
 
     @Index(type=IndexType.PRIMARY)
@@ -135,18 +143,10 @@ public class User implements CachedItem {
     }
 
     public @Nonnull Collection<Location> getLocations() throws PersistenceException {
-        ArrayList<Location> locations = new ArrayList<Location>();
-
-        if( locationIds != null ) {
-            for( String id : locationIds ) {
-                Location l = Location.getLocation(id);
-
-                if( l != null ) {
-                    locations.add(l);
-                }
-            }
+        if( locationIds == null || locationIds.length < 1 ) {
+            return new ArrayList<Location>();
         }
-        return locations;
+        return new ArrayList<Location>(Location.getLocations(Arrays.asList(locationIds)));
     }
 
     public @Nonnull String getUserId() {
@@ -168,7 +168,7 @@ public class User implements CachedItem {
         memento.save(state);
         state = memento.getState();
         state.put("locationIds", locationIds);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -178,6 +178,8 @@ public class User implements CachedItem {
             xaction.rollback();
         }
         this.locationIds = locationIds;
+        entities.invalidate(userId);
+        ResourceVersions.userChanged(userId);
     }
 
     @Override
@@ -211,7 +213,7 @@ public class User implements CachedItem {
         memento.save(state);
         state = memento.getState();
         state.put("locationIds", locationIds);
-        Transaction xaction = Transaction.getInstance();
+        StorageTransaction xaction = Storage.getInstance().begin();
 
         try {
             getCache().update(xaction, this, state);
@@ -221,5 +223,7 @@ public class User implements CachedItem {
             xaction.rollback();
         }
         this.locationIds = locationIds;
+        entities.invalidate(userId);
+        ResourceVersions.userChanged(userId);
     }
 }
@@ -585,13 +585,12 @@ public class CloudService {
         HashMap<String,Object> state = new HashMap<String,Object>();
 
         state.put("action", "update");
-        for( ManagedResource resource : HomeController.getInstance().listResources() ) {
-            HashMap<String,Object> json = new HashMap<String, Object>();
+        ResourceListing listing = HomeController.getInstance().listResources(HomeController.LISTING_TIMEOUT);
 
-            resource.toMap(json);
-            devices.add(json);
-        }
+        devices.addAll(listing.getResources());
         state.put("devices", devices);
+        // lets the cloud tell a system that did not answer from one whose devices are gone
+        state.put("systems", listing.toSystemMaps());
 
         try {
             //noinspection deprecation
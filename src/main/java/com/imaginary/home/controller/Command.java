@@ -18,8 +18,11 @@ package com.imaginary.home.controller;
 
 import com.imaginary.home.lighting.Color;
 import com.imaginary.home.lighting.ColorMode;
+import com.imaginary.home.lighting.GroupLightingService;
 import com.imaginary.home.lighting.Light;
 import com.imaginary.home.lighting.LightingService;
+import com.imaginary.home.lighting.Scene;
+import com.imaginary.home.lighting.SceneLightingService;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.time.Millisecond;
 import org.dasein.util.uom.time.Minute;
@@ -31,6 +34,7 @@ import org.json.JSONObject;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -97,8 +101,12 @@ public class Command {
         }
         ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
 
-        if( system  instanceof LightingService ) {
+        if( system instanceof LightingService && command.equals("applyScene") ) {
+            results.addAll(executeScene((LightingService)system));
+        }
+        else if( system  instanceof LightingService ) {
             LightingService svc = (LightingService)system;
+            ArrayList<Light> lights = new ArrayList<Light>();
 
             for( Light light : svc.listLights() ) {
                 boolean included = (resourceIds == null);
@@ -112,6 +120,25 @@ public class Command {
                     }
                 }
                 if( included ) {
+                    lights.add(light);
+                }
+            }
+            Light group = null;
+
+            // the same command against many lights goes out once to a group so they change together
+            if( lights.size() > 1 && svc instanceof GroupLightingService ) {
+                ArrayList<String> ids = new ArrayList<String>();
+
+                for( Light light : lights ) {
+                    ids.add(light.getProviderId());
+                }
+                group = ((GroupLightingService)svc).getGroup(ids);
+            }
+            if( group != null ) {
+                results.add(executeLighting(group));
+            }
+            else {
+                for( Light light : lights ) {
                     results.add(executeLighting(light));
                 }
             }
@@ -153,15 +180,7 @@ public class Command {
 
                     colors = new Color[list.length()];
                     for( int i=0; i<list.length(); i++ ) {
-                        JSONObject c = list.getJSONObject(i);
-                        ColorMode mode = ColorMode.valueOf(c.getString("mode"));
-                        JSONArray parts = c.getJSONArray("components");
-                        float[] components = new float[parts.length()];
-
-                        for( int j=0; j<parts.length(); j++ ) {
-                            components[j] = (float)parts.getDouble(j);
-                        }
-                        colors[i] = new Color(mode, components);
+                        colors[i] = toColor(list.getJSONObject(i));
                     }
                 }
                 else {
@@ -174,15 +193,7 @@ public class Command {
                 Color color;
 
                 if( arguments.has("color") ) {
-                    JSONObject c = arguments.getJSONObject("color");
-                    ColorMode mode = ColorMode.valueOf(c.getString("mode"));
-                    JSONArray parts = c.getJSONArray("components");
-                    float[] components = new float[parts.length()];
-
-                    for( int j=0; j<parts.length(); j++ ) {
-                        components[j] = (float)parts.getDouble(j);
-                    }
-                    color = new Color(mode, components);
+                    color = toColor(arguments.getJSONObject("color"));
                 }
                 else {
                     throw new ControllerException("No color was specified for the color command");
@@ -232,6 +243,63 @@ public class Command {
         }
     }
 
+    /**
+     * Applies a scene described by the <code>lights</code> argument, which maps each resource ID to the color it
+     * should show or to null if it should be off. Services that store scenes apply it in one call, others light by
+     * light.
+     * @param svc the lighting service controlling the lights
+     * @return the pending results of applying the scene
+     * @throws CommunicationException an error occurred talking with the API
+     * @throws ControllerException the command was invalid
+     */
+    private @Nonnull ArrayList<Future<Boolean>> executeScene(@Nonnull LightingService svc) throws CommunicationException, ControllerException {
+        ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+        try {
+            if( arguments == null || !arguments.has("lights") ) {
+                throw new ControllerException("No lights were specified for the scene command");
+            }
+            JSONObject list = arguments.getJSONObject("lights");
+            TimePeriod<?> transition = null;
+            Scene scene = new Scene();
+
+            if( arguments.has("transitionTime") ) {
+                transition = TimePeriod.valueOf(arguments.getString("transitionTime"));
+            }
+            for( String id : resourceIds ) {
+                if( list.has(id) ) {
+                    scene.setLight(id, list.isNull(id) ? null : toColor(list.getJSONObject(id)));
+                }
+            }
+            Map<String,Color> targets = scene.getLights();
+
+            if( targets.isEmpty() ) {
+                return results;
+            }
+            if( svc instanceof SceneLightingService ) {
+                Future<Boolean> f = ((SceneLightingService)svc).recallScene(scene, transition);
+
+                if( f != null ) {
+                    results.add(f);
+                    return results;
+                }
+            }
+            for( Light light : svc.listLights() ) {
+                String id = light.getProviderId();
+
+                if( targets.containsKey(id) ) {
+                    Color color = targets.get(id);
+
+                    results.add(color == null ? light.flipOff() : light.changeColor(color, transition));
+                }
+            }
+            return results;
+        }
+        catch( JSONException e ) {
+            throw new ControllerException("Invalid JSON in command: " + e.getMessage());
+        }
+    }
+
     public @Nonnull String getCommandId() {
         return commandId;
     }
@@ -245,6 +313,17 @@ public class Command {
         });
     }
 
+    private @Nonnull Color toColor(@Nonnull JSONObject json) throws JSONException {
+        ColorMode mode = ColorMode.valueOf(json.getString("mode"));
+        JSONArray parts = json.getJSONArray("components");
+        float[] components = new float[parts.length()];
+
+        for( int j=0; j<parts.length(); j++ ) {
+            components[j] = (float)parts.getDouble(j);
+        }
+        return new Color(mode, components);
+    }
+
     private @Nonnull boolean[] waitFor(@Nonnull ArrayList<Future<Boolean>> threads) throws ControllerException, CommunicationException {
         boolean[] results = new boolean[threads.size()];
         long t = System.currentTimeMillis() + timeout;
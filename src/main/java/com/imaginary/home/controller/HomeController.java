@@ -51,11 +51,31 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 public class HomeController {
     static public final ExecutorService executorService = Executors.newCachedThreadPool();
 
+    /**
+     * Shared timer for short, non-blocking work that must happen later, such as the next step of a light effect
+     */
+    static public final ScheduledExecutorService timerService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "home-controller-timer");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * How long a state report waits for the home automation systems to describe their resources
+     */
+    static public final long LISTING_TIMEOUT = 10000L;
+
     static public final String COMMAND_FILE;
     static public final String CONFIG_FILE;
     static public final String SCHEDULER_FILE;
@@ -106,6 +126,7 @@ public class HomeController {
     private final LinkedList<CommandList>          commandQueue      = new LinkedList<CommandList>();
     private long                                   lastLoad          = 0L;
     private String                                 name;
+    private final ResourceCollector                resourceCollector = new ResourceCollector();
     private boolean                                running           = false;
     private TreeSet<ScheduledCommandList>          scheduler;
 
@@ -556,6 +577,16 @@ public class HomeController {
         }
     }
 
+    /**
+     * Lists the resources of every home automation system, asking all of them at once. Systems that fail or do not
+     * answer within the timeout are reported as such in the listing instead of failing it.
+     * @param timeout the number of milliseconds to wait for the systems to answer
+     * @return the resources of every system that answered, with the status of each system
+     */
+    public @Nonnull ResourceListing listResources(@Nonnegative long timeout) {
+        return resourceCollector.collect(listSystems(), timeout);
+    }
+
     public @Nonnull Iterable<ManagedResource> listResources() throws CommunicationException {
         ArrayList<ManagedResource> resources = new ArrayList<ManagedResource>();
 
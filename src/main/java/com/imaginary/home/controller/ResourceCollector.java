@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.controller;
+
+import com.imaginary.home.lighting.Light;
+import com.imaginary.home.lighting.LightingService;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asks every home automation system for its resources at the same time, so a listing takes as long as the slowest
+ * system rather than all of them added together, and no longer than the deadline. A system that misses the deadline
+ * keeps working in the background and its eventual answer is picked up by the next listing instead of that listing
+ * asking it all over again, so a hung system never ties up more than one thread.
+ */
+public class ResourceCollector {
+    private final ConcurrentHashMap<String,Future<List<Map<String,Object>>>> inFlight = new ConcurrentHashMap<String, Future<List<Map<String, Object>>>>();
+
+    public ResourceCollector() { }
+
+    /**
+     * Lists the resources of the specified systems.
+     * @param systems the systems to ask
+     * @param timeout the number of milliseconds to wait for the systems to answer
+     * @return the resources of every system that answered in time, with the status of each system
+     */
+    public @Nonnull ResourceListing collect(@Nonnull Collection<HomeAutomationSystem> systems, @Nonnegative long timeout) {
+        LinkedHashMap<String,Future<List<Map<String,Object>>>> pending = new LinkedHashMap<String, Future<List<Map<String, Object>>>>();
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+
+        for( final HomeAutomationSystem system : systems ) {
+            String id = system.getId();
+            Future<List<Map<String,Object>>> f = inFlight.get(id);
+
+            if( f == null ) {
+                FutureTask<List<Map<String,Object>>> task = new FutureTask<List<Map<String, Object>>>(new Callable<List<Map<String, Object>>>() {
+                    @Override
+                    public List<Map<String, Object>> call() throws Exception {
+                        return describe(system);
+                    }
+                });
+
+                f = inFlight.putIfAbsent(id, task);
+                if( f == null ) {
+                    f = task;
+                    HomeController.executorService.execute(task);
+                }
+            }
+            pending.put(id, f);
+        }
+        ResourceListing listing = new ResourceListing();
+
+        for( Map.Entry<String,Future<List<Map<String,Object>>>> entry : pending.entrySet() ) {
+            String id = entry.getKey();
+            Future<List<Map<String,Object>>> f = entry.getValue();
+
+            try {
+                List<Map<String,Object>> described = f.get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+                inFlight.remove(id, f);
+                listing.add(id, described, System.currentTimeMillis() - start);
+            }
+            catch( TimeoutException e ) {
+                listing.fail(id, ResourceListing.TIMEOUT, "No answer within " + timeout + "ms", System.currentTimeMillis() - start);
+            }
+            catch( ExecutionException e ) {
+                Throwable cause = (e.getCause() == null ? e : e.getCause());
+
+                inFlight.remove(id, f);
+                listing.fail(id, ResourceListing.ERROR, cause.getMessage(), System.currentTimeMillis() - start);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                listing.fail(id, ResourceListing.TIMEOUT, "Interrupted", System.currentTimeMillis() - start);
+            }
+        }
+        return listing;
+    }
+
+    private @Nonnull List<Map<String,Object>> describe(@Nonnull HomeAutomationSystem system) throws CommunicationException {
+        ArrayList<Map<String,Object>> described = new ArrayList<Map<String, Object>>();
+
+        if( system instanceof LightingService ) {
+            for( Light light : ((LightingService)system).listLights() ) {
+                HashMap<String,Object> map = new HashMap<String, Object>();
+
+                light.toMap(map);
+                described.add(map);
+            }
+        }
+        return described;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.controller;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The resources reported by every home automation system known to the controller, along with how each system
+ * fared. A system that failed or did not answer in time contributes no resources but does not stop the others from
+ * being reported.
+ */
+public class ResourceListing {
+    static public final String ERROR   = "error";
+    static public final String OK      = "ok";
+    static public final String TIMEOUT = "timeout";
+
+    static public class SystemStatus {
+        private final long   elapsed;
+        private final String message;
+        private final int    resourceCount;
+        private final String status;
+        private final String systemId;
+
+        SystemStatus(@Nonnull String systemId, @Nonnull String status, @Nullable String message, @Nonnegative int resourceCount, @Nonnegative long elapsed) {
+            this.systemId = systemId;
+            this.status = status;
+            this.message = message;
+            this.resourceCount = resourceCount;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return how long the system took to answer, or how long it was waited for, in milliseconds
+         */
+        public @Nonnegative long getElapsed() {
+            return elapsed;
+        }
+
+        public @Nullable String getMessage() {
+            return message;
+        }
+
+        public @Nonnegative int getResourceCount() {
+            return resourceCount;
+        }
+
+        /**
+         * @return one of {@link #OK}, {@link #ERROR} or {@link #TIMEOUT}
+         */
+        public @Nonnull String getStatus() {
+            return status;
+        }
+
+        public @Nonnull String getSystemId() {
+            return systemId;
+        }
+
+        public boolean isOk() {
+            return OK.equals(status);
+        }
+
+        public void toMap(@Nonnull Map<String,Object> map) {
+            map.put("systemId", systemId);
+            map.put("status", status);
+            map.put("resourceCount", resourceCount);
+            map.put("elapsed", elapsed);
+            if( message != null ) {
+                map.put("message", message);
+            }
+        }
+    }
+
+    private final ArrayList<Map<String,Object>> resources = new ArrayList<Map<String, Object>>();
+    private final ArrayList<SystemStatus>       systems   = new ArrayList<SystemStatus>();
+
+    public ResourceListing() { }
+
+    void add(@Nonnull String systemId, @Nonnull List<Map<String,Object>> described, @Nonnegative long elapsed) {
+        resources.addAll(described);
+        systems.add(new SystemStatus(systemId, OK, null, described.size(), elapsed));
+    }
+
+    void fail(@Nonnull String systemId, @Nonnull String status, @Nullable String message, @Nonnegative long elapsed) {
+        systems.add(new SystemStatus(systemId, status, message, 0, elapsed));
+    }
+
+    /**
+     * @return the IDs of the systems whose resources are missing from this listing
+     */
+    public @Nonnull TreeSet<String> getIncompleteSystems() {
+        TreeSet<String> ids = new TreeSet<String>();
+
+        for( SystemStatus s : systems ) {
+            if( !s.isOk() ) {
+                ids.add(s.getSystemId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the description of every resource reported, as produced by {@link ManagedResource#toMap(Map)}
+     */
+    public @Nonnull List<Map<String,Object>> getResources() {
+        return Collections.unmodifiableList(resources);
+    }
+
+    public @Nonnull List<SystemStatus> getSystems() {
+        return Collections.unmodifiableList(systems);
+    }
+
+    public boolean isComplete() {
+        for( SystemStatus s : systems ) {
+            if( !s.isOk() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the status of each system in a form suitable for JSON
+     */
+    public @Nonnull List<Map<String,Object>> toSystemMaps() {
+        ArrayList<Map<String,Object>> list = new ArrayList<Map<String, Object>>();
+
+        for( SystemStatus s : systems ) {
+            HashMap<String,Object> map = new HashMap<String, Object>();
+
+            s.toMap(map);
+            list.add(map);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.controller;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} completed explicitly by whoever does the work rather than by an executor. Used where the result
+ * of a call is tied to some later event, such as a queued write actually reaching a device.
+ */
+public class ResultFuture<T> implements Future<T> {
+    private volatile boolean     cancelled;
+    private volatile Throwable   error;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile T           result;
+
+    public ResultFuture() { }
+
+    /**
+     * Marks this future as cancelled if it has not yet completed. Whoever is doing the work should check
+     * {@link #isCancelled()} before starting it.
+     * @param mayInterruptIfRunning ignored, the work is never interrupted
+     * @return true if the future was cancelled
+     */
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if( isDone() ) {
+            return false;
+        }
+        cancelled = true;
+        latch.countDown();
+        return true;
+    }
+
+    /**
+     * Completes this future successfully.
+     * @param value the result of the work
+     * @return true if this call completed the future, false if it was already complete or cancelled
+     */
+    public synchronized boolean complete(@Nullable T value) {
+        if( isDone() ) {
+            return false;
+        }
+        result = value;
+        latch.countDown();
+        return true;
+    }
+
+    /**
+     * Completes this future with an error.
+     * @param t the reason the work failed
+     * @return true if this call completed the future, false if it was already complete or cancelled
+     */
+    public synchronized boolean fail(@Nonnull Throwable t) {
+        if( isDone() ) {
+            return false;
+        }
+        error = t;
+        latch.countDown();
+        return true;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if( !latch.await(timeout, unit) ) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if( cancelled ) {
+            throw new CancellationException();
+        }
+        if( error != null ) {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return (latch.getCount() == 0);
+    }
+}
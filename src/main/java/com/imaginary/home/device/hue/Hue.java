@@ -17,21 +17,35 @@ package com.imaginary.home.device.hue;
 
 import com.imaginary.home.controller.CommunicationException;
 import com.imaginary.home.controller.HomeAutomationSystem;
+import com.imaginary.home.lighting.Color;
 import com.imaginary.home.lighting.ColorMode;
+import com.imaginary.home.lighting.GroupLightingService;
 import com.imaginary.home.lighting.Light;
-import com.imaginary.home.lighting.LightingService;
+import com.imaginary.home.lighting.Scene;
+import com.imaginary.home.lighting.SceneLightingService;
 import org.apache.log4j.Logger;
+import org.dasein.util.uom.time.TimePeriod;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+public class Hue implements HomeAutomationSystem, GroupLightingService, SceneLightingService {
+    static private final ConcurrentHashMap<String,Logger> loggers = new ConcurrentHashMap<String, Logger>();
 
-public class Hue implements HomeAutomationSystem, LightingService {
     static private @Nonnull String getLastItem(@Nonnull String name) {
         int idx = name.lastIndexOf('.');
 
@@ -49,26 +63,40 @@ public class Hue implements HomeAutomationSystem, LightingService {
     }
 
     static public @Nonnull Logger getLogger(@Nonnull Class<?> cls, @Nonnull String type) {
-        String pkg = getLastItem(cls.getPackage().getName());
+        String key = type + ":" + cls.getName();
+        Logger logger = loggers.get(key);
 
-        if( pkg.equals("hue") ) {
-            pkg = "";
-        }
-        else {
-            pkg = pkg + ".";
+        if( logger == null ) {
+            String pkg = getLastItem(cls.getPackage().getName());
+
+            if( pkg.equals("hue") ) {
+                pkg = "";
+            }
+            else {
+                pkg = pkg + ".";
+            }
+            logger = Logger.getLogger("imaginary.hue." + type + "." + pkg + getLastItem(cls.getName()));
+            loggers.put(key, logger);
         }
-        return Logger.getLogger("imaginary.hue." + type + "." + pkg + getLastItem(cls.getName()));
+        return logger;
     }
 
     static public @Nonnull Logger getWireLogger(@Nonnull Class<?> cls) {
         return getLogger(cls, "wire");
     }
 
-    private String     accessKey;
-    private Properties customProperties;
-    private String     endpoint;
-    private String     id;
-    private String     ipAddress;
+    private String            accessKey;
+    private HueConnectionPool connectionPool;
+    private Properties        customProperties;
+    private String            endpoint;
+    private HueGroups         groups;
+    private String            id;
+    private HueInterceptor[]  interceptors;
+    private String            ipAddress;
+    private HueLightStates    lightStates;
+    private HueMetrics        metrics;
+    private HueScenes         scenes;
+    private HueWriteScheduler writeScheduler;
 
     public Hue() { }
 
@@ -88,11 +116,51 @@ public class Hue implements HomeAutomationSystem, LightingService {
         }
     }
 
+    /**
+     * Adds an interceptor around every call made against this bridge. Interceptors run in the order they were added,
+     * inside the built-in retry and metrics interceptors.
+     * @param interceptor the interceptor to add
+     */
+    public synchronized void addInterceptor(@Nonnull HueInterceptor interceptor) {
+        HueInterceptor[] current = getInterceptors();
+        HueInterceptor[] replacement = Arrays.copyOf(current, current.length + 1);
+
+        replacement[current.length] = interceptor;
+        interceptors = replacement;
+    }
+
+    /**
+     * Closes the pooled connections to the bridge. A new pool is created if this bridge is used again.
+     */
+    public synchronized void close() {
+        if( connectionPool != null ) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        lightStates = null;
+        groups = null;
+        scenes = null;
+        if( writeScheduler != null ) {
+            writeScheduler.shutdown();
+            writeScheduler = null;
+        }
+    }
+
     @Override
     public @Nonnull String getAPIEndpoint() {
         return endpoint;
     }
 
+    /**
+     * @return the bridge's built-in group of every light
+     * @throws HueException an error occurred talking to the bridge
+     */
+    public @Nonnull HueGroup getAllLights() throws HueException {
+        Set<String> ids = getLightStates().list().keySet();
+
+        return new HueGroup(this, "0", "All Lights", ids.toArray(new String[ids.size()]));
+    }
+
     @Override
     public @Nonnull Properties getAuthenticationProperties() {
         Properties p = new Properties();
@@ -101,15 +169,85 @@ public class Hue implements HomeAutomationSystem, LightingService {
         return p;
     }
 
+    /**
+     * @return the keep-alive connection pool shared by all calls against this bridge
+     */
+    public synchronized @Nonnull HueConnectionPool getConnectionPool() {
+        if( connectionPool == null ) {
+            connectionPool = new HueConnectionPool(customProperties == null ? new Properties() : customProperties);
+        }
+        return connectionPool;
+    }
+
     public @Nonnull Properties getCustomProperties() {
         return customProperties;
     }
 
+    @Override
+    public @Nullable Light getGroup(@Nonnull Collection<String> lightIds) throws CommunicationException {
+        return getGroups().getGroup(lightIds);
+    }
+
+    /**
+     * @return the interceptors wrapping calls against this bridge, outermost first
+     */
+    public synchronized @Nonnull HueInterceptor[] getInterceptors() {
+        if( interceptors == null ) {
+            interceptors = new HueInterceptor[] { new HueRetryInterceptor((int)getNumber("retries", HueRetryInterceptor.DEFAULT_RETRIES), 100L), getMetrics() };
+        }
+        return interceptors;
+    }
+
+    /**
+     * @return the mapping of light sets onto bridge groups for this bridge
+     */
+    public synchronized @Nonnull HueGroups getGroups() {
+        if( groups == null ) {
+            groups = new HueGroups(this, (int)getNumber("groupThreshold", HueGroups.DEFAULT_THRESHOLD), (int)getNumber("maxGroups", HueGroups.DEFAULT_MAX_GROUPS));
+        }
+        return groups;
+    }
+
     @Override
     public @Nonnull String getId() {
         return id;
     }
 
+    /**
+     * @return the snapshot of light states shared by all bulbs on this bridge
+     */
+    public synchronized @Nonnull HueLightStates getLightStates() {
+        if( lightStates == null ) {
+            lightStates = new HueLightStates(this, (long)getNumber("stateTtl", HueLightStates.DEFAULT_TTL));
+        }
+        return lightStates;
+    }
+
+    /**
+     * @return request counts and latency against this bridge by method and resource
+     */
+    public synchronized @Nonnull HueMetrics getMetrics() {
+        if( metrics == null ) {
+            metrics = new HueMetrics();
+        }
+        return metrics;
+    }
+
+    private double getNumber(@Nonnull String property, double defaultValue) {
+        String value = (customProperties == null ? null : customProperties.getProperty(property));
+
+        if( value == null || value.trim().length() < 1 ) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            getLogger(Hue.class).warn("Ignoring invalid " + property + ": " + value);
+            return defaultValue;
+        }
+    }
+
     @Override
     public @Nonnull String getName() {
         return "Hue";
@@ -120,8 +258,29 @@ public class Hue implements HomeAutomationSystem, LightingService {
         return "Philips";
     }
 
+    /**
+     * @return the scenes stored on this bridge on behalf of the controller
+     */
+    public synchronized @Nonnull HueScenes getScenes() {
+        if( scenes == null ) {
+            scenes = new HueScenes(this, (int)getNumber("maxScenes", HueScenes.DEFAULT_MAX_SCENES));
+        }
+        return scenes;
+    }
+
+    /**
+     * @return the scheduler through which all light state changes on this bridge are sent
+     */
+    public synchronized @Nonnull HueWriteScheduler getWriteScheduler() {
+        if( writeScheduler == null ) {
+            writeScheduler = new HueWriteScheduler(this, getNumber("writeRate", HueWriteScheduler.DEFAULT_RATE), (int)getNumber("writeBurst", HueWriteScheduler.DEFAULT_BURST));
+        }
+        return writeScheduler;
+    }
+
     @Override
     public void init(@Nonnull String id, @Nonnull Properties auth, @Nonnull Properties custom) {
+        close();
         this.id = id;
         accessKey = auth.getProperty("accessKey", "");
         ipAddress = auth.getProperty("ipAddress");
@@ -136,22 +295,19 @@ public class Hue implements HomeAutomationSystem, LightingService {
 
     @Override
     public @Nonnull Iterable<Light> listLights() throws CommunicationException {
-        HueMethod method = new HueMethod(this);
-
-        JSONObject list = method.get("lights");
+        Map<String,JSONObject> list = getLightStates().list();
 
-        if( list == null ) {
+        if( list.isEmpty() ) {
             return Collections.emptyList();
         }
         ArrayList<Light> matches = new ArrayList<Light>();
 
-        for( String id : JSONObject.getNames(list) ) {
+        for( Map.Entry<String,JSONObject> entry : list.entrySet() ) {
             try {
-                JSONObject item = list.getJSONObject(id);
-                String name = (item.has("name") ? item.getString("name") : id);
+                JSONObject item = entry.getValue();
+                String name = (item.has("name") ? item.getString("name") : entry.getKey());
 
-
-                matches.add(new HueBulb(this, id, name));
+                matches.add(new HueBulb(this, entry.getKey(), name));
             }
             catch( JSONException e ) {
                 throw new HueException(e);
@@ -160,6 +316,38 @@ public class Hue implements HomeAutomationSystem, LightingService {
         return matches;
     }
 
+    @Override
+    public @Nullable Future<Boolean> recallScene(@Nonnull Scene scene, @Nullable TimePeriod<?> transitionTime) throws CommunicationException {
+        long millis = (transitionTime == null ? 0L : transitionTime.convertTo(TimePeriod.MILLISECOND).longValue());
+        TreeMap<String,Map<String,Object>> states = new TreeMap<String, Map<String, Object>>();
+
+        for( Map.Entry<String,Color> light : scene.getLights().entrySet() ) {
+            Color color = light.getValue();
+            Map<String,Object> state;
+
+            if( color == null ) {
+                state = new HashMap<String, Object>();
+                state.put("on", false);
+                if( millis >= 100 ) {
+                    state.put("transitiontime", millis/100);
+                }
+            }
+            else {
+                state = HueBulb.getColorState(color, millis);
+            }
+            states.put(light.getKey(), state);
+        }
+        if( states.isEmpty() ) {
+            return null;
+        }
+        String sceneId = getScenes().getSceneId(states);
+
+        if( sceneId == null ) {
+            return null;
+        }
+        return getWriteScheduler().submitScene(sceneId, states.keySet().toArray(new String[states.size()]));
+    }
+
     private String generateKey() {
         StringBuilder str = new StringBuilder();
         Random random = new Random();
@@ -195,6 +383,13 @@ public class Hue implements HomeAutomationSystem, LightingService {
         return modes;
     }
 
+    /**
+     * @return true unless the <code>nativeTransitions</code> custom property turns off the bridge's own transitions
+     */
+    public boolean supportsNativeTransitions() {
+        return (customProperties == null || !customProperties.getProperty("nativeTransitions", "true").equalsIgnoreCase("false"));
+    }
+
     @Override
     public @Nonnull Properties pair(@Nonnull String applicationName) throws CommunicationException {
         HueMethod method = new HueMethod(this);
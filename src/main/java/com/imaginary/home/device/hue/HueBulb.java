@@ -18,9 +18,12 @@ package com.imaginary.home.device.hue;
 import com.imaginary.home.controller.CommunicationException;
 import com.imaginary.home.controller.ControllerException;
 import com.imaginary.home.controller.HomeController;
+import com.imaginary.home.controller.ResultFuture;
 import com.imaginary.home.lighting.Color;
 import com.imaginary.home.lighting.ColorMode;
+import com.imaginary.home.lighting.EffectsEngine;
 import com.imaginary.home.lighting.Light;
+import com.imaginary.home.lighting.StrobeEffect;
 import org.apache.log4j.Logger;
 import org.dasein.util.uom.time.TimePeriod;
 import org.json.JSONArray;
@@ -34,51 +37,26 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class HueBulb implements Light {
     static public final Logger logger = Hue.getLogger(HueBulb.class);
 
-    private String bulbId;
-    private Hue    hue;
-    private String name;
-
-    public HueBulb(@Nonnull Hue hue, @Nonnull String id, @Nonnull String name) {
-        bulbId = id;
-        this.hue = hue;
-        this.name = name;
-    }
-
-    @Override
-    public @Nonnull Future<Boolean> changeColor(final @Nonnull Color newColor, final @Nullable TimePeriod<?> transitionTime) {
-        return HomeController.executorService.submit(new Callable<Boolean>() {
-            @Override
-            public Boolean call() throws HueException {
-                long millis = (transitionTime == null ? 0L : transitionTime.convertTo(TimePeriod.MILLISECOND).longValue());
-
-                return changeColor(newColor, millis);
-            }
-        });
-    }
-
-    @Override
-    public @Nonnull Future<Boolean> changeColorCIEXYZ(@Nonnegative float x, @Nonnegative float y, @Nullable TimePeriod<?> transitionTime) throws CommunicationException {
-        return changeColor(new Color(ColorMode.CIEXYZ, x, y, 1.0f-(x+y)), transitionTime);
-    }
-
-    @Override
-    public @Nonnull Future<Boolean> changeColorHSV(@Nonnegative float hue, @Nonnegative float saturation, @Nullable TimePeriod<?> transitionTime) throws CommunicationException {
-        return changeColor(new Color(ColorMode.HSV, hue, saturation), transitionTime);
-    }
-
-    @Override
-    public @Nonnull Future<Boolean> changeColorRGB(@Nonnegative float red, @Nonnegative float green, @Nonnegative float blue, @Nullable TimePeriod<?> transitionTime) throws CommunicationException {
-        return changeColor(new Color(ColorMode.RGB, red, green, blue), transitionTime);
-    }
-
-    private boolean changeColor(@Nonnull Color newColor, @Nonnegative long millis) throws HueException {
+    /**
+     * The longest transition the bridge accepts, in 100ms units
+     */
+    static private final long MAX_TRANSITION_TIME = 65535L;
+
+    /**
+     * Translates a color into the bridge state attributes that set it.
+     * @param newColor the target color, where a third {@link ColorMode#HSV} component is taken as brightness
+     * @param millis the transition time in milliseconds
+     * @return the state attributes to write
+     */
+    static @Nonnull Map<String,Object> getColorState(@Nonnull Color newColor, @Nonnegative long millis) {
         Map<String,Object> state = new HashMap<String,Object>();
-        String resource = "lights/" + bulbId + "/state";
         float[] components = newColor.getComponents();
 
         if( millis >= 100 ) {
@@ -104,6 +82,9 @@ public class HueBulb implements Light {
 
             state.put("hue", (int)(182.04 * h));
             state.put("sat", (s * 254)/100);
+            if( components.length > 2 ) {
+                state.put("bri", (int)(Math.min(100f, Math.max(0f, components[2]))*254/100));
+            }
         }
         else if( newColor.getColorMode().equals(ColorMode.CT) ) {
             state.put("ct", (int)components[0]);
@@ -121,36 +102,95 @@ public class HueBulb implements Light {
                         
             state.put("xy", new float[] { x, y });
         }
-        HueMethod method = new HueMethod(hue);
+        return state;
+    }
 
-        method.put(resource, new JSONObject(state));
-        return true;
+    /**
+     * One step of a fade on a bridge without native transitions. Each step queues its write and schedules the
+     * next on the shared timer, so a stepped fade holds no thread between steps.
+     */
+    private class FadeStep implements Runnable {
+        private final int                   currentBrightness;
+        private final long                  interval;
+        private final ResultFuture<Boolean> result;
+        private int                         step;
+        private final int                   steps;
+        private final int                   targetBrightness;
+
+        FadeStep(int currentBrightness, int targetBrightness, @Nonnegative long millis, @Nonnull ResultFuture<Boolean> result) {
+            int distance = Math.abs(targetBrightness - currentBrightness);
+
+            this.currentBrightness = currentBrightness;
+            this.targetBrightness = targetBrightness;
+            this.result = result;
+            steps = (int)Math.max(1L, Math.min(distance, millis/100L));
+            interval = Math.max(100L, millis/steps);
+        }
+
+        @Override
+        public void run() {
+            if( result.isCancelled() ) {
+                return;
+            }
+            Map<String,Object> state = new HashMap<String,Object>();
+
+            step++;
+            if( step == steps && targetBrightness == 0 ) {
+                state.put("on", false);
+            }
+            else {
+                state.put("bri", currentBrightness + ((targetBrightness - currentBrightness) * step)/steps);
+            }
+            submit(state);
+            if( step < steps ) {
+                HomeController.timerService.schedule(this, interval, TimeUnit.MILLISECONDS);
+            }
+            else {
+                result.complete(true);
+            }
+        }
+    }
+
+    private String bulbId;
+    private Hue    hue;
+    private String name;
+
+    public HueBulb(@Nonnull Hue hue, @Nonnull String id, @Nonnull String name) {
+        bulbId = id;
+        this.hue = hue;
+        this.name = name;
     }
 
     @Override
-    public @Nonnull Future<Boolean> changeWhite(final @Nonnegative int warmthInMireds, final @Nonnegative float brightness, final @Nullable TimePeriod<?> transitionTime) {
-        return HomeController.executorService.submit(new Callable<Boolean>() {
-            @Override
-            public Boolean call() throws HueException {
-                long millis = (transitionTime == null ? 0L : transitionTime.convertTo(TimePeriod.MILLISECOND).longValue());
+    public @Nonnull Future<Boolean> changeColor(@Nonnull Color newColor, @Nullable TimePeriod<?> transitionTime) {
+        long millis = (transitionTime == null ? 0L : transitionTime.convertTo(TimePeriod.MILLISECOND).longValue());
 
-                return changeWhite(warmthInMireds, brightness, millis);
-            }
-        });
+        return submit(getColorState(newColor, millis));
+    }
+
+    @Override
+    public @Nonnull Future<Boolean> changeColorCIEXYZ(@Nonnegative float x, @Nonnegative float y, @Nullable TimePeriod<?> transitionTime) throws CommunicationException {
+        return changeColor(new Color(ColorMode.CIEXYZ, x, y, 1.0f-(x+y)), transitionTime);
     }
 
-    private boolean changeWhite(int warmth, float brightness, @Nonnegative long millis) throws HueException {
-        return changeColor(new Color(ColorMode.CT, warmth, brightness), millis);
+    @Override
+    public @Nonnull Future<Boolean> changeColorHSV(@Nonnegative float hue, @Nonnegative float saturation, @Nullable TimePeriod<?> transitionTime) throws CommunicationException {
+        return changeColor(new Color(ColorMode.HSV, hue, saturation), transitionTime);
+    }
+
+    @Override
+    public @Nonnull Future<Boolean> changeColorRGB(@Nonnegative float red, @Nonnegative float green, @Nonnegative float blue, @Nullable TimePeriod<?> transitionTime) throws CommunicationException {
+        return changeColor(new Color(ColorMode.RGB, red, green, blue), transitionTime);
+    }
+
+    @Override
+    public @Nonnull Future<Boolean> changeWhite(@Nonnegative int warmthInMireds, @Nonnegative float brightness, @Nullable TimePeriod<?> transitionTime) {
+        return changeColor(new Color(ColorMode.CT, warmthInMireds, brightness), transitionTime);
     }
 
     @Override
     public @Nonnull Future<Boolean> fadeOff(final @Nonnull  TimePeriod<?> transitionTime) throws CommunicationException {
-        return HomeController.executorService.submit(new Callable<Boolean>() {
-            @Override
-            public Boolean call() throws CommunicationException {
-                return fade(transitionTime, 0);
-            }
-        });
+        return fade(transitionTime, 0);
     }
 
     @Override
@@ -160,19 +200,38 @@ public class HueBulb implements Light {
 
     @Override
     public @Nonnull Future<Boolean> fadeOn(final @Nonnull TimePeriod<?> transitionTime, final @Nonnegative float targetBrightness) {
-        return HomeController.executorService.submit(new Callable<Boolean>() {
+        return fade(transitionTime, (int)((targetBrightness*254)/100));
+    }
+
+    /**
+     * Fades the bulb to the specified brightness. The fade is handed to the bridge as a native transition, split
+     * into as many writes as the bridge's maximum transition time requires, so a fade of any length costs a
+     * constant number of requests and holds no thread while it runs. Bridges configured without native transitions
+     * (<code>nativeTransitions=false</code>) are stepped from the shared controller timer instead.
+     * @param transitionTime the time over which the fade occurs
+     * @param targetBrightness the target brightness from 0 to 254, 0 meaning the bulb ends up off
+     * @return a future that completes once the fade has finished, with false if there was nothing to do
+     */
+    private @Nonnull Future<Boolean> fade(final @Nonnull TimePeriod<?> transitionTime, final int targetBrightness) {
+        final ResultFuture<Boolean> result = new ResultFuture<Boolean>();
+
+        HomeController.executorService.submit(new Runnable() {
             @Override
-            public Boolean call() throws CommunicationException {
-                return fade(transitionTime, (int)((targetBrightness*254)/100));
+            public void run() {
+                try {
+                    startFade(transitionTime.convertTo(TimePeriod.MILLISECOND).longValue(), Math.min(254, Math.max(0, targetBrightness)), result);
+                }
+                catch( Throwable t ) {
+                    logger.error("Fade failed for " + bulbId + ": " + t.getMessage());
+                    result.fail(t);
+                }
             }
         });
+        return result;
     }
 
-    private @Nonnegative boolean fade(@Nonnull TimePeriod<?> transitionTime, @Nonnegative int targetBrightness) throws CommunicationException {
-        logger.debug("Fading to " + targetBrightness + " over " + transitionTime + " for " + bulbId);
-        if( targetBrightness < 0 ) {
-            targetBrightness = 0;
-        }
+    private void startFade(@Nonnegative long millis, @Nonnegative int targetBrightness, @Nonnull ResultFuture<Boolean> result) throws CommunicationException {
+        logger.debug("Fading to " + targetBrightness + " over " + millis + "ms for " + bulbId);
         int currentBrightness = (int)((getBrightness()*254)/100);
         boolean on = isOn();
 
@@ -180,112 +239,61 @@ public class HueBulb implements Light {
             if( logger.isDebugEnabled() ) {
                 logger.debug("Nothing to do for " + bulbId);
             }
-            return false;
+            result.complete(false);
+            return;
         }
         if( !on ) {
+            Map<String,Object> state = new HashMap<String,Object>();
+
             logger.debug("Bulb is currently off");
             currentBrightness = 0;
+            state.put("on", true);
+            state.put("bri", 0);
+            write(state);
         }
-        if( logger.isDebugEnabled() ) {
-            logger.debug(bulbId + ".currentBrightness=" + currentBrightness);
-        }
-        int distance;
-
-        if( targetBrightness == 0 ) {
-            distance = currentBrightness;
-        }
-        else if( targetBrightness > currentBrightness ) {
-            distance = targetBrightness - currentBrightness;
+        if( hue.supportsNativeTransitions() ) {
+            fadeNatively(currentBrightness, targetBrightness, millis, result);
         }
         else {
-            distance = currentBrightness - targetBrightness;
+            HomeController.timerService.execute(new FadeStep(currentBrightness, targetBrightness, millis, result));
         }
-        if( logger.isDebugEnabled() ) {
-            logger.debug(bulbId + ".distance=" + distance);
-        }
-        int conversionTime = transitionTime.convertTo(TimePeriod.MILLISECOND).intValue()/100;
-        Map<String,Object> state = new HashMap<String,Object>();
-        long startTimestamp = System.currentTimeMillis();
-        String resource = "lights/" + bulbId + "/state";
-        HueMethod method = new HueMethod(hue);
+    }
 
-        if( conversionTime < 1 ) {
-            conversionTime = 1;
-        }
-        if( !on ) {
-            state.put("on", true);
-            state.put("bri", 0);
-            if( logger.isDebugEnabled() ) {
-                logger.debug("Turning " + bulbId + " on...");
-            }
-            try {
-                method.put(resource, new JSONObject(state));
-            }
-            catch( Throwable t ) {
-                t.printStackTrace();
-            }
-        }
+    private void fadeNatively(int currentBrightness, int targetBrightness, @Nonnegative long millis, final @Nonnull ResultFuture<Boolean> result) throws HueException {
+        long units = Math.max(1L, millis/100L);
+        int chunks = (int)((units + MAX_TRANSITION_TIME - 1)/MAX_TRANSITION_TIME);
+        long delay = 0L;
 
-        int interval = 100;
-        int step = 1;
+        for( int i=1; i<=chunks; i++ ) {
+            long chunkUnits = (i < chunks ? MAX_TRANSITION_TIME : units - (MAX_TRANSITION_TIME * (chunks-1)));
+            final Map<String,Object> state = new HashMap<String,Object>();
 
-        if( conversionTime < distance ) {
-            step = distance/conversionTime;
-        }
-        else {
-            interval = (conversionTime/distance) * 100;
-        }
-        if( logger.isDebugEnabled() ) {
-            logger.debug(bulbId + " -> interval + =" + interval + ", step=" + step);
-        }
-        int stepCount = distance/step;
-        if( logger.isDebugEnabled() ) {
-            logger.debug(bulbId + ".stepCount=" + stepCount);
-        }
-        if( targetBrightness < currentBrightness ) {
-            step = -step;
-        }
-        state.clear();
-        for( int i=0; i<stepCount; i++ ) {
-            try { Thread.sleep(interval); }
-            catch( InterruptedException ignore ) { }
-            // adjust for slow network
-            int actual = (int)(System.currentTimeMillis()-startTimestamp)/interval;
-            int bri = currentBrightness + (actual*step);
-
-            if( bri <= 254 && bri >= 0 ) {
-                state.put("bri", bri);
-                if( logger.isTraceEnabled() ) {
-                    logger.debug(bulbId + " -> setting brightness to " + bri);
-                }
-                try { method.put(resource, new JSONObject(state)); }
-                catch( HueException ignore ) { }
+            state.put("transitiontime", chunkUnits);
+            if( i == chunks && targetBrightness == 0 ) {
+                state.put("on", false);
             }
-            if( bri == targetBrightness ) {
-                break;
+            else {
+                state.put("bri", currentBrightness + ((targetBrightness - currentBrightness) * i)/chunks);
             }
-        }
-        if( getBrightness() != targetBrightness ) {
-            if( logger.isDebugEnabled() ) {
-                logger.debug(bulbId + " -> cleaning up");
+            if( delay == 0L ) {
+                write(state);
             }
-            state.clear();
-            state.put("bri", targetBrightness);
-            try { method.put(resource, new JSONObject(state)); }
-            catch( HueException ignore ) { }
-        }
-        if( targetBrightness == 0 ) {
-            if( logger.isDebugEnabled() ) {
-                logger.debug(bulbId + " -> turning off");
+            else {
+                HomeController.timerService.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        submit(state);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
             }
-            flip(false);
-        }
-        int brightness = (int)((getBrightness()*254)/100);
-
-        if( logger.isDebugEnabled() ) {
-            logger.debug(bulbId + ".brightness=" + brightness);
+            delay += chunkUnits * 100L;
         }
-        return true;
+        HomeController.timerService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.complete(true);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -315,19 +323,13 @@ public class HueBulb implements Light {
         Map<String,Object> state = new HashMap<String,Object>();
 
         state.put("on", on);
-        String resource = "lights/" + bulbId + "/state";
-        HueMethod method = new HueMethod(hue);
-
-        method.put(resource, new JSONObject(state));
+        write(state);
         return true;
     }
 
     @Override
     public @Nonnegative float getBrightness() throws CommunicationException {
-        String resource = "lights/" + bulbId;
-        HueMethod method = new HueMethod(hue);
-
-        JSONObject json = method.get(resource);
+        JSONObject json = getState();
 
         if( json == null || !json.has("state") ) {
             return 0;
@@ -347,10 +349,7 @@ public class HueBulb implements Light {
 
     @Override
     public @Nonnull Color getColor() throws CommunicationException {
-        String resource = "lights/" + bulbId;
-        HueMethod method = new HueMethod(hue);
-
-        JSONObject json = method.get(resource);
+        JSONObject json = getState();
 
         if( json == null || !json.has("state") ) {
             return new Color(ColorMode.CIEXYZ, 0.4448f, 0.4066f);
@@ -389,10 +388,7 @@ public class HueBulb implements Light {
 
     @Override
     public @Nonnull ColorMode getColorMode() throws CommunicationException {
-        String resource = "lights/" + bulbId;
-        HueMethod method = new HueMethod(hue);
-
-        JSONObject json = method.get(resource);
+        JSONObject json = getState();
 
         if( json == null || !json.has("state") ) {
             return ColorMode.CIEXYZ;
@@ -420,10 +416,7 @@ public class HueBulb implements Light {
 
     @Override
     public @Nullable String getModel() throws CommunicationException {
-        String resource = "lights/" + bulbId;
-        HueMethod method = new HueMethod(hue);
-
-        JSONObject json = method.get(resource);
+        JSONObject json = getState();
 
         if( json == null || !json.has("modelid") ) {
             return null;
@@ -436,6 +429,10 @@ public class HueBulb implements Light {
         }
     }
 
+    protected @Nonnull Hue getHue() {
+        return hue;
+    }
+
     @Override
     public @Nonnull String getName() {
         return name;
@@ -446,12 +443,17 @@ public class HueBulb implements Light {
         return bulbId;
     }
 
+    /**
+     * @return the bridge's current description of this light, including its <code>state</code>
+     * @throws HueException an error occurred talking to the bridge
+     */
+    protected @Nullable JSONObject getState() throws HueException {
+        return hue.getLightStates().getLight(bulbId);
+    }
+
     @Override
     public boolean isOn() throws CommunicationException {
-        String resource = "lights/" + bulbId;
-        HueMethod method = new HueMethod(hue);
-
-        JSONObject json = method.get(resource);
+        JSONObject json = getState();
 
         if( json == null || !json.has("state") ) {
             return false;
@@ -466,31 +468,13 @@ public class HueBulb implements Light {
         }
     }
 
+    /**
+     * Strobes through the specified colors on the shared {@link EffectsEngine}. The strobe holds no thread of its
+     * own and runs until its duration passes or the returned effect is cancelled.
+     */
     @Override
-    public Future<Boolean> strobe(final @Nonnull TimePeriod<?> interval, final @Nullable TimePeriod<?> duration, final @Nonnull Color ... colors) throws CommunicationException {
-        return HomeController.executorService.submit(new Callable<Boolean>() {
-            @Override
-            public Boolean call() throws HueException {
-                long end = (duration == null ? 0L : (System.currentTimeMillis() + duration.convertTo(TimePeriod.MILLISECOND).longValue()));
-                long millis = interval.convertTo(TimePeriod.MILLISECOND).longValue();
-                int currentColor = 0;
-
-                if( millis < 100 ) {
-                    millis = 100;
-                }
-                while( end < 1 || System.currentTimeMillis() < end ) {
-                    Color color = colors[currentColor++];
-
-                    if( currentColor >= colors.length ) {
-                        currentColor = 0;
-                    }
-                    changeColor(color, null);
-                    try { Thread.sleep(millis); }
-                    catch( InterruptedException ignore ) { }
-                }
-                return true;
-            }
-        });
+    public @Nonnull Future<Boolean> strobe(@Nonnull TimePeriod<?> interval, @Nullable TimePeriod<?> duration, @Nonnull Color ... colors) {
+        return EffectsEngine.getInstance().start(new StrobeEffect(interval, duration, colors, this));
     }
 
     @Override
@@ -510,10 +494,7 @@ public class HueBulb implements Light {
 
     @Override
     public void toMap(@Nonnull Map<String,Object> map) throws CommunicationException {
-        String resource = "lights/" + bulbId;
-        HueMethod method = new HueMethod(hue);
-
-        JSONObject json = method.get(resource);
+        JSONObject json = getState();
 
         if( json == null || !json.has("state") ) {
             throw new CommunicationException("No state found for " + bulbId);
@@ -577,4 +558,38 @@ public class HueBulb implements Light {
     public String toString() {
         return (name + " [#" + bulbId + "]");
     }
+
+    /**
+     * Queues a state change for this light with the bridge's write scheduler.
+     * @param state the state attributes to change
+     * @return a future that completes when the change reaches the bridge
+     */
+    protected @Nonnull Future<Boolean> submit(@Nonnull Map<String,Object> state) {
+        return hue.getWriteScheduler().submit(bulbId, state);
+    }
+
+    /**
+     * Sends a state change through the bridge's write scheduler and waits for it to reach the bridge.
+     * @param state the state attributes to change
+     * @throws HueException the bridge rejected the change or could not be reached
+     */
+    private void write(@Nonnull Map<String,Object> state) throws HueException {
+        Future<Boolean> result = submit(state);
+
+        try {
+            result.get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new HueException(e);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof HueException ) {
+                throw (HueException)cause;
+            }
+            throw new HueException(cause == null ? e : cause);
+        }
+    }
 }
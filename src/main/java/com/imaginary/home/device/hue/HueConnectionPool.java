@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connection pool shared by every {@link HueMethod} against a single bridge. The bridge accepts only a
+ * handful of simultaneous connections, so the pool is small and bounded rather than one fresh connection per call.
+ * The pool also tracks request latency and how often a pooled connection was reused rather than opened.
+ * <p>Supported custom properties: <code>maxConnections</code> (default 4), <code>connectTimeout</code> (ms, default
+ * 5000), <code>socketTimeout</code> (ms, default 10000) and the existing <code>proxyHost</code>/<code>proxyPort</code>.</p>
+ */
+public class HueConnectionPool {
+    static public final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    static public final int DEFAULT_MAX_CONNECTIONS = 4;
+    static public final int DEFAULT_SOCKET_TIMEOUT  = 10000;
+
+    /**
+     * Pooled connections idle longer than this are closed before the bridge drops them on its own
+     */
+    static private final long IDLE_TIMEOUT = 30000L;
+
+    static private int getInt(@Nonnull Properties properties, @Nonnull String name, int defaultValue) {
+        String value = properties.getProperty(name);
+
+        if( value == null || value.trim().length() < 1 ) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch( NumberFormatException e ) {
+            Hue.getLogger(HueConnectionPool.class).warn("Ignoring invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    private final DefaultHttpClient              client;
+    private final AtomicLong                     failures   = new AtomicLong(0L);
+    private final PoolingClientConnectionManager manager;
+    private final AtomicLong                     maxNanos   = new AtomicLong(0L);
+    private final AtomicLong                     opened     = new AtomicLong(0L);
+    private final AtomicLong                     requests   = new AtomicLong(0L);
+    private final AtomicLong                     reused     = new AtomicLong(0L);
+    private final AtomicLong                     totalNanos = new AtomicLong(0L);
+
+    public HueConnectionPool(@Nonnull Properties customProperties) {
+        int maxConnections = Math.max(1, getInt(customProperties, "maxConnections", DEFAULT_MAX_CONNECTIONS));
+        HttpParams params = new BasicHttpParams();
+
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        //noinspection deprecation
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        HttpProtocolParams.setUserAgent(params, "Imaginary Home");
+        HttpConnectionParams.setConnectionTimeout(params, getInt(customProperties, "connectTimeout", DEFAULT_CONNECT_TIMEOUT));
+        HttpConnectionParams.setSoTimeout(params, getInt(customProperties, "socketTimeout", DEFAULT_SOCKET_TIMEOUT));
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+
+        String proxyHost = customProperties.getProperty("proxyHost");
+        String proxyPort = customProperties.getProperty("proxyPort");
+
+        if( proxyHost != null ) {
+            int port = 0;
+
+            if( proxyPort != null && proxyPort.length() > 0 ) {
+                port = Integer.parseInt(proxyPort);
+            }
+            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, "http"));
+        }
+        manager = new PoolingClientConnectionManager(SchemeRegistryFactory.createDefault());
+        manager.setMaxTotal(maxConnections);
+        manager.setDefaultMaxPerRoute(maxConnections);
+        client = new DefaultHttpClient(manager, params);
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                HttpConnection conn = (HttpConnection)context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                HttpConnectionMetrics metrics = (conn == null ? null : conn.getMetrics());
+
+                // the request count is bumped after the request goes out, so anything non-zero is a reused connection
+                if( metrics != null && metrics.getRequestCount() > 0 ) {
+                    reused.incrementAndGet();
+                }
+                else {
+                    opened.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes every pooled connection. The pool cannot be used afterwards.
+     */
+    public void close() {
+        manager.shutdown();
+    }
+
+    public @Nonnegative int getAvailableConnections() {
+        return manager.getTotalStats().getAvailable();
+    }
+
+    public @Nonnull DefaultHttpClient getClient() {
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        return client;
+    }
+
+    /**
+     * @return the mean latency of requests against the bridge in milliseconds
+     */
+    public double getAverageLatency() {
+        long count = requests.get();
+
+        return (count < 1 ? 0d : (totalNanos.get()/(double)count)/1000000d);
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public @Nonnegative int getLeasedConnections() {
+        return manager.getTotalStats().getLeased();
+    }
+
+    /**
+     * @return the slowest request against the bridge in milliseconds
+     */
+    public double getMaxLatency() {
+        return maxNanos.get()/1000000d;
+    }
+
+    public @Nonnegative int getMaxConnections() {
+        return manager.getMaxTotal();
+    }
+
+    public long getOpenedConnections() {
+        return opened.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getReusedConnections() {
+        return reused.get();
+    }
+
+    /**
+     * @return the fraction of requests that went out over an already open connection
+     */
+    public double getReuseRate() {
+        long total = reused.get() + opened.get();
+
+        return (total < 1 ? 0d : reused.get()/(double)total);
+    }
+
+    /**
+     * Records the outcome of a single request against the bridge.
+     * @param nanos how long the request took
+     * @param success true if a response came back, false if the request failed with an I/O error
+     */
+    void record(@Nonnegative long nanos, boolean success) {
+        requests.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        if( !success ) {
+            failures.incrementAndGet();
+        }
+        long max = maxNanos.get();
+
+        while( nanos > max && !maxNanos.compareAndSet(max, nanos) ) {
+            max = maxNanos.get();
+        }
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "requests=" + getRequests() + ", failures=" + getFailures() + ", avgLatency=" + String.format("%.1f", getAverageLatency()) + "ms, maxLatency=" + String.format("%.1f", getMaxLatency()) + "ms, opened=" + getOpenedConnections() + ", reused=" + getReusedConnections() + ", leased=" + getLeasedConnections() + "/" + getMaxConnections();
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Adds latency to and fails a share of the requests against a bridge, for testing how the driver behaves against a
+ * slow or unreliable bridge. Injected failures look like I/O errors, so they are retried like real ones. Not
+ * installed unless added with {@link Hue#addInterceptor(HueInterceptor)}.
+ */
+public class HueFaultInjector implements HueInterceptor {
+    private final long   delay;
+    private final double failureRate;
+    private final Random random = new Random();
+
+    /**
+     * Constructs a fault injector.
+     * @param failureRate the fraction of requests to fail, from 0.0 to 1.0
+     * @param delay milliseconds to add to every request
+     */
+    public HueFaultInjector(@Nonnegative double failureRate, @Nonnegative long delay) {
+        this.failureRate = failureRate;
+        this.delay = delay;
+    }
+
+    @Override
+    public @Nonnull HueResponse intercept(@Nonnull HueRequest request, @Nonnull Chain chain) throws HueException {
+        if( delay > 0L ) {
+            try {
+                Thread.sleep(delay);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new HueException(e);
+            }
+        }
+        if( failureRate > 0d && random.nextDouble() < failureRate ) {
+            throw new HueException(new IOException("Injected failure for " + request));
+        }
+        return chain.proceed(request);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import com.imaginary.home.controller.CommunicationException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A group of bulbs on a bridge controlled through a single <code>groups/{id}/action</code> write, so every member
+ * changes in sync for the cost of one request. Group 0 is the bridge's built-in group of every light. Reads describe
+ * the first member of the group.
+ */
+public class HueGroup extends HueBulb {
+    private String   groupId;
+    private String[] lightIds;
+
+    public HueGroup(@Nonnull Hue hue, @Nonnull String groupId, @Nonnull String name, @Nonnull String[] lightIds) {
+        super(hue, "group:" + groupId, name);
+        this.groupId = groupId;
+        this.lightIds = lightIds;
+    }
+
+    @Override
+    public @Nonnull Future<Boolean> flipOff() {
+        return flip(false);
+    }
+
+    @Override
+    public @Nonnull Future<Boolean> flipOn() {
+        return flip(true);
+    }
+
+    private @Nonnull Future<Boolean> flip(boolean on) {
+        Map<String,Object> state = new HashMap<String, Object>();
+
+        // members may disagree, so the group is always told rather than checked first
+        state.put("on", on);
+        return submit(state);
+    }
+
+    public @Nonnull String getGroupId() {
+        return groupId;
+    }
+
+    public @Nonnull String[] getLightIds() {
+        return Arrays.copyOf(lightIds, lightIds.length);
+    }
+
+    @Override
+    protected @Nullable JSONObject getState() throws HueException {
+        return (lightIds.length < 1 ? null : getHue().getLightStates().getLight(lightIds[0]));
+    }
+
+    /**
+     * @return true only if every light in the group is on
+     * @throws CommunicationException an error occurred talking to the bridge
+     */
+    @Override
+    public boolean isOn() throws CommunicationException {
+        HueLightStates states = getHue().getLightStates();
+
+        for( String id : lightIds ) {
+            JSONObject light = states.getLight(id);
+            JSONObject state = (light == null ? null : light.optJSONObject("state"));
+
+            if( state == null || !state.optBoolean("on") ) {
+                return false;
+            }
+        }
+        return (lightIds.length > 0);
+    }
+
+    @Override
+    protected @Nonnull Future<Boolean> submit(@Nonnull Map<String,Object> state) {
+        return getHue().getWriteScheduler().submitGroup(groupId, lightIds, state);
+    }
+
+    @Override
+    public void toMap(@Nonnull Map<String,Object> map) throws CommunicationException {
+        super.toMap(map);
+        map.put("deviceType", "group");
+        map.put("lightIds", getLightIds());
+    }
+}
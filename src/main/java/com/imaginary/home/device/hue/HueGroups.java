@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Maps sets of bulbs onto bridge groups. A request for every light on the bridge maps onto the built-in group 0. Other
+ * sets map onto an existing bridge group with exactly the same members, or, once the same set has been asked for
+ * often enough (the <code>groupThreshold</code> custom property, default 3), onto a group created for it. Group
+ * membership is loaded from the bridge and cached for a minute.
+ * <p>Groups created here are named with {@link #PREFIX} and reused whenever the same set comes up again. Bridges
+ * hold only a handful of groups, so no more than <code>maxGroups</code> (a custom property, default 8) of them are
+ * kept; creating one more first deletes the one least recently used. Groups found on the bridge at startup count as
+ * never used.</p>
+ */
+public class HueGroups {
+    static public final int    DEFAULT_MAX_GROUPS = 8;
+    static public final int    DEFAULT_THRESHOLD  = 3;
+    static public final String PREFIX             = "iha ";
+
+    static private final long TTL = 60000L;
+
+    static private @Nonnull String getKey(@Nonnull Collection<String> lightIds) {
+        StringBuilder str = new StringBuilder();
+
+        for( String id : new TreeSet<String>(lightIds) ) {
+            if( str.length() > 0 ) {
+                str.append(",");
+            }
+            str.append(id);
+        }
+        return str.toString();
+    }
+
+    private Map<String,String>            groups   = new HashMap<String, String>();
+    private final Hue                     hue;
+    private long                          loadedAt;
+    private final int                     maxGroups;
+    /**
+     * When each group created by this or an earlier run was last handed out, keyed by bridge group ID
+     */
+    private final HashMap<String,Long>    owned    = new HashMap<String, Long>();
+    private final int                     threshold;
+    private final HashMap<String,Integer> usage    = new HashMap<String, Integer>();
+
+    public HueGroups(@Nonnull Hue hue, @Nonnegative int threshold, @Nonnegative int maxGroups) {
+        this.hue = hue;
+        this.threshold = threshold;
+        this.maxGroups = Math.max(1, maxGroups);
+    }
+
+    private @Nullable String create(@Nonnull TreeSet<String> lightIds, @Nonnull String key) {
+        HashMap<String,Object> body = new HashMap<String, Object>();
+
+        while( owned.size() >= maxGroups ) {
+            if( !prune() ) {
+                return null;
+            }
+        }
+
+        body.put("name", PREFIX + Integer.toHexString(key.hashCode()));
+        body.put("lights", new JSONArray(lightIds));
+        try {
+            JSONObject result = new HueMethod(hue).post("groups", new JSONObject(body));
+
+            if( result != null && result.has("success") ) {
+                String id = result.getJSONObject("success").getString("id");
+
+                groups.put(key, id);
+                owned.put(id, System.currentTimeMillis());
+                return id;
+            }
+        }
+        catch( Exception e ) {
+            // older bridges cannot create groups and every bridge has a limit; either way we just don't group
+            Hue.getLogger(HueGroups.class).warn("Unable to create a group for " + key + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the group created here that was least recently used.
+     * @return true if a group was deleted
+     */
+    private boolean prune() {
+        String oldest = null;
+
+        for( Map.Entry<String,Long> entry : owned.entrySet() ) {
+            if( oldest == null || entry.getValue() < owned.get(oldest) ) {
+                oldest = entry.getKey();
+            }
+        }
+        if( oldest == null ) {
+            return false;
+        }
+        try {
+            new HueMethod(hue).delete("groups/" + oldest);
+        }
+        catch( HueException e ) {
+            Hue.getLogger(HueGroups.class).warn("Unable to delete group " + oldest + ": " + e.getMessage());
+            return false;
+        }
+        owned.remove(oldest);
+        groups.values().remove(oldest);
+        return true;
+    }
+
+    /**
+     * Provides a group that controls exactly the specified lights.
+     * @param lightIds the bridge IDs of the lights to control
+     * @return a matching group, or null if there is none yet and it is not worth creating one
+     * @throws HueException an error occurred talking to the bridge
+     */
+    public synchronized @Nullable HueGroup getGroup(@Nonnull Collection<String> lightIds) throws HueException {
+        TreeSet<String> ids = new TreeSet<String>(lightIds);
+
+        if( ids.size() < 2 ) {
+            return null;
+        }
+        if( ids.equals(new TreeSet<String>(hue.getLightStates().list().keySet())) ) {
+            return new HueGroup(hue, "0", "All Lights", ids.toArray(new String[ids.size()]));
+        }
+        String key = getKey(ids);
+        String groupId = getGroups().get(key);
+
+        if( groupId == null ) {
+            Integer count = usage.get(key);
+
+            count = (count == null ? 1 : count + 1);
+            if( count < threshold ) {
+                usage.put(key, count);
+                return null;
+            }
+            // start counting afresh whether or not this works so a failing bridge is not asked on every command
+            usage.remove(key);
+            groupId = create(ids, key);
+            if( groupId == null ) {
+                return null;
+            }
+        }
+        else if( owned.containsKey(groupId) ) {
+            owned.put(groupId, System.currentTimeMillis());
+        }
+        return new HueGroup(hue, groupId, key, ids.toArray(new String[ids.size()]));
+    }
+
+    private @Nonnull Map<String,String> getGroups() throws HueException {
+        if( System.currentTimeMillis() - loadedAt < TTL ) {
+            return groups;
+        }
+        HueMethod method = new HueMethod(hue);
+        JSONObject list = method.get("groups");
+        HashMap<String,String> loaded = new HashMap<String, String>();
+        HashMap<String,Long> found = new HashMap<String, Long>();
+
+        if( list != null && list.length() > 0 ) {
+            try {
+                for( String id : JSONObject.getNames(list) ) {
+                    JSONObject group = list.getJSONObject(id);
+
+                    // older bridges list only names here, so fall back to the group itself
+                    if( !group.has("lights") ) {
+                        group = method.get("groups/" + id);
+                    }
+                    if( group != null && group.has("lights") ) {
+                        JSONArray members = group.getJSONArray("lights");
+                        TreeSet<String> ids = new TreeSet<String>();
+
+                        for( int i=0; i<members.length(); i++ ) {
+                            ids.add(members.getString(i));
+                        }
+                        if( !ids.isEmpty() ) {
+                            loaded.put(getKey(ids), id);
+                        }
+                        if( group.has("name") && group.getString("name").startsWith(PREFIX) ) {
+                            Long used = owned.get(id);
+
+                            found.put(id, used == null ? 0L : used);
+                        }
+                    }
+                }
+            }
+            catch( JSONException e ) {
+                throw new HueException(e);
+            }
+        }
+        groups = loaded;
+        owned.clear();
+        owned.putAll(found);
+        loadedAt = System.currentTimeMillis();
+        return loaded;
+    }
+
+    /**
+     * Drops the cached group membership so the next request reloads it from the bridge.
+     */
+    public synchronized void invalidate() {
+        loadedAt = 0L;
+    }
+}
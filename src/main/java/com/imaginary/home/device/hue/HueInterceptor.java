@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Wraps every call a {@link HueMethod} makes against the bridge. Interceptors registered with
+ * {@link Hue#addInterceptor(HueInterceptor)} run in order around the actual HTTP exchange and may observe, retry,
+ * alter or short-circuit the request.
+ */
+public interface HueInterceptor {
+    /**
+     * The rest of the pipeline from the point of view of an interceptor.
+     */
+    public interface Chain {
+        /**
+         * Passes the request to the next interceptor, or to the bridge if there are none left.
+         * @param request the request to send
+         * @return the response
+         * @throws HueException the request failed
+         */
+        public @Nonnull HueResponse proceed(@Nonnull HueRequest request) throws HueException;
+    }
+
+    /**
+     * Handles a request, normally by calling {@link Chain#proceed(HueRequest)} exactly once.
+     * @param request the request being made
+     * @param chain the rest of the pipeline
+     * @return the response
+     * @throws HueException the request failed
+     */
+    public @Nonnull HueResponse intercept(@Nonnull HueRequest request, @Nonnull Chain chain) throws HueException;
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot of the state of every light on a bridge, shared by all of the bridge's {@link HueBulb} instances. The
+ * snapshot is loaded with a single <code>GET lights</code> and served from memory until it is older than its TTL
+ * (the <code>stateTtl</code> custom property, in milliseconds, default 2000). Successful writes are patched into the
+ * snapshot so a bulb reads back what it was just told to do without another round trip.
+ */
+public class HueLightStates {
+    static public final long DEFAULT_TTL = 2000L;
+
+    private final Hue                                     hue;
+    private volatile long                                 loadedAt;
+    private volatile ConcurrentHashMap<String,JSONObject> lights      = new ConcurrentHashMap<String, JSONObject>();
+    private final ConcurrentHashMap<String,Long>          patchedAt   = new ConcurrentHashMap<String, Long>();
+    private final Object                                  refreshLock = new Object();
+    private final Object                                  stateLock   = new Object();
+    private final long                                    ttl;
+
+    public HueLightStates(@Nonnull Hue hue, @Nonnegative long ttl) {
+        this.hue = hue;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Provides the bridge's description of the specified light, including its <code>state</code>, refreshing the
+     * snapshot first if it has expired.
+     * @param bulbId the bridge ID of the light
+     * @return the light's description or null if the bridge does not know the light
+     * @throws HueException an error occurred talking to the bridge
+     */
+    public @Nullable JSONObject getLight(@Nonnull String bulbId) throws HueException {
+        if( isExpired() ) {
+            refresh();
+        }
+        return lights.get(bulbId);
+    }
+
+    /**
+     * Drops the snapshot so the next read goes back to the bridge.
+     */
+    public void invalidate() {
+        loadedAt = 0L;
+    }
+
+    private boolean isExpired() {
+        return (System.currentTimeMillis() - loadedAt >= ttl);
+    }
+
+    /**
+     * Provides every light on the bridge, refreshing the snapshot first if it has expired.
+     * @return the bridge's description of each light, keyed by bridge light ID
+     * @throws HueException an error occurred talking to the bridge
+     */
+    public @Nonnull Map<String,JSONObject> list() throws HueException {
+        if( isExpired() ) {
+            refresh();
+        }
+        return Collections.unmodifiableMap(lights);
+    }
+
+    /**
+     * Applies a state change that the bridge just accepted to the snapshot.
+     * @param bulbId the bridge ID of the light that was changed
+     * @param changes the body of the successful <code>PUT lights/{id}/state</code>
+     */
+    public void patch(@Nonnull String bulbId, @Nonnull Map<String,Object> changes) {
+        synchronized( stateLock ) {
+            patchLocked(bulbId, changes);
+        }
+    }
+
+    private void patchLocked(@Nonnull String bulbId, @Nonnull Map<String,Object> changes) {
+        JSONObject light = lights.get(bulbId);
+
+        if( light == null ) {
+            return;
+        }
+        try {
+            JSONObject copy = new JSONObject(light.toString());
+            JSONObject state = (copy.has("state") ? copy.getJSONObject("state") : new JSONObject());
+
+            for( Map.Entry<String,Object> entry : changes.entrySet() ) {
+                Object value = entry.getValue();
+
+                if( entry.getKey().equals("transitiontime") ) {
+                    continue;
+                }
+                if( value instanceof float[] ) {
+                    JSONArray arr = new JSONArray();
+
+                    for( float f : (float[])value ) {
+                        arr.put((double)f);
+                    }
+                    value = arr;
+                }
+                state.put(entry.getKey(), value);
+            }
+            if( changes.containsKey("xy") ) {
+                state.put("colormode", "xy");
+            }
+            else if( changes.containsKey("ct") ) {
+                state.put("colormode", "ct");
+            }
+            else if( changes.containsKey("hue") || changes.containsKey("sat") ) {
+                state.put("colormode", "hs");
+            }
+            copy.put("state", state);
+            patchedAt.put(bulbId, System.currentTimeMillis());
+            lights.put(bulbId, copy);
+        }
+        catch( JSONException e ) {
+            Hue.getLogger(HueLightStates.class).warn("Unable to patch state for " + bulbId + ": " + e.getMessage());
+            invalidate();
+        }
+    }
+
+    private void refresh() throws HueException {
+        synchronized( refreshLock ) {
+            if( !isExpired() ) {
+                return;
+            }
+            long startedAt = System.currentTimeMillis();
+            HueMethod method = new HueMethod(hue);
+            JSONObject list = method.get("lights");
+            HashMap<String,JSONObject> fresh = new HashMap<String, JSONObject>();
+
+            if( list != null && list.length() > 0 ) {
+                try {
+                    for( String id : JSONObject.getNames(list) ) {
+                        JSONObject item = list.getJSONObject(id);
+
+                        // older bridges list only names here, so fall back to the light itself
+                        if( !item.has("state") ) {
+                            JSONObject full = method.get("lights/" + id);
+
+                            if( full != null ) {
+                                item = full;
+                            }
+                        }
+                        fresh.put(id, item);
+                    }
+                }
+                catch( JSONException e ) {
+                    throw new HueException(e);
+                }
+            }
+            ConcurrentHashMap<String,JSONObject> replacement = new ConcurrentHashMap<String, JSONObject>(fresh);
+
+            // patches wait here, so none can land between the merge and the swap and be lost
+            synchronized( stateLock ) {
+                ConcurrentHashMap<String,JSONObject> current = lights;
+
+                // a write that landed while the GET was in flight is newer than what the GET saw
+                for( Map.Entry<String,Long> entry : patchedAt.entrySet() ) {
+                    JSONObject patched = current.get(entry.getKey());
+
+                    if( entry.getValue() >= startedAt && patched != null && replacement.containsKey(entry.getKey()) ) {
+                        replacement.put(entry.getKey(), patched);
+                    }
+                }
+                patchedAt.clear();
+                lights = replacement;
+                loadedAt = System.currentTimeMillis();
+            }
+        }
+    }
+}
@@ -17,36 +17,58 @@ package com.imaginary.home.device.hue;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
-import java.util.Properties;
 
+/**
+ * Makes calls against the bridge API. Every call goes through one pipeline: the bridge's {@link HueInterceptor}s in
+ * order and then the HTTP exchange itself. Responses are parsed straight from the connection unless wire logging
+ * is on, in which case the body is read in full so it can be logged first.
+ */
 public class HueMethod {
+    static private final Logger std  = Hue.getLogger(HueMethod.class);
+    static private final Logger wire = Hue.getWireLogger(HueMethod.class);
+
+    private class Chain implements HueInterceptor.Chain {
+        private final int              index;
+        private final HueInterceptor[] interceptors;
+
+        Chain(@Nonnull HueInterceptor[] interceptors, int index) {
+            this.interceptors = interceptors;
+            this.index = index;
+        }
+
+        @Override
+        public @Nonnull HueResponse proceed(@Nonnull HueRequest request) throws HueException {
+            if( index < interceptors.length ) {
+                return interceptors[index].intercept(request, new Chain(interceptors, index + 1));
+            }
+            return send(request);
+        }
+    }
+
     private Hue    hue;
 
     @SuppressWarnings("UnusedDeclaration")
@@ -57,299 +79,178 @@ public class HueMethod {
     }
 
     public void delete(@Nonnull String resource) throws HueException {
-        Logger std = Hue.getLogger(HueMethod.class);
-        Logger wire = Hue.getWireLogger(HueMethod.class);
+        execute("DELETE", resource, null);
+    }
 
+    private @Nonnull HueResponse execute(@Nonnull String method, @Nonnull String resource, @Nullable JSONObject body) throws HueException {
         if( std.isTraceEnabled() ) {
-            std.trace("enter - " + HueMethod.class.getName() + ".delete(" +resource + ")");
-        }
-        if( wire.isDebugEnabled() ) {
-            wire.debug("");
-            wire.debug(">>> [DELETE (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource);
+            std.trace("enter - " + HueMethod.class.getName() + "." + method + "(" + resource + ")");
         }
-        HttpClient client = null;
-
         try {
-            client = getClient();
-            HttpDelete method = new HttpDelete(hue.getAPIEndpoint() + resource);
-
-            method.addHeader("Content-Type", "application/json");
-            if( wire.isDebugEnabled() ) {
-                wire.debug(method.getRequestLine().toString());
-                for( Header header : method.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-            }
-            HttpResponse response;
-            StatusLine status;
-
-            try {
-                response = client.execute(method);
-                status = response.getStatusLine();
-            }
-            catch( IOException e ) {
-                std.error("DELETE: Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                if( std.isTraceEnabled() ) {
-                    e.printStackTrace();
-                }
-                throw new HueException(e);
-            }
-            if( std.isDebugEnabled() ) {
-                std.debug("DELETE: HTTP Status " + status);
-            }
-            Header[] headers = response.getAllHeaders();
-
-            if( wire.isDebugEnabled() ) {
-                wire.debug(status.toString());
-                for( Header h : headers ) {
-                    if( h.getValue() != null ) {
-                        wire.debug(h.getName() + ": " + h.getValue().trim());
-                    }
-                    else {
-                        wire.debug(h.getName() + ":");
-                    }
-                }
-                wire.debug("");
-            }
-            if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_NO_CONTENT && status.getStatusCode() != HttpServletResponse.SC_ACCEPTED ) {
-                std.error("DELETE: Expected OK or NO_CONTENT or ACCEPTED for DELETE request, got " + status.getStatusCode());
-
-                HttpEntity entity = response.getEntity();
-
-                if( entity == null ) {
-                    throw new HueException(status.getStatusCode(), "An error was returned without explanation");
-                }
-                String body;
-
-                try {
-                    body = EntityUtils.toString(entity);
-                }
-                catch( IOException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(body);
-                }
-                wire.debug("");
-                throw new HueException(status.getStatusCode(), body);
-            }
+            return new Chain(hue.getInterceptors(), 0).proceed(new HueRequest(method, resource, body));
         }
         finally {
             if( std.isTraceEnabled() ) {
-                std.trace("exit - " + HueMethod.class.getName() + ".delete()");
-            }
-            if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [DELETE (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource + " <--------------------------------------------------------------------------------------");
-                wire.debug("");
-            }
-            if (client != null) {
-                client.getConnectionManager().shutdown();
+                std.trace("exit - " + HueMethod.class.getName() + "." + method + "()");
             }
         }
     }
 
     public JSONObject get(@Nonnull String resource) throws HueException {
-        Logger std = Hue.getLogger(HueMethod.class);
-        Logger wire = Hue.getWireLogger(HueMethod.class);
+        Object body = execute("GET", resource, null).getBody();
 
-        if( std.isTraceEnabled() ) {
-            std.trace("enter - " + HueMethod.class.getName() + ".get(" +resource + ")");
+        return (body instanceof JSONObject ? (JSONObject)body : null);
+    }
+
+    protected @Nonnull HttpClient getClient() {
+        return hue.getConnectionPool().getClient();
+    }
+
+    private boolean isExpected(@Nonnull String method, int code) {
+        if( code == HttpServletResponse.SC_OK ) {
+            return true;
         }
-        if( wire.isDebugEnabled() ) {
-            wire.debug("");
-            wire.debug(">>> [GET (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource);
+        if( method.equals("DELETE") ) {
+            return (code == HttpServletResponse.SC_NO_CONTENT || code == HttpServletResponse.SC_ACCEPTED);
         }
-        HttpClient client = null;
-
-        try {
-            client = getClient();
-            HttpGet method = new HttpGet(hue.getAPIEndpoint() + resource);
+        else if( method.equals("POST") ) {
+            return (code == HttpServletResponse.SC_CREATED || code == HttpServletResponse.SC_ACCEPTED);
+        }
+        else if( method.equals("PUT") ) {
+            return (code == HttpServletResponse.SC_NO_CONTENT || code == HttpServletResponse.SC_CREATED || code == HttpServletResponse.SC_ACCEPTED);
+        }
+        // a missing resource on a GET is an answer, not an error
+        return (code == HttpServletResponse.SC_NOT_FOUND);
+    }
 
-            method.addHeader("Content-Type", "application/json");
+    public JSONObject post(@Nonnull String resource, JSONObject body) throws HueException {
+        return toResult(execute("POST", resource, body));
+    }
 
-            if( wire.isDebugEnabled() ) {
-                wire.debug(method.getRequestLine().toString());
-                for( Header header : method.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-            }
-            HttpResponse response;
-            StatusLine status;
+    public JSONObject put(@Nonnull String resource, JSONObject body) throws HueException {
+        return toResult(execute("PUT", resource, body));
+    }
 
-            try {
-                response = client.execute(method);
-                status = response.getStatusLine();
-            }
-            catch( IOException e ) {
-                std.error("GET: Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                if( std.isTraceEnabled() ) {
-                    e.printStackTrace();
-                }
-                throw new HueException(e);
-            }
-            if( std.isDebugEnabled() ) {
-                std.debug("GET: HTTP Status " + status);
-            }
-            Header[] headers = response.getAllHeaders();
+    private @Nullable Object read(@Nullable HttpEntity entity, int code) throws HueException {
+        if( entity == null ) {
+            return null;
+        }
+        try {
+            JSONTokener tokener;
 
             if( wire.isDebugEnabled() ) {
-                wire.debug(status.toString());
-                for( Header h : headers ) {
-                    if( h.getValue() != null ) {
-                        wire.debug(h.getName() + ": " + h.getValue().trim());
-                    }
-                    else {
-                        wire.debug(h.getName() + ":");
-                    }
-                }
-                wire.debug("");
-            }
-            if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
-                return null;
-            }
-            else if( status.getStatusCode() != HttpServletResponse.SC_OK ) {
-                std.error("GET: Expected OK or NOT_FOUND for GET request, got " + status.getStatusCode());
-
-                HttpEntity entity = response.getEntity();
-
-                if( entity == null ) {
-                    throw new HueException(status.getStatusCode(), "An error was returned without explanation");
-                }
-                String json;
+                String json = EntityUtils.toString(entity);
 
-                try {
-                    json = EntityUtils.toString(entity);
-                }
-                catch( IOException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(json);
-                    wire.debug("");
-                }
-                throw new HueException(status.getStatusCode(), json);
+                wire.debug(json);
+                wire.debug("");
+                tokener = new JSONTokener(json);
             }
             else {
-                try {
-                    String json = EntityUtils.toString(response.getEntity());
-
-                    if( wire.isDebugEnabled() ) {
-                        wire.debug(json);
-                        wire.debug("");
-                    }
-                    return new JSONObject(json);
-                }
-                catch( IOException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
-                catch( JSONException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
+                tokener = new JSONTokener(new InputStreamReader(entity.getContent(), "UTF-8"));
             }
+            return tokener.nextValue();
         }
-        finally {
-            if( std.isTraceEnabled() ) {
-                std.trace("exit - " + HueMethod.class.getName() + ".get()");
-            }
-            if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [GET (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource + " <--------------------------------------------------------------------------------------");
-                wire.debug("");
-            }
-            if (client != null) {
-                client.getConnectionManager().shutdown();
-            }
+        catch( IOException e ) {
+            throw new HueException(code, e.getMessage());
+        }
+        catch( JSONException e ) {
+            throw new HueException(code, e.getMessage());
         }
     }
 
-    protected @Nonnull HttpClient getClient() {
-        boolean ssl = hue.getAPIEndpoint().startsWith("https");
-        HttpParams params = new BasicHttpParams();
-
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-        //noinspection deprecation
-        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-        HttpProtocolParams.setUserAgent(params, "Imaginary Home");
-
-        Properties p = hue.getCustomProperties();
-        String proxyHost = p.getProperty("proxyHost");
-        String proxyPort = p.getProperty("proxyPort");
-
-        if( proxyHost != null ) {
-            int port = 0;
-
-            if( proxyPort != null && proxyPort.length() > 0 ) {
-                port = Integer.parseInt(proxyPort);
+    /**
+     * Reads whatever is left of the response so its connection goes back to the pool.
+     * @param response the response to release, if any
+     */
+    private void release(HttpResponse response) {
+        if( response != null ) {
+            try {
+                EntityUtils.consume(response.getEntity());
+            }
+            catch( IOException e ) {
+                std.warn("Unable to release connection: " + e.getMessage());
             }
-            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
         }
-        return new DefaultHttpClient(params);
     }
 
-    public JSONObject post(@Nonnull String resource, JSONObject body) throws HueException {
-        Logger std = Hue.getLogger(HueMethod.class);
-        Logger wire = Hue.getWireLogger(HueMethod.class);
-
-        if( std.isTraceEnabled() ) {
-            std.trace("enter - " + HueMethod.class.getName() + ".post(" +resource + ")");
+    /**
+     * Performs the HTTP exchange for a request at the end of the interceptor chain.
+     * @param request the request to send
+     * @return the parsed response
+     * @throws HueException the bridge could not be reached or returned an unexpected status
+     */
+    private @Nonnull HueResponse send(@Nonnull HueRequest request) throws HueException {
+        String method = request.getMethod();
+        String url = hue.getAPIEndpoint() + request.getResource();
+        JSONObject body = request.getBody();
+        HttpRequestBase http;
+
+        if( method.equals("GET") ) {
+            http = new HttpGet(url);
         }
-        if( wire.isDebugEnabled() ) {
-            wire.debug("");
-            wire.debug(">>> [POST (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource);
+        else if( method.equals("PUT") ) {
+            http = new HttpPut(url);
         }
-        HttpClient client = null;
-
-        try {
-            client = getClient();
-            HttpPost method = new HttpPost(hue.getAPIEndpoint() + resource);
-
-            method.addHeader("Content-Type", "application/json");
-
+        else if( method.equals("POST") ) {
+            http = new HttpPost(url);
+        }
+        else if( method.equals("DELETE") ) {
+            http = new HttpDelete(url);
+        }
+        else {
+            throw new HueException("Unsupported method: " + method);
+        }
+        http.addHeader("Content-Type", "application/json");
+        if( body != null && http instanceof HttpEntityEnclosingRequestBase ) {
             try {
-                if( body != null ) {
-                    //noinspection deprecation
-                    method.setEntity(new StringEntity(body.toString(), "application/json", "UTF-8"));
-                }
+                //noinspection deprecation
+                ((HttpEntityEnclosingRequestBase)http).setEntity(new StringEntity(body.toString(), "application/json", "UTF-8"));
             }
             catch( UnsupportedEncodingException e ) {
                 throw new HueException(e);
             }
-            if( wire.isDebugEnabled() ) {
-                wire.debug(method.getRequestLine().toString());
-                for( Header header : method.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-                if( body != null ) {
-                    try { wire.debug(EntityUtils.toString(method.getEntity())); }
-                    catch( IOException ignore ) { }
+        }
+        boolean wired = wire.isDebugEnabled();
 
-                    wire.debug("");
-                }
+        if( wired ) {
+            wire.debug("");
+            wire.debug(">>> [" + method + " (" + (new Date()) + ")] -> " + url);
+            wire.debug(http.getRequestLine().toString());
+            for( Header header : http.getAllHeaders() ) {
+                wire.debug(header.getName() + ": " + header.getValue());
             }
-            HttpResponse response;
-            StatusLine status;
+            wire.debug("");
+            if( body != null ) {
+                wire.debug(body.toString());
+                wire.debug("");
+            }
+        }
+        HttpResponse response = null;
+
+        try {
+            long start = System.nanoTime();
 
             try {
-                response = client.execute(method);
-                status = response.getStatusLine();
+                response = getClient().execute(http);
+                hue.getConnectionPool().record(System.nanoTime() - start, true);
             }
             catch( IOException e ) {
-                std.error("POST: Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
+                hue.getConnectionPool().record(System.nanoTime() - start, false);
+                std.error(method + ": Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
                 if( std.isTraceEnabled() ) {
                     e.printStackTrace();
                 }
                 throw new HueException(e);
             }
+            StatusLine status = response.getStatusLine();
+            int code = status.getStatusCode();
+
             if( std.isDebugEnabled() ) {
-                std.debug("POST: HTTP Status " + status);
+                std.debug(method + ": HTTP Status " + status);
             }
-            Header[] headers = response.getAllHeaders();
-
-            if( wire.isDebugEnabled() ) {
+            if( wired ) {
                 wire.debug(status.toString());
-                for( Header h : headers ) {
+                for( Header h : response.getAllHeaders() ) {
                     if( h.getValue() != null ) {
                         wire.debug(h.getName() + ": " + h.getValue().trim());
                     }
@@ -359,218 +260,72 @@ public class HueMethod {
                 }
                 wire.debug("");
             }
-            if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_CREATED && status.getStatusCode() != HttpServletResponse.SC_ACCEPTED ) {
-                std.error("POST: Expected CREATED or OK or ACCEPTED for POST request, got " + status.getStatusCode());
-
+            if( !isExpected(method, code) ) {
+                std.error(method + ": Unexpected HTTP status for " + request.getResource() + ": " + code);
                 HttpEntity entity = response.getEntity();
 
                 if( entity == null ) {
-                    throw new HueException(status.getStatusCode(), "An error was returned without explanation");
+                    throw new HueException(code, "An error was returned without explanation");
                 }
-                String json;
+                String error;
 
                 try {
-                    json = EntityUtils.toString(entity);
+                    error = EntityUtils.toString(entity);
                 }
                 catch( IOException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
+                    throw new HueException(code, e.getMessage());
                 }
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(json);
+                if( wired ) {
+                    wire.debug(error);
                     wire.debug("");
                 }
-                throw new HueException(status.getStatusCode(), json);
+                throw new HueException(code, error);
             }
-            else {
-                try {
-                    String json = EntityUtils.toString(response.getEntity());
-
-                    if( wire.isDebugEnabled() ) {
-                        wire.debug(json);
-                        wire.debug("");
-                    }
-                    if( json.startsWith("[") ) {
-                        JSONArray arr = new JSONArray(json);
-
-                        if( arr.length() > 0 ) {
-                            JSONObject ob = arr.getJSONObject(0);
-
-                            if( ob.has("error") ) {
-                                ob = ob.getJSONObject("error");
-                                if( ob.has("description") ) {
-                                    throw new HueException(ob.getString("description"));
-                                }
-                            }
-                            return ob;
-                        }
-                        return null;
-                    }
-                    return new JSONObject(json);
-                }
-                catch( IOException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
-                catch( JSONException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
+            if( code == HttpServletResponse.SC_NOT_FOUND || code == HttpServletResponse.SC_NO_CONTENT ) {
+                return new HueResponse(code, null);
             }
+            return new HueResponse(code, read(response.getEntity(), code));
         }
         finally {
-            if( std.isTraceEnabled() ) {
-                std.trace("exit - " + HueMethod.class.getName() + ".post()");
-            }
-            if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [POST (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource + " <--------------------------------------------------------------------------------------");
+            if( wired ) {
+                wire.debug("<<< [" + method + " (" + (new Date()) + ")] -> " + url + " <--------------------------------------------------------------------------------------");
                 wire.debug("");
             }
-            if (client != null) {
-                client.getConnectionManager().shutdown();
-            }
+            release(response);
         }
     }
 
-    public JSONObject put(@Nonnull String resource, JSONObject body) throws HueException {
-        Logger std = Hue.getLogger(HueMethod.class);
-        Logger wire = Hue.getWireLogger(HueMethod.class);
-
-        if( std.isTraceEnabled() ) {
-            std.trace("enter - " + HueMethod.class.getName() + ".put(" +resource + ")");
-        }
-        if( wire.isDebugEnabled() ) {
-            wire.debug("");
-            wire.debug(">>> [PUT (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource);
-        }
-        HttpClient client = null;
+    /**
+     * Unwraps the result of a POST or PUT. The bridge answers those with an array of results, the first of which
+     * either describes the error or is returned.
+     * @param response the response to unwrap
+     * @return the first result, if any
+     * @throws HueException the bridge reported an error
+     */
+    private @Nullable JSONObject toResult(@Nonnull HueResponse response) throws HueException {
+        Object body = response.getBody();
 
         try {
-            client = getClient();
-            HttpPut method = new HttpPut(hue.getAPIEndpoint() + resource);
-
-            method.addHeader("Content-Type", "application/json");
-
-            try {
-                if( body != null ) {
-                    //noinspection deprecation
-                    method.setEntity(new StringEntity(body.toString(), "application/json", "UTF-8"));
-                }
-            }
-            catch( UnsupportedEncodingException e ) {
-                throw new HueException(e);
-            }
-            if( wire.isDebugEnabled() ) {
-                wire.debug(method.getRequestLine().toString());
-                for( Header header : method.getAllHeaders() ) {
-                    wire.debug(header.getName() + ": " + header.getValue());
-                }
-                wire.debug("");
-                if( body != null ) {
-                    try { wire.debug(EntityUtils.toString(method.getEntity())); }
-                    catch( IOException ignore ) { }
+            if( body instanceof JSONArray ) {
+                JSONArray arr = (JSONArray)body;
 
-                    wire.debug("");
-                }
-            }
-            HttpResponse response;
-            StatusLine status;
-
-            try {
-                response = client.execute(method);
-                status = response.getStatusLine();
-            }
-            catch( IOException e ) {
-                std.error("PUT: Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
-                if( std.isTraceEnabled() ) {
-                    e.printStackTrace();
-                }
-                throw new HueException(e);
-            }
-            if( std.isDebugEnabled() ) {
-                std.debug("PUT: HTTP Status " + status);
-            }
-            Header[] headers = response.getAllHeaders();
+                if( arr.length() > 0 ) {
+                    JSONObject ob = arr.getJSONObject(0);
 
-            if( wire.isDebugEnabled() ) {
-                wire.debug(status.toString());
-                for( Header h : headers ) {
-                    if( h.getValue() != null ) {
-                        wire.debug(h.getName() + ": " + h.getValue().trim());
-                    }
-                    else {
-                        wire.debug(h.getName() + ":");
-                    }
-                }
-                wire.debug("");
-            }
-            if( status.getStatusCode() == HttpServletResponse.SC_NO_CONTENT ) {
-                return null;
-            }
-            else if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_CREATED && status.getStatusCode() != HttpServletResponse.SC_ACCEPTED ) {
-                std.error("PUT: Expected NO_CONTENT or CREATED or OK or ACCEPTED for PUT request, got " + status.getStatusCode());
-
-                HttpEntity entity = response.getEntity();
-
-                if( entity == null ) {
-                    throw new HueException(status.getStatusCode(), "An error was returned without explanation");
-                }
-                String json;
-
-                try {
-                    json = EntityUtils.toString(entity);
-                }
-                catch( IOException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
-                if( wire.isDebugEnabled() ) {
-                    wire.debug(json);
-                    wire.debug("");
-                }
-                throw new HueException(status.getStatusCode(), json);
-            }
-            else {
-                try {
-                    String json = EntityUtils.toString(response.getEntity());
-
-                    if( wire.isDebugEnabled() ) {
-                        wire.debug(json);
-                        wire.debug("");
-                    }
-                    if( json.startsWith("[") ) {
-                        JSONArray arr = new JSONArray(json);
-
-                        if( arr.length() > 0 ) {
-                            JSONObject ob = arr.getJSONObject(0);
-
-                            if( ob.has("error") ) {
-                                ob = ob.getJSONObject("error");
-                                if( ob.has("description") ) {
-                                    throw new HueException(ob.getString("description"));
-                                }
-                            }
-                            return ob;
+                    if( ob.has("error") ) {
+                        ob = ob.getJSONObject("error");
+                        if( ob.has("description") ) {
+                            throw new HueException(ob.getString("description"));
                         }
-                        return null;
                     }
-                    return new JSONObject(json);
-                }
-                catch( IOException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
-                }
-                catch( JSONException e ) {
-                    throw new HueException(status.getStatusCode(), e.getMessage());
+                    return ob;
                 }
+                return null;
             }
+            return (body instanceof JSONObject ? (JSONObject)body : null);
         }
-        finally {
-            if( std.isTraceEnabled() ) {
-                std.trace("exit - " + HueMethod.class.getName() + ".put()");
-            }
-            if( wire.isDebugEnabled() ) {
-                wire.debug("<<< [PUT (" + (new Date()) + ")] -> " + hue.getAPIEndpoint() + resource + " <--------------------------------------------------------------------------------------");
-                wire.debug("");
-            }
-            if (client != null) {
-                client.getConnectionManager().shutdown();
-            }
+        catch( JSONException e ) {
+            throw new HueException(response.getStatusCode(), e.getMessage());
         }
     }
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks request counts, failures and latency for each method and resource against a bridge. Resource IDs are
+ * folded out of the key, so <code>PUT lights/1/state</code> and <code>PUT lights/2/state</code> are both counted as
+ * <code>PUT lights/{id}/state</code>.
+ */
+public class HueMetrics implements HueInterceptor {
+    static private class Stats {
+        final AtomicLong failures   = new AtomicLong(0L);
+        final AtomicLong maxNanos   = new AtomicLong(0L);
+        final AtomicLong requests   = new AtomicLong(0L);
+        final AtomicLong totalNanos = new AtomicLong(0L);
+    }
+
+    /**
+     * Builds the key under which a request is tracked. Bridge resources alternate between a collection and an ID
+     * within it, so every second path element is an ID.
+     * @param method the HTTP method
+     * @param resource the resource relative to the API endpoint
+     * @return the key for the request
+     */
+    static public @Nonnull String getKey(@Nonnull String method, @Nonnull String resource) {
+        StringBuilder str = new StringBuilder(method.length() + resource.length() + 8);
+        String[] parts = resource.split("/");
+
+        str.append(method).append(" ");
+        for( int i=0; i<parts.length; i++ ) {
+            if( i > 0 ) {
+                str.append("/");
+            }
+            str.append(i % 2 == 1 ? "{id}" : parts[i]);
+        }
+        return str.toString();
+    }
+
+    private final ConcurrentHashMap<String,Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    public HueMetrics() { }
+
+    /**
+     * @param key a key from {@link #getKeys()}
+     * @return the mean latency of requests under the key in milliseconds
+     */
+    public double getAverageLatency(@Nonnull String key) {
+        Stats s = stats.get(key);
+        long count = (s == null ? 0L : s.requests.get());
+
+        return (count < 1 ? 0d : (s.totalNanos.get()/(double)count)/1000000d);
+    }
+
+    public long getFailures(@Nonnull String key) {
+        Stats s = stats.get(key);
+
+        return (s == null ? 0L : s.failures.get());
+    }
+
+    /**
+     * @return the keys for which requests have been made, in order
+     */
+    public @Nonnull Collection<String> getKeys() {
+        return new TreeSet<String>(stats.keySet());
+    }
+
+    /**
+     * @param key a key from {@link #getKeys()}
+     * @return the slowest request under the key in milliseconds
+     */
+    public double getMaxLatency(@Nonnull String key) {
+        Stats s = stats.get(key);
+
+        return (s == null ? 0d : s.maxNanos.get()/1000000d);
+    }
+
+    public long getRequests(@Nonnull String key) {
+        Stats s = stats.get(key);
+
+        return (s == null ? 0L : s.requests.get());
+    }
+
+    @Override
+    public @Nonnull HueResponse intercept(@Nonnull HueRequest request, @Nonnull Chain chain) throws HueException {
+        long start = System.nanoTime();
+        boolean success = false;
+
+        try {
+            HueResponse response = chain.proceed(request);
+
+            success = true;
+            return response;
+        }
+        finally {
+            record(getKey(request.getMethod(), request.getResource()), System.nanoTime() - start, success);
+        }
+    }
+
+    private void record(@Nonnull String key, long nanos, boolean success) {
+        Stats s = stats.get(key);
+
+        if( s == null ) {
+            Stats n = new Stats();
+
+            s = stats.putIfAbsent(key, n);
+            if( s == null ) {
+                s = n;
+            }
+        }
+        s.requests.incrementAndGet();
+        s.totalNanos.addAndGet(nanos);
+        if( !success ) {
+            s.failures.incrementAndGet();
+        }
+        long max = s.maxNanos.get();
+
+        while( nanos > max && !s.maxNanos.compareAndSet(max, nanos) ) {
+            max = s.maxNanos.get();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import org.json.JSONObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A single call against the bridge API as it passes through the {@link HueInterceptor} chain.
+ */
+public class HueRequest {
+    private final JSONObject body;
+    private final String     method;
+    private final String     resource;
+
+    public HueRequest(@Nonnull String method, @Nonnull String resource, @Nullable JSONObject body) {
+        this.method = method;
+        this.resource = resource;
+        this.body = body;
+    }
+
+    public @Nullable JSONObject getBody() {
+        return body;
+    }
+
+    /**
+     * @return the HTTP method, one of DELETE, GET, POST or PUT
+     */
+    public @Nonnull String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the resource relative to the bridge's API endpoint, such as <code>lights/1/state</code>
+     */
+    public @Nonnull String getResource() {
+        return resource;
+    }
+
+    public String toString() {
+        return (method + " " + resource);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nullable;
+
+/**
+ * The successful outcome of a {@link HueRequest}. Failures are thrown as {@link HueException}s instead.
+ */
+public class HueResponse {
+    private final Object body;
+    private final int    statusCode;
+
+    public HueResponse(@Nonnegative int statusCode, @Nullable Object body) {
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    /**
+     * @return the parsed response body, a {@link org.json.JSONObject} or {@link org.json.JSONArray}, or null if
+     * there was none
+     */
+    public @Nullable Object getBody() {
+        return body;
+    }
+
+    public @Nonnegative int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * Retries requests that failed with an I/O error, such as a pooled connection the bridge had already dropped.
+ * Errors reported by the bridge itself are never retried, nor are POSTs since the bridge may have acted on them.
+ * The number of retries is set with the <code>retries</code> custom property (default 1).
+ */
+public class HueRetryInterceptor implements HueInterceptor {
+    static public final int DEFAULT_RETRIES = 1;
+
+    private final long backoff;
+    private final int  retries;
+
+    /**
+     * Constructs a retry policy.
+     * @param retries the number of times to retry a request after the first attempt
+     * @param backoff milliseconds to wait before the first retry, doubled for each one after
+     */
+    public HueRetryInterceptor(@Nonnegative int retries, @Nonnegative long backoff) {
+        this.retries = retries;
+        this.backoff = backoff;
+    }
+
+    @Override
+    public @Nonnull HueResponse intercept(@Nonnull HueRequest request, @Nonnull Chain chain) throws HueException {
+        int attempt = 0;
+
+        while( true ) {
+            try {
+                return chain.proceed(request);
+            }
+            catch( HueException e ) {
+                if( attempt >= retries || request.getMethod().equals("POST") || !(e.getCause() instanceof IOException) ) {
+                    throw e;
+                }
+                if( backoff > 0L ) {
+                    try {
+                        Thread.sleep(backoff << attempt);
+                    }
+                    catch( InterruptedException interrupted ) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+                attempt++;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores multi-light states on the bridge as scenes so they can be recalled with one request. Each distinct state is
+ * stored under an ID derived from a SHA-256 digest of its content. The ID for each state is cached once this
+ * controller has stored the scene, which leaves a repeated scene costing just the recall.
+ * <p>A scene is only trusted once this controller has written all of it: if any part of a store fails, the scene is
+ * deleted again and the state is not tried again for a few minutes. Scenes left on the bridge by an earlier run may
+ * have been cut short by a crash, so they are never recalled as they are but written over when their state comes up
+ * again.</p>
+ * <p>Scenes created here all start with {@link #PREFIX}. No more than <code>maxScenes</code> (a custom property,
+ * default 50) of them are kept; storing one more first deletes the one least recently used. Scenes left over from
+ * an earlier run count as never used.</p>
+ */
+public class HueScenes {
+    static public final int    DEFAULT_MAX_SCENES = 50;
+    static public final String PREFIX             = "iha";
+
+    /**
+     * How long, in milliseconds, a state that failed to store is left to the caller before it is tried again
+     */
+    static private final long FAILURE_TTL = 300000L;
+
+    static private @Nonnull String getKey(@Nonnull TreeMap<String,Map<String,Object>> states) {
+        StringBuilder str = new StringBuilder();
+
+        for( Map.Entry<String,Map<String,Object>> light : states.entrySet() ) {
+            str.append(light.getKey()).append("{");
+            for( Map.Entry<String,Object> attr : new TreeMap<String,Object>(light.getValue()).entrySet() ) {
+                Object value = attr.getValue();
+
+                str.append(attr.getKey()).append("=");
+                str.append(value instanceof float[] ? Arrays.toString((float[])value) : String.valueOf(value));
+                str.append(";");
+            }
+            str.append("}");
+        }
+        return str.toString();
+    }
+
+    /**
+     * Derives the scene ID for a state. Bridges limit scene IDs to 16 characters, which leaves room for 52 bits of
+     * the digest after the prefix, far more than enough to keep the few hundred scenes a bridge holds apart.
+     * @param key the state as built by {@link #getKey(TreeMap)}
+     * @return the scene ID
+     */
+    static private @Nonnull String getSceneId(@Nonnull String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("utf-8"));
+            StringBuilder str = new StringBuilder(PREFIX);
+
+            for( int i=0; str.length() < 16; i++ ) {
+                str.append(Character.forDigit((digest[i/2] >> (i % 2 == 0 ? 4 : 0)) & 0x0f, 16));
+            }
+            return str.toString();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException("UTF-8 is not available", e);
+        }
+    }
+
+    private final HashMap<String,Long>   failures = new HashMap<String, Long>();
+    private final Hue                    hue;
+    private final int                    maxScenes;
+    /**
+     * When each scene created by this or an earlier run was last recalled, keyed by bridge scene ID, or null until
+     * the bridge's scenes have been listed
+     */
+    private HashMap<String,Long>         owned;
+    private final HashMap<String,String> scenes   = new HashMap<String, String>();
+
+    public HueScenes(@Nonnull Hue hue, @Nonnegative int maxScenes) {
+        this.hue = hue;
+        this.maxScenes = Math.max(1, maxScenes);
+    }
+
+    private @Nonnull HashMap<String,Long> getOwned() throws HueException {
+        if( owned == null ) {
+            JSONObject list = new HueMethod(hue).get("scenes");
+            HashMap<String,Long> ids = new HashMap<String, Long>();
+
+            if( list != null && list.length() > 0 ) {
+                for( String id : JSONObject.getNames(list) ) {
+                    if( id.startsWith(PREFIX) ) {
+                        ids.put(id, 0L);
+                    }
+                }
+            }
+            owned = ids;
+        }
+        return owned;
+    }
+
+    /**
+     * Provides the bridge scene holding the specified light states, storing it on the bridge if need be.
+     * @param states the state attributes for each light in the scene, keyed by bridge light ID
+     * @return the ID of the scene on the bridge, or null if the bridge could not store it
+     * @throws HueException an error occurred talking to the bridge
+     */
+    public synchronized @Nullable String getSceneId(@Nonnull TreeMap<String,Map<String,Object>> states) throws HueException {
+        String key = getKey(states);
+        String sceneId = scenes.get(key);
+
+        if( sceneId != null ) {
+            owned.put(sceneId, System.currentTimeMillis());
+            return sceneId;
+        }
+        Long failedAt = failures.get(key);
+
+        if( failedAt != null ) {
+            if( System.currentTimeMillis() - failedAt < FAILURE_TTL ) {
+                return null;
+            }
+            failures.remove(key);
+        }
+        sceneId = getSceneId(key);
+        getOwned();
+        // the scene may be left over from an earlier run, so only count it as ours to write over
+        owned.remove(sceneId);
+        while( owned.size() >= maxScenes ) {
+            if( !prune() ) {
+                failures.put(key, System.currentTimeMillis());
+                return null;
+            }
+        }
+        if( !store(sceneId, states) ) {
+            failures.put(key, System.currentTimeMillis());
+            return null;
+        }
+        owned.put(sceneId, System.currentTimeMillis());
+        scenes.put(key, sceneId);
+        return sceneId;
+    }
+
+    /**
+     * Drops every cached scene ID and failure so scenes are looked up on the bridge again, for example after scenes
+     * were deleted from the bridge by some other application.
+     */
+    public synchronized void invalidate() {
+        failures.clear();
+        scenes.clear();
+        owned = null;
+    }
+
+    /**
+     * Deletes the scene created here that was least recently recalled.
+     * @return true if a scene was deleted
+     */
+    private boolean prune() {
+        String oldest = null;
+
+        for( Map.Entry<String,Long> entry : owned.entrySet() ) {
+            if( oldest == null || entry.getValue() < owned.get(oldest) ) {
+                oldest = entry.getKey();
+            }
+        }
+        if( oldest == null ) {
+            return false;
+        }
+        try {
+            new HueMethod(hue).delete("scenes/" + oldest);
+        }
+        catch( HueException e ) {
+            Hue.getLogger(HueScenes.class).warn("Unable to delete scene " + oldest + ": " + e.getMessage());
+            return false;
+        }
+        owned.remove(oldest);
+        scenes.values().remove(oldest);
+        return true;
+    }
+
+    private boolean store(@Nonnull String sceneId, @Nonnull TreeMap<String,Map<String,Object>> states) {
+        HashMap<String,Object> body = new HashMap<String, Object>();
+        HueMethod method = new HueMethod(hue);
+
+        body.put("name", sceneId);
+        body.put("lights", new JSONArray(states.keySet()));
+        try {
+            method.put("scenes/" + sceneId, new JSONObject(body));
+            for( Map.Entry<String,Map<String,Object>> light : states.entrySet() ) {
+                method.put("scenes/" + sceneId + "/lights/" + light.getKey() + "/state", new JSONObject(light.getValue()));
+            }
+            return true;
+        }
+        catch( Exception e ) {
+            // bridges without scene support and bridges that are full both end up here; the caller sets lights one by one
+            Hue.getLogger(HueScenes.class).warn("Unable to store scene " + sceneId + ": " + e.getMessage());
+            try {
+                // a half written scene must never be recalled, by this run or the next
+                method.delete("scenes/" + sceneId);
+            }
+            catch( Exception ignore ) {
+                // the scene was never created or the bridge is unreachable; either way the next store writes over it
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import com.imaginary.home.controller.ResultFuture;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Serializes light and group state writes to a single bridge. The bridge handles roughly ten light updates per second and
+ * drops or delays anything beyond that, so writes are queued here and sent from one thread at a rate set by a token
+ * bucket (the <code>writeRate</code> and <code>writeBurst</code> custom properties, default 10 per second with a
+ * burst of 2).
+ * <p>While a write waits its turn, later writes to the same bulb are merged into it attribute by attribute with the
+ * last write winning, so a fast series of changes to one bulb costs only the writes the bridge can actually take.
+ * Bulbs are served round robin so one busy bulb cannot starve the others. The future returned for each write
+ * completes when the (possibly merged) write it ended up in has been accepted or rejected by the bridge.</p>
+ * <p>Group writes go through the same queue. The bridge handles only about one group write per second, so each one
+ * costs a full second's worth of tokens, charged once it has been sent.</p>
+ */
+public class HueWriteScheduler {
+    static private final Logger logger = Hue.getLogger(HueWriteScheduler.class);
+
+    static public final int DEFAULT_BURST = 2;
+    static public final int DEFAULT_RATE  = 10;
+
+    /**
+     * State attributes that each select a color mode; a write setting one of them overrides any of the others
+     */
+    static private final String[] COLOR_ATTRIBUTES = { "ct", "hue", "sat", "xy" };
+
+    static private class PendingWrite {
+        final int                              cost;
+        final ArrayList<ResultFuture<Boolean>> futures = new ArrayList<ResultFuture<Boolean>>();
+        final String[]                         lightIds;
+        final String                           resource;
+        final LinkedHashMap<String,Object>     state   = new LinkedHashMap<String, Object>();
+
+        PendingWrite(@Nonnull String resource, @Nonnull String[] lightIds, @Nonnegative int cost) {
+            this.resource = resource;
+            this.lightIds = lightIds;
+            this.cost = cost;
+        }
+
+        void merge(@Nonnull Map<String,Object> changes) {
+            // recalling a scene replaces whatever else was going to be sent
+            if( changes.containsKey("scene") ) {
+                state.clear();
+            }
+            for( String attr : COLOR_ATTRIBUTES ) {
+                if( changes.containsKey(attr) ) {
+                    for( String other : COLOR_ATTRIBUTES ) {
+                        if( !changes.containsKey(other) ) {
+                            state.remove(other);
+                        }
+                    }
+                    break;
+                }
+            }
+            state.putAll(changes);
+        }
+    }
+
+    private final long                         burstNanos;
+    private long                               coalesced;
+    private long                               failures;
+    private final int                          groupCost;
+    private final Hue                          hue;
+    private final long                         intervalNanos;
+    private int                                maxQueueDepth;
+    private long                               nextFree;
+    private final HashMap<String,PendingWrite> pending = new HashMap<String, PendingWrite>();
+    private final LinkedList<String>           ready   = new LinkedList<String>();
+    private boolean                            running = true;
+    private final Thread                       writer;
+    private long                               writes;
+
+    public HueWriteScheduler(@Nonnull Hue hue, @Nonnegative double perSecond, @Nonnegative int burst) {
+        this.hue = hue;
+        intervalNanos = (long)(1000000000d/Math.max(perSecond, 0.1d));
+        burstNanos = intervalNanos * Math.max(1, burst);
+        groupCost = (int)Math.max(1L, Math.round(perSecond));
+        nextFree = System.nanoTime();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HueWriteScheduler.this.run();
+            }
+        }, "hue-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return the number of writes folded into a write that was already waiting
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the largest number of bulbs ever waiting on a write at once
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return the number of bulbs with a write waiting to be sent
+     */
+    public synchronized int getQueueDepth() {
+        return ready.size();
+    }
+
+    /**
+     * @return the number of writes actually sent to the bridge
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    /**
+     * Stops the writer thread. Writes still waiting fail.
+     */
+    public void shutdown() {
+        ArrayList<PendingWrite> abandoned;
+
+        synchronized( this ) {
+            running = false;
+            abandoned = new ArrayList<PendingWrite>(pending.values());
+            pending.clear();
+            ready.clear();
+            notifyAll();
+        }
+        writer.interrupt();
+        for( PendingWrite w : abandoned ) {
+            HueException e = new HueException("The write scheduler was shut down");
+
+            for( ResultFuture<Boolean> f : w.futures ) {
+                f.fail(e);
+            }
+        }
+    }
+
+    private @Nonnull Future<Boolean> enqueue(@Nonnull String resource, @Nonnull String[] lightIds, @Nonnegative int cost, @Nonnull Map<String,Object> state) {
+        ResultFuture<Boolean> future = new ResultFuture<Boolean>();
+
+        synchronized( this ) {
+            if( !running ) {
+                future.fail(new HueException("The write scheduler was shut down"));
+                return future;
+            }
+            PendingWrite w = pending.get(resource);
+
+            if( w == null ) {
+                w = new PendingWrite(resource, lightIds, cost);
+                pending.put(resource, w);
+                ready.add(resource);
+                if( ready.size() > maxQueueDepth ) {
+                    maxQueueDepth = ready.size();
+                }
+                notifyAll();
+            }
+            else {
+                coalesced++;
+            }
+            w.merge(state);
+            w.futures.add(future);
+        }
+        return future;
+    }
+
+    /**
+     * Queues a change to the state of the specified bulb.
+     * @param bulbId the bridge ID of the bulb
+     * @param state the state attributes to change, as for <code>PUT lights/{id}/state</code>
+     * @return a future that completes when the change has been sent to the bridge
+     */
+    public @Nonnull Future<Boolean> submit(@Nonnull String bulbId, @Nonnull Map<String,Object> state) {
+        return enqueue("lights/" + bulbId + "/state", new String[] { bulbId }, 1, state);
+    }
+
+    /**
+     * Queues a change to the state of every light in the specified bridge group.
+     * @param groupId the bridge ID of the group
+     * @param lightIds the lights in the group, whose snapshot state is patched once the write succeeds
+     * @param state the state attributes to change, as for <code>PUT groups/{id}/action</code>
+     * @return a future that completes when the change has been sent to the bridge
+     */
+    public @Nonnull Future<Boolean> submitGroup(@Nonnull String groupId, @Nonnull String[] lightIds, @Nonnull Map<String,Object> state) {
+        return enqueue("groups/" + groupId + "/action", lightIds, groupCost, state);
+    }
+
+    /**
+     * Queues the recall of a scene stored on the bridge. The recall goes out as an action on group 0 so it costs a
+     * single write however many lights the scene covers.
+     * @param sceneId the bridge ID of the scene
+     * @param lightIds the lights in the scene
+     * @return a future that completes when the recall has been sent to the bridge
+     */
+    public @Nonnull Future<Boolean> submitScene(@Nonnull String sceneId, @Nonnull String[] lightIds) {
+        HashMap<String,Object> state = new HashMap<String, Object>();
+
+        state.put("scene", sceneId);
+        return enqueue("groups/0/action", lightIds, groupCost, state);
+    }
+
+    private void run() {
+        while( true ) {
+            PendingWrite w;
+
+            try {
+                int cost;
+
+                synchronized( this ) {
+                    while( running && ready.isEmpty() ) {
+                        wait();
+                    }
+                    if( !running ) {
+                        return;
+                    }
+                    // only this thread removes from the queue, so the head stays put while we wait
+                    cost = pending.get(ready.getFirst()).cost;
+                }
+                waitForToken(cost);
+                synchronized( this ) {
+                    if( !running ) {
+                        return;
+                    }
+                    w = pending.remove(ready.removeFirst());
+                }
+            }
+            catch( InterruptedException e ) {
+                return;
+            }
+            send(w);
+        }
+    }
+
+    private void send(@Nonnull PendingWrite w) {
+        ArrayList<ResultFuture<Boolean>> futures = new ArrayList<ResultFuture<Boolean>>();
+
+        for( ResultFuture<Boolean> f : w.futures ) {
+            if( !f.isCancelled() ) {
+                futures.add(f);
+            }
+        }
+        if( futures.isEmpty() ) {
+            return;
+        }
+        try {
+            HueMethod method = new HueMethod(hue);
+
+            method.put(w.resource, new JSONObject(w.state));
+            if( w.state.containsKey("scene") ) {
+                // the scene's light states live on the bridge, so let the snapshot fetch them
+                hue.getLightStates().invalidate();
+            }
+            else {
+                for( String id : w.lightIds ) {
+                    hue.getLightStates().patch(id, w.state);
+                }
+            }
+            synchronized( this ) {
+                writes++;
+            }
+            for( ResultFuture<Boolean> f : futures ) {
+                f.complete(true);
+            }
+        }
+        catch( Throwable t ) {
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Write to " + w.resource + " failed: " + t.getMessage());
+            }
+            synchronized( this ) {
+                writes++;
+                failures++;
+            }
+            for( ResultFuture<Boolean> f : futures ) {
+                f.fail(t);
+            }
+        }
+    }
+
+    /**
+     * Takes tokens from the bucket, sleeping until one is available. A write costing more than one token, such as a
+     * group write, goes out as soon as its first token is there and the rest of its cost is charged afterwards,
+     * holding back the writes that follow it. Waiting for the whole cost up front could never be satisfied out of
+     * a burst smaller than the cost. Only the writer thread touches the bucket.
+     * @param cost the number of tokens to take
+     * @throws InterruptedException the writer was shut down while waiting
+     */
+    private void waitForToken(@Nonnegative int cost) throws InterruptedException {
+        long now = System.nanoTime();
+        long start = (nextFree - now < 0 ? now : nextFree);
+        long next = start + (intervalNanos * cost);
+        long wait = start + intervalNanos - now - burstNanos;
+
+        if( wait > 0 ) {
+            Thread.sleep(wait/1000000L, (int)(wait%1000000L));
+        }
+        nextFree = next;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Swells all of its lights smoothly from a low brightness up to a high one and back down again, following a
+ * sine wave.
+ */
+public class BreatheEffect extends Effect {
+    private final Color color;
+    private final float highBrightness;
+    private final float lowBrightness;
+    private final long  period;
+
+    /**
+     * Constructs a breathing effect across the specified lights.
+     * @param period the time taken for one full breath
+     * @param duration how long the effect runs, or null to run until cancelled
+     * @param color the color of the lights
+     * @param lowBrightness the brightness at the bottom of a breath as a percentage from 0.0 to 100.0
+     * @param highBrightness the brightness at the top of a breath as a percentage from 0.0 to 100.0
+     * @param lights the lights that breathe
+     */
+    public BreatheEffect(@Nonnull TimePeriod<?> period, @Nullable TimePeriod<?> duration, @Nonnull Color color, @Nonnegative float lowBrightness, @Nonnegative float highBrightness, @Nonnull Light ... lights) {
+        super(duration, lights);
+        this.period = Math.max(1L, period.convertTo(TimePeriod.MILLISECOND).longValue());
+        this.color = color;
+        this.highBrightness = highBrightness;
+        this.lowBrightness = lowBrightness;
+    }
+
+    @Override
+    protected @Nonnull Color getColor(@Nonnegative long elapsed) {
+        double phase = (2 * Math.PI * (elapsed % period))/period;
+
+        return withBrightness(color, lowBrightness + (float)((highBrightness - lowBrightness) * (1 - Math.cos(phase))/2));
+    }
+
+    @Override
+    protected boolean isSmooth() {
+        return true;
+    }
+}
@@ -45,6 +45,7 @@ import java.util.Arrays;
  *       <ol>
  *           <li>hue - the hue as a degree value from 0.0 to 360.0</li>
  *           <li>saturation - the saturation as a percentage from 0.0 to 100.0</li>
+ *           <li>value - the brightness as a percentage value (optional)</li>
  *       </ol>
  *   </li>
  *   <li>
@@ -246,6 +247,24 @@ public class Color {
         throw new RuntimeException("Invalid color mode: " + colorMode);
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if( other == this ) {
+            return true;
+        }
+        if( !(other instanceof Color) ) {
+            return false;
+        }
+        Color c = (Color)other;
+
+        return (colorMode.equals(c.colorMode) && Arrays.equals(components, c.components));
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * colorMode.hashCode() + Arrays.hashCode(components));
+    }
+
     public String toString() {
         return (colorMode + " " + Arrays.toString(components));
     }
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Rotates all of its lights around the full {@link ColorMode#HSV} hue circle at a fixed saturation.
+ */
+public class ColorLoopEffect extends Effect {
+    private final long  period;
+    private final float saturation;
+
+    /**
+     * Constructs a color loop across the specified lights.
+     * @param period the time taken for one trip around the hue circle
+     * @param duration how long the loop runs, or null to run until cancelled
+     * @param saturation the saturation of the colors as a percentage from 0.0 to 100.0
+     * @param lights the lights that loop
+     */
+    public ColorLoopEffect(@Nonnull TimePeriod<?> period, @Nullable TimePeriod<?> duration, @Nonnegative float saturation, @Nonnull Light ... lights) {
+        super(duration, lights);
+        this.period = Math.max(1L, period.convertTo(TimePeriod.MILLISECOND).longValue());
+        this.saturation = saturation;
+    }
+
+    @Override
+    protected @Nonnull Color getColor(@Nonnegative long elapsed) {
+        return new Color(ColorMode.HSV, Math.round((360f * (elapsed % period))/period), saturation);
+    }
+
+    @Override
+    protected boolean isSmooth() {
+        return true;
+    }
+}
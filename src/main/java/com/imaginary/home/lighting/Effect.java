@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import com.imaginary.home.controller.CommunicationException;
+import com.imaginary.home.controller.ResultFuture;
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A lighting effect run by an {@link EffectsEngine}. On every frame the effect works out a single color from the
+ * time elapsed since it started and sends that color to all of its lights, so the lights stay in lockstep. A light
+ * is only sent a frame when the color differs from the last one it was sent and its previous change has reached the
+ * device. A light that falls behind therefore skips frames rather than queueing them, which keeps any number of
+ * effects within whatever rate the underlying system can sustain.
+ * <p>
+ *     The effect is its own handle: cancelling it stops the effect at the next frame, and it completes with true
+ *     once its duration has passed. An effect without a duration runs until cancelled.
+ * </p>
+ */
+public abstract class Effect extends ResultFuture<Boolean> {
+    /**
+     * Applies a brightness to a color, leaving the color itself alone. {@link ColorMode#CT} colors carry brightness
+     * natively, anything else is expressed as {@link ColorMode#HSV} with brightness as the value component.
+     * @param color the base color
+     * @param brightness the brightness as a percentage from 0.0 to 100.0
+     * @return the color at the specified brightness
+     */
+    static protected @Nonnull Color withBrightness(@Nonnull Color color, @Nonnegative float brightness) {
+        float b = Math.round(Math.min(100f, Math.max(0f, brightness)));
+
+        if( color.getColorMode().equals(ColorMode.CT) ) {
+            return new Color(ColorMode.CT, color.getComponents()[0], b);
+        }
+        float[] hsv = color.convertToHSV().getComponents();
+
+        return new Color(ColorMode.HSV, hsv[0], hsv[1], b);
+    }
+
+    private final long                           duration;
+    private final HashMap<Light,Future<Boolean>> inFlight = new HashMap<Light, Future<Boolean>>();
+    private final Light[]                        lights;
+    private final HashMap<Light,Color>           sent = new HashMap<Light, Color>();
+    private long                                 startedAt;
+
+    /**
+     * Constructs an effect across the specified lights.
+     * @param duration how long the effect runs, or null to run until cancelled
+     * @param lights the lights that show the effect
+     */
+    protected Effect(@Nullable TimePeriod<?> duration, @Nonnull Light ... lights) {
+        this.duration = (duration == null ? 0L : duration.convertTo(TimePeriod.MILLISECOND).longValue());
+        this.lights = lights;
+    }
+
+    /**
+     * Provides the color to show at the specified point in the effect. The same value is sent to every light.
+     * @param elapsed the number of milliseconds since the effect started
+     * @return the color for this frame
+     */
+    protected abstract @Nonnull Color getColor(@Nonnegative long elapsed);
+
+    public @Nonnull Light[] getLights() {
+        return lights;
+    }
+
+    /**
+     * @return true if each frame should blend into the next over the frame interval, false to switch instantly
+     */
+    protected boolean isSmooth() {
+        return false;
+    }
+
+    void begin(long now) {
+        startedAt = now;
+    }
+
+    /**
+     * Sends the frame for the specified time to every light ready to take it. Only ever called from the engine's
+     * timer, so the bookkeeping here needs no locking.
+     * @param now the current time in milliseconds
+     * @param frameMillis the engine's frame interval
+     */
+    void render(long now, @Nonnegative long frameMillis) {
+        long elapsed = now - startedAt;
+
+        if( duration > 0L && elapsed >= duration ) {
+            complete(true);
+            return;
+        }
+        Color color = getColor(elapsed);
+        TimePeriod<?> transition = (isSmooth() ? new TimePeriod<Millisecond>(frameMillis, TimePeriod.MILLISECOND) : null);
+
+        for( Light light : lights ) {
+            Future<Boolean> pending = inFlight.get(light);
+
+            if( pending != null ) {
+                if( !pending.isDone() ) {
+                    continue;
+                }
+                try {
+                    pending.get();
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch( CancellationException ignore ) {
+                    // someone else withdrew the change; the next frame replaces it anyway
+                }
+                catch( ExecutionException e ) {
+                    fail(e.getCause() == null ? e : e.getCause());
+                    return;
+                }
+                inFlight.remove(light);
+            }
+            if( color.equals(sent.get(light)) ) {
+                continue;
+            }
+            try {
+                inFlight.put(light, light.changeColor(color, transition));
+                sent.put(light, color);
+            }
+            catch( CommunicationException e ) {
+                fail(e);
+                return;
+            }
+        }
+    }
+}
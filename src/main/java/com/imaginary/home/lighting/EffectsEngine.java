@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import com.imaginary.home.controller.HomeController;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs lighting {@link Effect}s from a single periodic tick on the shared {@link HomeController#timerService}. Each
+ * tick renders one frame of every running effect and only queues device writes, so the number of threads involved
+ * stays the same however many effects and lights are running. The tick only runs while there are effects to render.
+ * <p>
+ *     The frame rate of the shared engine defaults to {@link #DEFAULT_FRAME_RATE} frames per second and may be set
+ *     with the <code>imaginary.effects.frameRate</code> system property.
+ * </p>
+ */
+public class EffectsEngine {
+    static private final Logger logger = Logger.getLogger(EffectsEngine.class);
+
+    static public final int DEFAULT_FRAME_RATE = 10;
+
+    static private EffectsEngine instance;
+
+    static public synchronized @Nonnull EffectsEngine getInstance() {
+        if( instance == null ) {
+            int frameRate = DEFAULT_FRAME_RATE;
+            String value = System.getProperty("imaginary.effects.frameRate");
+
+            if( value != null ) {
+                try {
+                    frameRate = Integer.parseInt(value.trim());
+                }
+                catch( NumberFormatException e ) {
+                    logger.warn("Invalid effects frame rate: " + value);
+                }
+            }
+            instance = new EffectsEngine(frameRate);
+        }
+        return instance;
+    }
+
+    private final CopyOnWriteArrayList<Effect> effects = new CopyOnWriteArrayList<Effect>();
+    private final long                         frameMillis;
+    private ScheduledFuture<?>                 ticker;
+
+    /**
+     * Constructs an engine rendering at the specified rate.
+     * @param frameRate the number of frames per second, capped at 100
+     */
+    public EffectsEngine(@Nonnegative int frameRate) {
+        frameMillis = Math.max(10L, 1000L/Math.max(1, frameRate));
+    }
+
+    public int getActiveCount() {
+        return effects.size();
+    }
+
+    public @Nonnegative long getFrameMillis() {
+        return frameMillis;
+    }
+
+    /**
+     * Starts running the specified effect from the next frame.
+     * @param effect the effect to run
+     * @return the effect, which serves as the handle for cancelling it or waiting for it to finish
+     */
+    public @Nonnull <T extends Effect> T start(@Nonnull T effect) {
+        effect.begin(System.currentTimeMillis());
+        effects.add(effect);
+        synchronized( this ) {
+            if( ticker == null ) {
+                ticker = HomeController.timerService.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        tick();
+                    }
+                }, 0L, frameMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return effect;
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+
+        for( Effect effect : effects ) {
+            if( !effect.isDone() ) {
+                try {
+                    effect.render(now, frameMillis);
+                }
+                catch( Throwable t ) {
+                    logger.error("Effect failed: " + t.getMessage(), t);
+                    effect.fail(t);
+                }
+            }
+            if( effect.isDone() ) {
+                effects.remove(effect);
+            }
+        }
+        synchronized( this ) {
+            if( effects.isEmpty() && ticker != null ) {
+                ticker.cancel(false);
+                ticker = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import com.imaginary.home.controller.CommunicationException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+
+/**
+ * A lighting service that can address several of its lights with a single command so that they change together
+ * and at the cost of a single call.
+ */
+public interface GroupLightingService extends LightingService {
+    /**
+     * Provides a light that controls all of the specified lights at once. Reads against the group describe a
+     * representative member.
+     * @param lightIds the provider IDs of the lights to control together
+     * @return a light controlling exactly the specified lights, or null if the service cannot (or would rather not)
+     * address them as a group, in which case the caller should fall back to the individual lights
+     * @throws CommunicationException an error occurred talking with the API
+     */
+    public @Nullable Light getGroup(@Nonnull Collection<String> lightIds) throws CommunicationException;
+}
@@ -71,9 +71,7 @@ public class Main {
                             String which = (args.length < 4 ? "all" : args[3]);
 
                             if( which.equals("all") ) {
-                                for( Light bulb : hue.listLights() ) {
-                                    results.add(bulb.flipOn());
-                                }
+                                results.add(hue.getAllLights().flipOn());
                             }
                             else {
                                 boolean found = false;
@@ -93,9 +91,7 @@ public class Main {
                             String which = (args.length < 4 ? "all" : args[3]);
 
                             if( which.equals("all") ) {
-                                for( Light bulb : hue.listLights() ) {
-                                    results.add(bulb.flipOff());
-                                }
+                                results.add(hue.getAllLights().flipOff());
                             }
                             else {
                                 boolean found = false;
@@ -120,9 +116,7 @@ public class Main {
                             float brightness = Float.parseFloat(b);
 
                             if( which.equals("all") ) {
-                                for( Light bulb : hue.listLights() ) {
-                                    results.add(bulb.fadeOn(transition, brightness));
-                                }
+                                results.add(hue.getAllLights().fadeOn(transition, brightness));
                             }
                             else {
                                 boolean found = false;
@@ -145,9 +139,7 @@ public class Main {
                             TimePeriod transition = TimePeriod.valueOf(t);
 
                             if( which.equals("all") ) {
-                                for( Light bulb : hue.listLights() ) {
-                                    results.add(bulb.fadeOff(transition));
-                                }
+                                results.add(hue.getAllLights().fadeOff(transition));
                             }
                             else {
                                 boolean found = false;
@@ -195,9 +187,7 @@ public class Main {
                             TimePeriod transition = TimePeriod.valueOf(t);
 
                             if( which.equals("all") ) {
-                                for( Light bulb : hue.listLights() ) {
-                                    results.add(bulb.changeColor(color, transition));
-                                }
+                                results.add(hue.getAllLights().changeColor(color, transition));
                             }
                             else {
                                 boolean found = false;
@@ -250,9 +240,7 @@ public class Main {
                             TimePeriod duration = TimePeriod.valueOf(d);
 
                             if( which.equals("all") ) {
-                                for( Light bulb : hue.listLights() ) {
-                                    results.add(bulb.strobe(interval, duration, colors));
-                                }
+                                results.add(hue.getAllLights().strobe(interval, duration, colors));
                             }
                             else {
                                 boolean found = false;
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Beats all of its lights between a high and a low brightness, spending the first half of each period at the high
+ * brightness and the second half at the low one.
+ */
+public class PulseEffect extends Effect {
+    private final Color high;
+    private final Color low;
+    private final long  period;
+
+    /**
+     * Constructs a pulse across the specified lights.
+     * @param period the time taken for one beat
+     * @param duration how long the pulse runs, or null to run until cancelled
+     * @param color the color of the lights
+     * @param lowBrightness the brightness between beats as a percentage from 0.0 to 100.0
+     * @param highBrightness the brightness of a beat as a percentage from 0.0 to 100.0
+     * @param lights the lights that pulse
+     */
+    public PulseEffect(@Nonnull TimePeriod<?> period, @Nullable TimePeriod<?> duration, @Nonnull Color color, @Nonnegative float lowBrightness, @Nonnegative float highBrightness, @Nonnull Light ... lights) {
+        super(duration, lights);
+        this.period = Math.max(2L, period.convertTo(TimePeriod.MILLISECOND).longValue());
+        this.high = withBrightness(color, highBrightness);
+        this.low = withBrightness(color, lowBrightness);
+    }
+
+    @Override
+    protected @Nonnull Color getColor(@Nonnegative long elapsed) {
+        return ((elapsed % period) < period/2 ? high : low);
+    }
+}
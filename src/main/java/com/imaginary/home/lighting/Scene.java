@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A target state for several lights at once: a color for each light that should be on and nothing for each light
+ * that should be off. Lights that are not part of the scene are left alone when it is applied.
+ */
+public class Scene {
+    private final TreeMap<String,Color> lights = new TreeMap<String, Color>();
+
+    public Scene() { }
+
+    /**
+     * @return the target color for each light in the scene, keyed by the light's provider ID, with null meaning off
+     */
+    public @Nonnull Map<String,Color> getLights() {
+        return Collections.unmodifiableMap(lights);
+    }
+
+    /**
+     * Includes a light in this scene.
+     * @param lightId the provider ID of the light
+     * @param color the color the light should show, or null if it should be off
+     * @return this scene
+     */
+    public @Nonnull Scene setLight(@Nonnull String lightId, @Nullable Color color) {
+        lights.put(lightId, color);
+        return this;
+    }
+
+    public String toString() {
+        return lights.toString();
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import com.imaginary.home.controller.CommunicationException;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.Future;
+
+/**
+ * A lighting service that can store a {@link Scene} with the underlying system and then apply it to all of its
+ * lights with a single call.
+ */
+public interface SceneLightingService extends LightingService {
+    /**
+     * Applies the specified scene. The first use of a scene stores it with the underlying system; later uses of the
+     * same scene recall the stored copy.
+     * @param scene the target state of the lights
+     * @param transitionTime the time period over which the lights should change
+     * @return a future that completes once the scene has been applied, or null if the service cannot apply this
+     * scene in one call, in which case the caller should change the lights individually
+     * @throws CommunicationException an error occurred talking with the API
+     */
+    public @Nullable Future<Boolean> recallScene(@Nonnull Scene scene, @Nullable TimePeriod<?> transitionTime) throws CommunicationException;
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.lighting;
+
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Switches all of its lights through a sequence of colors, holding each for a fixed interval.
+ */
+public class StrobeEffect extends Effect {
+    private final Color[] colors;
+    private final long    interval;
+
+    /**
+     * Constructs a strobe across the specified lights.
+     * @param interval how long each color is shown
+     * @param duration how long the strobe runs, or null to run until cancelled
+     * @param colors the colors to cycle through
+     * @param lights the lights that strobe
+     */
+    public StrobeEffect(@Nonnull TimePeriod<?> interval, @Nullable TimePeriod<?> duration, @Nonnull Color[] colors, @Nonnull Light ... lights) {
+        super(duration, lights);
+        if( colors.length < 1 ) {
+            throw new IllegalArgumentException("At least one color is required");
+        }
+        this.colors = colors;
+        this.interval = Math.max(1L, interval.convertTo(TimePeriod.MILLISECOND).longValue());
+    }
+
+    @Override
+    protected @Nonnull Color getColor(@Nonnegative long elapsed) {
+        return colors[(int)((elapsed/interval) % colors.length)];
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import junit.framework.Assert;
+import org.dasein.persist.PersistenceException;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exercises {@link EntityCache} bounds, expiry and invalidation against an in-memory loader. Unlike the other cloud
+ * tests, this one needs no database.
+ */
+public class EntityCacheTest {
+    static private class CountingLoader implements EntityCache.BatchLoader<String> {
+        final AtomicInteger batches = new AtomicInteger(0);
+        final AtomicInteger loads   = new AtomicInteger(0);
+
+        @Override
+        public @Nullable String load(@Nonnull String key) throws PersistenceException {
+            loads.incrementAndGet();
+            return "value-" + key;
+        }
+
+        @Override
+        public @Nonnull Map<String,String> loadAll(@Nonnull Collection<String> keys) throws PersistenceException {
+            HashMap<String,String> values = new HashMap<String, String>();
+
+            batches.incrementAndGet();
+            for( String key : keys ) {
+                loads.incrementAndGet();
+                // keys starting with x stand for rows that do not exist
+                if( !key.startsWith("x") ) {
+                    values.put(key, "value-" + key);
+                }
+            }
+            return values;
+        }
+    }
+
+    public EntityCacheTest() { }
+
+    @Test
+    public void sizeBound() throws Exception {
+        EntityCache<String> cache = new EntityCache<String>("test.bound", 100, 60000L);
+        CountingLoader loader = new CountingLoader();
+
+        for( int i=0; i<10000; i++ ) {
+            cache.get(String.valueOf(i), loader);
+            Assert.assertTrue("Cache grew past its bound", cache.size() <= 100);
+        }
+        Assert.assertEquals("Unexpected number of evictions", 9900L, cache.getEvictions());
+    }
+
+    @Test
+    public void leastRecentlyUsedEviction() throws Exception {
+        EntityCache<String> cache = new EntityCache<String>("test.lru", 3, 60000L);
+        CountingLoader loader = new CountingLoader();
+
+        cache.get("a", loader);
+        cache.get("b", loader);
+        cache.get("c", loader);
+        cache.get("a", loader);
+        cache.get("d", loader);
+        Assert.assertEquals("Unexpected loads before checking eviction", 4, loader.loads.get());
+        cache.get("a", loader);
+        Assert.assertEquals("Recently used entry was evicted", 4, loader.loads.get());
+        cache.get("b", loader);
+        Assert.assertEquals("Least recently used entry was not evicted", 5, loader.loads.get());
+    }
+
+    @Test
+    public void batchLoad() throws Exception {
+        EntityCache<String> cache = new EntityCache<String>("test.batch", 10, 60000L);
+        CountingLoader loader = new CountingLoader();
+
+        cache.get("a", loader);
+
+        Map<String,String> values = cache.getAll(Arrays.asList("c", "a", "b", "c", "x1"), loader);
+
+        Assert.assertEquals("Misses were not loaded in one batch", 1, loader.batches.get());
+        Assert.assertEquals("Cached or repeated keys were loaded again", 4, loader.loads.get());
+        Assert.assertEquals("Wrong keys or order", Arrays.asList("c", "a", "b"), new ArrayList<String>(values.keySet()));
+        cache.getAll(Arrays.asList("a", "b", "c"), loader);
+        Assert.assertEquals("Batch-loaded entries were not cached", 1, loader.batches.get());
+    }
+
+    @Test
+    public void expiry() throws Exception {
+        EntityCache<String> cache = new EntityCache<String>("test.ttl", 10, 50L);
+        CountingLoader loader = new CountingLoader();
+
+        cache.get("a", loader);
+        cache.get("a", loader);
+        Assert.assertEquals("Entry was not served from the cache", 1, loader.loads.get());
+        Thread.sleep(100L);
+        cache.get("a", loader);
+        Assert.assertEquals("Expired entry was served", 2, loader.loads.get());
+        Assert.assertEquals("Expiration was not counted", 1L, cache.getExpirations());
+        Assert.assertEquals("Unexpected hit rate", 1d/3d, cache.getHitRate(), 0.0001d);
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        EntityCache<String> cache = new EntityCache<String>("test.disabled", 10, 60000L);
+        CountingLoader loader = new CountingLoader();
+
+        cache.get("a", loader);
+        cache.setEnabled(false);
+        cache.get("a", loader);
+        cache.get("a", loader);
+        Assert.assertEquals("Disabled cache served an entry", 3, loader.loads.get());
+        Assert.assertEquals("Disabled cache holds entries", 0, cache.size());
+    }
+
+    @Test
+    public void invalidationDuringLoad() throws Exception {
+        final EntityCache<String> cache = new EntityCache<String>("test.race", 10, 60000L);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch invalidated = new CountDownLatch(1);
+        final AtomicInteger version = new AtomicInteger(1);
+        final EntityCache.Loader<String> loader = new EntityCache.Loader<String>() {
+            @Override
+            public @Nullable String load(@Nonnull String key) throws PersistenceException {
+                String value = "v" + version.get();
+
+                loading.countDown();
+                try {
+                    invalidated.await();
+                }
+                catch( InterruptedException e ) {
+                    throw new PersistenceException(e);
+                }
+                return value;
+            }
+        };
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("a", loader);
+                }
+                catch( PersistenceException e ) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        reader.start();
+        loading.await();
+        version.set(2);
+        cache.invalidate("a");
+        invalidated.countDown();
+        reader.join();
+        Assert.assertEquals("Stale load was cached over an invalidation", "v2", cache.get("a", loader));
+    }
+
+    @Test
+    public void concurrentUpdates() throws Exception {
+        final EntityCache<Long> cache = new EntityCache<Long>("test.concurrent", 10, 60000L);
+        final AtomicLong database = new AtomicLong(0L);
+        final AtomicLong committed = new AtomicLong(0L);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final EntityCache.Loader<Long> loader = new EntityCache.Loader<Long>() {
+            @Override
+            public @Nullable Long load(@Nonnull String key) throws PersistenceException {
+                Thread.yield();
+                return database.get();
+            }
+        };
+        final long updates = 2000L;
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<8; i++ ) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while( committed.get() < updates ) {
+                            long floor = committed.get();
+                            Long value = cache.get("a", loader);
+
+                            if( value == null || value < floor ) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch( PersistenceException e ) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+        for( long v=1; v<=updates; v++ ) {
+            database.set(v);
+            cache.invalidate("a");
+            committed.set(v);
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        Assert.assertEquals("Readers saw values older than a committed write", 0, failures.get());
+        Assert.assertEquals("Cache did not settle on the last write", Long.valueOf(updates), cache.get("a", loader));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+/**
+ * Exercises {@link IdGenerator} uniqueness, ordering and token format, and benchmarks it against the random UUIDs it
+ * replaced. Like the cache tests, this one needs no database.
+ */
+public class IdGeneratorTest {
+    static private final Logger logger = Logger.getLogger("com.imaginary.home.cloud.test");
+
+    static private final int     IDS_PER_THREAD = 100000;
+    static private final int     THREADS        = 8;
+    static private final Pattern ID_PATTERN     = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-7[0-9a-f]{3}-[89ab][0-9a-f]{3}-[0-9a-f]{12}");
+    static private final Pattern RANDOM_PATTERN = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-4[0-9a-f]{3}-[89ab][0-9a-f]{3}-[0-9a-f]{12}");
+    static private final Pattern TOKEN_PATTERN  = Pattern.compile("[a-hjkmnp-zA-HJ-NP-Z2-9]+");
+
+    public IdGeneratorTest() { }
+
+    @Test
+    public void idFormat() throws Exception {
+        for( int i=0; i<1000; i++ ) {
+            String id = IdGenerator.nextId();
+
+            Assert.assertTrue("Malformed ID: " + id, ID_PATTERN.matcher(id).matches());
+            Assert.assertNotNull("ID is not a valid UUID", UUID.fromString(id));
+        }
+    }
+
+    @Test
+    public void randomIdsShareNoTimePrefix() throws Exception {
+        HashSet<String> prefixes = new HashSet<String>();
+
+        for( int i=0; i<1000; i++ ) {
+            String id = IdGenerator.randomId();
+
+            Assert.assertTrue("Malformed ID: " + id, RANDOM_PATTERN.matcher(id).matches());
+            prefixes.add(id.substring(0, 8));
+        }
+        // the leading characters feed the encryption keys, so IDs created together must not share them
+        Assert.assertTrue("Random IDs share their leading characters", prefixes.size() > 990);
+    }
+
+    @Test
+    public void idsAreOrdered() throws Exception {
+        String last = IdGenerator.nextId();
+
+        for( int i=0; i<IDS_PER_THREAD; i++ ) {
+            String id = IdGenerator.nextId();
+
+            Assert.assertTrue("ID " + id + " sorts before " + last, id.compareTo(last) > 0);
+            last = id;
+        }
+    }
+
+    @Test
+    public void concurrentIdsAreUnique() throws Exception {
+        final ConcurrentHashMap<String,Boolean> ids = new ConcurrentHashMap<String, Boolean>();
+        final CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<THREADS; i++ ) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    for( int j=0; j<IDS_PER_THREAD; j++ ) {
+                        ids.put(IdGenerator.nextId(), Boolean.TRUE);
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for( Thread t : threads ) {
+            t.join();
+        }
+        Assert.assertEquals("Duplicate IDs were generated", THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    @Test
+    public void tokenFormat() throws Exception {
+        HashSet<String> tokens = new HashSet<String>();
+
+        for( int i=0; i<1000; i++ ) {
+            String token = IdGenerator.generateToken(10, 20);
+
+            Assert.assertTrue("Token is too short: " + token, token.length() >= 10);
+            Assert.assertTrue("Token is too long: " + token, token.length() < 20);
+            Assert.assertTrue("Token has illegal characters: " + token, TOKEN_PATTERN.matcher(token).matches());
+            Assert.assertTrue("Duplicate token: " + token, tokens.add(token));
+        }
+        Assert.assertEquals("Fixed length token has the wrong length", 32, IdGenerator.generateToken(32, 32).length());
+    }
+
+    @Test
+    public void throughputBenchmark() throws Exception {
+        long uuids = time(new Runnable() {
+            @Override
+            public void run() {
+                UUID.randomUUID().toString();
+            }
+        });
+        long ids = time(new Runnable() {
+            @Override
+            public void run() {
+                IdGenerator.nextId();
+            }
+        });
+        long tokens = time(new Runnable() {
+            @Override
+            public void run() {
+                IdGenerator.generateToken(40, 60);
+            }
+        });
+
+        logger.info(THREADS + " threads x " + IDS_PER_THREAD + ": random UUIDs " + rate(uuids) + "/s, IDs " + rate(ids) + "/s, tokens " + rate(tokens) + "/s");
+    }
+
+    private long rate(long nanos) {
+        return (THREADS * (long)IDS_PER_THREAD * 1000000000L) / Math.max(1L, nanos);
+    }
+
+    private long time(final Runnable task) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<THREADS; i++ ) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch( InterruptedException e ) {
+                        return;
+                    }
+                    for( int j=0; j<IDS_PER_THREAD; j++ ) {
+                        task.run();
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+        long began = System.nanoTime();
+
+        start.countDown();
+        for( Thread t : threads ) {
+            t.join();
+        }
+        return System.nanoTime() - began;
+    }
+}
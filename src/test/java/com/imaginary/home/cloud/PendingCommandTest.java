@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud;
+
+import com.imaginary.home.cloud.device.Device;
+import com.imaginary.home.cloud.persist.Criterion;
+import com.imaginary.home.cloud.persist.EntityStore;
+import com.imaginary.home.cloud.persist.MemoryStorage;
+import com.imaginary.home.cloud.persist.Storage;
+import com.imaginary.home.cloud.persist.StorageTransaction;
+import com.imaginary.home.cloud.user.User;
+import junit.framework.Assert;
+import org.apache.log4j.Logger;
+import org.dasein.persist.PersistenceException;
+import org.dasein.util.uom.time.Minute;
+import org.dasein.util.uom.time.TimePeriod;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Exercises {@link PendingCommand} directly against the storage backend. Unless the <code>imaginary.storage</code>
+ * system property names another backend, this runs against {@link MemoryStorage} so it needs no database and runs
+ * with the build; set the property to <code>dasein</code> to run it against a real database by hand.
+ */
+public class PendingCommandTest {
+    static private final Logger logger = Logger.getLogger("com.imaginary.home.cloud.test");
+
+    static private final int COMMANDS   = 50;
+    static private final int ITERATIONS = 10;
+
+    private Device          device;
+    private ControllerRelay relay;
+    private String          userId;
+
+    public PendingCommandTest() { }
+
+    @BeforeClass
+    static public void selectStorage() {
+        if( System.getProperty(Storage.PROPERTY) == null ) {
+            System.setProperty(Storage.PROPERTY, "memory");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        long key = System.currentTimeMillis();
+        User user = User.create("pending" + key + "@example.com", "Pending", "Test", "ABC" + key);
+        Location location = Location.create(user.getUserId(), "Pending Test " + key, "Pending command test", TimeZone.getDefault());
+        HashMap<String,Object> json = new HashMap<String, Object>();
+
+        userId = user.getUserId();
+        relay = ControllerRelay.create(location, "Pending Test Relay");
+        json.put("deviceId", "1");
+        json.put("systemId", "1");
+        json.put("name", "Pending Test Device");
+        json.put("on", false);
+        device = Device.create(relay, "powered", new JSONObject(json));
+    }
+
+    private void queue(int count) throws Exception {
+        String[] commands = new String[count];
+
+        for( int i=0; i<count; i++ ) {
+            commands[i] = "{\"command\":\"flipOn\",\"arguments\":{}}";
+        }
+        PendingCommand.queue(userId, new TimePeriod<Minute>(5, TimePeriod.MINUTE), commands, device);
+    }
+
+    /**
+     * The original claim path, one transaction per command and no claims, kept here to compare with
+     * {@link PendingCommand#claimCommandsToSend(ControllerRelay)}.
+     * @return the commands marked as sent
+     * @throws PersistenceException an error occurred marking the commands
+     */
+    private Collection<PendingCommand> claimIndividually() throws PersistenceException {
+        EntityStore<PendingCommand> store = Storage.getInstance().getStore(PendingCommand.class);
+        Collection<PendingCommand> list = store.find(new Criterion("state", PendingCommandState.WAITING), new Criterion("relayId", relay.getControllerRelayId()));
+        ArrayList<PendingCommand> marked = new ArrayList<PendingCommand>();
+
+        for( PendingCommand cmd : list ) {
+            HashMap<String,Object> state = new HashMap<String, Object>();
+
+            state.put("state", PendingCommandState.SENT);
+            state.put("sentTimestamp", System.currentTimeMillis());
+
+            StorageTransaction xaction = Storage.getInstance().begin();
+
+            try {
+                store.update(xaction, cmd, state);
+                xaction.commit();
+                marked.add(cmd);
+            }
+            finally {
+                xaction.rollback();
+            }
+        }
+        return marked;
+    }
+
+    @Test
+    public void claimBenchmark() throws Exception {
+        long individual = 0L, bulk = 0L;
+
+        for( int i=0; i<ITERATIONS; i++ ) {
+            queue(COMMANDS);
+            long start = System.nanoTime();
+            Collection<PendingCommand> claimed = claimIndividually();
+
+            individual += (System.nanoTime() - start);
+            Assert.assertEquals("Individual claim missed commands", COMMANDS, claimed.size());
+
+            queue(COMMANDS);
+            start = System.nanoTime();
+            claimed = PendingCommand.claimCommandsToSend(relay);
+            bulk += (System.nanoTime() - start);
+            Assert.assertEquals("Bulk claim missed commands", COMMANDS, claimed.size());
+            for( PendingCommand cmd : claimed ) {
+                Assert.assertEquals("Command was not marked sent", PendingCommandState.SENT, cmd.getState());
+            }
+        }
+        logger.info("Claiming " + COMMANDS + " commands: " + (individual/ITERATIONS/1000000L) + "ms one transaction per command, " + (bulk/ITERATIONS/1000000L) + "ms in bulk");
+        PendingCommand.loadWaitingCounts();
+        Assert.assertFalse("Commands remain waiting after claims", PendingCommand.hasCommands(relay));
+    }
+
+    @Test
+    public void concurrentClaims() throws Exception {
+        queue(COMMANDS);
+        final ArrayList<PendingCommand> claimed = new ArrayList<PendingCommand>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for( int i=0; i<4; i++ ) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Collection<PendingCommand> mine = PendingCommand.claimCommandsToSend(relay);
+
+                        synchronized( claimed ) {
+                            claimed.addAll(mine);
+                        }
+                    }
+                    catch( Throwable e ) {
+                        logger.error("Claim failed: " + e.getMessage(), e);
+                    }
+                }
+            };
+
+            threads.add(t);
+            t.start();
+        }
+        for( Thread t : threads ) {
+            t.join();
+        }
+        HashSet<String> ids = new HashSet<String>();
+
+        for( PendingCommand cmd : claimed ) {
+            Assert.assertTrue("Command " + cmd.getPendingCommandId() + " was claimed more than once", ids.add(cmd.getPendingCommandId()));
+        }
+        Assert.assertEquals("Not every command was claimed", COMMANDS, ids.size());
+    }
+
+    /**
+     * Races claims the way separate API nodes would, with nothing in this JVM keeping them apart, so only the claim
+     * rows decide who gets each command.
+     */
+    @Test
+    public void claimsRacingAcrossNodes() throws Exception {
+        final EntityStore<PendingCommand> store = Storage.getInstance().getStore(PendingCommand.class);
+        final ArrayList<PendingCommand> claimed = new ArrayList<PendingCommand>();
+        final CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> nodes = new ArrayList<Thread>();
+
+        for( int i=0; i<ITERATIONS; i++ ) {
+            queue(COMMANDS/ITERATIONS);
+        }
+        for( int i=0; i<8; i++ ) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        // a node that loses every attempt comes back empty handed, so keep going until nothing waits
+                        while( !store.find(new Criterion("state", PendingCommandState.WAITING), new Criterion("relayId", relay.getControllerRelayId())).isEmpty() ) {
+                            Collection<PendingCommand> mine = PendingCommand.claimWaiting(relay.getControllerRelayId());
+
+                            synchronized( claimed ) {
+                                claimed.addAll(mine);
+                            }
+                        }
+                    }
+                    catch( Throwable e ) {
+                        logger.error("Claim failed: " + e.getMessage(), e);
+                    }
+                }
+            };
+
+            nodes.add(t);
+            t.start();
+        }
+        start.countDown();
+        for( Thread t : nodes ) {
+            t.join();
+        }
+        HashSet<String> ids = new HashSet<String>();
+
+        for( PendingCommand cmd : claimed ) {
+            Assert.assertTrue("Command " + cmd.getPendingCommandId() + " was sent more than once", ids.add(cmd.getPendingCommandId()));
+        }
+        Assert.assertEquals("Not every command was claimed", COMMANDS, ids.size());
+    }
+}
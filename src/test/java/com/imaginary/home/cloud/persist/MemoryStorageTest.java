@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.cloud.persist;
+
+import junit.framework.Assert;
+import org.dasein.persist.PersistenceException;
+import org.dasein.persist.annotations.Index;
+import org.dasein.persist.annotations.IndexType;
+import org.dasein.util.CachedItem;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Exercises the {@link MemoryStorage} backend directly. Like the cache tests, this one needs no database.
+ */
+public class MemoryStorageTest {
+    static public class Widget implements CachedItem {
+        @Index(type=IndexType.PRIMARY)
+        public String   widgetId;
+        @Index(type=IndexType.SECONDARY)
+        public String   ownerId;
+        @Index(type=IndexType.SECONDARY)
+        public String[] tags;
+        public long     size;
+
+        public Widget() { }
+
+        @Override
+        public boolean isValidForCache() {
+            return false;
+        }
+    }
+
+    static private HashMap<String,Object> widget(String widgetId, String ownerId, long size, String ... tags) {
+        HashMap<String,Object> state = new HashMap<String, Object>();
+
+        state.put("widgetId", widgetId);
+        state.put("ownerId", ownerId);
+        state.put("size", (int)size);
+        state.put("tags", tags);
+        return state;
+    }
+
+    public MemoryStorageTest() { }
+
+    @Test
+    public void createAndGet() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            store.create(xaction, widget("w1", "o1", 10, "red"));
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        Widget w = store.get("w1");
+
+        Assert.assertNotNull("Widget was not stored", w);
+        Assert.assertEquals("Owner was not stored", "o1", w.ownerId);
+        Assert.assertEquals("Size was not widened", 10L, w.size);
+        Assert.assertNull("Unknown key returned a widget", store.get("w2"));
+    }
+
+    @Test
+    public void findBySecondaryIndex() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            store.create(xaction, widget("w1", "o1", 1, "red", "blue"));
+            store.create(xaction, widget("w2", "o1", 2, "blue"));
+            store.create(xaction, widget("w3", "o2", 3, "green"));
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        Assert.assertEquals("Wrong number of widgets for o1", 2, store.find(new Criterion("ownerId", "o1")).size());
+        Assert.assertEquals("Wrong number of blue widgets", 2, store.find(new Criterion("tags", "blue")).size());
+        Assert.assertEquals("Wrong number of red widgets for o1", 1, store.find(new Criterion("ownerId", "o1"), new Criterion("tags", "red")).size());
+        Assert.assertEquals("Wrong number of widgets", 3, store.list().size());
+        Assert.assertEquals("Wrong widgets for a batch of keys", 2, store.findAny("widgetId", Arrays.asList("w1", "w3", "w9", "w1")).size());
+        Assert.assertEquals("Widgets matching two tags were returned twice", 2, store.findAny("tags", Arrays.asList("red", "blue"), new Criterion("ownerId", "o1")).size());
+    }
+
+    @Test
+    public void arraysAreCopied() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        HashMap<String,Object> state = widget("w1", "o1", 1, "red");
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            store.create(xaction, state);
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        ((String[])state.get("tags"))[0] = "blue";
+        Assert.assertEquals("Changing the created state changed the stored row", "red", store.get("w1").tags[0]);
+
+        Widget w = store.get("w1");
+
+        w.tags[0] = "green";
+        Assert.assertEquals("Changing a loaded entity changed the stored row", "red", store.get("w1").tags[0]);
+        Assert.assertEquals("Changing a loaded entity changed the index", 1, store.find(new Criterion("tags", "red")).size());
+    }
+
+    @Test
+    public void pageInOrder() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            for( int i=1; i<=9; i++ ) {
+                store.create(xaction, widget("w" + i, (i % 3 == 0 ? "o2" : "o1"), 10 - i));
+            }
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        List<Widget> page = store.page("widgetId", true, null, 2, new Criterion("ownerId", "o1"));
+
+        Assert.assertEquals("Wrong page size", 2, page.size());
+        Assert.assertEquals("Wrong first widget", "w8", page.get(0).widgetId);
+        Assert.assertEquals("Wrong second widget", "w7", page.get(1).widgetId);
+        page = store.page("widgetId", true, page.get(1).widgetId, 10, new Criterion("ownerId", "o1"));
+        Assert.assertEquals("Wrong size for the last page", 4, page.size());
+        Assert.assertEquals("Last page did not start after the cursor", "w5", page.get(0).widgetId);
+        page = store.page("size", false, 2L, 3);
+        Assert.assertEquals("Wrong page size ordering by a number", 3, page.size());
+        Assert.assertEquals("Numeric order was not applied", "w7", page.get(0).widgetId);
+        Assert.assertEquals("Numeric order was not applied", "w5", page.get(2).widgetId);
+    }
+
+    @Test
+    public void pageThroughRepeatedValues() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            // sizes 3, 3, 3, 2, 2, 1 with IDs that do not follow the sizes
+            store.create(xaction, widget("a", "o1", 3));
+            store.create(xaction, widget("f", "o1", 3));
+            store.create(xaction, widget("c", "o1", 3));
+            store.create(xaction, widget("b", "o1", 2));
+            store.create(xaction, widget("e", "o1", 2));
+            store.create(xaction, widget("d", "o1", 1));
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        StringBuilder order = new StringBuilder();
+        Widget last = null;
+
+        while( true ) {
+            List<Widget> page = store.page("size", "widgetId", true, last == null ? null : last.size, last == null ? null : last.widgetId, 2, new Criterion("ownerId", "o1"));
+
+            if( page.isEmpty() ) {
+                break;
+            }
+            for( Widget w : page ) {
+                order.append(w.widgetId);
+            }
+            last = page.get(page.size() - 1);
+        }
+        Assert.assertEquals("Pages did not follow size and then ID", "fcaebd", order.toString());
+        Assert.assertEquals("A missing tie-break did not skip the whole run", "ebd", ids(store.page("size", "widgetId", true, 3L, null, 10)));
+    }
+
+    static private String ids(List<Widget> widgets) {
+        StringBuilder ids = new StringBuilder();
+
+        for( Widget w : widgets ) {
+            ids.append(w.widgetId);
+        }
+        return ids.toString();
+    }
+
+    @Test
+    public void updateAndRemove() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            store.create(xaction, widget("w1", "o1", 1));
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        HashMap<String,Object> state = new HashMap<String, Object>();
+
+        state.put("ownerId", "o2");
+        xaction = storage.begin();
+        try {
+            store.update(xaction, store.get("w1"), state);
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        Assert.assertEquals("Old index entry survived the update", 0, store.find(new Criterion("ownerId", "o1")).size());
+        Assert.assertEquals("New index entry missing after the update", 1, store.find(new Criterion("ownerId", "o2")).size());
+        xaction = storage.begin();
+        try {
+            store.remove(xaction, store.get("w1"));
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        Assert.assertNull("Widget survived removal", store.get("w1"));
+        Assert.assertEquals("Index entry survived removal", 0, store.find(new Criterion("ownerId", "o2")).size());
+    }
+
+    @Test
+    public void rollbackDiscardsChanges() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            store.create(xaction, widget("w1", "o1", 1));
+        }
+        finally {
+            xaction.rollback();
+        }
+        Assert.assertNull("Rolled back widget was stored", store.get("w1"));
+    }
+
+    @Test
+    public void duplicateCreateFails() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        EntityStore<Widget> store = storage.getStore(Widget.class);
+        StorageTransaction xaction = storage.begin();
+
+        try {
+            store.create(xaction, widget("w1", "o1", 1));
+            xaction.commit();
+        }
+        finally {
+            xaction.rollback();
+        }
+        xaction = storage.begin();
+        try {
+            store.create(xaction, widget("w2", "o1", 1));
+            store.create(xaction, widget("w1", "o2", 1));
+            xaction.commit();
+            Assert.fail("Duplicate key was accepted");
+        }
+        catch( PersistenceException expected ) {
+            // expected
+        }
+        finally {
+            xaction.rollback();
+        }
+        Collection<Widget> widgets = store.list();
+
+        Assert.assertEquals("Failed transaction was partially applied", 1, widgets.size());
+        Assert.assertEquals("Original widget was overwritten", "o1", widgets.iterator().next().ownerId);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.controller;
+
+import com.imaginary.home.lighting.ColorMode;
+import com.imaginary.home.lighting.Light;
+import com.imaginary.home.lighting.LightingService;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that {@link ResourceCollector} reports healthy systems alongside failing and hung ones without waiting on
+ * them past its deadline. Uses fake systems, so no controller configuration or devices are needed.
+ */
+public class ResourceCollectorTest {
+    static private class FakeSystem implements HomeAutomationSystem, LightingService {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final long          delay;
+        final boolean       failing;
+        final String        id;
+
+        FakeSystem(@Nonnull String id, long delay, boolean failing) {
+            this.id = id;
+            this.delay = delay;
+            this.failing = failing;
+        }
+
+        @Override public @Nonnull String getAPIEndpoint() { return "http://localhost/" + id; }
+        @Override public @Nonnull Properties getAuthenticationProperties() { return new Properties(); }
+        @Override public @Nonnull Properties getCustomProperties() { return new Properties(); }
+        @Override public @Nonnull String getId() { return id; }
+        @Override public @Nonnull String getName() { return id; }
+        @Override public @Nonnull String getVendor() { return "Test"; }
+        @Override public void init(@Nonnull String id, @Nonnull Properties auth, @Nonnull Properties custom) { }
+        @Override public @Nonnull Properties pair(@Nonnull String applicationName) { return new Properties(); }
+        @Override public Iterable<ColorMode> listNativeColorModes() { return Collections.emptyList(); }
+
+        @Override
+        public Iterable<Light> listLights() throws CommunicationException {
+            calls.incrementAndGet();
+            if( delay > 0L ) {
+                try { Thread.sleep(delay); }
+                catch( InterruptedException ignore ) { }
+            }
+            if( failing ) {
+                throw new CommunicationException("Bridge unreachable");
+            }
+            return Collections.emptyList();
+        }
+    }
+
+    public ResourceCollectorTest() { }
+
+    @Test
+    public void partialResults() throws Exception {
+        FakeSystem fast = new FakeSystem("fast", 0L, false);
+        FakeSystem broken = new FakeSystem("broken", 0L, true);
+        FakeSystem hung = new FakeSystem("hung", 3000L, false);
+        ArrayList<HomeAutomationSystem> systems = new ArrayList<HomeAutomationSystem>();
+        ResourceCollector collector = new ResourceCollector();
+
+        systems.add(fast);
+        systems.add(broken);
+        systems.add(hung);
+
+        long start = System.currentTimeMillis();
+        ResourceListing listing = collector.collect(systems, 300L);
+        long elapsed = System.currentTimeMillis() - start;
+        List<ResourceListing.SystemStatus> statuses = listing.getSystems();
+
+        Assert.assertTrue("Listing waited on the hung system: " + elapsed + "ms", elapsed < 1500L);
+        Assert.assertEquals("Every system should be reported", 3, statuses.size());
+        Assert.assertEquals("Healthy system was not ok", ResourceListing.OK, statuses.get(0).getStatus());
+        Assert.assertEquals("Failure was not reported", ResourceListing.ERROR, statuses.get(1).getStatus());
+        Assert.assertEquals("Failure message was lost", "Bridge unreachable", statuses.get(1).getMessage());
+        Assert.assertEquals("Hung system did not time out", ResourceListing.TIMEOUT, statuses.get(2).getStatus());
+        Assert.assertFalse("Listing claims to be complete", listing.isComplete());
+        Assert.assertEquals("Unexpected incomplete systems", "[broken, hung]", listing.getIncompleteSystems().toString());
+    }
+
+    @Test
+    public void hungSystemIsAskedOnce() throws Exception {
+        FakeSystem hung = new FakeSystem("hung", 1000L, false);
+        ResourceCollector collector = new ResourceCollector();
+        List<HomeAutomationSystem> systems = Collections.<HomeAutomationSystem>singletonList(hung);
+
+        Assert.assertEquals("Hung system did not time out", ResourceListing.TIMEOUT, collector.collect(systems, 100L).getSystems().get(0).getStatus());
+        Assert.assertEquals("Hung system did not time out", ResourceListing.TIMEOUT, collector.collect(systems, 100L).getSystems().get(0).getStatus());
+        Assert.assertEquals("Hung system was asked again while busy", 1, hung.calls.get());
+        Assert.assertEquals("Late answer was not picked up", ResourceListing.OK, collector.collect(systems, 2000L).getSystems().get(0).getStatus());
+        Assert.assertEquals("Late answer was not reused", 1, hung.calls.get());
+    }
+}
@@ -0,0 +1,585 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for a Hue bridge that serves the parts of the bridge API the driver uses: pairing, lights
+ * and their state, groups and their actions, and scenes. Latency, jitter, a request rate limit and random server
+ * errors can be set to see how the driver behaves against a slow, busy or flaky bridge. Point a {@link Hue} at it
+ * with {@link #getAddress()} as the IP address, or just call {@link #newHue(Properties)}.
+ */
+public class HueBridgeSimulator {
+    /**
+     * An access key the simulator accepts without pairing
+     */
+    static public final String ACCESS_KEY = "simulatoraccesskey";
+
+    /**
+     * The number of requests the simulator serves at once, about what a real bridge manages
+     */
+    static private final int THREADS = 8;
+
+    static private final String[] STATE_ATTRIBUTES = { "bri", "ct", "hue", "on", "sat", "xy" };
+
+    private long                                       burstNanos;
+    private final AtomicLong                           errors      = new AtomicLong(0L);
+    private volatile double                            errorRate;
+    private ExecutorService                            executor;
+    private final TreeMap<String,JSONObject>           groups      = new TreeMap<String, JSONObject>();
+    private long                                       intervalNanos;
+    private volatile long                              jitter;
+    private volatile long                              latency;
+    private final TreeMap<String,JSONObject>           lights      = new TreeMap<String, JSONObject>();
+    private long                                       nextFree;
+    private int                                        nextGroupId = 1;
+    private final Random                               random      = new Random();
+    private final AtomicLong                           rateLimited = new AtomicLong(0L);
+    private final ConcurrentHashMap<String,AtomicLong> requests    = new ConcurrentHashMap<String, AtomicLong>();
+    private final TreeMap<String,JSONObject>           scenes      = new TreeMap<String, JSONObject>();
+    private HttpServer                                 server;
+    private final HashSet<String>                      users       = new HashSet<String>();
+
+    /**
+     * Constructs a simulated bridge with the specified number of bulbs, all off and set to a neutral white.
+     * @param bulbs the number of bulbs on the bridge
+     */
+    public HueBridgeSimulator(@Nonnegative int bulbs) {
+        users.add(ACCESS_KEY);
+        try {
+            for( int i=1; i<=bulbs; i++ ) {
+                JSONObject light = new JSONObject();
+                JSONObject state = new JSONObject();
+
+                state.put("on", false);
+                state.put("bri", 254);
+                state.put("hue", 0);
+                state.put("sat", 0);
+                state.put("ct", 366);
+                state.put("xy", new JSONArray("[0.4448,0.4066]"));
+                state.put("colormode", "ct");
+                state.put("reachable", true);
+                light.put("state", state);
+                light.put("name", "Bulb " + i);
+                light.put("type", "Extended color light");
+                light.put("modelid", "LCT001");
+                lights.put(String.valueOf(i), light);
+            }
+        }
+        catch( JSONException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized boolean acquire() {
+        if( intervalNanos <= 0L ) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long start = (nextFree - now < 0 ? now : nextFree);
+        long next = start + intervalNanos;
+
+        if( next - now > burstNanos ) {
+            return false;
+        }
+        nextFree = next;
+        return true;
+    }
+
+    private synchronized void apply(@Nonnull String lightId, @Nonnull JSONObject changes, @Nonnull JSONArray results, @Nonnull String address) throws JSONException {
+        JSONObject light = lights.get(lightId);
+
+        if( light == null ) {
+            results.put(error(3, address, "resource, " + address + ", not available"));
+            return;
+        }
+        JSONObject state = light.getJSONObject("state");
+
+        for( String attr : STATE_ATTRIBUTES ) {
+            if( changes.has(attr) ) {
+                state.put(attr, changes.get(attr));
+                results.put(success(address + "/" + attr, changes.get(attr)));
+            }
+        }
+        if( changes.has("xy") ) {
+            state.put("colormode", "xy");
+        }
+        else if( changes.has("ct") ) {
+            state.put("colormode", "ct");
+        }
+        else if( changes.has("hue") || changes.has("sat") ) {
+            state.put("colormode", "hs");
+        }
+    }
+
+    private void count(@Nonnull String method, @Nonnull String resource) {
+        String key = HueMetrics.getKey(method, resource);
+        AtomicLong counter = requests.get(key);
+
+        if( counter == null ) {
+            AtomicLong c = new AtomicLong(0L);
+
+            counter = requests.putIfAbsent(key, c);
+            if( counter == null ) {
+                counter = c;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private @Nonnull JSONObject error(int type, @Nonnull String address, @Nonnull String description) throws JSONException {
+        JSONObject error = new JSONObject();
+        JSONObject item = new JSONObject();
+
+        error.put("type", type);
+        error.put("address", address);
+        error.put("description", description);
+        item.put("error", error);
+        return item;
+    }
+
+    /**
+     * @return the host and port of the simulator, for use as a bridge's IP address
+     */
+    public @Nonnull String getAddress() {
+        return "127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of requests answered with an injected server error
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of groups stored on the simulated bridge, not counting the built-in group 0
+     */
+    public synchronized int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * @return the number of scenes stored on the simulated bridge
+     */
+    public synchronized int getSceneCount() {
+        return scenes.size();
+    }
+
+    /**
+     * Provides the current state of a simulated light.
+     * @param lightId the ID of the light
+     * @return a copy of the light's state or null if there is no such light
+     */
+    public synchronized @Nullable JSONObject getLightState(@Nonnull String lightId) {
+        JSONObject light = lights.get(lightId);
+
+        try {
+            return (light == null ? null : new JSONObject(light.getJSONObject("state").toString()));
+        }
+        catch( JSONException e ) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of requests turned away by the rate limit
+     */
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    /**
+     * @return the total number of requests received
+     */
+    public long getRequests() {
+        long total = 0L;
+
+        for( AtomicLong c : requests.values() ) {
+            total += c.get();
+        }
+        return total;
+    }
+
+    /**
+     * @param method the HTTP method
+     * @param resource the resource relative to the API root, such as <code>lights/1/state</code>
+     * @return the number of requests received for the method and resource, counted as {@link HueMetrics} does
+     */
+    public long getRequests(@Nonnull String method, @Nonnull String resource) {
+        AtomicLong c = requests.get(HueMetrics.getKey(method, resource));
+
+        return (c == null ? 0L : c.get());
+    }
+
+    private void handle(@Nonnull HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath().substring("/api".length());
+
+            while( path.startsWith("/") ) {
+                path = path.substring(1);
+            }
+            int idx = path.indexOf('/');
+            String user = (idx < 0 ? path : path.substring(0, idx));
+            String resource = (idx < 0 ? "" : path.substring(idx + 1));
+
+            while( resource.endsWith("/") ) {
+                resource = resource.substring(0, resource.length() - 1);
+            }
+            count(method, resource);
+            pause();
+            if( !acquire() ) {
+                rateLimited.incrementAndGet();
+                respond(exchange, 503, "{\"error\":\"The bridge is too busy\"}");
+                return;
+            }
+            if( errorRate > 0d && random.nextDouble() < errorRate ) {
+                errors.incrementAndGet();
+                respond(exchange, 500, "{\"error\":\"Injected failure\"}");
+                return;
+            }
+            JSONObject body = null;
+
+            if( method.equals("POST") || method.equals("PUT") ) {
+                Object value = new JSONTokener(new InputStreamReader(exchange.getRequestBody(), "UTF-8")).nextValue();
+
+                if( value instanceof JSONObject ) {
+                    body = (JSONObject)value;
+                }
+            }
+            if( user.length() < 1 ) {
+                if( method.equals("POST") && body != null ) {
+                    respond(exchange, 200, pair(body).toString());
+                }
+                else {
+                    respond(exchange, 200, new JSONArray().put(error(5, "/", "invalid/missing parameters in body")).toString());
+                }
+                return;
+            }
+            if( !isUser(user) ) {
+                respond(exchange, 200, new JSONArray().put(error(1, "/", "unauthorized user")).toString());
+                return;
+            }
+            Object result = route(method, resource.length() < 1 ? new String[0] : resource.split("/"), body);
+
+            respond(exchange, 200, result.toString());
+        }
+        catch( JSONException e ) {
+            respond(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"Shutting down\"}");
+        }
+    }
+
+    private synchronized boolean isUser(@Nonnull String user) {
+        return users.contains(user);
+    }
+
+    /**
+     * Provides a driver pointed at this simulator and already paired with it.
+     * @param customProperties the driver's custom properties
+     * @return a new driver for the simulated bridge
+     */
+    public @Nonnull Hue newHue(@Nonnull Properties customProperties) {
+        return new Hue(getAddress(), ACCESS_KEY, customProperties);
+    }
+
+    private synchronized @Nonnull JSONArray pair(@Nonnull JSONObject body) throws JSONException {
+        String user = (body.has("username") ? body.getString("username") : Long.toHexString(random.nextLong()));
+        JSONObject success = new JSONObject();
+
+        users.add(user);
+        success.put("username", user);
+        return new JSONArray().put(new JSONObject().put("success", success));
+    }
+
+    private void pause() throws InterruptedException {
+        long delay = latency;
+
+        if( jitter > 0L ) {
+            delay += (long)(random.nextDouble() * jitter);
+        }
+        if( delay > 0L ) {
+            Thread.sleep(delay);
+        }
+    }
+
+    private void respond(@Nonnull HttpExchange exchange, int status, @Nonnull String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private synchronized @Nonnull Object route(@Nonnull String method, @Nonnull String[] parts, @Nullable JSONObject body) throws JSONException {
+        String collection = (parts.length > 0 ? parts[0] : "");
+        String address = "/" + join(parts);
+
+        if( collection.equals("lights") ) {
+            if( parts.length == 1 && method.equals("GET") ) {
+                return new JSONObject(lightsToString());
+            }
+            if( parts.length == 2 && method.equals("GET") && lights.containsKey(parts[1]) ) {
+                return new JSONObject(lights.get(parts[1]).toString());
+            }
+            if( parts.length == 3 && parts[2].equals("state") && method.equals("PUT") && body != null ) {
+                JSONArray results = new JSONArray();
+
+                apply(parts[1], body, results, address);
+                return results;
+            }
+        }
+        else if( collection.equals("groups") ) {
+            if( parts.length == 1 && method.equals("GET") ) {
+                JSONObject list = new JSONObject();
+
+                for( String id : groups.keySet() ) {
+                    list.put(id, groups.get(id));
+                }
+                return list;
+            }
+            if( parts.length == 1 && method.equals("POST") && body != null ) {
+                String id = String.valueOf(nextGroupId++);
+                JSONObject group = new JSONObject();
+
+                group.put("name", body.has("name") ? body.getString("name") : "Group " + id);
+                group.put("lights", body.has("lights") ? body.getJSONArray("lights") : new JSONArray());
+                groups.put(id, group);
+                return new JSONArray().put(success("id", id));
+            }
+            if( parts.length == 2 && method.equals("DELETE") && groups.containsKey(parts[1]) ) {
+                groups.remove(parts[1]);
+                return new JSONArray().put(new JSONObject().put("success", address + " deleted"));
+            }
+            JSONArray members = (parts.length > 1 ? getMembers(parts[1]) : null);
+
+            if( members != null ) {
+                if( parts.length == 2 && method.equals("GET") ) {
+                    JSONObject group = new JSONObject();
+
+                    group.put("name", parts[1].equals("0") ? "All Lights" : groups.get(parts[1]).getString("name"));
+                    group.put("lights", members);
+                    return group;
+                }
+                if( parts.length == 3 && parts[2].equals("action") && method.equals("PUT") && body != null ) {
+                    JSONArray results = new JSONArray();
+
+                    if( body.has("scene") ) {
+                        JSONObject scene = scenes.get(body.getString("scene"));
+
+                        if( scene == null ) {
+                            return new JSONArray().put(error(7, address + "/scene", "invalid value, " + body.getString("scene") + ", for parameter, scene"));
+                        }
+                        JSONObject states = scene.getJSONObject("lightstates");
+                        Iterator<?> it = states.keys();
+
+                        while( it.hasNext() ) {
+                            String lightId = (String)it.next();
+
+                            apply(lightId, states.getJSONObject(lightId), new JSONArray(), "/lights/" + lightId + "/state");
+                        }
+                        return results.put(success(address + "/scene", body.getString("scene")));
+                    }
+                    for( int i=0; i<members.length(); i++ ) {
+                        apply(members.getString(i), body, new JSONArray(), "/lights/" + members.getString(i) + "/state");
+                    }
+                    Iterator<?> it = body.keys();
+
+                    while( it.hasNext() ) {
+                        String attr = (String)it.next();
+
+                        results.put(success(address + "/" + attr, body.get(attr)));
+                    }
+                    return results;
+                }
+            }
+        }
+        else if( collection.equals("scenes") ) {
+            if( parts.length == 1 && method.equals("GET") ) {
+                JSONObject list = new JSONObject();
+
+                for( String id : scenes.keySet() ) {
+                    JSONObject scene = scenes.get(id);
+
+                    list.put(id, new JSONObject().put("name", scene.getString("name")).put("lights", scene.getJSONArray("lights")));
+                }
+                return list;
+            }
+            if( parts.length == 2 && method.equals("DELETE") && scenes.containsKey(parts[1]) ) {
+                scenes.remove(parts[1]);
+                return new JSONArray().put(new JSONObject().put("success", address + " deleted"));
+            }
+            if( parts.length == 2 && method.equals("PUT") && body != null ) {
+                JSONArray members = (body.has("lights") ? body.getJSONArray("lights") : new JSONArray());
+                JSONObject states = new JSONObject();
+                JSONObject scene = new JSONObject();
+
+                // a stored scene starts out as a snapshot of its lights
+                for( int i=0; i<members.length(); i++ ) {
+                    JSONObject light = lights.get(members.getString(i));
+
+                    if( light != null ) {
+                        states.put(members.getString(i), new JSONObject(light.getJSONObject("state").toString()));
+                    }
+                }
+                scene.put("name", body.has("name") ? body.getString("name") : parts[1]);
+                scene.put("lights", members);
+                scene.put("lightstates", states);
+                scenes.put(parts[1], scene);
+                return new JSONArray().put(success("id", parts[1]));
+            }
+            if( parts.length == 5 && parts[2].equals("lights") && parts[4].equals("state") && method.equals("PUT") && body != null && scenes.containsKey(parts[1]) ) {
+                scenes.get(parts[1]).getJSONObject("lightstates").put(parts[3], body);
+                return new JSONArray().put(success(address, body));
+            }
+        }
+        return new JSONArray().put(error(3, address, "resource, " + address + ", not available"));
+    }
+
+    private @Nullable JSONArray getMembers(@Nonnull String groupId) throws JSONException {
+        if( groupId.equals("0") ) {
+            return new JSONArray(lights.keySet());
+        }
+        JSONObject group = groups.get(groupId);
+
+        return (group == null ? null : group.getJSONArray("lights"));
+    }
+
+    private @Nonnull String join(@Nonnull String[] parts) {
+        StringBuilder str = new StringBuilder();
+
+        for( String p : parts ) {
+            if( str.length() > 0 ) {
+                str.append("/");
+            }
+            str.append(p);
+        }
+        return str.toString();
+    }
+
+    private @Nonnull String lightsToString() throws JSONException {
+        JSONObject list = new JSONObject();
+
+        for( String id : lights.keySet() ) {
+            list.put(id, lights.get(id));
+        }
+        return list.toString();
+    }
+
+    /**
+     * Turns on random server errors.
+     * @param errorRate the fraction of requests to answer with a 500, from 0.0 to 1.0
+     */
+    public void setErrorRate(@Nonnegative double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Slows down every request.
+     * @param latency milliseconds added to every request
+     * @param jitter up to this many further milliseconds added at random
+     */
+    public void setLatency(@Nonnegative long latency, @Nonnegative long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Limits the rate at which the simulator accepts requests. Requests over the limit get a 503.
+     * @param perSecond the sustained number of requests per second, or 0 for no limit
+     * @param burst the number of requests accepted back to back
+     */
+    public synchronized void setRateLimit(@Nonnegative double perSecond, @Nonnegative int burst) {
+        intervalNanos = (perSecond <= 0d ? 0L : (long)(1000000000d/perSecond));
+        burstNanos = intervalNanos * Math.max(1, burst);
+        nextFree = 0L;
+    }
+
+    /**
+     * Starts answering requests on a free port on the loopback interface.
+     * @throws IOException the simulator could not listen
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        executor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(executor);
+        server.createContext("/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                HueBridgeSimulator.this.handle(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops the simulator, dropping any requests still in progress.
+     */
+    public void stop() {
+        if( server != null ) {
+            server.stop(0);
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            }
+            catch( InterruptedException ignore ) {
+                // nothing left to wait on
+            }
+            server = null;
+        }
+    }
+
+    private @Nonnull JSONObject success(@Nonnull String key, @Nonnull Object value) throws JSONException {
+        return new JSONObject().put("success", new JSONObject().put(key, value));
+    }
+}
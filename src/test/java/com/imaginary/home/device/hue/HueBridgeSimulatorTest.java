@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import com.imaginary.home.controller.CommunicationException;
+import com.imaginary.home.lighting.Color;
+import com.imaginary.home.lighting.ColorMode;
+import com.imaginary.home.lighting.Light;
+import com.imaginary.home.lighting.Scene;
+import junit.framework.Assert;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Hue driver against a {@link HueBridgeSimulator} so the request paths can be checked without a bridge.
+ */
+public class HueBridgeSimulatorTest {
+    static private final int BULBS = 5;
+
+    private Hue                hue;
+    private HueBridgeSimulator simulator;
+
+    public HueBridgeSimulatorTest() { }
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new HueBridgeSimulator(BULBS);
+        simulator.start();
+        hue = simulator.newHue(new Properties());
+    }
+
+    @After
+    public void tearDown() {
+        if( hue != null ) {
+            hue.close();
+        }
+        simulator.stop();
+    }
+
+    private ArrayList<String> getIds(Iterable<Light> lights) {
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for( Light light : lights ) {
+            ids.add(light.getProviderId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void pair() throws Exception {
+        Hue unpaired = new Hue(simulator.getAddress(), "");
+
+        try {
+            Properties auth = unpaired.pair("simulatortest");
+
+            Assert.assertNotNull("No access key was issued", auth.getProperty("accessKey"));
+            Assert.assertTrue("No access key was issued", auth.getProperty("accessKey").length() > 0);
+            Assert.assertEquals("The new key cannot list lights", BULBS, getIds(new Hue(simulator.getAddress(), auth.getProperty("accessKey")).listLights()).size());
+        }
+        finally {
+            unpaired.close();
+        }
+    }
+
+    @Test
+    public void listLights() throws Exception {
+        Assert.assertEquals("Unexpected number of lights", BULBS, getIds(hue.listLights()).size());
+    }
+
+    @Test
+    public void bulbWrite() throws Exception {
+        Light light = hue.listLights().iterator().next();
+
+        Assert.assertTrue("Write failed", light.changeColor(new Color(ColorMode.CT, 250f, 50f), null).get(5, TimeUnit.SECONDS));
+        JSONObject state = simulator.getLightState(light.getProviderId());
+
+        Assert.assertNotNull("Light is missing", state);
+        Assert.assertTrue("Light is off", state.getBoolean("on"));
+        Assert.assertEquals("Color temperature was not set", 250, state.getInt("ct"));
+        Assert.assertEquals("Color mode was not updated", "ct", state.getString("colormode"));
+    }
+
+    @Test
+    public void allLightsGroupWrite() throws Exception {
+        Light group = hue.getGroup(getIds(hue.listLights()));
+
+        Assert.assertNotNull("No group for all lights", group);
+        Assert.assertTrue("Group write failed", group.flipOn().get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Group write was not a single request", 1L, simulator.getRequests("PUT", "groups/0/action"));
+        Assert.assertEquals("Group write fell back to bulb writes", 0L, simulator.getRequests("PUT", "lights/1/state"));
+        for( int i=1; i<=BULBS; i++ ) {
+            Assert.assertTrue("Light " + i + " is off", simulator.getLightState(String.valueOf(i)).getBoolean("on"));
+        }
+    }
+
+    @Test
+    public void writesStayWithinRateLimit() throws Exception {
+        ArrayList<Light> lights = new ArrayList<Light>();
+        int rounds = 4;
+
+        for( Light light : hue.listLights() ) {
+            lights.add(light);
+        }
+        // the bridge allows a little more than the scheduler's default budget
+        simulator.setRateLimit(HueWriteScheduler.DEFAULT_RATE + 2, HueWriteScheduler.DEFAULT_BURST + 1);
+        for( int i=0; i<rounds; i++ ) {
+            ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+            // one write per bulb, all finished before the next round, so nothing is merged away
+            for( Light light : lights ) {
+                results.add(light.changeColor(new Color(ColorMode.CT, 200f + (i*50), 60f), null));
+            }
+            for( Future<Boolean> result : results ) {
+                Assert.assertTrue("Write failed", result.get(10, TimeUnit.SECONDS));
+            }
+        }
+        Assert.assertEquals("Writes were merged, so the rate limit was never tested", (long)(rounds * BULBS), simulator.getRequests("PUT", "lights/1/state"));
+        Assert.assertEquals("The scheduler exceeded the bridge rate limit", 0L, simulator.getRateLimited());
+        for( int i=1; i<=BULBS; i++ ) {
+            Assert.assertEquals("Light " + i + " missed its last write", 200 + ((rounds-1)*50), simulator.getLightState(String.valueOf(i)).getInt("ct"));
+        }
+    }
+
+    @Test
+    public void groupWriteGoesOutWithinBurst() throws Exception {
+        Light group = hue.getGroup(getIds(hue.listLights()));
+        long start = System.currentTimeMillis();
+
+        Assert.assertNotNull("No group for all lights", group);
+        Assert.assertTrue("Group write failed", group.flipOn().get(5, TimeUnit.SECONDS));
+        Assert.assertTrue("A group write on an idle scheduler waited for tokens", System.currentTimeMillis() - start < 500L);
+    }
+
+    @Test
+    public void createdGroupsArePruned() throws Exception {
+        Properties properties = new Properties();
+
+        properties.setProperty("groupThreshold", "1");
+        properties.setProperty("maxGroups", "2");
+        Hue grouping = simulator.newHue(properties);
+
+        try {
+            for( int i=1; i<BULBS; i++ ) {
+                Assert.assertNotNull("No group was created for lights " + i + " and " + (i+1), grouping.getGroup(Arrays.asList(String.valueOf(i), String.valueOf(i+1))));
+                Assert.assertTrue("More groups were kept than allowed", simulator.getGroupCount() <= 2);
+            }
+            long created = simulator.getRequests("POST", "groups");
+
+            Assert.assertNotNull("No group for lights 3 and 4", grouping.getGroup(Arrays.asList("3", "4")));
+            Assert.assertEquals("A recent group was not reused", created, simulator.getRequests("POST", "groups"));
+            Assert.assertEquals("Old groups were not deleted", (long)(BULBS - 3), simulator.getRequests("DELETE", "groups/1"));
+        }
+        finally {
+            grouping.close();
+        }
+    }
+
+    @Test
+    public void repeatedSceneIsOneRequest() throws Exception {
+        Scene scene = new Scene();
+
+        scene.setLight("1", new Color(ColorMode.CT, 300f, 80f));
+        scene.setLight("2", null);
+        Future<Boolean> first = hue.recallScene(scene, null);
+
+        Assert.assertNotNull("Scenes are not supported", first);
+        Assert.assertTrue("Scene recall failed", first.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("Scene light was not set", 300, simulator.getLightState("1").getInt("ct"));
+        Assert.assertFalse("Scene light was not turned off", simulator.getLightState("2").getBoolean("on"));
+
+        long before = simulator.getRequests();
+
+        Assert.assertTrue("Scene recall failed", hue.recallScene(scene, null).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("A stored scene took more than one request", before + 1, simulator.getRequests());
+    }
+
+    @Test
+    public void failedSceneIsNotRetried() throws Exception {
+        Scene scene = new Scene();
+
+        scene.setLight("1", new Color(ColorMode.CT, 300f, 80f));
+        scene.setLight("2", new Color(ColorMode.CT, 200f, 80f));
+        Assert.assertTrue("Scene recall failed", hue.recallScene(scene, null).get(5, TimeUnit.SECONDS));
+
+        Scene other = new Scene();
+
+        other.setLight("1", new Color(ColorMode.CT, 250f, 80f));
+        other.setLight("2", null);
+        simulator.setErrorRate(1.0d);
+        Assert.assertNull("A scene was recalled from a failing bridge", hue.recallScene(other, null));
+        Assert.assertTrue("The failed scene was not deleted", simulator.getRequests("DELETE", "scenes/x") > 0L);
+        simulator.setErrorRate(0.0d);
+
+        long before = simulator.getRequests("PUT", "scenes/x");
+
+        Assert.assertNull("A scene that just failed was stored again", hue.recallScene(other, null));
+        Assert.assertEquals("A scene that just failed was stored again", before, simulator.getRequests("PUT", "scenes/x"));
+    }
+
+    @Test
+    public void createdScenesArePruned() throws Exception {
+        Properties properties = new Properties();
+
+        properties.setProperty("maxScenes", "2");
+        Hue pruning = simulator.newHue(properties);
+
+        try {
+            for( int i=0; i<4; i++ ) {
+                Scene scene = new Scene();
+
+                scene.setLight("1", new Color(ColorMode.CT, 200f + (i*50), 80f));
+                scene.setLight("2", null);
+                Assert.assertTrue("Scene recall failed", pruning.recallScene(scene, null).get(5, TimeUnit.SECONDS));
+                Assert.assertTrue("More scenes were kept than allowed", simulator.getSceneCount() <= 2);
+            }
+            Assert.assertEquals("Old scenes were not deleted", 2L, simulator.getRequests("DELETE", "scenes/x"));
+        }
+        finally {
+            pruning.close();
+        }
+    }
+
+    @Test
+    public void serverErrors() throws Exception {
+        simulator.setErrorRate(1.0d);
+        try {
+            hue.listLights();
+            Assert.fail("Listing lights succeeded against a failing bridge");
+        }
+        catch( CommunicationException expected ) {
+            Assert.assertEquals("Unexpected status", 500, expected.getStatusCode());
+        }
+        Assert.assertTrue("No errors were injected", simulator.getErrors() > 0L);
+    }
+
+    @Test
+    public void latencyIsMeasured() throws Exception {
+        simulator.setLatency(50L, 20L);
+        hue.listLights();
+        Assert.assertTrue("Latency was not reflected in the metrics", hue.getMetrics().getAverageLatency("GET lights") >= 50d);
+    }
+}
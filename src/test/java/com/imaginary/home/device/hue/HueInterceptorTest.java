@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2013 George Reese
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.imaginary.home.device.hue;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises the built-in {@link HueInterceptor}s against a fake end of the chain, so no bridge is needed.
+ */
+public class HueInterceptorTest {
+    static private class FailingChain implements HueInterceptor.Chain {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final HueException  error;
+        final int           failures;
+
+        FailingChain(int failures, @Nonnull HueException error) {
+            this.failures = failures;
+            this.error = error;
+        }
+
+        @Override
+        public @Nonnull HueResponse proceed(@Nonnull HueRequest request) throws HueException {
+            if( calls.incrementAndGet() <= failures ) {
+                throw error;
+            }
+            return new HueResponse(200, null);
+        }
+    }
+
+    public HueInterceptorTest() { }
+
+    @Test
+    public void metricKeys() {
+        Assert.assertEquals("Collection key changed", "GET lights", HueMetrics.getKey("GET", "lights"));
+        Assert.assertEquals("Light ID was not folded", "PUT lights/{id}/state", HueMetrics.getKey("PUT", "lights/7/state"));
+        Assert.assertEquals("Nested IDs were not folded", "PUT scenes/{id}/lights/{id}/state", HueMetrics.getKey("PUT", "scenes/iha0000beef/lights/3/state"));
+    }
+
+    @Test
+    public void metricsRecordFailures() throws Exception {
+        HueMetrics metrics = new HueMetrics();
+        HueRequest request = new HueRequest("PUT", "lights/1/state", null);
+        FailingChain chain = new FailingChain(1, new HueException(new IOException("reset")));
+
+        try {
+            metrics.intercept(request, chain);
+            Assert.fail("The failure was swallowed");
+        }
+        catch( HueException expected ) {
+            // expected
+        }
+        metrics.intercept(request, chain);
+        Assert.assertEquals("Unexpected request count", 2L, metrics.getRequests("PUT lights/{id}/state"));
+        Assert.assertEquals("Unexpected failure count", 1L, metrics.getFailures("PUT lights/{id}/state"));
+    }
+
+    @Test
+    public void retriesIOErrors() throws Exception {
+        FailingChain chain = new FailingChain(2, new HueException(new IOException("reset")));
+        HueResponse response = new HueRetryInterceptor(2, 0L).intercept(new HueRequest("GET", "lights", null), chain);
+
+        Assert.assertEquals("Retry did not succeed", 200, response.getStatusCode());
+        Assert.assertEquals("Unexpected number of attempts", 3, chain.calls.get());
+    }
+
+    @Test
+    public void neverRetriesBridgeErrorsOrPosts() throws Exception {
+        FailingChain rejected = new FailingChain(1, new HueException(400, "invalid value"));
+        FailingChain post = new FailingChain(1, new HueException(new IOException("reset")));
+        HueRetryInterceptor retry = new HueRetryInterceptor(3, 0L);
+
+        try {
+            retry.intercept(new HueRequest("PUT", "lights/1/state", null), rejected);
+            Assert.fail("A bridge error was retried into success");
+        }
+        catch( HueException expected ) {
+            Assert.assertEquals("Bridge error was retried", 1, rejected.calls.get());
+        }
+        try {
+            retry.intercept(new HueRequest("POST", "groups", null), post);
+            Assert.fail("A POST was retried into success");
+        }
+        catch( HueException expected ) {
+            Assert.assertEquals("POST was retried", 1, post.calls.get());
+        }
+    }
+
+    @Test
+    public void injectedFaultsAreRetried() throws Exception {
+        final HueFaultInjector faults = new HueFaultInjector(1.0d, 0L);
+        final FailingChain chain = new FailingChain(0, new HueException("unused"));
+        HueInterceptor.Chain faulty = new HueInterceptor.Chain() {
+            @Override
+            public @Nonnull HueResponse proceed(@Nonnull HueRequest request) throws HueException {
+                return faults.intercept(request, chain);
+            }
+        };
+
+        try {
+            new HueRetryInterceptor(2, 0L).intercept(new HueRequest("GET", "lights", null), faulty);
+            Assert.fail("Every request should have failed");
+        }
+        catch( HueException expected ) {
+            Assert.assertTrue("Injected fault was not an I/O error", expected.getCause() instanceof IOException);
+        }
+        Assert.assertEquals("A request got past the fault injector", 0, chain.calls.get());
+    }
+}